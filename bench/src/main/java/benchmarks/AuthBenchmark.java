@@ -0,0 +1,89 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.db.PooledConnection;
+import serverside.model.User;
+import serverside.service.BaseAuthService;
+import serverside.service.DBConnection;
+import serverside.service.ServerConfig;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск пользователя при входе во встроенной базе H2:
+ * userBuilder - запрос на уже выданном соединении и User.userBuilder,
+ * lookup - BaseAuthService.getUserByLoginAndPassword с выдачей соединения из пула,
+ * lookupMiss - то же для неверного пароля,
+ * lookupAsync - асинхронный поиск через пул потоков аутентификации (с переходом между потоками).
+ * Несколько потоков (-t) показывают конкуренцию за пул соединений и объединение одинаковых запросов
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class AuthBenchmark {
+    private static final String USER_BY_LOGIN_AND_PASSWORD_QUERY = "SELECT * FROM users WHERE login=? AND password=?";
+
+    private BaseAuthService authService;
+    private PooledConnection connection;
+    private PreparedStatement statement;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        ServerConfig config = EmbeddedServer.config();
+        DBConnection.init(config);
+        authService = new BaseAuthService(config);
+        authService.start();
+        connection = DBConnection.getConnection();
+        statement = connection.prepareStatement(USER_BY_LOGIN_AND_PASSWORD_QUERY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+        authService.stop();
+        DBConnection.closeConnection();
+    }
+
+    @Benchmark
+    public User userBuilder() throws SQLException {
+        synchronized (statement) {
+            statement.setString(1, "Viktor");
+            statement.setString(2, "qwerty");
+            try (ResultSet result = connection.executeQuery(statement)) {
+                return User.userBuilder(result);
+            }
+        }
+    }
+
+    @Benchmark
+    public User lookup() throws SQLException {
+        return authService.getUserByLoginAndPassword("Viktor", "qwerty");
+    }
+
+    @Benchmark
+    public User lookupMiss() throws SQLException {
+        return authService.getUserByLoginAndPassword("Viktor", "wrong");
+    }
+
+    @Benchmark
+    public User lookupAsync() {
+        return authService.getUserByLoginAndPasswordAsync("Viktor", "qwerty").join();
+    }
+}
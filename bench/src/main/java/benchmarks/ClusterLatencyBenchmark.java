@@ -0,0 +1,140 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.interfaces.Connection;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.service.ClientHandler;
+import serverside.service.MyServer;
+import serverside.service.Room;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка доставки через кластер: сообщение, разосланное в комнату на узле A, пересылается узлу B
+ * (PEER_BROADCAST по TCP на localhost) и ставится в очередь участника комнаты на B.
+ * Оба узла - серверы без приема подключений клиентов (EmbeddedServer.startClusterNode) в одном процессе,
+ * участники - ClientHandler на соединениях в памяти. Бенчмарк измеряет время от broadcastMessage на A
+ * до вызова send у соединения участника на B: кодирование пакета пересылки, запись в сокет узла,
+ * чтение и разбор на B и рассылку в комнате B. Сообщения отправляются по одному, следующее - после доставки
+ * предыдущего, поэтому очередь соединения между узлами пуста. Пока поток бенчмарка ждет доставки,
+ * он занимает ядро, поэтому нужно хотя бы два ядра. Участники не авторизуются, а таймер авторизации
+ * сервера - 120 секунд, поэтому прогон одного набора параметров должен быть короче
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ClusterLatencyBenchmark {
+    private static final String NICK = "Давид";
+    private static final String ROOM = "bench";
+    private static final long LINK_TIMEOUT_MILLIS = 10_000;
+    private static final long DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"64", "4096"})
+    public int message;
+
+    private MyServer nodeA;
+    private MyServer nodeB;
+    private Room room;
+    private Packet packet;
+    private CountingConnection remote;
+    private long published;
+
+    /**
+     * Соединение участника на узле B: считает доставленные сообщения.
+     * Сообщения ему отправляет один поток - поток чтения соединения с узлом A
+     */
+    static final class CountingConnection implements Connection {
+        private volatile long received;
+
+        @Override
+        public void send(Packet packet) {
+            received++;
+        }
+
+        @Override
+        public ProtocolVersion getProtocolVersion() {
+            return ProtocolVersion.V2;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        long getReceived() {
+            return received;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        int portA = freePort();
+        int portB = freePort();
+        nodeB = EmbeddedServer.startClusterNode("chat.cluster.nodeId=bench-b", "chat.cluster.port=" + portB);
+        nodeA = EmbeddedServer.startClusterNode("chat.cluster.nodeId=bench-a", "chat.cluster.port=" + portA,
+                "chat.cluster.peers=127.0.0.1:" + portB);
+        remote = new CountingConnection();
+        nodeB.joinRoom(new ClientHandler(nodeB, remote), ROOM);
+        room = nodeA.joinRoom(new ClientHandler(nodeA, new MemoryConnection(new WireFormat(ProtocolVersion.V2, false, 0))), ROOM);
+        long deadline = System.currentTimeMillis() + LINK_TIMEOUT_MILLIS;
+        while(nodeA.getCluster().getLinkCount() == 0 || nodeB.getCluster().getLinkCount() == 0) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Узлы кластера не соединились за " + LINK_TIMEOUT_MILLIS + " мс");
+            }
+            Thread.sleep(10);
+        }
+        char[] text = new char[message];
+        Arrays.fill(text, 'а');
+        packet = Packet.of(Opcode.MESSAGE, NICK, new String(text));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nodeA.stop();
+        nodeB.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Benchmark
+    public long publishToRemote() {
+        published++;
+        nodeA.broadcastMessage(room, packet);
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+        for(int spins = 0; remote.getReceived() < published; spins++) {
+            if(spins < 1000) {
+                Thread.onSpinWait();
+            } else if(System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Сообщение не доставлено на узел B");
+            } else {
+                Thread.yield();
+            }
+        }
+        return published;
+    }
+}
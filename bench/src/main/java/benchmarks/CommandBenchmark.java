@@ -0,0 +1,127 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.protocol.BinaryCodec;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.TextCodec;
+import serverside.protocol.WireFormat;
+import serverside.service.ClientHandler;
+import serverside.service.MyServer;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор и обработка команд клиента:
+ * parseText - разбор строки протокола версии 1 (TextCodec.parse),
+ * decodeBinary - разбор кадра версии 2 (BinaryCodec.decode),
+ * encodeText и encodeBinary - кодирование нового пакета для отправки,
+ * dispatch - обработка уже разобранной команды авторизованным клиентом (ClientHandler.onMessage):
+ * поиск обработчика и ответ, для text - рассылка в общую комнату, где клиент один,
+ * для private - ответ об ошибке (получателя нет в чате)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CommandBenchmark {
+    private static final long DISPATCH_READY_TIMEOUT_MILLIS = 10_000;
+
+    @Param({"text", "private", "list", "rooms"})
+    public String command;
+
+    private String line;
+    private Packet packet;
+    private ByteBuffer frame;
+    private MyServer server;
+    private ClientHandler client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (command) {
+            case "text":
+                line = "Всем привет! Кто-нибудь уже смотрел новую версию сервера?";
+                break;
+            case "private":
+                line = "/w Виктор Привет, как дела? Созвонимся вечером";
+                break;
+            case "list":
+                line = "/list";
+                break;
+            case "rooms":
+                line = "/rooms";
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестная команда: " + command);
+        }
+        packet = TextCodec.parse(line);
+        frame = ByteBuffer.wrap(BinaryCodec.encode(packet));
+
+        server = EmbeddedServer.start();
+        client = new ClientHandler(server, new MemoryConnection(new WireFormat(ProtocolVersion.V2, false, 0)));
+        client.onMessage(Packet.of(Opcode.AUTH, "David", "qazwsx"));
+        long deadline = System.currentTimeMillis() + DISPATCH_READY_TIMEOUT_MILLIS;
+        while(client.getUser() == null || client.getRoom() == null) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Клиент бенчмарка не авторизовался");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Packet parseText() throws ProtocolException {
+        return TextCodec.parse(line);
+    }
+
+    @Benchmark
+    public Packet decodeBinary() throws ProtocolException {
+        return BinaryCodec.decode(frame.duplicate(), ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    @Benchmark
+    public String encodeText() {
+        return TextCodec.format(Packet.of(packet.getOpcode(), fields()));
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryCodec.encode(Packet.of(packet.getOpcode(), fields()));
+    }
+
+    @Benchmark
+    public void dispatch() {
+        client.onMessage(packet);
+    }
+
+    private String[] fields() {
+        String[] fields = new String[packet.size()];
+        for(int i = 0; i < fields.length; i++) {
+            fields[i] = packet.get(i);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import serverside.service.MyServer;
+import serverside.service.ServerConfig;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Сервер для бенчмарков: компоненты сервера без портов (MyServer с listen=false) на встроенной базе H2.
+ * Журнал сообщений и журнал аудита отключены, чтобы бенчмарки рассылки и команд не измеряли диск,
+ * ограничение частоты сообщений клиента - чтобы команды одного клиента бенчмарка не выбрасывались
+ */
+final class EmbeddedServer {
+    static final String DB_URL = "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    private EmbeddedServer() {
+    }
+
+    /**
+     * @param settings дополнительные настройки сервера вида ключ=значение
+     * @return настройки для бенчмарков
+     */
+    static ServerConfig config(String... settings) {
+        Properties properties = new Properties();
+        properties.setProperty("chat.db.url", DB_URL);
+        properties.setProperty("chat.history.enabled", "false");
+        properties.setProperty("chat.audit.level", "off");
+        properties.setProperty("chat.ratelimit.messageRate", "0");
+        properties.setProperty("chat.ratelimit.commandRate", "0");
+        for(String setting : settings) {
+            int eq = setting.indexOf('=');
+            properties.setProperty(setting.substring(0, eq), setting.substring(eq + 1));
+        }
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Запускает сервер без приема подключений
+     * @param settings дополнительные настройки сервера вида ключ=значение
+     * @return сервер; останавливается методом stop
+     */
+    static MyServer start(String... settings) {
+        MyServer server = new MyServer(config(settings), false);
+        if(server.getRoster() == null) {
+            throw new IllegalStateException("Сервер для бенчмарка не запустился, см. журнал");
+        }
+        return server;
+    }
+
+    /**
+     * Запускает сервер без приема подключений клиентов, но с узлом кластера (chat.cluster.*).
+     * Пул соединений с базой данных общий для всех серверов процесса, поэтому узлы одного бенчмарка
+     * работают с одной базой и останавливаются вместе
+     * @param settings дополнительные настройки сервера вида ключ=значение, среди них chat.cluster.port
+     * @return сервер; останавливается методом stop
+     */
+    static MyServer startClusterNode(String... settings) throws IOException {
+        ServerConfig config = config(settings);
+        MyServer server = new MyServer(config, false);
+        if(server.getRoster() == null) {
+            throw new IllegalStateException("Сервер для бенчмарка не запустился, см. журнал");
+        }
+        server.startCluster(config);
+        return server;
+    }
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.service.ClientHandler;
+import serverside.service.MyServer;
+import serverside.service.Room;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рассылка сообщения в комнату (MyServer.broadcastMessage) при разном числе участников.
+ * Участники - ClientHandler на соединениях в памяти (MemoryConnection), поэтому измеряется сама рассылка:
+ * создание пакета, кодирование кадра один раз на формат и постановка его каждому получателю.
+ * encoding=perRecipient - исходный вариант для сравнения: пакет кодируется заново для каждого получателя
+ * (writeUTF для версии 1), encoding=shared - один общий кадр (Frame) на всех получателей.
+ * parallelThreshold задает, с какого размера комната рассылается пулом рассылки (chat.rooms.parallelThreshold);
+ * при рассылке пулом бенчмарк измеряет, сколько сообщений в секунду пул успевает принять
+ * (очереди пула ограничены, и отправитель ждет, пока пул не освободит место).
+ * Участники не авторизуются, а таймер авторизации сервера - 120 секунд, поэтому прогон одного набора
+ * параметров должен быть короче
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FanoutBenchmark {
+    private static final String NICK = "Давид";
+    private static final String MESSAGE = "привет всем, кто сегодня в чате? Обсуждаем новый выпуск";
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int subscribers;
+
+    @Param({"1", "2"})
+    public int protocolVersion;
+
+    @Param({"256", "2147483647"})
+    public int parallelThreshold;
+
+    @Param({"shared", "perRecipient"})
+    public String encoding;
+
+    private MyServer server;
+    private Room room;
+    private MemoryConnection[] connections;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = EmbeddedServer.start("chat.rooms.parallelThreshold=" + parallelThreshold);
+        WireFormat format = protocolVersion == 1 ? WireFormat.V1 : new WireFormat(ProtocolVersion.V2, false, 0);
+        boolean reencode;
+        switch (encoding) {
+            case "shared":
+                reencode = false;
+                break;
+            case "perRecipient":
+                reencode = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный способ кодирования: " + encoding);
+        }
+        connections = new MemoryConnection[subscribers];
+        for(int i = 0; i < subscribers; i++) {
+            connections[i] = new MemoryConnection(format, reencode);
+            room = server.joinRoom(new ClientHandler(server, connections[i]), "bench");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long frames = 0;
+        for(MemoryConnection connection : connections) {
+            frames += connection.getFrames();
+        }
+        if(frames == 0) {
+            throw new IllegalStateException("Рассылка не дошла до участников");
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcastMessage(room, Packet.of(Opcode.MESSAGE, NICK, MESSAGE));
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import clientside.model.HistoryWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * История сообщений клиента (HistoryWriter): запись сообщения в заполненную историю, то есть
+ * с вытеснением старого, и загрузка всей истории при входе (getLastMessages).
+ * Файл истории создается в каталоге "Clients Histories" текущего каталога под отдельным логином
+ * и удаляется после прогона
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HistoryBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int lastMessagesCount;
+
+    @Param({"40", "400"})
+    public int messageLength;
+
+    private String login;
+    private HistoryWriter history;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        login = "bench-" + ProcessHandle.current().pid() + "-" + System.nanoTime();
+        history = new HistoryWriter(login, lastMessagesCount);
+        StringBuilder sb = new StringBuilder(messageLength);
+        while(sb.length() < messageLength - 1) {
+            sb.append("Давид: сообщение в чат ");
+        }
+        sb.setLength(messageLength - 1);
+        message = sb.append('\n').toString();
+        for(int i = 0; i < lastMessagesCount; i++) {
+            history.write(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        history.close();
+        new File("Clients Histories", "history_" + login + ".ring").delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        history.write(message);
+    }
+
+    @Benchmark
+    public String getLastMessages() throws IOException {
+        return history.getLastMessages();
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import serverside.interfaces.Connection;
+import serverside.protocol.BinaryCodec;
+import serverside.protocol.Frame;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.TextCodec;
+import serverside.protocol.WireFormat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Соединение без сокета для бенчмарков: кадр пакета кодируется (или берется из пакета готовым),
+ * как при настоящей отправке, но никуда не пишется - считаются только кадры и байты.
+ * С reencode=true пакет кодируется заново для каждого получателя, как до появления общего кадра (Frame):
+ * строка версии 1 - через writeUTF, кадр версии 2 - BinaryCodec.encode.
+ * Все отправки одному соединению идут из одного потока (см. FanoutPool), поэтому счетчики обычные поля
+ */
+class MemoryConnection implements Connection {
+    private final WireFormat format;
+    private final DataOutputStream reencodeOut;     // null - общий кадр пакета
+    private long frames;
+    private long bytes;
+
+    MemoryConnection(WireFormat format) {
+        this(format, false);
+    }
+
+    MemoryConnection(WireFormat format, boolean reencode) {
+        this.format = format;
+        this.reencodeOut = reencode ? new DataOutputStream(OutputStream.nullOutputStream()) : null;
+    }
+
+    @Override
+    public void send(Packet packet) throws IOException {
+        frames++;
+        if(reencodeOut == null) {
+            Frame frame = packet.frame(format);
+            bytes += frame.length();
+        } else if(format.getVersion() == ProtocolVersion.V1) {
+            int before = reencodeOut.size();
+            reencodeOut.writeUTF(TextCodec.format(packet));
+            bytes += reencodeOut.size() - before;
+        } else {
+            bytes += BinaryCodec.encode(packet).length;
+        }
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return format.getVersion();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
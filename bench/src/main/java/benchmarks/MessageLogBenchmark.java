@@ -0,0 +1,93 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.history.LogEntry;
+import serverside.history.MessageLog;
+import serverside.history.MessageLogSettings;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Журнал сообщений сервера (MessageLog): выборка последних сообщений пользователя при входе
+ * из журнала заданного размера. Каждое десятое сообщение в журнале - личное сообщение другому пользователю,
+ * его выборка пропускает. Журнал создается во временном каталоге и удаляется после прогона
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class MessageLogBenchmark {
+    private static final long FILL_TIMEOUT_MILLIS = 60_000;
+
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"100"})
+    public int replayCount;
+
+    private Path dir;
+    private MessageLog log;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("chat-bench-history");
+        MessageLogSettings settings = new MessageLogSettings(dir, 64 * 1024 * 1024, TimeUnit.DAYS.toMillis(1),
+                1024L * 1024 * 1024, TimeUnit.DAYS.toMillis(7), 1000, 65536, replayCount);
+        log = MessageLog.open(settings, ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH);
+        for(int i = 0; i < records; i++) {
+            if(i % 10 == 9) {
+                log.append(LogEntry.privateMessage("Viktor", "Vladimir", "Владимир",
+                        Packet.of(Opcode.PRIVATE_FROM, "Виктор", "личное сообщение " + i)));
+            } else {
+                log.append(LogEntry.broadcast(Packet.of(Opcode.MESSAGE, "Давид", "сообщение в чат номер " + i)));
+            }
+            while(log.getQueueDepth() > 60_000) {
+                Thread.sleep(1);
+            }
+        }
+        long deadline = System.currentTimeMillis() + FILL_TIMEOUT_MILLIS;
+        while(log.getAppendedCount() < records) {
+            if(System.currentTimeMillis() > deadline || log.getDroppedCount() > 0) {
+                throw new IllegalStateException("Журнал не заполнен: записано " + log.getAppendedCount()
+                        + ", выброшено " + log.getDroppedCount());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<Packet> lastMessages() {
+        return log.lastMessages("David", replayCount);
+    }
+}
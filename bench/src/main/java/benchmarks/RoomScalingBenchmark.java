@@ -0,0 +1,116 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.service.ClientHandler;
+import serverside.service.MyServer;
+import serverside.service.Room;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Масштабирование рассылки по ядрам: несколько потоков отправителей (@Threads, меняется ключом -t)
+ * одновременно рассылают сообщения в rooms комнат по members участников на соединениях в памяти (MemoryConnection).
+ * fanoutThreads - число потоков пула рассылки (chat.rooms.fanoutThreads), parallelThreshold=1 - каждая комната
+ * рассылается пулом, 2147483647 - в потоке отправителя. Бенчмарк измеряет, сколько сообщений в секунду сервер
+ * успевает разослать; при рассылке пулом отправители ждут места в его очередях, поэтому результат - пропускная
+ * способность пула. Рост результата с fanoutThreads показывает, насколько рассылка масштабируется по ядрам,
+ * имеет смысл только при fanoutThreads не больше числа ядер.
+ * Если rooms делится на число потоков отправителей, у каждого потока свои комнаты, и одному
+ * соединению сообщения отправляет один поток. Участники не авторизуются, а таймер авторизации сервера -
+ * 120 секунд, поэтому прогон одного набора параметров должен быть короче
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class RoomScalingBenchmark {
+    private static final String NICK = "Давид";
+    private static final String MESSAGE = "привет всем, кто сегодня в чате? Обсуждаем новый выпуск";
+
+    @Param({"1", "2", "4", "8"})
+    public int fanoutThreads;
+
+    @Param({"64"})
+    public int rooms;
+
+    @Param({"100"})
+    public int members;
+
+    @Param({"1", "2147483647"})
+    public int parallelThreshold;
+
+    private MyServer server;
+    private Room[] roomList;
+    private MemoryConnection[] connections;
+
+    /**
+     * Комнаты потока отправителя: потоку с номером i достаются комнаты i, i + threads, i + 2 * threads, ...
+     */
+    @State(Scope.Thread)
+    public static class Publisher {
+        private int next;
+        private int step;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threads, RoomScalingBenchmark benchmark) {
+            next = threads.getThreadIndex() % benchmark.rooms;
+            step = threads.getThreadCount();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = EmbeddedServer.start("chat.rooms.parallelThreshold=" + parallelThreshold,
+                "chat.rooms.fanoutThreads=" + fanoutThreads);
+        WireFormat format = new WireFormat(ProtocolVersion.V2, false, 0);
+        roomList = new Room[rooms];
+        connections = new MemoryConnection[rooms * members];
+        for(int r = 0; r < rooms; r++) {
+            for(int m = 0; m < members; m++) {
+                MemoryConnection connection = new MemoryConnection(format);
+                connections[r * members + m] = connection;
+                roomList[r] = server.joinRoom(new ClientHandler(server, connection), "bench" + r);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long frames = 0;
+        for(MemoryConnection connection : connections) {
+            frames += connection.getFrames();
+        }
+        if(frames == 0) {
+            throw new IllegalStateException("Рассылка не дошла до участников");
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast(Publisher publisher) {
+        Room room = roomList[publisher.next];
+        publisher.next = (publisher.next + publisher.step) % roomList.length;
+        server.broadcastMessage(room, Packet.of(Opcode.MESSAGE, NICK, MESSAGE));
+    }
+}
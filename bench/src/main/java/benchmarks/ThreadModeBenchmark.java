@@ -0,0 +1,77 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.service.ThreadMode;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обычные и виртуальные потоки обработчиков клиентов (chat.threads): executor из ThreadMode.newExecutor,
+ * как у сервера в блокирующем режиме, выполняет tasks задач, каждая из которых ждет blockMillis,
+ * как обработчик, ждущий сообщения клиента или ответа базы данных. Измеряется время до завершения всех задач:
+ * обычным потокам на каждую задачу нужен поток ОС, виртуальные при ожидании освобождают поток-носитель.
+ * Режим virtual требует Java 21+: на более старой JVM ThreadMode.from возвращает PLATFORM,
+ * и бенчмарк завершается ошибкой, чтобы результат обычных потоков не был подписан как virtual
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ThreadModeBenchmark {
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100", "1000", "10000"})
+    public int tasks;
+
+    @Param({"10"})
+    public int blockMillis;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ThreadMode mode = ThreadMode.from(EmbeddedServer.config("chat.threads=" + threads));
+        if(!mode.name().equalsIgnoreCase(threads)) {
+            throw new IllegalStateException("Режим потоков " + threads + " не поддерживается JVM " + Runtime.version());
+        }
+        executor = mode.newExecutor("bench-handler-");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void blockingTasks() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        for(int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,114 @@
+package benchmarks;
+
+import serverside.service.ServerConfig;
+import serverside.tls.ServerTls;
+import serverside.tls.TlsSettings;
+
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Эхо-сервер на localhost для бенчмарков TLS: возвращает клиенту все полученные байты.
+ * Сравнивает транспорт без протокола чата, чтобы разница между TLS и открытым соединением не терялась
+ * на фоне обработки команд. Рукопожатие выполняет тот же ServerTls, что и сервер чата в блокирующем режиме,
+ * с самоподписанным сертификатом на localhost, который создается keytool во временном каталоге
+ */
+final class TlsEchoServer implements AutoCloseable {
+    static final String HOST = "localhost";
+    private static final String STORE_PASSWORD = "changeit";
+
+    private final ServerSocket serverSocket;
+    private final ServerTls tls;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "tls-echo");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param tls TLS сервера или null - соединения без шифрования
+     */
+    TlsEchoServer(ServerTls tls) throws IOException {
+        this.tls = tls;
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Создает самоподписанный сертификат на localhost и 127.0.0.1 (ключ EC P-256)
+     * @param protocols допустимые версии TLS через запятую
+     * @return настройки TLS, общие для сервера и клиента: клиент проверяет сертификат по тому же хранилищу
+     */
+    static TlsSettings selfSignedSettings(String protocols) throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("chat-tls-bench").toFile();
+        dir.deleteOnExit();
+        File keyStore = new File(dir, "bench.p12");
+        keyStore.deleteOnExit();
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool", "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                "-storepass", STORE_PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if(keytool.waitFor() != 0) {
+            throw new IOException("keytool не создал хранилище ключей, код " + keytool.exitValue());
+        }
+        Properties properties = new Properties();
+        properties.setProperty("chat.tls.enabled", "true");
+        properties.setProperty("chat.tls.keyStore", keyStore.getPath());
+        properties.setProperty("chat.tls.keyStorePassword", STORE_PASSWORD);
+        properties.setProperty("chat.tls.protocols", protocols);
+        return TlsSettings.from(new ServerConfig(properties));
+    }
+
+    private void acceptLoop() {
+        while(!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> echo(socket));
+            } catch (IOException ignored) {
+
+            }
+        }
+    }
+
+    private void echo(Socket socket) {
+        try (Socket client = tls == null ? socket : tls.wrap(socket)) {
+            if(tls != null) {
+                tls.handshake((SSLSocket) client);
+            }
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException ignored) {
+            // клиент бенчмарка закрывает соединение сбросом
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,107 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.tls.ClientTls;
+import serverside.tls.ServerTls;
+import serverside.tls.TlsSettings;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подключений в секунду к эхо-серверу на localhost (TlsEchoServer): подключение, рукопожатие,
+ * обмен одним байтом и закрытие.
+ * plain - без TLS, full - полное рукопожатие (клиент забывает сессию после каждого подключения),
+ * resumed - возобновление сессии, как при переподключении клиента чата с тем же ClientTls.
+ * В TLS 1.3 билет сессии приходит после рукопожатия, поэтому клиент читает ответ эхо-сервера до закрытия.
+ * Возобновление в TLS 1.3 экономит подпись и проверку сертификата, но сохраняет обмен ключами ECDHE;
+ * в TLS 1.2 сокращенное рукопожатие обходится без него (protocol=TLSv1.2). На plain protocol не влияет
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TlsHandshakeBenchmark {
+    @Param({"plain", "full", "resumed"})
+    public String mode;
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    public String protocol;
+
+    private ServerTls serverTls;
+    private ClientTls clientTls;
+    private TlsEchoServer server;
+    private boolean forgetSession;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (mode) {
+            case "plain":
+                break;
+            case "full":
+            case "resumed":
+                TlsSettings settings = TlsEchoServer.selfSignedSettings(protocol);
+                serverTls = new ServerTls(settings);
+                clientTls = new ClientTls(settings);
+                forgetSession = mode.equals("full");
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный режим: " + mode);
+        }
+        server = new TlsEchoServer(serverTls);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        if(serverTls != null) {
+            long expected = forgetSession ? serverTls.getFullHandshakeCount() : serverTls.getResumedHandshakeCount();
+            long other = forgetSession ? serverTls.getResumedHandshakeCount() : serverTls.getFullHandshakeCount();
+            // в resumed полным бывает только первое рукопожатие
+            if(expected <= other) {
+                throw new IllegalStateException("Рукопожатия не соответствуют режиму " + mode + ": полных "
+                        + serverTls.getFullHandshakeCount() + ", возобновленных " + serverTls.getResumedHandshakeCount());
+            }
+        }
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        Socket socket = new Socket();
+        // закрытие сбросом: клиентские порты не остаются в TIME_WAIT и не кончаются за время измерения
+        socket.setSoLinger(true, 0);
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(TlsEchoServer.HOST, server.getPort()));
+        Socket connection = socket;
+        try {
+            if(clientTls != null) {
+                connection = clientTls.connect(socket, TlsEchoServer.HOST, server.getPort());
+            }
+            connection.getOutputStream().write(1);
+            int reply = connection.getInputStream().read();
+            if(forgetSession) {
+                ((SSLSocket) connection).getSession().invalidate();
+            }
+            return reply;
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import serverside.tls.ClientTls;
+import serverside.tls.ServerTls;
+import serverside.tls.TlsSettings;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость одного сообщения в уже установленном соединении: отправка message байт эхо-серверу
+ * на localhost (TlsEchoServer) и чтение ответа, без TLS (plain) и с TLS (tls).
+ * Разница между ними - шифрование и расшифровка записи на обеих сторонах
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TlsMessageBenchmark {
+    @Param({"plain", "tls"})
+    public String transport;
+
+    @Param({"64", "1024", "16384"})
+    public int message;
+
+    private TlsEchoServer server;
+    private Socket connection;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] request;
+    private byte[] reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerTls serverTls = null;
+        ClientTls clientTls = null;
+        switch (transport) {
+            case "plain":
+                break;
+            case "tls":
+                TlsSettings settings = TlsEchoServer.selfSignedSettings("TLSv1.3");
+                serverTls = new ServerTls(settings);
+                clientTls = new ClientTls(settings);
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный транспорт: " + transport);
+        }
+        server = new TlsEchoServer(serverTls);
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(TlsEchoServer.HOST, server.getPort()));
+        connection = clientTls == null ? socket : clientTls.connect(socket, TlsEchoServer.HOST, server.getPort());
+        in = connection.getInputStream();
+        out = connection.getOutputStream();
+        request = new byte[message];
+        Arrays.fill(request, (byte) 'a');
+        reply = new byte[message];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connection.close();
+        server.close();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        out.write(request);
+        int read = 0;
+        while(read < reply.length) {
+            int n = in.read(reply, read, reply.length - read);
+            if(n < 0) {
+                throw new EOFException("Эхо-сервер закрыл соединение");
+            }
+            read += n;
+        }
+        return reply;
+    }
+}
@@ -1,11 +1,29 @@
 package clientside;
 
 import clientside.service.Client;
+import serverside.service.ServerConfig;
+import serverside.tls.ClientTls;
+import serverside.tls.TlsSettings;
 
+import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 public class MainClientApp {
+    /**
+     * Запуск клиента
+     * @param args - аргументы командной строки вида ключ=значение; клиент читает настройки chat.tls.*
+     *             так же, как сервер (см. ServerConfig), например chat.tls.enabled=true chat.tls.trustStore=chat.p12
+     */
     public static void main(String[] args) {
-        EventQueue.invokeLater(Client::new);
+        ClientTls tls;
+        try {
+            tls = ClientTls.from(TlsSettings.from(ServerConfig.load(args)));
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "TLS не настроен: " + ex.getMessage(),
+                    "Ошибка", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        EventQueue.invokeLater(() -> new Client(tls));
     }
 }
@@ -0,0 +1,82 @@
+package clientside.model;
+
+import javax.swing.AbstractListModel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Модель списка строк чата ограниченного размера: строки хранятся в кольцевом буфере,
+ * при переполнении самые старые строки вытесняются. Память не зависит от того, сколько сообщений
+ * пришло за время работы клиента.
+ * Модель изменяется только в потоке обработки событий Swing (EDT)
+ */
+public class ChatListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] rows;
+    private int start;           // индекс самой старой строки в rows
+    private int size;
+
+    public ChatListModel(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Размер списка должен быть положительным: " + capacity);
+        }
+        this.rows = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return rows[(start + index) % rows.length];
+    }
+
+    public int getCapacity() {
+        return rows.length;
+    }
+
+    /**
+     * Добавляет строки в конец списка одним изменением модели: вытесненные строки удаляются
+     * одним событием, добавленные - другим
+     * @param batch строки; если их больше размера списка, добавляются только последние
+     */
+    public void addAll(List<String> batch) {
+        int from = Math.max(0, batch.size() - rows.length);
+        int adding = batch.size() - from;
+        if(adding == 0) {
+            return;
+        }
+        int overflow = size + adding - rows.length;
+        if(overflow > 0) {
+            for(int i = 0; i < overflow; i++) {
+                rows[(start + i) % rows.length] = null;
+            }
+            start = (start + overflow) % rows.length;
+            size -= overflow;
+            fireIntervalRemoved(this, 0, overflow - 1);
+        }
+        int first = size;
+        for(int i = from; i < batch.size(); i++) {
+            rows[(start + size) % rows.length] = batch.get(i);
+            size++;
+        }
+        fireIntervalAdded(this, first, size - 1);
+    }
+
+    /**
+     * Удаляет все строки
+     */
+    public void clear() {
+        if(size == 0) {
+            return;
+        }
+        int removed = size;
+        Arrays.fill(rows, null);
+        start = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, removed - 1);
+    }
+}
@@ -1,73 +1,230 @@
 package clientside.model;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 public class HistoryWriter {
-    private RandomAccessFile raf;
+    private static final int MAGIC = 0x43485231;             // "CHR1"
+    private static final int HEADER_LENGTH = 24;
+    private static final int DATA_CAPACITY = 1024 * 1024;
+    private static final int WRAP = -1;                      // признак перехода записи в начало области данных
+
+    // поля заголовка
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+
     private final int lastMessagesCount;
-    private File historyFile;
-    private long currentMessagesCount;    // текущее количество сообщений
-    private long pointerLastMessages;     // указатель на место в файле истории,
-                                          // откуда начинаются последние 100 сообщений
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int head;                         // начало самого старого сообщения в области данных
+    private int tail;                         // место для следующего сообщения
+    private int count;                        // число сообщений в истории
+    private boolean closed;
 
     /**
      * Конструирует новый объект HistoryWriter
-     * Создает файл истории сообщений если он не существует и загружает последние 100 сообщений
+     * Открывает файл истории сообщений (создает его, если он не существует) и отображает его в память.
+     * Файл истории имеет фиксированный размер и хранит не больше lastMessagesCount последних сообщений
+     * в кольцевом буфере, поэтому запись сообщения - одно копирование в память, а не чтение и поиск в файле.
      * Структура файла истории:
-     * Первая строка - указатель типа long на место в файле, откуда начинаются последние 100 сообщений
-     * Следующие строки - сами сообщения
+     * Заголовок - признак формата, размер области данных, начало самого старого сообщения (head),
+     * место для следующего сообщения (tail) и число сообщений, по 4 байта
+     * Область данных - сообщения: 4 байта длины и сообщение в UTF-8. Сообщение не разрывается на конце
+     * области данных: если оно не помещается, вместо длины пишется признак WRAP и сообщение пишется с начала.
+     * Старые сообщения вытесняются, когда их больше lastMessagesCount или не хватает места.
+     * Если есть файл истории в прежнем формате (history_login.txt), последние сообщения из него переносятся
+     * в новый файл при первом открытии, а старый файл переименовывается в history_login.txt.migrated
      * @param login логин
      * @param lastMessagesCount количество последних сообщений, доступных для загрузки
      */
     public HistoryWriter(String login, int lastMessagesCount) throws IOException {
-        this.lastMessagesCount = lastMessagesCount;
+        this.lastMessagesCount = Math.max(1, lastMessagesCount);
         File historiesDir = new File("Clients Histories");
         historiesDir.mkdir();
-        historyFile = new File(historiesDir.getPath() + "//history_" + login + ".txt");
-        raf = new RandomAccessFile(historyFile, "rw");
-        if(historyFile.length() == 0) {
-            pointerLastMessages = 10;
-            raf.writeLong(pointerLastMessages);
-            raf.writeChar('\n');
+        File historyFile = new File(historiesDir, "history_" + login + ".ring");
+        File legacyFile = new File(historiesDir, "history_" + login + ".txt");
+        boolean created = !historyFile.exists() || historyFile.length() == 0;
+        try (FileChannel channel = FileChannel.open(historyFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), HEADER_LENGTH + (long) DATA_CAPACITY);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if(created || !loadHeader()) {
+            capacity = DATA_CAPACITY;
+            reset();
         } else {
-            pointerLastMessages = raf.readLong();
-            raf.seek(pointerLastMessages);
+            capacity = buffer.getInt(CAPACITY_OFFSET);
+        }
+        if(created && legacyFile.exists()) {
+            migrate(legacyFile);
         }
     }
 
-    public void close() {
-        if(raf != null) {
-            try {
-                raf.seek(0);
-                raf.writeLong(pointerLastMessages);
-                raf.close();
-                raf = null;
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Читает и проверяет заголовок: поврежденный файл истории начинается заново
+     * @return true, если заголовок и сообщения корректны
+     */
+    private boolean loadHeader() {
+        int fileCapacity = buffer.getInt(CAPACITY_OFFSET);
+        if(buffer.getInt(MAGIC_OFFSET) != MAGIC || fileCapacity <= 0 || fileCapacity > buffer.capacity() - HEADER_LENGTH) {
+            return false;
+        }
+        head = buffer.getInt(HEAD_OFFSET);
+        tail = buffer.getInt(TAIL_OFFSET);
+        count = buffer.getInt(COUNT_OFFSET);
+        if(head < 0 || head > fileCapacity || tail < 0 || tail > fileCapacity || count < 0) {
+            return false;
+        }
+        int pos = head;
+        for(int i = 0; i < count; i++) {
+            pos = recordStart(pos, fileCapacity);
+            int length = buffer.getInt(HEADER_LENGTH + pos);
+            if(length < 0 || length > fileCapacity - pos - 4) {
+                return false;
             }
+            pos += 4 + length;
         }
+        return count == 0 || pos == tail;
+    }
+
+    private void reset() {
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        head = 0;
+        tail = 0;
+        count = 0;
+        storeHeader();
+    }
+
+    private void storeHeader() {
+        buffer.putInt(HEAD_OFFSET, head);
+        buffer.putInt(TAIL_OFFSET, tail);
+        buffer.putInt(COUNT_OFFSET, count);
     }
 
-    public void write(String message) throws IOException {
-        raf.writeUTF(message);
-        currentMessagesCount++;
+    /**
+     * Переносит последние lastMessagesCount сообщений из файла истории прежнего формата:
+     * long указатель на начало последних сообщений, символ '\n' и сообщения в формате writeUTF
+     */
+    private void migrate(File legacyFile) throws IOException {
+        List<String> messages = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+            long pointer = in.readLong();
+            in.readChar();
+            in.skipNBytes(Math.max(0, pointer - 10));
+            while(true) {
+                messages.add(in.readUTF());
+            }
+        } catch (EOFException ignored) {
+            // конец файла
+        }
+        for(int i = Math.max(0, messages.size() - lastMessagesCount); i < messages.size(); i++) {
+            write(messages.get(i));
+        }
+        buffer.force();
+        Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
 
-        if(currentMessagesCount > lastMessagesCount) {
-            raf.seek(pointerLastMessages);
-            raf.readUTF();
-            pointerLastMessages = raf.getFilePointer();
-            raf.seek(historyFile.length());
+    public synchronized void close() {
+        if(!closed) {
+            closed = true;
+            buffer.force();
+        }
+    }
+
+    public synchronized void write(String message) throws IOException {
+        if(closed) {
+            throw new IOException("История сообщений закрыта");
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, capacity - 4);   // слишком длинное сообщение обрезается
+        int needed = 4 + length;
+        int pos;
+        while(true) {
+            if(count == 0) {
+                head = 0;
+                tail = 0;
+                pos = 0;
+                break;
+            }
+            if(count >= lastMessagesCount) {
+                evict();
+                continue;
+            }
+            boolean wrapped = tail < head || tail == head;
+            if(wrapped) {
+                if(head - tail >= needed) {
+                    pos = tail;
+                    break;
+                }
+            } else if(capacity - tail >= needed) {
+                pos = tail;
+                break;
+            } else if(head >= needed) {
+                if(capacity - tail >= 4) {
+                    buffer.putInt(HEADER_LENGTH + tail, WRAP);
+                }
+                pos = 0;
+                break;
+            }
+            evict();
+        }
+        buffer.putInt(HEADER_LENGTH + pos, length);
+        buffer.put(HEADER_LENGTH + pos + 4, bytes, 0, length);
+        tail = pos + needed;
+        count++;
+        storeHeader();
+    }
+
+    /**
+     * Вытесняет самое старое сообщение
+     */
+    private void evict() {
+        head = recordStart(head, capacity);
+        head += 4 + buffer.getInt(HEADER_LENGTH + head);
+        count--;
+        if(count == 0) {
+            head = 0;
+            tail = 0;
+        }
+    }
+
+    /**
+     * @return начало сообщения, которое читается с позиции pos, с учетом перехода в начало области данных
+     */
+    private int recordStart(int pos, int dataCapacity) {
+        if(dataCapacity - pos < 4 || buffer.getInt(HEADER_LENGTH + pos) == WRAP) {
+            return 0;
         }
+        return pos;
     }
 
-    public String getLastMessages() throws IOException {
+    public synchronized String getLastMessages() throws IOException {
         StringBuilder builder = new StringBuilder();
-        raf.seek(pointerLastMessages);
-        while(raf.getFilePointer() != historyFile.length()) {
-            builder.append(raf.readUTF());
-            currentMessagesCount++;
+        int pos = head;
+        for(int i = 0; i < count; i++) {
+            pos = recordStart(pos, capacity);
+            int length = buffer.getInt(HEADER_LENGTH + pos);
+            byte[] bytes = new byte[length];
+            buffer.get(HEADER_LENGTH + pos + 4, bytes);
+            builder.append(new String(bytes, StandardCharsets.UTF_8));
+            pos += 4 + length;
         }
         return builder.toString();
     }
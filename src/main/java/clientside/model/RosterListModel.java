@@ -0,0 +1,75 @@
+package clientside.model;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Модель списка пользователей в чате, упорядоченного по нику.
+ * Строится из полного списка сервера и его изменений: вход, выход и смена ника меняют одну строку.
+ * Модель изменяется только в потоке обработки событий Swing (EDT)
+ */
+public class RosterListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> nicks = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return nicks.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return nicks.get(index);
+    }
+
+    /**
+     * @return копия списка ников
+     */
+    public List<String> getNicks() {
+        return new ArrayList<>(nicks);
+    }
+
+    /**
+     * Заменяет весь список
+     * @param all ники
+     */
+    public void setAll(Collection<String> all) {
+        clear();
+        if(all.isEmpty()) {
+            return;
+        }
+        nicks.addAll(all);
+        Collections.sort(nicks);
+        fireIntervalAdded(this, 0, nicks.size() - 1);
+    }
+
+    public void add(String nick) {
+        int index = Collections.binarySearch(nicks, nick);
+        if(index < 0) {
+            index = -index - 1;
+            nicks.add(index, nick);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
+    public void remove(String nick) {
+        int index = Collections.binarySearch(nicks, nick);
+        if(index >= 0) {
+            nicks.remove(index);
+            fireIntervalRemoved(this, index, index);
+        }
+    }
+
+    public void clear() {
+        if(nicks.isEmpty()) {
+            return;
+        }
+        int removed = nicks.size();
+        nicks.clear();
+        fireIntervalRemoved(this, 0, removed - 1);
+    }
+}
@@ -0,0 +1,131 @@
+package clientside.service;
+
+import clientside.model.ChatListModel;
+
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Окно сообщений чата.
+ * Поток чтения сообщений от сервера только ставит строки в очередь (append и clear можно вызывать
+ * из любого потока), а таймер Swing раз в FRAME_MILLIS переносит все накопившиеся строки в модель
+ * одним изменением в потоке обработки событий. Поэтому при тысячах сообщений в секунду интерфейс
+ * перерисовывается не чаще кадра, а не на каждое сообщение.
+ * Строки показывает JList с фиксированной высотой и шириной ячейки: он рисует только видимые строки
+ * и не измеряет остальные, а модель (ChatListModel) хранит не больше CAPACITY последних строк.
+ * Сообщение разбивается на строки по переводам строки, а слишком длинные строки - на части по MAX_ROW_CHARS
+ * символов, так как ячейки списка не переносят текст
+ */
+final class ChatFeed {
+    private static final int CAPACITY = 10_000;
+    private static final int FRAME_MILLIS = 33;
+    private static final int MAX_ROW_CHARS = 200;
+    private static final String CLEAR = new String("");   // маркер очистки в очереди, сравнивается по ссылке
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ChatListModel model = new ChatListModel(CAPACITY);
+    private final JList<String> list = new JList<>(model);
+    private final JScrollPane scrollPane = new JScrollPane(list,
+            ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    private final Timer timer = new Timer(FRAME_MILLIS, e -> flush());
+
+    ChatFeed() {
+        list.setFocusable(false);
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        // ширина ячейки не измеряется по строкам: список занимает ширину области прокрутки
+        list.setFixedCellWidth(1);
+        timer.start();
+    }
+
+    JComponent getComponent() {
+        return scrollPane;
+    }
+
+    /**
+     * Ставит текст в очередь на отображение
+     * @param text одно или несколько сообщений, разделенных переводами строки
+     */
+    void append(String text) {
+        int start = 0;
+        int length = text.length();
+        while(start < length) {
+            int end = text.indexOf('\n', start);
+            if(end < 0) {
+                end = length;
+            }
+            if(end == start) {
+                enqueue("");
+            }
+            for(int from = start; from < end; ) {
+                int to = Math.min(end, from + MAX_ROW_CHARS);
+                if(to < end && Character.isHighSurrogate(text.charAt(to - 1))) {
+                    to--;    // не разрываем суррогатную пару
+                }
+                enqueue(text.substring(from, to));
+                from = to;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Очищает окно сообщений; строки, поставленные в очередь после вызова, будут показаны
+     */
+    void clear() {
+        enqueue(CLEAR);
+    }
+
+    private void enqueue(String row) {
+        pending.add(row);
+        // пока интерфейс не успевает забирать строки, в очереди остаются только последние CAPACITY:
+        // более старые все равно были бы сразу вытеснены из модели
+        if(pendingCount.incrementAndGet() > CAPACITY && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Переносит накопившиеся строки в модель. Выполняется таймером в потоке обработки событий
+     */
+    private void flush() {
+        int count = pendingCount.get();
+        if(count == 0) {
+            return;
+        }
+        List<String> batch = new ArrayList<>(Math.min(count, CAPACITY));
+        boolean cleared = false;
+        for(int i = 0; i < count; i++) {
+            String row = pending.poll();
+            if(row == null) {
+                break;
+            }
+            pendingCount.decrementAndGet();
+            if(row == CLEAR) {
+                cleared = true;
+                batch.clear();
+            } else {
+                batch.add(row);
+            }
+        }
+        JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - list.getFixedCellHeight();
+        if(cleared) {
+            model.clear();
+        }
+        model.addAll(batch);
+        // прокрутка следует за новыми сообщениями, только если пользователь не листает историю
+        if((atBottom || cleared) && model.getSize() > 0) {
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+}
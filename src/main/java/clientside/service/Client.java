@@ -2,44 +2,70 @@ package clientside.service;
 
 import clientside.model.ConnectionInfo;
 import clientside.model.HistoryWriter;
+import clientside.model.RosterListModel;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.TextCodec;
+import serverside.tls.ClientTls;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 public class Client extends JFrame {
     private static final Dimension MINIMUM_SIZE = new Dimension(400, 400);
+    private static final int ROSTER_WIDTH = 120;
     private final Integer SERVER_PORT = 8081;
     private final String SERVER_ADDRESS = "localhost";
-    private Socket socket;
-    private DataInputStream dis;
-    private DataOutputStream dos;
+    private static final int RESUME_ATTEMPTS = 5;               // попытки переподключения после разрыва
+    private static final long RESUME_DELAY_MILLIS = 1000;
+    private final ClientTls tls;                                // null - соединение без шифрования
+    private volatile ClientConnection connection;
+    // токен возобновления и число полученных сообщений разорванного соединения: при следующем подключении
+    // клиент сначала пробует возобновить сессию
+    private String resumeToken;
+    private long resumeReceived;
     private final ConnectionInfo connectionInfo = new ConnectionInfo();
 
     private JTextField msgInputField;
-    private JTextArea chatArea;
+    private ChatFeed chatFeed;
     private JMenuItem menuItemConnect;
     private JMenuItem menuItemDisconnect;
 
-    // команды
-    private static final String END = "/end";                           // отключить соединение
-
-    // ответы от сервера
-    private static final String AUTH_OK = "/authok ";                   // успешная авторизация
-    private static final String TIMEOUT_AUTH = "/timeoutauth";          // время для авторизации истекло
-    private static final String TIMEOUT_ACTIVITY = "/timeoutactivity";  // длительный простой
-    private static final String CHANGE_NICK_OK = "/chnickok ";          // успешная смена ника
-    private static final String ERR_SPM = "/errorSPM ";                 // ошибка при отправке личного сообщения
-    private static final String CLIENTS = "/clients ";                  // список онлайн клиентов
-    private static final String ERR_CHANGE_NICK = "/errchnick ";        // ошибка при смене ника
-    private static final String NOTIFY = "/notify ";                    // уведомление
+    // обработчики сообщений от сервера после аутентификации
+    private final Map<Opcode, PacketHandler> handlers = new EnumMap<>(Opcode.class);
 
     private HistoryWriter historyWriter;                                // писатель истории сообщений
+    private int historyRemaining;           // сколько еще сообщений из журнала сервера ожидается после /history
+    private boolean replayed;               // текущее сообщение - из журнала сервера, в локальную историю не пишется
+
+    // список пользователей в чате: весь список приходит один раз, затем сервер присылает только изменения
+    private final RosterListModel rosterModel = new RosterListModel();
+    private volatile long rosterEpoch;      // epoch списка на сервере, 0 - списка еще нет
+    private long rosterVersion;             // версия списка; только для потока чтения
+    private boolean rosterRequested;        // запрос списка отправлен; только для потока чтения
+
+    /**
+     * Обработчик сообщения от сервера
+     */
+    private interface PacketHandler {
+        void handle(Packet packet) throws IOException, TimeoutException;
+    }
 
-    public Client() {
+    /**
+     * @param tls TLS клиента или null - соединение без шифрования. Один объект используется для всех
+     *            подключений окна, чтобы переподключение возобновляло сессию TLS
+     */
+    public Client(ClientTls tls) {
+        this.tls = tls;
+        registerHandlers();
         prepareGUI();
         setConnected(false);
         tryConnection();
@@ -57,19 +83,44 @@ public class Client extends JFrame {
     }
 
     /**
-     * Устанавливает соединение
+     * Устанавливает соединение.
+     * Если прежнее соединение было разорвано, сначала пробует возобновить его сессию (/resume):
+     * тогда вход не нужен, а сообщения, пропущенные во время разрыва, приходят первыми
      * @throws IOException - если возникли неполадки во время установления соединения
      */
     private void connection() throws IOException {
-        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-        dis = new DataInputStream(socket.getInputStream());
-        dos = new DataOutputStream(socket.getOutputStream());
+        ClientConnection opened = ClientConnection.open(SERVER_ADDRESS, SERVER_PORT, 0, tls);
+        Packet resumedSession = null;
+        if(resumeToken != null) {
+            try {
+                resumedSession = opened.resume(resumeToken, resumeReceived);
+            } catch (IOException ex) {
+                opened.close();
+                throw ex;
+            } finally {
+                resumeToken = null;
+            }
+        }
+        connection = opened;
         setConnected(true);
 
+        Packet resumeReply = resumedSession;
         new Thread(() -> {
             try {
-                authentication();
-                readMessageFromServer();
+                if(resumeReply != null) {
+                    onResumed(resumeReply);
+                } else {
+                    authentication();
+                }
+                while(true) {
+                    try {
+                        readMessageFromServer();
+                    } catch (IOException ex) {
+                        if(!resumeAfterDrop()) {
+                            throw ex;
+                        }
+                    }
+                }
             } catch (IOException ignored) {
                 closeConnection(true, "Соединение разорвано");
             } catch (TimeoutException e) {
@@ -80,29 +131,101 @@ public class Client extends JFrame {
         }).start();
     }
 
+    /**
+     * Читает следующее сообщение от сервера в согласованной версии протокола
+     * @throws IOException, если какие то неполадки во время чтения сообщения от сервера
+     */
+    private Packet readPacket() throws IOException {
+        return connection.read();
+    }
+
     /**
      * Цикл аутентификации
      * @throws IOException, если какие то неполадки во время чтения сообщения от сервера
      */
     private void authentication() throws IOException, TimeoutException {
         while (true) {
-            String messageFromServer = dis.readUTF();
-            if (messageFromServer.startsWith(AUTH_OK)) {
-                String[] arr = messageFromServer.split("\\s");
+            Packet packet = readPacket();
+            if (packet.getOpcode() == Opcode.AUTH_OK) {
+                String nick = packet.get(0);
                 connectionInfo.setAuthorized(true);
-                historyWriter = new HistoryWriter(arr[2], 100);
+                historyWriter = new HistoryWriter(packet.get(1), 100);
                 String lastMessages = historyWriter.getLastMessages();
-                chatArea.setText("");
-                chatArea.append(lastMessages);
-                setTitle(arr[1]);
-                EventQueue.invokeLater(() -> showInfoMessage("Вы вошли в чат. Ваш ник " + arr[1]));
+                chatFeed.clear();
+                chatFeed.append(lastMessages);
+                setTitle(nick);
+                rosterEpoch = 0;
+                rosterVersion = 0;
+                requestRoster();
+                EventQueue.invokeLater(() -> showInfoMessage("Вы вошли в чат. Ваш ник " + nick));
                 break;
             }
-            if(messageFromServer.startsWith(TIMEOUT_AUTH)) {
+            if(packet.getOpcode() == Opcode.TIMEOUT_AUTH) {
                 throw new TimeoutException("Время для авторизации истекло");
             }
-            EventQueue.invokeLater(() -> showErrorMessage(messageFromServer));
+            String message = packet.size() > 0 ? packet.get(0) : packet.toString();
+            EventQueue.invokeLater(() -> showErrorMessage(message));
+        }
+    }
+
+    /**
+     * Вход в чат возобновлением прежней сессии: "/resumeok nick login token"
+     * @throws IOException, если не удалось открыть файл истории
+     */
+    private void onResumed(Packet packet) throws IOException {
+        String nick = packet.get(0);
+        connectionInfo.setAuthorized(true);
+        historyWriter = new HistoryWriter(packet.get(1), 100);
+        setTitle(nick);
+        rosterEpoch = 0;
+        rosterVersion = 0;
+        requestRoster();
+        chatFeed.append("[Соединение восстановлено]\n");
+    }
+
+    /**
+     * Переподключается после разрыва соединения и возобновляет сессию, не закрывая окно:
+     * до RESUME_ATTEMPTS попыток с паузой RESUME_DELAY_MILLIS, пока сервер хранит сессию
+     * @return true - если сессия возобновлена на новом соединении, false - если сервер не выдал токен,
+     * отказал в возобновлении, не ответил или клиент отключился сам
+     */
+    private boolean resumeAfterDrop() {
+        ClientConnection lost = connection;
+        String token = lost.getResumeToken();
+        if(token == null || !connectionInfo.isConnected()) {
+            return false;
+        }
+        lost.close();
+        chatFeed.append("[Соединение разорвано, переподключение...]\n");
+        for(int attempt = 0; attempt < RESUME_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RESUME_DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if(!connectionInfo.isConnected()) {
+                return false;
+            }
+            ClientConnection reopened;
+            try {
+                reopened = ClientConnection.open(SERVER_ADDRESS, SERVER_PORT, 0, tls);
+            } catch (IOException ex) {
+                continue;
+            }
+            try {
+                if(reopened.resume(token, lost.getReceivedCount()) != null) {
+                    connection = reopened;
+                    chatFeed.append("[Соединение восстановлено]\n");
+                    return true;
+                }
+            } catch (IOException ignored) {
+
+            }
+            reopened.close();
+            return false;
         }
+        return false;
     }
 
     /**
@@ -111,55 +234,160 @@ public class Client extends JFrame {
      */
     private void readMessageFromServer() throws IOException, TimeoutException {
         while (true) {
-            String messageFromServer = dis.readUTF();
-            if(isServiceMessage(messageFromServer)) {
-                handleServiceMessage(messageFromServer);
-                continue;
+            Packet packet = readPacket();
+            replayed = historyRemaining > 0;
+            if(replayed) {
+                historyRemaining--;
+            }
+            PacketHandler handler = handlers.get(packet.getOpcode());
+            if(handler != null) {
+                handler.handle(packet);
             }
-            historyWriter.write(messageFromServer + "\n");
-            chatArea.append(messageFromServer + "\n");
         }
     }
 
     /**
-     * Метод, определяющий является ли сообщение от сервера служебным сообщением
-     * @param message - сообщение от сервера
-     * @return true - если сообщение является служебным сообщением, false - в противном случае
+     * Заполняет таблицу обработчиков сообщений от сервера
      */
-    private boolean isServiceMessage(String message) {
-        return message.trim().startsWith("/");
+    private void registerHandlers() {
+        PacketHandler chatMessage = packet -> {
+            String message = TextCodec.format(packet);
+            if(!replayed) {
+                historyWriter.write(message + "\n");
+            }
+            chatFeed.append(message + "\n");
+        };
+        handlers.put(Opcode.TEXT, chatMessage);
+        handlers.put(Opcode.MESSAGE, chatMessage);
+        handlers.put(Opcode.PRIVATE_FROM, chatMessage);
+        handlers.put(Opcode.PRIVATE_TO, chatMessage);
+        // сервер с журналом сообщений сразу после входа присылает историю: она заменяет локальную
+        handlers.put(Opcode.HISTORY, packet -> {
+            try {
+                historyRemaining = Math.max(0, Integer.parseInt(packet.get(0).trim()));
+            } catch (NumberFormatException ex) {
+                historyRemaining = 0;
+            }
+            chatFeed.clear();
+        });
+        handlers.put(Opcode.CLIENTS, packet -> {
+            StringBuilder sb = new StringBuilder("[Список онлайн пользователей]: ");
+            for(int i = 0; i < packet.size(); i++) {
+                sb.append(packet.get(i)).append(' ');
+            }
+            chatFeed.append(sb.append('\n').toString());
+        });
+        handlers.put(Opcode.ROSTER, this::onRoster);
+        handlers.put(Opcode.ROSTER_DELTA, this::onRosterDelta);
+        handlers.put(Opcode.CHANGE_NICK_OK, packet -> {
+            showInfoMessage("Вы успешно изменили nick на " + packet.get(0));
+            setTitle(packet.get(0));
+        });
+        handlers.put(Opcode.NOTIFY, packet -> chatFeed.append(packet.get(0) + "\n"));
+        handlers.put(Opcode.ERROR_PRIVATE, packet -> showErrorMessage(packet.get(0)));
+        handlers.put(Opcode.ERROR_CHANGE_NICK, packet -> showErrorMessage(packet.get(0)));
+        handlers.put(Opcode.ERROR_DB, packet -> showErrorMessage(packet.get(0)));
+        handlers.put(Opcode.ERROR_ROOM, packet -> showErrorMessage(packet.get(0)));
+        handlers.put(Opcode.JOIN_OK, packet -> chatFeed.append("[Вы в комнате " + packet.get(0) + "]\n"));
+        handlers.put(Opcode.ROOM_LIST, packet -> {
+            StringBuilder sb = new StringBuilder("[Список комнат]: ");
+            for(int i = 0; i + 1 < packet.size(); i += 2) {
+                sb.append(packet.get(i)).append(" (").append(packet.get(i + 1)).append(") ");
+            }
+            chatFeed.append(sb.append('\n').toString());
+        });
+        handlers.put(Opcode.TIMEOUT_ACTIVITY, packet -> {
+            throw new TimeoutException("Соединение разорвано по причине длительного простоя");
+        });
+    }
+
+    /**
+     * Запрашивает изменения списка пользователей после известной версии ("/list epoch version");
+     * без списка или при неизвестной серверу версии сервер присылает весь список.
+     * Сообщение отправляется из потока обработки событий, как и все остальные сообщения клиента
+     */
+    private void requestRoster() {
+        rosterRequested = true;
+        String command = Opcode.LIST.getCommand() + " " + rosterEpoch + " " + rosterVersion;
+        EventQueue.invokeLater(() -> sendMessageToServer(command));
     }
 
     /**
-     * Метод обработки служебных сообщений от сервера
-     * @param message - служебное сообщение от сервера
+     * "/roster epoch version ники..." - весь список пользователей
      */
-    private void handleServiceMessage(String message) throws TimeoutException {
-        if(message.startsWith(ERR_SPM)) {
-            String errMsg = message.substring(ERR_SPM.length());
-            showErrorMessage(errMsg);
+    private void onRoster(Packet packet) {
+        try {
+            rosterEpoch = Long.parseLong(packet.get(0));
+            rosterVersion = Long.parseLong(packet.get(1));
+        } catch (NumberFormatException ex) {
+            return;
         }
-        if(message.startsWith(CLIENTS)) {
-            String[] arr = message.split("\\s", 2);
-            message = "[Список онлайн пользователей]: " + arr[1];
-            chatArea.append(message + "\n");
+        rosterRequested = false;
+        List<String> nicks = new ArrayList<>(packet.size() - 2);
+        for(int i = 2; i < packet.size(); i++) {
+            nicks.add(packet.get(i));
         }
-        if(message.startsWith(CHANGE_NICK_OK)) {
-            String newNick = message.substring(CHANGE_NICK_OK.length());
-            showInfoMessage("Вы успешно изменили nick на " + newNick);
-            setTitle(newNick);
+        EventQueue.invokeLater(() -> rosterModel.setAll(nicks));
+    }
+
+    /**
+     * "/rosterdelta epoch from to изменения..." - по одному изменению на каждую версию от from+1 до to:
+     * "+ nick", "- nick" или "~ oldNick newNick". Изменения, которые уже есть в списке, пропускаются.
+     * Если изменения начинаются позже версии клиента (часть пропущена) или список с сервера другого запуска,
+     * список запрашивается заново
+     */
+    private void onRosterDelta(Packet packet) {
+        long epoch;
+        long from;
+        long to;
+        try {
+            epoch = Long.parseLong(packet.get(0));
+            from = Long.parseLong(packet.get(1));
+            to = Long.parseLong(packet.get(2));
+        } catch (NumberFormatException ex) {
+            return;
         }
-        if(message.startsWith(NOTIFY)) {
-            String[] arr = message.split("\\s", 2);
-            chatArea.append(arr[1] + "\n");
+        if(epoch != rosterEpoch || from > rosterVersion) {
+            if(!rosterRequested) {
+                requestRoster();
+            }
+            return;
         }
-        if(message.startsWith(ERR_CHANGE_NICK)) {
-            String errMsg = message.substring(ERR_CHANGE_NICK.length());
-            showErrorMessage(errMsg);
+        rosterRequested = false;
+        List<String[]> changes = new ArrayList<>();
+        long version = from;
+        int pos = 3;
+        while(pos < packet.size() && version < to) {
+            int length = packet.get(pos).equals("~") ? 3 : 2;
+            if(pos + length > packet.size()) {
+                break;
+            }
+            version++;
+            if(version > rosterVersion) {
+                String[] change = new String[length];
+                for(int i = 0; i < length; i++) {
+                    change[i] = packet.get(pos + i);
+                }
+                changes.add(change);
+            }
+            pos += length;
         }
-        if(message.startsWith(TIMEOUT_ACTIVITY)) {
-            throw new TimeoutException("Соединение разорвано по причине длительного простоя");
+        rosterVersion = Math.max(rosterVersion, version);
+        if(changes.isEmpty()) {
+            return;
         }
+        EventQueue.invokeLater(() -> {
+            for(String[] change : changes) {
+                if(change[0].equals("+")) {
+                    rosterModel.add(change[1]);
+                } else if(change[0].equals("-")) {
+                    rosterModel.remove(change[1]);
+                } else {
+                    rosterModel.remove(change[1]);
+                    rosterModel.add(change[2]);
+                }
+            }
+        });
     }
 
     /**
@@ -183,7 +411,12 @@ public class Client extends JFrame {
     private void send() {
         String messageToServer = msgInputField.getText();
         if(!messageToServer.trim().isEmpty()) {
-            if(connectionInfo.isConnected()) {
+            if(connectionInfo.isConnected() && rosterEpoch != 0 && messageToServer.trim().equals(Opcode.LIST.getCommand())) {
+                // список пользователей уже есть и обновляется сервером: запрос не нужен
+                chatFeed.append("[Список онлайн пользователей]: " + String.join(" ", rosterModel.getNicks()) + "\n");
+                msgInputField.setText("");
+                msgInputField.grabFocus();
+            } else if(connectionInfo.isConnected()) {
                 sendMessageToServer(messageToServer);
                 msgInputField.setText("");
                 msgInputField.grabFocus();
@@ -194,13 +427,18 @@ public class Client extends JFrame {
     }
 
     /**
-     * Отправляет сообщение на сервер
+     * Отправляет сообщение на сервер (см. ClientConnection.send)
      * @param message - сообщение
      */
     private void sendMessageToServer(String message) {
         try {
-            dos.writeUTF(message);
-            if(message.equals(END)) {
+            try {
+                connection.send(message);
+            } catch (ProtocolException ex) {
+                showErrorMessage("Неверный формат команды: " + ex.getMessage());
+                return;
+            }
+            if(message.equals(Opcode.END.getCommand())) {
                 closeConnection(false, "Соединение разорвано");
             }
         } catch (IOException ignored) {
@@ -214,7 +452,11 @@ public class Client extends JFrame {
      * @param message - выводимое в окно сообщение
      */
     private void closeConnection(boolean isError, String message) {
+        ClientConnection closed = connection;
         if(closeConnection()) {
+            // после разрыва сессию можно возобновить при следующем подключении, после /end и таймаутов - нет
+            resumeToken = isError ? closed.getResumeToken() : null;
+            resumeReceived = closed.getReceivedCount();
             if(isError) {
                 showErrorMessage(message);
             } else {
@@ -230,45 +472,15 @@ public class Client extends JFrame {
     private boolean closeConnection() {
         if(connectionInfo.isConnected()) {
             setConnected(false);
-            closeDataInputStream();
-            closeDataOutputStream();
-            closeSocket();
+            connection.close();
             closeHistoryWriterService();
+            rosterEpoch = 0;
+            EventQueue.invokeLater(rosterModel::clear);
             return true;
         }
         return false;
     }
 
-    private void closeDataInputStream() {
-        if(dis != null) {
-            try {
-                dis.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void closeDataOutputStream() {
-        if(dos != null) {
-            try {
-                dos.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void closeSocket() {
-        if(socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     private void closeHistoryWriterService() {
         if(historyWriter != null) {
             historyWriter.close();
@@ -302,10 +514,13 @@ public class Client extends JFrame {
         setLocationRelativeTo(null);
         setTitle("Клиент");
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        add(new JScrollPane(chatArea), BorderLayout.CENTER);
+        chatFeed = new ChatFeed();
+        add(chatFeed.getComponent(), BorderLayout.CENTER);
+        JList<String> rosterList = new JList<>(rosterModel);
+        rosterList.setFocusable(false);
+        JScrollPane rosterPane = new JScrollPane(rosterList);
+        rosterPane.setPreferredSize(new Dimension(ROSTER_WIDTH, 0));
+        add(rosterPane, BorderLayout.EAST);
 
         JPanel bottomPanel = new JPanel(new BorderLayout());
         JButton btnSendMsg = new JButton("Отправить");
@@ -334,7 +549,7 @@ public class Client extends JFrame {
         menuServer.add(menuItemConnect);
 
         menuItemDisconnect = new JMenuItem("Отключиться");
-        menuItemDisconnect.addActionListener(e -> sendMessageToServer(END));
+        menuItemDisconnect.addActionListener(e -> sendMessageToServer(Opcode.END.getCommand()));
         menuServer.add(menuItemDisconnect);
         setVisible(true);
         msgInputField.grabFocus();
@@ -0,0 +1,192 @@
+package clientside.service;
+
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.TextCodec;
+import serverside.protocol.WireFormat;
+import serverside.tls.ClientTls;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Соединение клиента с сервером без интерфейса: согласование версии протокола, чтение пакетов
+ * и отправка команд в текстовом виде ("/w ник сообщение") в согласованной версии протокола.
+ * Используется окном клиента (Client) и генератором нагрузки (loadgen)
+ */
+public class ClientConnection implements Closeable {
+    private static final int PROTOCOL_TIMEOUT_MILLIS = 3000;            // ожидание ответа на "/proto"
+
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final DataOutputStream dos;
+    private volatile WireFormat wireFormat = WireFormat.V1;
+    // возобновление сессии: токен от сервера и число сообщений, полученных после него (только для потока чтения)
+    private volatile String resumeToken;
+    private volatile long receivedCount;
+
+    private ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.dis = new DataInputStream(socket.getInputStream());
+        this.dos = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Подключается к серверу и согласует версию протокола
+     * @param host адрес сервера
+     * @param port порт сервера
+     * @param connectTimeoutMillis время на подключение, 0 - без ограничения
+     * @return соединение
+     * @throws IOException, если сервер не отвечает
+     */
+    public static ClientConnection open(String host, int port, int connectTimeoutMillis) throws IOException {
+        return open(host, port, connectTimeoutMillis, null);
+    }
+
+    /**
+     * Подключается к серверу, при необходимости выполняет рукопожатие TLS и согласует версию протокола
+     * @param host адрес сервера
+     * @param port порт сервера
+     * @param connectTimeoutMillis время на подключение и на рукопожатие TLS, 0 - без ограничения
+     * @param tls TLS клиента или null - соединение без шифрования
+     * @return соединение
+     * @throws IOException, если сервер не отвечает или рукопожатие TLS не удалось
+     */
+    public static ClientConnection open(String host, int port, int connectTimeoutMillis, ClientTls tls)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            if(tls != null) {
+                socket.setSoTimeout(connectTimeoutMillis);
+                socket = tls.connect(socket, host, port);
+                socket.setSoTimeout(0);
+            }
+            ClientConnection connection = new ClientConnection(socket);
+            connection.negotiateProtocol();
+            return connection;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Согласует версию протокола и сжатие: отправляет "/proto" с максимальной версией клиента и "deflate"
+     * и ждет ответа "/protook". Старый сервер на "/proto" не отвечает - тогда по истечении
+     * PROTOCOL_TIMEOUT_MILLIS используется версия 1 без сжатия
+     * @throws IOException, если возникли неполадки во время обмена сообщениями
+     */
+    private void negotiateProtocol() throws IOException {
+        Packet.of(Opcode.PROTOCOL, String.valueOf(ProtocolVersion.V2.getNumber()), WireFormat.DEFLATE)
+                .frame(ProtocolVersion.V1)
+                .writeTo(dos);
+        socket.setSoTimeout(PROTOCOL_TIMEOUT_MILLIS);
+        try {
+            Packet reply = ProtocolVersion.V1.read(dis, ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH);
+            if(reply.getOpcode() == Opcode.PROTOCOL_OK) {
+                WireFormat format = WireFormat.fromReply(reply, ProtocolSettings.DEFAULT_COMPRESSION_THRESHOLD);
+                if(format != null) {
+                    wireFormat = format;
+                }
+            }
+        } catch (SocketTimeoutException ignored) {
+
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Читает следующее сообщение от сервера в согласованной версии протокола.
+     * Сжатые кадры распаковываются при чтении.
+     * Запоминает токен возобновления (/resumetoken) и считает сообщения, полученные после него
+     * @throws IOException, если соединение разорвано
+     */
+    public Packet read() throws IOException {
+        Packet packet = wireFormat.getVersion().read(dis, ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH);
+        if(packet.getOpcode() == Opcode.RESUME_TOKEN) {
+            resumeToken = packet.get(0);
+            receivedCount = 0;
+        } else if(resumeToken != null) {
+            receivedCount++;
+        }
+        return packet;
+    }
+
+    /**
+     * Возобновляет сессию прежнего соединения: отправляет "/resume token received" и ждет ответа.
+     * Вызывается до запуска потока чтения. При успехе сервер сначала присылает сообщения, пропущенные
+     * во время разрыва, и они читаются обычным образом через read
+     * @param token токен прежнего соединения (getResumeToken)
+     * @param received число сообщений, полученных прежним соединением (getReceivedCount)
+     * @return ответ /resumeok (ник, логин, новый токен) или null, если сессию возобновить нельзя -
+     * тогда на этом же соединении можно войти через /auth
+     * @throws IOException, если соединение разорвано
+     */
+    public Packet resume(String token, long received) throws IOException {
+        send(Opcode.RESUME.getCommand() + " " + token + " " + received);
+        Packet reply = wireFormat.getVersion().read(dis, ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH);
+        if(reply.getOpcode() != Opcode.RESUME_OK) {
+            return null;
+        }
+        resumeToken = reply.get(2);
+        receivedCount = received;
+        return reply;
+    }
+
+    /**
+     * @return токен возобновления сессии или null, если сервер его не выдал
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return сколько сообщений получено после токена возобновления
+     */
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * Отправляет сообщение или команду.
+     * В версии 1 протокола строка отправляется как есть, в версии 2 команда сначала разбирается в пакет
+     * @param message сообщение
+     * @throws java.net.ProtocolException, если в команде не хватает полей (соединение остается открытым)
+     * @throws IOException, если соединение разорвано
+     */
+    public synchronized void send(String message) throws IOException {
+        if(wireFormat.getVersion() == ProtocolVersion.V1) {
+            dos.writeUTF(message);
+        } else {
+            TextCodec.parse(message).frame(wireFormat).writeTo(dos);
+        }
+    }
+
+    /**
+     * @return согласованный формат кадров
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Закрывает соединение; повторный вызов ничего не делает
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package loadgen;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import serverside.db.PooledConnection;
+import serverside.service.DBConnection;
+import serverside.service.MyServer;
+import serverside.service.ServerConfig;
+import serverside.tls.ClientTls;
+import serverside.tls.TlsSettings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Генератор нагрузки: открывает load.sessions сессий (LoadSession) к серверу чата, равномерно за load.rampUpMillis,
+ * и load.durationSeconds выполняет в каждой действия по смеси load.mix.*.
+ * Раз в load.reportSeconds выводит промежуточный отчет, в конце - итоговый (см. LoadStats).
+ * С load.embedded=true сервер запускается в этом же процессе на встроенной базе H2, в которую добавляются
+ * пользователи нагрузки (логин и ник load0, load1, ..., пароль load.password).
+ * С chat.tls.enabled=true сессии подключаются по TLS через один общий ClientTls, как окно клиента
+ */
+public class LoadGenerator {
+    public static final String EMBEDDED_DB_URL = "jdbc:h2:mem:load;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final long SERVER_START_TIMEOUT_MILLIS = 30_000;
+    private static final int SEED_BATCH_SIZE = 1000;
+    private static final long DRAIN_MILLIS = 1000;              // ожидание доставки уже отправленных сообщений
+
+    private final ServerConfig config;
+    private final LoadSettings settings;
+    private final LoadStats stats = new LoadStats();
+    private ScheduledThreadPoolExecutor scheduler;
+
+    private static final Logger LOGGER = LogManager.getLogger(LoadGenerator.class);
+
+    /**
+     * @param config настройки генератора (load.*) и встроенного сервера (chat.*)
+     */
+    public LoadGenerator(ServerConfig config) {
+        this.config = config;
+        this.settings = LoadSettings.from(config);
+    }
+
+    /**
+     * Запускает нагрузку и возвращается после итогового отчета.
+     * По окончании нагрузки сессии перестают выполнять действия, и в течение DRAIN_MILLIS доставляются уже
+     * отправленные сообщения; только после этого сессии отключаются командой /end
+     * @throws IOException, если встроенный сервер не запустился или не читается хранилище сертификатов TLS
+     * @throws SQLException, если не удалось добавить пользователей нагрузки во встроенную базу
+     * @throws InterruptedException, если поток прерван во время нагрузки
+     */
+    public void run() throws IOException, SQLException, InterruptedException {
+        System.out.println("Нагрузка на " + settings.getHost() + ":" + settings.getPort() + ": " + settings);
+        ClientTls tls = ClientTls.from(TlsSettings.from(config));
+        if(settings.isEmbedded()) {
+            startEmbeddedServer();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(settings.getThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "load-actions-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        int count = settings.getSessions();
+        LoadSession[] sessions = new LoadSession[count];
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++) {
+            sessions[i] = new LoadSession(i, settings, stats, this, tls);
+            scheduler.schedule(sessions[i]::start, settings.getRampUpMillis() * i / count, TimeUnit.MILLISECONDS);
+        }
+        long reportInterval = settings.getReportIntervalMillis();
+        ScheduledFuture<?> report = scheduler.scheduleAtFixedRate(
+                () -> System.out.println(stats.interval(elapsedMillis(start))),
+                reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(settings.getRampUpMillis() + settings.getDurationMillis());
+        report.cancel(false);
+        long loadMillis = elapsedMillis(start);
+        for(LoadSession session : sessions) {
+            session.quiesce();
+        }
+        Thread.sleep(DRAIN_MILLIS);
+        System.out.println(stats.summary(loadMillis));
+        for(LoadSession session : sessions) {
+            session.stop();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Вызывается потоком сессии, когда сессия вошла в чат и в свою комнату: с этого момента
+     * сессия выполняет действия раз в load.actionIntervalMillis. Первое действие - через случайное время
+     * в пределах интервала, чтобы сессии, подключившиеся одновременно, не отправляли сообщения разом
+     */
+    void onReady(LoadSession session) {
+        long interval = settings.getActionIntervalMillis();
+        scheduler.scheduleAtFixedRate(session::act, ThreadLocalRandom.current().nextLong(interval), interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Запускает сервер в отдельном потоке, ждет, пока он начнет принимать подключения, и добавляет
+     * пользователей нагрузки. Журнал сервера переводится на уровень load.serverLogLevel
+     */
+    private void startEmbeddedServer() throws IOException, SQLException, InterruptedException {
+        Configurator.setLevel("serverside", Level.toLevel(settings.getServerLogLevel(), Level.WARN));
+        Thread server = new Thread(() -> new MyServer(config), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+        while(!accepts()) {
+            if(!server.isAlive() || System.currentTimeMillis() > deadline) {
+                throw new IOException("Встроенный сервер не запустился на порту " + settings.getPort()
+                        + ", см. журнал сервера");
+            }
+            Thread.sleep(100);
+        }
+        seedUsers();
+        LOGGER.info("Встроенный сервер запущен, пользователей нагрузки: " + settings.getSessions());
+    }
+
+    private boolean accepts() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(settings.getHost(), settings.getPort()), 1000);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Добавляет в таблицу users недостающих пользователей нагрузки пакетами по SEED_BATCH_SIZE
+     */
+    private void seedUsers() throws SQLException {
+        try (PooledConnection pooledConnection = DBConnection.getConnection()) {
+            Connection connection = pooledConnection.getConnection();
+            Set<String> existing = new HashSet<>();
+            try (PreparedStatement select = connection.prepareStatement("SELECT login FROM users WHERE login LIKE ?")) {
+                select.setString(1, settings.getLoginPrefix() + "%");
+                try (ResultSet result = select.executeQuery()) {
+                    while(result.next()) {
+                        existing.add(result.getString(1));
+                    }
+                }
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO users (login, password, nick) VALUES (?, ?, ?)")) {
+                int batch = 0;
+                for(int i = 0; i < settings.getSessions(); i++) {
+                    String login = settings.getLogin(i);
+                    if(existing.contains(login)) {
+                        continue;
+                    }
+                    insert.setString(1, login);
+                    insert.setString(2, settings.getPassword());
+                    insert.setString(3, login);
+                    insert.addBatch();
+                    if(++batch == SEED_BATCH_SIZE) {
+                        insert.executeBatch();
+                        batch = 0;
+                    }
+                }
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException ex) {
+                LOGGER.error("Ошибка при добавлении пользователей нагрузки: " + ex.getMessage());
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package loadgen;
+
+import clientside.service.ClientConnection;
+import serverside.metrics.LatencyHistogram;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.tls.ClientTls;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Сессия одного пользователя нагрузки.
+ * Поток сессии подключается, входит в чат командой /auth, переходит в свою комнату (/join) и читает сообщения
+ * сервера, а действия (сообщение в комнату, /w, /list, /chnick) выполняет общий планировщик генератора (act).
+ * Сообщения нагрузки начинаются с MARK и времени отправки (System.nanoTime()): получатель в этом же процессе
+ * вычисляет по нему время доставки
+ */
+class LoadSession {
+    static final String MARK = "#lg ";
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int THREAD_STACK_SIZE = 256 * 1024;
+
+    private final int index;
+    private final LoadSettings settings;
+    private final LoadStats stats;
+    private final LoadGenerator generator;
+    private final ClientTls tls;
+    private final Random random;
+    private final String login;
+    private final String padding;
+
+    private volatile ClientConnection connection;
+    private volatile boolean ready;            // вошла в чат и в свою комнату, действия выполняются
+    private volatile boolean stopping;
+    private volatile String nick;
+    private volatile long listSentNanos;
+    private int historyRemaining;              // только для потока сессии
+
+    /**
+     * @param tls общий для всех сессий TLS клиента или null - без шифрования
+     */
+    LoadSession(int index, LoadSettings settings, LoadStats stats, LoadGenerator generator, ClientTls tls) {
+        this.index = index;
+        this.settings = settings;
+        this.stats = stats;
+        this.generator = generator;
+        this.tls = tls;
+        this.random = new Random(settings.getSeed() + index);
+        this.login = settings.getLogin(index);
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < settings.getMessageLength()) {
+            sb.append(" сообщение нагрузки от ").append(login);
+        }
+        this.padding = sb.toString();
+    }
+
+    /**
+     * Запускает поток сессии
+     */
+    void start() {
+        Thread thread = new Thread(null, this::run, "load-session-" + index, THREAD_STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        try {
+            connection = ClientConnection.open(settings.getHost(), settings.getPort(), CONNECT_TIMEOUT_MILLIS, tls);
+        } catch (IOException ex) {
+            stats.connectFailures.increment();
+            return;
+        }
+        stats.connected.incrementAndGet();
+        boolean authenticated = false;
+        try {
+            connection.send(Opcode.AUTH.getCommand() + " " + login + " " + settings.getPassword());
+            while(!authenticated) {
+                Packet packet = connection.read();
+                if(packet.getOpcode() == Opcode.AUTH_OK) {
+                    stats.authLatency.recordSince(start);
+                    stats.authenticated.incrementAndGet();
+                    authenticated = true;
+                    nick = packet.get(0);
+                    onAuthenticated();
+                } else if(packet.getOpcode() == Opcode.TIMEOUT_AUTH) {
+                    stats.authTimeouts.increment();
+                    return;
+                } else if(packet.getOpcode() == Opcode.TEXT || packet.getOpcode() == Opcode.ERROR_DB) {
+                    stats.authFailures.increment();       // неверный логин, повторный вход или перегрузка
+                    return;
+                }
+            }
+            while(true) {
+                handle(connection.read());
+            }
+        } catch (IOException ex) {
+            if(!stopping) {
+                stats.disconnects.increment();
+            }
+        } finally {
+            ready = false;
+            connection.close();
+            stats.connected.decrementAndGet();
+            if(authenticated) {
+                stats.authenticated.decrementAndGet();
+            }
+        }
+    }
+
+    private void onAuthenticated() throws IOException {
+        if(settings.getRoomSize() > 0) {
+            connection.send(Opcode.JOIN.getCommand() + " load-" + index / settings.getRoomSize());
+        } else {
+            ready = true;
+            generator.onReady(this);
+        }
+    }
+
+    private void handle(Packet packet) {
+        switch (packet.getOpcode()) {
+            case HISTORY:
+                historyRemaining = Integer.parseInt(packet.get(0));
+                break;
+            case JOIN_OK:
+                if(!ready) {
+                    ready = true;
+                    generator.onReady(this);
+                }
+                break;
+            case TEXT:
+            case MESSAGE:
+                if(!replayed()) {
+                    onDelivered(packet, stats.roomLatency, stats.deliveredRoom);
+                }
+                break;
+            case PRIVATE_FROM:
+                if(!replayed()) {
+                    onDelivered(packet, stats.privateLatency, stats.deliveredPrivate);
+                }
+                break;
+            case PRIVATE_TO:
+                replayed();
+                break;
+            case ERROR_PRIVATE:
+                stats.privateErrors.increment();
+                break;
+            case CLIENTS:
+                stats.listReplies.increment();
+                stats.listLatency.recordSince(listSentNanos);
+                break;
+            case CHANGE_NICK_OK:
+                nick = packet.get(0);
+                stats.nickChanges.increment();
+                break;
+            case ERROR_CHANGE_NICK:
+            case ERROR_DB:
+                stats.nickErrors.increment();
+                break;
+            case TIMEOUT_ACTIVITY:
+                stats.idleTimeouts.increment();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return true, если сообщение - из журнала сервера, отправленного после входа (/history)
+     */
+    private boolean replayed() {
+        if(historyRemaining > 0) {
+            historyRemaining--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Учитывает доставленное сообщение нагрузки: время доставки - от метки времени в тексте сообщения
+     */
+    private static void onDelivered(Packet packet, LatencyHistogram latency, LongAdder delivered) {
+        String text = packet.get(packet.size() - 1);
+        int start = text.indexOf(MARK);
+        if(start < 0) {
+            return;
+        }
+        start += MARK.length();
+        int end = text.indexOf(' ', start);
+        try {
+            long sentNanos = Long.parseLong(end < 0 ? text.substring(start) : text.substring(start, end));
+            latency.recordSince(sentNanos);
+            delivered.increment();
+        } catch (NumberFormatException ignored) {
+
+        }
+    }
+
+    /**
+     * Выполняет одно действие, выбранное случайно по весам load.mix.*
+     */
+    void act() {
+        if(!ready || stopping) {
+            return;
+        }
+        int roll = random.nextInt(settings.getRoomWeight() + settings.getPrivateWeight() + settings.getListWeight()
+                + settings.getChangeNickWeight());
+        try {
+            if((roll -= settings.getRoomWeight()) < 0) {
+                connection.send(message());
+                stats.sentRoom.increment();
+            } else if((roll -= settings.getPrivateWeight()) < 0) {
+                connection.send(Opcode.PRIVATE.getCommand() + " " + recipient() + " " + message());
+                stats.sentPrivate.increment();
+            } else if((roll -= settings.getListWeight()) < 0) {
+                listSentNanos = System.nanoTime();
+                connection.send(Opcode.LIST.getCommand());
+                stats.sentList.increment();
+            } else {
+                String newNick = login.equals(nick) ? login + "_" : login;
+                connection.send(Opcode.CHANGE_NICK.getCommand() + " " + newNick);
+                stats.sentChangeNick.increment();
+            }
+        } catch (IOException ex) {
+            connection.close();              // поток сессии увидит разрыв и учтет его
+        }
+    }
+
+    private String message() {
+        return MARK + System.nanoTime() + padding;
+    }
+
+    /**
+     * @return ник случайного другого пользователя нагрузки (без учета смены ника)
+     */
+    private String recipient() {
+        int sessions = settings.getSessions();
+        if(sessions == 1) {
+            return login;
+        }
+        int other = random.nextInt(sessions - 1);
+        return settings.getLogin(other >= index ? other + 1 : other);
+    }
+
+    /**
+     * Прекращает выполнение действий; сообщения от сервера продолжают читаться и учитываться
+     */
+    void quiesce() {
+        stopping = true;
+    }
+
+    /**
+     * Завершает сессию командой /end
+     */
+    void stop() {
+        stopping = true;
+        ClientConnection current = connection;
+        if(current == null) {
+            return;
+        }
+        try {
+            current.send(Opcode.END.getCommand());
+        } catch (IOException ignored) {
+
+        }
+        current.close();
+    }
+}
@@ -0,0 +1,219 @@
+package loadgen;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+/**
+ * Настройки генератора нагрузки (ключи load.*)
+ */
+public class LoadSettings {
+    private final String host;
+    private final int port;
+    private final boolean embedded;
+    private final int sessions;
+    private final long rampUpMillis;
+    private final long durationMillis;
+    private final long actionIntervalMillis;
+    private final int roomSize;
+    private final int messageLength;
+    private final String loginPrefix;
+    private final String password;
+    private final int roomWeight;
+    private final int privateWeight;
+    private final int listWeight;
+    private final int changeNickWeight;
+    private final long seed;
+    private final long reportIntervalMillis;
+    private final int threads;
+    private final String serverLogLevel;
+
+    private static final Logger LOGGER = LogManager.getLogger(LoadSettings.class);
+
+    public LoadSettings(String host, int port, boolean embedded, int sessions, long rampUpMillis, long durationMillis,
+                        long actionIntervalMillis, int roomSize, int messageLength, String loginPrefix, String password,
+                        int roomWeight, int privateWeight, int listWeight, int changeNickWeight, long seed,
+                        long reportIntervalMillis, int threads, String serverLogLevel) {
+        this.host = host;
+        this.port = port;
+        this.embedded = embedded;
+        this.sessions = sessions;
+        this.rampUpMillis = rampUpMillis;
+        this.durationMillis = durationMillis;
+        this.actionIntervalMillis = actionIntervalMillis;
+        this.roomSize = roomSize;
+        this.messageLength = messageLength;
+        this.loginPrefix = loginPrefix;
+        this.password = password;
+        this.roomWeight = roomWeight;
+        this.privateWeight = privateWeight;
+        this.listWeight = listWeight;
+        this.changeNickWeight = changeNickWeight;
+        this.seed = seed;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.threads = threads;
+        this.serverLogLevel = serverLogLevel;
+    }
+
+    public static LoadSettings from(ServerConfig config) {
+        int roomWeight = Math.max(0, config.getInt("load.mix.room", 85));
+        int privateWeight = Math.max(0, config.getInt("load.mix.private", 10));
+        int listWeight = Math.max(0, config.getInt("load.mix.list", 4));
+        int changeNickWeight = Math.max(0, config.getInt("load.mix.chnick", 1));
+        if(roomWeight + privateWeight + listWeight + changeNickWeight == 0) {
+            LOGGER.error("Все веса load.mix.* равны 0, используется load.mix.room=1");
+            roomWeight = 1;
+        }
+        return new LoadSettings(config.getString("load.host", "localhost"),
+                config.getInt("load.port", config.getInt("chat.port", 8081)),
+                config.getBoolean("load.embedded", true),
+                Math.max(1, config.getInt("load.sessions", 100)),
+                Math.max(0, config.getLong("load.rampUpMillis", 10_000)),
+                Math.max(1000, config.getLong("load.durationSeconds", 60) * 1000),
+                Math.max(1, config.getLong("load.actionIntervalMillis", 1000)),
+                Math.max(0, config.getInt("load.roomSize", 50)),
+                Math.max(32, config.getInt("load.messageLength", 64)),
+                config.getString("load.loginPrefix", "load"),
+                config.getString("load.password", "load"),
+                roomWeight, privateWeight, listWeight, changeNickWeight,
+                config.getLong("load.seed", 42),
+                Math.max(1000, config.getLong("load.reportSeconds", 5) * 1000),
+                Math.max(1, config.getInt("load.threads", Runtime.getRuntime().availableProcessors())),
+                config.getString("load.serverLogLevel", "warn"));
+    }
+
+    /**
+     * @return адрес сервера
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return порт сервера
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return запускать ли сервер в этом же процессе на встроенной базе H2 с пользователями для нагрузки
+     */
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * @return число одновременных сессий
+     */
+    public int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return за какое время подключаются все сессии (равномерно)
+     */
+    public long getRampUpMillis() {
+        return rampUpMillis;
+    }
+
+    /**
+     * @return длительность нагрузки после подключения всех сессий
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return как часто каждая сессия выполняет действие (сообщение или команду)
+     */
+    public long getActionIntervalMillis() {
+        return actionIntervalMillis;
+    }
+
+    /**
+     * @return сколько сессий в одной комнате; 0 - все сессии в общей комнате
+     */
+    public int getRoomSize() {
+        return roomSize;
+    }
+
+    /**
+     * @return длина сообщения в символах
+     */
+    public int getMessageLength() {
+        return messageLength;
+    }
+
+    /**
+     * @return начало логина и ника пользователей нагрузки: load0, load1, ...
+     */
+    public String getLoginPrefix() {
+        return loginPrefix;
+    }
+
+    /**
+     * @return пароль всех пользователей нагрузки
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    public int getRoomWeight() {
+        return roomWeight;
+    }
+
+    public int getPrivateWeight() {
+        return privateWeight;
+    }
+
+    public int getListWeight() {
+        return listWeight;
+    }
+
+    public int getChangeNickWeight() {
+        return changeNickWeight;
+    }
+
+    /**
+     * @return начальное значение генераторов случайных чисел: с тем же значением сессии выполняют
+     * те же последовательности действий
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return как часто выводится промежуточный отчет
+     */
+    public long getReportIntervalMillis() {
+        return reportIntervalMillis;
+    }
+
+    /**
+     * @return число потоков, выполняющих действия сессий
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return уровень журнала встроенного сервера: на уровне info каждый вход и выход пишется в журнал,
+     * и при тысячах сессий журнал становится заметной частью нагрузки
+     */
+    public String getServerLogLevel() {
+        return serverLogLevel;
+    }
+
+    public String getLogin(int index) {
+        return loginPrefix + index;
+    }
+
+    @Override
+    public String toString() {
+        return "сессий " + sessions + ", подключение за " + rampUpMillis + " мс, длительность " + durationMillis / 1000
+                + " с, действие раз в " + actionIntervalMillis + " мс, комнаты по " + roomSize
+                + ", смесь: комната " + roomWeight + ", личные " + privateWeight + ", /list " + listWeight
+                + ", /chnick " + changeNickWeight;
+    }
+}
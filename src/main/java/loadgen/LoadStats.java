@@ -0,0 +1,107 @@
+package loadgen;
+
+import serverside.metrics.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики и гистограммы генератора нагрузки; обновляются из потоков всех сессий
+ */
+class LoadStats {
+    final AtomicInteger connected = new AtomicInteger();
+    final AtomicInteger authenticated = new AtomicInteger();
+
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder authFailures = new LongAdder();
+    final LongAdder authTimeouts = new LongAdder();
+    final LongAdder idleTimeouts = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+
+    final LongAdder sentRoom = new LongAdder();
+    final LongAdder sentPrivate = new LongAdder();
+    final LongAdder sentList = new LongAdder();
+    final LongAdder sentChangeNick = new LongAdder();
+    final LongAdder deliveredRoom = new LongAdder();
+    final LongAdder deliveredPrivate = new LongAdder();
+    final LongAdder privateErrors = new LongAdder();
+    final LongAdder listReplies = new LongAdder();
+    final LongAdder nickChanges = new LongAdder();
+    final LongAdder nickErrors = new LongAdder();
+
+    // время от отправки сообщения до его получения: в комнате - каждым участником, личного - адресатом
+    final LatencyHistogram roomLatency = new LatencyHistogram();
+    final LatencyHistogram privateLatency = new LatencyHistogram();
+    // время от подключения до /authok и от /list до ответа
+    final LatencyHistogram authLatency = new LatencyHistogram();
+    final LatencyHistogram listLatency = new LatencyHistogram();
+
+    private long lastReportNanos = System.nanoTime();
+    private long lastSent;
+    private long lastDelivered;
+
+    long sent() {
+        return sentRoom.sum() + sentPrivate.sum() + sentList.sum() + sentChangeNick.sum();
+    }
+
+    long delivered() {
+        return deliveredRoom.sum() + deliveredPrivate.sum();
+    }
+
+    /**
+     * @return строка промежуточного отчета: сессии, скорость отправки и доставки с прошлого отчета,
+     * время доставки в комнату с начала нагрузки
+     */
+    synchronized String interval(long elapsedMillis) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        long sent = sent();
+        long delivered = delivered();
+        String line = String.format(Locale.ROOT,
+                "%6.1f с: сессий %d, в чате %d | отправлено %.0f/с, доставлено %.0f/с | комната p50 %s p99 %s мс"
+                        + " | ошибки: вход %d, таймауты %d, разрывы %d",
+                elapsedMillis / 1000.0, connected.get(), authenticated.get(),
+                (sent - lastSent) / seconds, (delivered - lastDelivered) / seconds,
+                millis(roomLatency.getValueAtPercentile(50)), millis(roomLatency.getValueAtPercentile(99)),
+                connectFailures.sum() + authFailures.sum(), authTimeouts.sum() + idleTimeouts.sum(), disconnects.sum());
+        lastReportNanos = now;
+        lastSent = sent;
+        lastDelivered = delivered;
+        return line;
+    }
+
+    /**
+     * @return итоговый отчет
+     * @param loadMillis время нагрузки, за которое считается средняя скорость
+     */
+    String summary(long loadMillis) {
+        double seconds = Math.max(1e-9, loadMillis / 1000.0);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Итог за %.1f с%n", seconds));
+        sb.append(String.format(Locale.ROOT, "  отправлено: в комнату %d, личных %d, /list %d, /chnick %d (%.0f/с)%n",
+                sentRoom.sum(), sentPrivate.sum(), sentList.sum(), sentChangeNick.sum(), sent() / seconds));
+        sb.append(String.format(Locale.ROOT, "  доставлено: в комнате %d, личных %d (%.0f/с); ответов /list %d,"
+                        + " смен ника %d%n",
+                deliveredRoom.sum(), deliveredPrivate.sum(), delivered() / seconds, listReplies.sum(), nickChanges.sum()));
+        sb.append(String.format(Locale.ROOT, "  ошибки: подключение %d, вход %d, таймаут входа %d, таймаут простоя %d,"
+                        + " разрывы %d, личные %d, смена ника %d%n",
+                connectFailures.sum(), authFailures.sum(), authTimeouts.sum(), idleTimeouts.sum(), disconnects.sum(),
+                privateErrors.sum(), nickErrors.sum()));
+        sb.append(histogram("доставка в комнате", roomLatency));
+        sb.append(histogram("личные сообщения  ", privateLatency));
+        sb.append(histogram("вход (/auth)      ", authLatency));
+        sb.append(histogram("ответ на /list    ", listLatency));
+        return sb.toString();
+    }
+
+    private static String histogram(String name, LatencyHistogram h) {
+        return String.format(Locale.ROOT, "  %s мс: n=%d p50 %s p90 %s p99 %s p99.9 %s max %s%n", name, h.getCount(),
+                millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(90)),
+                millis(h.getValueAtPercentile(99)), millis(h.getValueAtPercentile(99.9)), millis(h.getMax()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
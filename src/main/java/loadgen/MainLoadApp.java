@@ -0,0 +1,30 @@
+package loadgen;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+public class MainLoadApp {
+    private static final Logger LOGGER = LogManager.getLogger(MainLoadApp.class);
+
+    /**
+     * Запуск генератора нагрузки
+     * @param args - аргументы командной строки вида ключ=значение, например load.sessions=1000 chat.transport=nio.
+     *             Встроенный сервер по умолчанию работает на базе H2 в памяти и не ограничивает частоту подключений
+     *             с одного адреса, так как все сессии подключаются с одного адреса (chat.db.url
+     *             и chat.admission.ipRate можно переопределить)
+     */
+    public static void main(String[] args) {
+        String[] settings = new String[args.length + 2];
+        settings[0] = "chat.db.url=" + LoadGenerator.EMBEDDED_DB_URL;
+        settings[1] = "chat.admission.ipRate=0";
+        System.arraycopy(args, 0, settings, 2, args.length);
+        try {
+            new LoadGenerator(ServerConfig.load(settings)).run();
+        } catch (Exception ex) {
+            LOGGER.error("Нагрузка прервана: " + ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
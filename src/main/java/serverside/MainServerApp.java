@@ -1,13 +1,14 @@
 package serverside;
 
 import serverside.service.MyServer;
+import serverside.service.ServerConfig;
 
 public class MainServerApp {
     /**
      * Запуск сервера
-     * @param args - аргументы командной строки
+     * @param args - аргументы командной строки вида ключ=значение, например chat.transport=nio
      */
     public static void main(String[] args) {
-        new MyServer();
+        new MyServer(ServerConfig.load(args));
     }
 }
@@ -0,0 +1,31 @@
+package serverside.audit;
+
+/**
+ * Ячейка кольцевого буфера аудита (см. AuditRing). Хранит ссылки на строки, которые у вызывающего
+ * уже есть (ник, комната, текст из пакета), поэтому запись события ничего не копирует
+ */
+final class AuditEvent {
+    AuditEventType type;
+    long time;
+    String actor;
+    String target;
+    String text;
+
+    void set(AuditEventType type, long time, String actor, String target, String text) {
+        this.type = type;
+        this.time = time;
+        this.actor = actor;
+        this.target = target;
+        this.text = text;
+    }
+
+    /**
+     * Освобождает ссылки, чтобы ячейка не удерживала текст обработанного сообщения
+     */
+    void clear() {
+        type = null;
+        actor = null;
+        target = null;
+        text = null;
+    }
+}
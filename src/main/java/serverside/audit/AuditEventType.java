@@ -0,0 +1,52 @@
+package serverside.audit;
+
+import org.apache.logging.log4j.Level;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Виды событий журнала аудита.
+ * У каждого вида - уровень (журнал записывает события не ниже chat.audit.level) и имена полей в записи:
+ * кто (actor), над чем (target) и текст сообщения. Сообщения в комнаты и личные сообщения - уровня DEBUG
+ * и прореживаются (chat.audit.sampleEvery), события сессии - уровня INFO и записываются все
+ */
+public enum AuditEventType {
+    LOGIN(Level.INFO, false, "login", "nick", "login", null),
+    LOGOUT(Level.INFO, false, "logout", "nick", null, null),
+    NICK(Level.INFO, false, "nick", "nick", "newNick", null),
+    ROOM(Level.INFO, false, "room", "nick", "room", null),
+    MESSAGE(Level.DEBUG, true, "message", "nick", "room", "text"),
+    PRIVATE(Level.DEBUG, true, "private", "nick", "to", "text");
+
+    private final Level level;
+    private final boolean sampled;
+    // части записи в UTF-8, чтобы поток записи не кодировал имена полей для каждого события
+    final byte[] eventPrefix;
+    final byte[] actorPrefix;
+    final byte[] targetPrefix;
+    final byte[] textPrefix;
+
+    AuditEventType(Level level, boolean sampled, String name, String actorKey, String targetKey, String textKey) {
+        this.level = level;
+        this.sampled = sampled;
+        this.eventPrefix = ascii("\",\"event\":\"" + name + "\"");
+        this.actorPrefix = ascii(",\"" + actorKey + "\":");
+        this.targetPrefix = targetKey == null ? null : ascii(",\"" + targetKey + "\":");
+        this.textPrefix = textKey == null ? null : ascii(",\"" + textKey + "\":");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true, если события этого вида прореживаются
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+}
@@ -0,0 +1,421 @@
+package serverside.audit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Журнал аудита: входы и выходы пользователей, смены ника и комнаты, сообщения в комнаты и личные сообщения.
+ * Поток обработчика клиента не пишет на диск и не форматирует строку: событие - ссылки на уже имеющиеся
+ * строки и время - кладется в кольцевой буфер (см. AuditRing) без блокировок и без выделения памяти.
+ * Если буфер полон, событие выбрасывается и учитывается в счетчике, обработчик никогда не ждет диска.
+ * Отдельный поток забирает события, кодирует их в JSON (одна строка на событие) сразу в UTF-8
+ * в переиспользуемый буфер и пишет в файл audit.log, когда буфер заполнен или событий больше нет.
+ * Когда файл превышает maxFileBytes, он переименовывается в audit.1.log (прежние сдвигаются
+ * до audit.N.log, N = maxFiles) и начинается новый.
+ * События ниже chat.audit.level не записываются; из сообщений записывается одно из sampleEvery
+ */
+public class AuditLog {
+    private static final String FILE_NAME = "audit";
+    private static final String FILE_SUFFIX = ".log";
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_CHAR_BYTES = 6;                    // управляющий символ: обратная косая черта, u и 4 цифры
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LONG_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int LONG_IDLE_AFTER = 100;                 // пустых проверок буфера подряд
+    private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final byte[] TIME_PREFIX = "{\"time\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final AuditSettings settings;
+    private final boolean[] enabled = new boolean[AuditEventType.values().length];
+    private final AuditRing ring;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // только для потока записи
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private int position;
+    private FileChannel channel;
+    private long fileBytes;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] secondText;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+
+    private static final Logger LOGGER = LogManager.getLogger(AuditLog.class);
+
+    private AuditLog(AuditSettings settings) {
+        this.settings = settings;
+        for(AuditEventType type : AuditEventType.values()) {
+            enabled[type.ordinal()] = type.getLevel().isMoreSpecificThan(settings.getLevel());
+        }
+        if(settings.getLevel() == Level.OFF) {
+            this.ring = null;
+            this.writer = null;
+        } else {
+            this.ring = new AuditRing(settings.getBufferCapacity());
+            this.writer = new Thread(this::runWriter, "audit-log-writer");
+            this.writer.setDaemon(true);
+        }
+    }
+
+    /**
+     * Открывает файл журнала и запускает поток записи. При chat.audit.level=off журнал ничего не записывает
+     * @param settings настройки журнала
+     * @return журнал
+     * @throws IOException, если каталог журнала недоступен или файл не удалось открыть
+     */
+    public static AuditLog open(AuditSettings settings) throws IOException {
+        AuditLog auditLog = new AuditLog(settings);
+        if(auditLog.writer != null) {
+            Files.createDirectories(settings.getDir());
+            auditLog.openFile();
+            auditLog.writer.start();
+            LOGGER.info("Журнал аудита: " + auditLog.file(0) + ", уровень " + settings.getLevel()
+                    + ", записывается одно из " + settings.getSampleEvery() + " сообщений");
+        }
+        return auditLog;
+    }
+
+    public void login(String nick, String login) {
+        record(AuditEventType.LOGIN, nick, login, null);
+    }
+
+    public void logout(String nick) {
+        record(AuditEventType.LOGOUT, nick, null, null);
+    }
+
+    public void nickChanged(String oldNick, String newNick) {
+        record(AuditEventType.NICK, oldNick, newNick, null);
+    }
+
+    public void roomChanged(String nick, String room) {
+        record(AuditEventType.ROOM, nick, room, null);
+    }
+
+    public void message(String nick, String room, String text) {
+        record(AuditEventType.MESSAGE, nick, room, text);
+    }
+
+    public void privateMessage(String nick, String recipient, String text) {
+        record(AuditEventType.PRIVATE, nick, recipient, text);
+    }
+
+    /**
+     * @param type вид события
+     * @return true, если события этого вида записываются; проверка нужна, только если подготовка
+     * аргументов события чего-то стоит
+     */
+    public boolean isEnabled(AuditEventType type) {
+        return enabled[type.ordinal()];
+    }
+
+    private void record(AuditEventType type, String actor, String target, String text) {
+        if(!enabled[type.ordinal()]) {
+            return;
+        }
+        int sampleEvery = settings.getSampleEvery();
+        if(type.isSampled() && sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            skipped.increment();
+            return;
+        }
+        if(!ring.offer(type, System.currentTimeMillis(), actor, target, text)) {
+            dropped.increment();
+            if(dropped.sum() % 10_000 == 1) {
+                LOGGER.warn("Буфер журнала аудита переполнен, выброшено событий: " + dropped.sum());
+            }
+        }
+    }
+
+    /**
+     * Останавливает поток записи: события, уже стоящие в буфере, дописываются в файл
+     */
+    public void close() {
+        running = false;
+        if(writer == null) {
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public AuditSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return сколько событий записано в файл
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return сколько событий выброшено из-за переполнения буфера
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return сколько сообщений пропущено прореживанием
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return сколько раз не удалось записать в файл
+     */
+    public long getWriteErrorCount() {
+        return writeErrors.sum();
+    }
+
+    /**
+     * @return сколько событий ждут потока записи
+     */
+    public int getQueueDepth() {
+        return ring == null ? 0 : ring.size();
+    }
+
+    private void runWriter() {
+        int idle = 0;
+        while(true) {
+            AuditEvent event = ring.peek();
+            if(event != null) {
+                encode(event);
+                ring.release(event);
+                written.increment();
+                idle = 0;
+                if(fileBytes + position >= settings.getMaxFileBytes()) {
+                    flush();
+                    roll();
+                }
+                continue;
+            }
+            flush();
+            if(!running) {
+                break;
+            }
+            // писатели не будят поток записи, чтобы не тратить на это время; пока событий нет, поток спит
+            LockSupport.parkNanos(idle < LONG_IDLE_AFTER ? IDLE_PARK_NANOS : LONG_IDLE_PARK_NANOS);
+            idle++;
+        }
+        closeFile();
+    }
+
+    /**
+     * {"time":"...","event":"...","nick":"...",...}\n
+     */
+    private void encode(AuditEvent event) {
+        AuditEventType type = event.type;
+        put(TIME_PREFIX);
+        putTime(event.time);
+        put(type.eventPrefix);
+        put(type.actorPrefix);
+        putString(event.actor);
+        if(type.targetPrefix != null) {
+            put(type.targetPrefix);
+            putString(event.target);
+        }
+        if(type.textPrefix != null) {
+            put(type.textPrefix);
+            putString(event.text);
+        }
+        ensure(2);
+        buffer[position++] = '}';
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Время с точностью до секунды форматируется один раз в секунду, миллисекунды дописываются
+     */
+    private void putTime(long time) {
+        long second = Math.floorDiv(time, 1000);
+        if(second != cachedSecond) {
+            cachedSecond = second;
+            secondText = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone).format(SECOND_FORMAT)
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+        put(secondText);
+        int millis = Math.floorMod(time, 1000);
+        ensure(4);
+        buffer[position++] = '.';
+        buffer[position++] = (byte) ('0' + millis / 100);
+        buffer[position++] = (byte) ('0' + millis / 10 % 10);
+        buffer[position++] = (byte) ('0' + millis % 10);
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Дописывает строку JSON в UTF-8; непарные суррогаты заменяются на '?'
+     */
+    private void putString(String s) {
+        if(s == null) {
+            put(NULL);
+            return;
+        }
+        ensure(1);
+        buffer[position++] = '"';
+        int length = s.length();
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            ensure(MAX_CHAR_BYTES);
+            if(c == '"' || c == '\\') {
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) c;
+            } else if(c < 0x20) {
+                buffer[position++] = '\\';
+                if(c == '\n') {
+                    buffer[position++] = 'n';
+                } else if(c == '\r') {
+                    buffer[position++] = 'r';
+                } else if(c == '\t') {
+                    buffer[position++] = 't';
+                } else {
+                    buffer[position++] = 'u';
+                    buffer[position++] = '0';
+                    buffer[position++] = '0';
+                    buffer[position++] = HEX[c >> 4];
+                    buffer[position++] = HEX[c & 0xF];
+                }
+            } else if(c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if(c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | cp >> 18);
+                    buffer[position++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    buffer[position++] = '?';
+                }
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        ensure(1);
+        buffer[position++] = '"';
+    }
+
+    /**
+     * Освобождает в буфере место под bytes байт, записывая накопленное в файл
+     */
+    private void ensure(int bytes) {
+        if(position + bytes > buffer.length) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if(position == 0) {
+            return;
+        }
+        try {
+            if(channel == null) {
+                openFile();
+            }
+            bufferView.clear().limit(position);
+            while(bufferView.hasRemaining()) {
+                channel.write(bufferView);
+            }
+            fileBytes += position;
+        } catch (IOException ex) {
+            onWriteError("Ошибка записи в журнал аудита", ex);
+            closeFile();
+        }
+        position = 0;
+    }
+
+    /**
+     * Начинает новый файл: audit.log становится audit.1.log, прежние файлы сдвигаются, самый старый удаляется
+     */
+    private void roll() {
+        closeFile();
+        try {
+            int maxFiles = settings.getMaxFiles();
+            if(maxFiles == 0) {
+                Files.deleteIfExists(file(0));
+            } else {
+                Files.deleteIfExists(file(maxFiles));
+                for(int i = maxFiles - 1; i >= 0; i--) {
+                    if(Files.exists(file(i))) {
+                        Files.move(file(i), file(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            openFile();
+        } catch (IOException ex) {
+            onWriteError("Ошибка при смене файла журнала аудита", ex);
+        }
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file(0), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    private void closeFile() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.error("Ошибка при закрытии файла журнала аудита: " + ex.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private void onWriteError(String message, IOException ex) {
+        writeErrors.increment();
+        if(writeErrors.sum() % 1000 == 1) {
+            LOGGER.error(message + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @param index 0 - текущий файл, 1..maxFiles - заполненные, от новых к старым
+     */
+    private Path file(int index) {
+        return settings.getDir().resolve(index == 0 ? FILE_NAME + FILE_SUFFIX : FILE_NAME + "." + index + FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,80 @@
+package serverside.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кольцевой буфер событий аудита для многих писателей и одного читателя без блокировок.
+ * Ячейки (AuditEvent) создаются один раз и переиспользуются, поэтому запись события ничего не выделяет.
+ * Писатель занимает номер следующей ячейки через compareAndSet, заполняет ее и публикует,
+ * записывая в published номер события + 1. Читатель берет ячейки по порядку, пока они опубликованы,
+ * и после обработки сдвигает consumed - только тогда ячейка снова доступна писателям.
+ * Если все ячейки заняты, событие не записывается: писатель никогда не ждет читателя
+ */
+final class AuditRing {
+    private final AuditEvent[] slots;
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();   // номер следующего события
+    private volatile long consumed;                        // номер следующего события для читателя
+
+    /**
+     * @param capacity число ячеек, округляется вверх до степени двойки
+     */
+    AuditRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AuditEvent[size];
+        for(int i = 0; i < size; i++) {
+            slots[i] = new AuditEvent();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Записывает событие в свободную ячейку
+     * @return false, если свободных ячеек нет
+     */
+    boolean offer(AuditEventType type, long time, String actor, String target, String text) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if(sequence - consumed >= slots.length) {
+                return false;
+            }
+        } while(!claimed.compareAndSet(sequence, sequence + 1));
+        int index = (int) sequence & mask;
+        slots[index].set(type, time, actor, target, text);
+        published.lazySet(index, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Только для читателя
+     * @return следующее опубликованное событие или null; после обработки нужно вызвать release
+     */
+    AuditEvent peek() {
+        long sequence = consumed;
+        int index = (int) sequence & mask;
+        return published.get(index) == sequence + 1 ? slots[index] : null;
+    }
+
+    /**
+     * Только для читателя: освобождает ячейку события, полученного от peek
+     */
+    void release(AuditEvent event) {
+        event.clear();
+        consumed = consumed + 1;
+    }
+
+    /**
+     * @return сколько событий ждут читателя
+     */
+    int size() {
+        return (int) Math.max(0, claimed.get() - consumed);
+    }
+}
@@ -0,0 +1,91 @@
+package serverside.audit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Настройки журнала аудита
+ */
+public class AuditSettings {
+    private static final int MIN_FILE_BYTES = 64 * 1024;
+
+    private final Level level;
+    private final int sampleEvery;
+    private final Path dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final int bufferCapacity;
+
+    private static final Logger LOGGER = LogManager.getLogger(AuditSettings.class);
+
+    public AuditSettings(Level level, int sampleEvery, Path dir, long maxFileBytes, int maxFiles, int bufferCapacity) {
+        this.level = level;
+        this.sampleEvery = sampleEvery;
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public static AuditSettings from(ServerConfig config) {
+        String name = config.getString("chat.audit.level", "debug");
+        Level level = Level.toLevel(name, null);
+        if(level == null) {
+            LOGGER.error("Неверное значение chat.audit.level: " + name + ", используется debug");
+            level = Level.DEBUG;
+        }
+        return new AuditSettings(level,
+                Math.max(1, config.getInt("chat.audit.sampleEvery", 1)),
+                Paths.get(config.getString("chat.audit.dir", "logs")),
+                Math.max(MIN_FILE_BYTES, config.getLong("chat.audit.maxFileBytes", 64L * 1024 * 1024)),
+                Math.max(0, config.getInt("chat.audit.maxFiles", 10)),
+                Math.max(2, config.getInt("chat.audit.bufferCapacity", 65536)));
+    }
+
+    /**
+     * @return минимальный уровень записываемых событий; OFF - журнал отключен
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return записывается одно из скольких сообщений (события видов, у которых isSampled)
+     */
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * @return каталог файлов журнала
+     */
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @return размер файла, после которого начинается новый файл
+     */
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    /**
+     * @return сколько заполненных файлов хранить (audit.1.log - самый новый)
+     */
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * @return число ячеек кольцевого буфера событий
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+}
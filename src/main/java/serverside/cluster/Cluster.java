@@ -0,0 +1,603 @@
+package serverside.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.service.MyServer;
+import serverside.service.OutboundQueueSettings;
+import serverside.service.SlowConsumerPolicy;
+import serverside.service.StreamConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Узел кластера серверов чата.
+ * Узлы соединяются друг с другом по TCP (порт chat.cluster.port) и обмениваются пакетами протокола версии 2
+ * с кодами PEER_*: каждый узел подключается к узлам из chat.cluster.peers и принимает подключения от остальных.
+ * Если между двумя узлами оказалось два соединения, оба узла оставляют то, которое установил узел
+ * с меньшим именем.
+ * Узел сообщает другим узлам о входе и выходе своих пользователей (PEER_JOIN, PEER_LEAVE), а при подключении -
+ * обо всех своих пользователях сразу. Сообщение в комнату пересылается каждому узлу один раз (PEER_BROADCAST),
+ * а не каждому удаленному пользователю: узел рассылает его своим участникам комнаты сам. Личное сообщение
+ * пересылается только узлу, на котором находится получатель (PEER_PRIVATE).
+ * Ник занимается на узле, если его нет среди пользователей других узлов. Если один пользователь одновременно
+ * вошел на двух узлах, оба узла по PEER_JOIN одинаково выбирают, какой вход остается: более ранний,
+ * а при равенстве времени - на узле с меньшим именем; второй клиент отключается.
+ * Сообщения о пользователях отправляются не под presenceLock: под ним они только ставятся в очередь presenceOutbox
+ * в порядке изменений, а отправляет их по очереди одна задача в writerExecutor. Поэтому вход и выход
+ * не ждут узел, который медленно принимает данные или переподключается
+ */
+public class Cluster {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final long LINK_BLOCK_TIMEOUT_MILLIS = 5_000;
+
+    private final MyServer server;
+    private final ClusterSettings settings;
+    private final ProtocolSettings protocolSettings;
+    private final OutboundQueueSettings linkQueueSettings;
+    private final WireFormat format;
+    private final Executor writerExecutor;
+    private final Map<Opcode, BiConsumer<PeerLink, Packet>> handlers = new EnumMap<>(Opcode.class);
+
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private volatile PeerLink[] linkSnapshot = new PeerLink[0];            // для пересылки без перебора карты
+    private final Map<String, Presence> remoteUsers = new ConcurrentHashMap<>();
+    private final Map<String, Presence> localUsers = new HashMap<>();      // под presenceLock
+    // изменения состава узлов и пользователей и рассылка о них упорядочены: иначе PEER_LEAVE мог бы обогнать
+    // PEER_JOIN того же пользователя, отправленный в составе начальной рассылки новому узлу
+    private final Object presenceLock = new Object();
+    private final Queue<PresenceUpdate> presenceOutbox = new ArrayDeque<>();   // под presenceLock
+    private boolean presenceFlushing;                                          // под presenceLock
+
+    private final List<Thread> threads = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    private final LongAdder relayedBroadcasts = new LongAdder();
+    private final LongAdder receivedBroadcasts = new LongAdder();
+    private final LongAdder routedPrivateMessages = new LongAdder();
+    private final LongAdder duplicateLogins = new LongAdder();
+
+    private static final Logger LOGGER = LogManager.getLogger(Cluster.class);
+
+    /**
+     * Пользователь, вошедший в чат на каком-либо узле
+     */
+    private static final class Presence {
+        final String login;
+        final String nodeId;
+        final long since;
+
+        Presence(String login, String nodeId, long since) {
+            this.login = login;
+            this.nodeId = nodeId;
+            this.since = since;
+        }
+
+        /**
+         * @return true, если этот вход остается при одновременном входе одного пользователя на двух узлах
+         */
+        boolean wins(Presence other) {
+            return since < other.since || (since == other.since && nodeId.compareTo(other.nodeId) < 0);
+        }
+    }
+
+    /**
+     * Сообщение о пользователях, ожидающее отправки узлам
+     */
+    private static final class PresenceUpdate {
+        final PeerLink[] links;
+        final Packet packet;
+
+        PresenceUpdate(PeerLink[] links, Packet packet) {
+            this.links = links;
+            this.packet = packet;
+        }
+    }
+
+    public Cluster(MyServer server, ClusterSettings settings, ProtocolSettings protocolSettings, Executor writerExecutor) {
+        this.server = server;
+        this.settings = settings;
+        this.protocolSettings = protocolSettings;
+        this.writerExecutor = writerExecutor;
+        // очередь к узлу не выбрасывает сообщения: отправитель ждет, а если узел так и не принял их - соединение рвется
+        this.linkQueueSettings = new OutboundQueueSettings(SlowConsumerPolicy.BLOCK, settings.getQueueCapacity(), 1,
+                LINK_BLOCK_TIMEOUT_MILLIS, 64 * 1024, 0, LINK_BLOCK_TIMEOUT_MILLIS);
+        this.format = new WireFormat(ProtocolVersion.V2, protocolSettings.isCompressionEnabled(),
+                protocolSettings.getCompressionThreshold());
+        handlers.put(Opcode.PEER_JOIN, this::onPeerJoin);
+        handlers.put(Opcode.PEER_LEAVE, this::onPeerLeave);
+        handlers.put(Opcode.PEER_BROADCAST, this::onPeerBroadcast);
+        handlers.put(Opcode.PEER_PRIVATE, this::onPeerPrivate);
+        handlers.put(Opcode.PEER_ERROR_PRIVATE, this::onPeerErrorPrivate);
+    }
+
+    /**
+     * Открывает порт для других узлов и запускает подключение к узлам из настроек
+     * @throws IOException, если порт занят
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(settings.getPort());
+        startThread(this::acceptLinks, "cluster-acceptor");
+        for(InetSocketAddress peer : settings.getPeers()) {
+            startThread(() -> dial(peer), "cluster-dialer-" + peer.getHostString() + ":" + peer.getPort());
+        }
+        LOGGER.info("Узел кластера " + settings.getNodeId() + " принимает соединения на порту " + settings.getPort()
+                + ", узлы для подключения: " + settings.getPeers());
+    }
+
+    /**
+     * Закрывает соединения с другими узлами
+     */
+    public void stop() {
+        running = false;
+        try {
+            if(serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+
+        }
+        for(PeerLink link : links.values()) {
+            link.close();
+        }
+        synchronized (threads) {
+            for(Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    public String getNodeId() {
+        return settings.getNodeId();
+    }
+
+    /**
+     * @param nick ник
+     * @return true, если пользователь с этим ником в чате на другом узле
+     */
+    public boolean isRemoteNick(String nick) {
+        return remoteUsers.containsKey(nick);
+    }
+
+    /**
+     * Сообщает другим узлам о входе пользователя в чат на этом узле.
+     * Другой узел мог сообщить о входе того же пользователя уже после того, как ник был занят здесь:
+     * тогда вход, который не остается (см. Presence.wins), нужно отменить
+     * @param nick ник
+     * @param login логин
+     * @return false, если тот же пользователь раньше вошел на другом узле и клиента нужно отключить
+     */
+    public boolean announceJoin(String nick, String login) {
+        boolean wins;
+        boolean flush;
+        synchronized (presenceLock) {
+            Presence presence = new Presence(login, settings.getNodeId(), System.currentTimeMillis());
+            localUsers.put(nick, presence);
+            flush = enqueuePresence(linkSnapshot, joinPacket(nick, presence));
+            Presence remote = remoteUsers.get(nick);
+            wins = remote == null || !remote.wins(presence);
+        }
+        if(flush) {
+            schedulePresenceFlush();
+        }
+        if(!wins) {
+            duplicateLogins.increment();
+        }
+        return wins;
+    }
+
+    /**
+     * Сообщает другим узлам о выходе пользователя из чата на этом узле
+     * @param nick ник
+     */
+    public void announceLeave(String nick) {
+        boolean flush = false;
+        synchronized (presenceLock) {
+            if(localUsers.remove(nick) != null) {
+                flush = enqueuePresence(linkSnapshot, Packet.of(Opcode.PEER_LEAVE, nick));
+            }
+        }
+        if(flush) {
+            schedulePresenceFlush();
+        }
+    }
+
+    /**
+     * Пересылает сообщение в комнату всем узлам, по одному разу каждому.
+     * Пакет пересылки кодируется один раз для всех узлов
+     * @param room имя комнаты
+     * @param packet сообщение
+     */
+    public void relayBroadcast(String room, Packet packet) {
+        PeerLink[] snapshot = linkSnapshot;
+        if(snapshot.length == 0) {
+            return;
+        }
+        String[] fields = new String[packet.size() + 2];
+        fields[0] = room;
+        fields[1] = String.valueOf(packet.getOpcode().getCode());
+        for(int i = 0; i < packet.size(); i++) {
+            fields[i + 2] = packet.get(i);
+        }
+        Packet relay = Packet.of(Opcode.PEER_BROADCAST, fields);
+        for(PeerLink link : snapshot) {
+            link.send(relay);
+        }
+        relayedBroadcasts.increment();
+    }
+
+    /**
+     * Пересылает личное сообщение узлу, на котором находится получатель
+     * @return логин получателя или null, если получателя нет на других узлах
+     */
+    public String routePrivateMessage(String senderLogin, String senderNick, String recipientNick, String message) {
+        Presence presence = remoteUsers.get(recipientNick);
+        PeerLink link = presence == null ? null : links.get(presence.nodeId);
+        if(link == null) {
+            return null;
+        }
+        link.send(Packet.of(Opcode.PEER_PRIVATE, senderLogin, senderNick, recipientNick, message));
+        routedPrivateMessages.increment();
+        return presence.login;
+    }
+
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * @return сколько сообщений в комнаты переслано другим узлам (каждое - всем узлам сразу)
+     */
+    public long getRelayedBroadcastCount() {
+        return relayedBroadcasts.sum();
+    }
+
+    public long getReceivedBroadcastCount() {
+        return receivedBroadcasts.sum();
+    }
+
+    public long getRoutedPrivateMessageCount() {
+        return routedPrivateMessages.sum();
+    }
+
+    /**
+     * @return сколько клиентов отключено из-за одновременного входа того же пользователя на другом узле
+     */
+    public long getDuplicateLoginCount() {
+        return duplicateLogins.sum();
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                synchronized (threads) {
+                    threads.remove(Thread.currentThread());
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    private void acceptLinks() {
+        while(running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if(running) {
+                    LOGGER.error("Ошибка при приеме соединения от узла кластера: " + ex.getMessage());
+                }
+                return;
+            }
+            startThread(() -> {
+                PeerLink link = handshake(socket, false);
+                if(link != null && register(link)) {
+                    runLink(link);
+                }
+            }, "cluster-link-" + socket.getRemoteSocketAddress());
+        }
+    }
+
+    /**
+     * Поддерживает соединение с узлом из настроек: подключается, пока соединения нет, и переподключается после разрыва.
+     * Если с узлом уже есть соединение, установленное им самим, новое не устанавливается
+     */
+    private void dial(InetSocketAddress address) {
+        String peerId = null;
+        while(running) {
+            if(peerId == null || !links.containsKey(peerId)) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                    PeerLink link = handshake(socket, true);
+                    if(link != null) {
+                        peerId = link.getNodeId();
+                        if(register(link)) {
+                            runLink(link);
+                        }
+                    }
+                } catch (IOException ex) {
+                    LOGGER.debug("Узел кластера " + address + " недоступен: " + ex.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(settings.getReconnectMillis());
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Обменивается приветствиями с узлом
+     * @param socket сокет
+     * @param initiator true, если соединение установил этот узел
+     * @return соединение или null, если приветствие неверное
+     */
+    private PeerLink handshake(Socket socket, boolean initiator) {
+        try {
+            StreamConnection connection = new StreamConnection(socket, linkQueueSettings, protocolSettings,
+                    writerExecutor, server.getTimer(), format);
+            Packet hello = Packet.of(Opcode.PEER_HELLO, settings.getNodeId(), settings.getSecret());
+            if(initiator) {
+                connection.send(hello);
+            }
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            Packet reply = connection.read();
+            socket.setSoTimeout(0);
+            if(reply.getOpcode() != Opcode.PEER_HELLO || !settings.getSecret().equals(reply.get(1))) {
+                LOGGER.warn("Отклонено соединение от " + socket.getRemoteSocketAddress() + ": неверное приветствие узла кластера");
+                connection.close();
+                return null;
+            }
+            if(!initiator) {
+                connection.send(hello);
+            }
+            String peerId = reply.get(0);
+            return new PeerLink(peerId, initiator ? settings.getNodeId() : peerId, connection);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Не удалось установить соединение с узлом кластера " + socket.getRemoteSocketAddress()
+                    + ": " + ex.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Регистрирует соединение с узлом и отправляет по нему список пользователей этого узла
+     * @return false, если соединение лишнее и закрыто
+     */
+    private boolean register(PeerLink link) {
+        String peerId = link.getNodeId();
+        boolean flush = false;
+        synchronized (presenceLock) {
+            if(peerId.equals(settings.getNodeId())) {
+                LOGGER.error("Узел кластера подключился сам к себе или имя узла " + peerId + " не уникально");
+                link.close();
+                return false;
+            }
+            PeerLink existing = links.get(peerId);
+            if(existing != null) {
+                // соединение, установленное тем же узлом, - повторное подключение после разрыва, прежнее устарело
+                boolean keepExisting = !existing.getInitiatorId().equals(link.getInitiatorId())
+                        && existing.getInitiatorId().compareTo(link.getInitiatorId()) < 0;
+                if(keepExisting) {
+                    link.close();
+                    return false;
+                }
+                existing.close();
+                removeRemoteUsers(peerId);
+            }
+            links.put(peerId, link);
+            linkSnapshot = links.values().toArray(new PeerLink[0]);
+            PeerLink[] target = {link};
+            for(Map.Entry<String, Presence> entry : localUsers.entrySet()) {
+                flush |= enqueuePresence(target, joinPacket(entry.getKey(), entry.getValue()));
+            }
+        }
+        if(flush) {
+            schedulePresenceFlush();
+        }
+        LOGGER.info("Установлено соединение с узлом кластера " + peerId);
+        return true;
+    }
+
+    /**
+     * Читает пакеты узла, пока соединение не разорвется
+     */
+    private void runLink(PeerLink link) {
+        try {
+            while(running) {
+                Packet packet = link.getConnection().read();
+                BiConsumer<PeerLink, Packet> handler = handlers.get(packet.getOpcode());
+                if(handler == null) {
+                    continue;
+                }
+                try {
+                    handler.accept(link, packet);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Ошибка при обработке сообщения от узла " + link.getNodeId() + ": " + packet
+                            + ": " + ex.getMessage());
+                }
+            }
+        } catch (IOException ex) {
+            if(running) {
+                LOGGER.debug("Соединение с узлом " + link.getNodeId() + " разорвано: " + ex.getMessage());
+            }
+        } finally {
+            link.close();
+            unregister(link);
+        }
+    }
+
+    private void unregister(PeerLink link) {
+        synchronized (presenceLock) {
+            if(!links.remove(link.getNodeId(), link)) {
+                return;
+            }
+            linkSnapshot = links.values().toArray(new PeerLink[0]);
+            removeRemoteUsers(link.getNodeId());
+        }
+        LOGGER.info("Потеряно соединение с узлом кластера " + link.getNodeId());
+    }
+
+    /**
+     * Удаляет пользователей узла из списка; вызывается под presenceLock
+     */
+    private void removeRemoteUsers(String nodeId) {
+        Iterator<Map.Entry<String, Presence>> it = remoteUsers.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Presence> entry = it.next();
+            if(entry.getValue().nodeId.equals(nodeId)) {
+                it.remove();
+                server.getRoster().leave(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Ставит сообщение о пользователях в очередь отправки; вызывается под presenceLock
+     * @param links узлы, которым нужно отправить сообщение
+     * @param packet сообщение
+     * @return true, если очередь никто не разбирает и вызывающий должен запустить schedulePresenceFlush
+     * после освобождения presenceLock
+     */
+    private boolean enqueuePresence(PeerLink[] links, Packet packet) {
+        if(links.length == 0) {
+            return false;
+        }
+        presenceOutbox.add(new PresenceUpdate(links, packet));
+        if(presenceFlushing) {
+            return false;
+        }
+        presenceFlushing = true;
+        return true;
+    }
+
+    private void schedulePresenceFlush() {
+        try {
+            writerExecutor.execute(this::flushPresence);
+        } catch (RejectedExecutionException ex) {
+            // сервер останавливается, соединения с узлами закрываются
+            synchronized (presenceLock) {
+                presenceOutbox.clear();
+                presenceFlushing = false;
+            }
+        }
+    }
+
+    /**
+     * Отправляет сообщения из presenceOutbox в порядке постановки, пока очередь не опустеет.
+     * Одновременно очередь разбирает только одна задача, поэтому порядок сообщений сохраняется
+     */
+    private void flushPresence() {
+        while(true) {
+            PresenceUpdate update;
+            synchronized (presenceLock) {
+                update = presenceOutbox.poll();
+                if(update == null) {
+                    presenceFlushing = false;
+                    return;
+                }
+            }
+            for(PeerLink link : update.links) {
+                link.send(update.packet);
+            }
+        }
+    }
+
+    private static Packet joinPacket(String nick, Presence presence) {
+        return Packet.of(Opcode.PEER_JOIN, nick, presence.login, String.valueOf(presence.since));
+    }
+
+    private void onPeerJoin(PeerLink link, Packet packet) {
+        String nick = packet.get(0);
+        Presence remote = new Presence(packet.get(1), link.getNodeId(), Long.parseLong(packet.get(2)));
+        boolean duplicate;
+        synchronized (presenceLock) {
+            Presence local = localUsers.get(nick);
+            duplicate = local != null && remote.wins(local);
+            // если о нике сообщили два узла, остается тот же вход, что и на самих узлах
+            if(remoteUsers.merge(nick, remote,
+                    (old, fresh) -> old.nodeId.equals(fresh.nodeId) || fresh.wins(old) ? fresh : old) == remote) {
+                // в списке пользователей вход другого узла обозначается ником, с какого бы узла он ни был
+                server.getRoster().join(nick, nick);
+            }
+        }
+        if(duplicate) {
+            LOGGER.warn("Пользователь с ником " + nick + " вошел в чат на узле " + link.getNodeId()
+                    + " раньше, клиент на этом узле отключается");
+            duplicateLogins.increment();
+            server.disconnectDuplicate(nick);
+        }
+    }
+
+    private void onPeerLeave(PeerLink link, Packet packet) {
+        String nick = packet.get(0);
+        synchronized (presenceLock) {
+            if(remoteUsers.computeIfPresent(nick,
+                    (n, presence) -> presence.nodeId.equals(link.getNodeId()) ? null : presence) == null) {
+                server.getRoster().leave(nick);
+            }
+        }
+    }
+
+    private void onPeerBroadcast(PeerLink link, Packet packet) {
+        if(packet.size() < 2) {
+            return;
+        }
+        String[] fields = new String[packet.size() - 2];
+        for(int i = 0; i < fields.length; i++) {
+            fields[i] = packet.get(i + 2);
+        }
+        Opcode opcode = Opcode.forCode(Integer.parseInt(packet.get(1)));
+        receivedBroadcasts.increment();
+        server.deliverRemoteBroadcast(packet.get(0), Packet.of(opcode, fields));
+    }
+
+    private void onPeerPrivate(PeerLink link, Packet packet) {
+        if(!server.deliverRemotePrivateMessage(packet.get(0), packet.get(1), packet.get(2), packet.get(3))) {
+            link.send(Packet.of(Opcode.PEER_ERROR_PRIVATE, packet.get(1), packet.get(2)));
+        }
+    }
+
+    private void onPeerErrorPrivate(PeerLink link, Packet packet) {
+        server.deliverRemotePrivateError(packet.get(0), packet.get(1));
+    }
+}
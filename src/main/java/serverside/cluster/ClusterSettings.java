@@ -0,0 +1,104 @@
+package serverside.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Настройки кластера. Кластер включен, если задан порт для соединений между узлами (chat.cluster.port)
+ */
+public class ClusterSettings {
+    private final String nodeId;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final String secret;
+    private final long reconnectMillis;
+    private final int queueCapacity;
+
+    private static final Logger LOGGER = LogManager.getLogger(ClusterSettings.class);
+
+    public ClusterSettings(String nodeId, int port, List<InetSocketAddress> peers, String secret,
+                           long reconnectMillis, int queueCapacity) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        this.secret = secret;
+        this.reconnectMillis = reconnectMillis;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param config настройки сервера
+     * @return настройки кластера или null, если кластер не включен
+     */
+    public static ClusterSettings from(ServerConfig config) {
+        int port = config.getInt("chat.cluster.port", 0);
+        if(port <= 0) {
+            return null;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for(String peer : config.getString("chat.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if(peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            try {
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (RuntimeException ex) {
+                LOGGER.error("Неверный адрес узла кластера " + peer + ", ожидается host:port");
+            }
+        }
+        return new ClusterSettings(config.getString("chat.cluster.nodeId", "node-" + config.getInt("chat.port", 8081)),
+                port, peers, config.getString("chat.cluster.secret", ""),
+                Math.max(100, config.getLong("chat.cluster.reconnectMillis", 1000)),
+                Math.max(1, config.getInt("chat.cluster.queueCapacity", 65536)));
+    }
+
+    /**
+     * @return имя узла, уникальное в кластере
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return порт для соединений от других узлов
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return адреса узлов, к которым этот узел подключается сам
+     */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return общий для узлов кластера пароль, который узел передает при подключении
+     */
+    public String getSecret() {
+        return secret;
+    }
+
+    /**
+     * @return пауза между попытками подключиться к недоступному узлу
+     */
+    public long getReconnectMillis() {
+        return reconnectMillis;
+    }
+
+    /**
+     * @return размер очереди сообщений, ожидающих отправки другому узлу
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+}
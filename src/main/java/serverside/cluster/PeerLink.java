@@ -0,0 +1,54 @@
+package serverside.cluster;
+
+import serverside.protocol.Packet;
+import serverside.service.StreamConnection;
+
+import java.io.IOException;
+
+/**
+ * Соединение с другим узлом кластера после обмена приветствиями
+ */
+final class PeerLink {
+    private final String nodeId;
+    private final String initiatorId;
+    private final StreamConnection connection;
+
+    /**
+     * @param nodeId имя узла на другой стороне
+     * @param initiatorId имя узла, который установил соединение; из двух соединений между одной парой узлов
+     *                    остается установленное узлом с меньшим именем
+     * @param connection соединение
+     */
+    PeerLink(String nodeId, String initiatorId, StreamConnection connection) {
+        this.nodeId = nodeId;
+        this.initiatorId = initiatorId;
+        this.connection = connection;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    String getInitiatorId() {
+        return initiatorId;
+    }
+
+    StreamConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Ставит пакет в очередь соединения; при ошибке соединение закрывается, и его поток чтения завершается
+     */
+    void send(Packet packet) {
+        try {
+            connection.send(packet);
+        } catch (IOException ex) {
+            connection.close();
+        }
+    }
+
+    void close() {
+        connection.close();
+    }
+}
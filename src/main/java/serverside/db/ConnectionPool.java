@@ -0,0 +1,235 @@
+package serverside.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.metrics.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный пул соединений с базой данных.
+ * Число выданных соединений ограничено семафором на maxSize разрешений: если свободных разрешений нет
+ * дольше acquireTimeoutMillis, выбрасывается SQLTransientConnectionException.
+ * Свободные соединения хранятся в стеке (последнее возвращенное выдается первым). Соединение,
+ * простоявшее дольше validateAfterIdleMillis, перед выдачей проверяется через Connection.isValid.
+ * Пул собирает метрики ожидания соединения и времени выполнения запросов
+ */
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validateAfterIdleNanos;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger totalCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireWaitNanos = new LongAdder();
+    private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private final AtomicLong maxQueryNanos = new AtomicLong();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+    private static final Logger LOGGER = LogManager.getLogger(ConnectionPool.class);
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long acquireTimeoutMillis, long validateAfterIdleMillis, int statementCacheSize) throws SQLException {
+        if(maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Неверные размеры пула соединений: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis);
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+        for(int i = 0; i < minSize; i++) {
+            idle.push(createConnection());
+        }
+        LOGGER.info("Пул соединений с базой данных создан: min=" + minSize + ", max=" + maxSize);
+    }
+
+    /**
+     * Выдает соединение из пула. Соединение нужно вернуть вызовом close (удобно через try-with-resources)
+     * @return соединение
+     * @throws SQLException, если пул закрыт, свободное соединение не появилось за acquireTimeoutMillis
+     *                       или не удалось открыть новое соединение
+     */
+    public PooledConnection acquire() throws SQLException {
+        if(closed) {
+            throw new SQLTransientConnectionException("Пул соединений закрыт");
+        }
+        long start = System.nanoTime();
+        try {
+            if(!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                acquireTimeouts.increment();
+                throw new SQLTransientConnectionException("Нет свободных соединений с базой данных в течение "
+                        + acquireTimeoutMillis + " мс");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Ожидание соединения с базой данных прервано");
+        }
+        long waited = System.nanoTime() - start;
+        acquireCount.increment();
+        acquireWaitNanos.add(waited);
+        maxAcquireWaitNanos.accumulateAndGet(waited, Math::max);
+        try {
+            PooledConnection connection;
+            while((connection = idle.poll()) != null) {
+                if(isUsable(connection)) {
+                    connection.lease();
+                    return connection;
+                }
+                discard(connection);
+            }
+            connection = createConnection();
+            connection.lease();
+            return connection;
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Возвращает соединение в пул. Незавершенная транзакция откатывается
+     * @param connection соединение
+     */
+    void release(PooledConnection connection) {
+        try {
+            Connection jdbc = connection.getConnection();
+            if(closed || jdbc.isClosed()) {
+                discard(connection);
+                return;
+            }
+            if(!jdbc.getAutoCommit()) {
+                jdbc.rollback();
+                jdbc.setAutoCommit(true);
+            }
+            connection.touch();
+            idle.push(connection);
+        } catch (SQLException ex) {
+            LOGGER.error("Соединение с базой данных не может быть возвращено в пул: " + ex.getMessage());
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+        LOGGER.info("Пул соединений с базой данных закрыт");
+    }
+
+    void recordQuery(long nanos) {
+        queryCount.increment();
+        queryNanos.add(nanos);
+        maxQueryNanos.accumulateAndGet(nanos, Math::max);
+        queryLatency.record(nanos);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getWaitingThreadsCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAcquireWaitNanos() {
+        return acquireWaitNanos.sum();
+    }
+
+    public long getMaxAcquireWaitNanos() {
+        return maxAcquireWaitNanos.get();
+    }
+
+    public long getAcquireTimeoutsCount() {
+        return acquireTimeouts.sum();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    public long getQueryNanos() {
+        return queryNanos.sum();
+    }
+
+    public long getMaxQueryNanos() {
+        return maxQueryNanos.get();
+    }
+
+    /**
+     * Распределение времени выполнения запросов через соединения пула
+     */
+    public LatencyHistogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        if(System.nanoTime() - connection.getLastUsedNanos() < validateAfterIdleNanos) {
+            return true;
+        }
+        try {
+            return connection.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        totalCount.incrementAndGet();
+        LOGGER.info("Соединение с базой данных установлено");
+        return new PooledConnection(this, connection, statementCacheSize);
+    }
+
+    private void discard(PooledConnection connection) {
+        connection.closePhysically();
+        totalCount.decrementAndGet();
+        LOGGER.info("Соединение с базой данных закрыто");
+    }
+}
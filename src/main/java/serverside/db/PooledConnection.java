@@ -0,0 +1,134 @@
+package serverside.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Соединение, выданное пулом.
+ * Хранит кеш подготовленных запросов: запрос готовится один раз на соединение и затем переиспользуется.
+ * Закрытие (close) возвращает соединение в пул, а не закрывает его.
+ * Соединение одновременно используется только одним потоком, поэтому кеш не синхронизирован
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statementCache;
+    private long lastUsedNanos;
+    private boolean leased;
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if(size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return соединение JDBC (для запросов, которые не нужно кешировать, например DDL)
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Возвращает подготовленный запрос из кеша соединения или готовит новый.
+     * Запрос нельзя закрывать: он принадлежит соединению и закрывается вместе с ним
+     * @param sql текст запроса
+     * @return подготовленный запрос с очищенными параметрами
+     * @throws SQLException, если запрос не удалось подготовить
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if(statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Выполняет запрос на чтение с учетом времени выполнения в метриках пула
+     */
+    public ResultSet executeQuery(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeQuery();
+        } finally {
+            pool.recordQuery(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Выполняет запрос на изменение с учетом времени выполнения в метриках пула
+     */
+    public int executeUpdate(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } finally {
+            pool.recordQuery(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Возвращает соединение в пул. Повторный вызов ничего не делает
+     */
+    @Override
+    public void close() {
+        if(leased) {
+            leased = false;
+            pool.release(this);
+        }
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    void lease() {
+        leased = true;
+        touch();
+    }
+
+    /**
+     * Закрывает кешированные запросы и само соединение JDBC
+     */
+    void closePhysically() {
+        for(PreparedStatement statement : statementCache.values()) {
+            closeQuietly(statement);
+        }
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package serverside.history;
+
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+
+/**
+ * Запись журнала сообщений: сообщение в общий чат или личное сообщение.
+ * Личное сообщение хранится как пакет PRIVATE_FROM (то, что получил адресат) вместе с логинами
+ * отправителя и адресата: по логинам выбираются записи для повтора, а отправителю при повторе
+ * пакет восстанавливается как PRIVATE_TO
+ */
+public final class LogEntry {
+    static final byte BROADCAST = 0;
+    static final byte PRIVATE = 1;
+
+    private final byte kind;
+    private final long timestamp;
+    private final Packet packet;
+    private final String senderLogin;
+    private final String recipientLogin;
+    private final String recipientNick;
+
+    private LogEntry(byte kind, long timestamp, Packet packet,
+                     String senderLogin, String recipientLogin, String recipientNick) {
+        this.kind = kind;
+        this.timestamp = timestamp;
+        this.packet = packet;
+        this.senderLogin = senderLogin;
+        this.recipientLogin = recipientLogin;
+        this.recipientNick = recipientNick;
+    }
+
+    /**
+     * @param packet сообщение, разосланное всем клиентам
+     * @return запись
+     */
+    public static LogEntry broadcast(Packet packet) {
+        return new LogEntry(BROADCAST, System.currentTimeMillis(), packet, null, null, null);
+    }
+
+    /**
+     * @param senderLogin логин отправителя
+     * @param recipientLogin логин адресата
+     * @param recipientNick ник адресата
+     * @param delivered пакет PRIVATE_FROM, доставленный адресату
+     * @return запись
+     */
+    public static LogEntry privateMessage(String senderLogin, String recipientLogin, String recipientNick,
+                                          Packet delivered) {
+        if(delivered.getOpcode() != Opcode.PRIVATE_FROM) {
+            throw new IllegalArgumentException("Личное сообщение должно быть пакетом PRIVATE_FROM: " + delivered);
+        }
+        return new LogEntry(PRIVATE, System.currentTimeMillis(), delivered, senderLogin, recipientLogin, recipientNick);
+    }
+
+    byte getKind() {
+        return kind;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    Packet getPacket() {
+        return packet;
+    }
+
+    String getSenderLogin() {
+        return senderLogin;
+    }
+
+    String getRecipientLogin() {
+        return recipientLogin;
+    }
+
+    String getRecipientNick() {
+        return recipientNick;
+    }
+}
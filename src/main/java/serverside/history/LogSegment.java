@@ -0,0 +1,355 @@
+package serverside.history;
+
+import serverside.protocol.BinaryCodec;
+import serverside.protocol.Frame;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Сегмент журнала сообщений: файл записей (.log) и файл индекса (.index), оба отображены в память.
+ * Имя файлов - номер первой записи сегмента (baseOffset).
+ * Запись в .log:
+ * <pre>
+ *   length      int  - длина данных записи
+ *   crc         int  - CRC32 данных записи
+ *   timestamp   long - время записи
+ *   kind        byte - LogEntry.BROADCAST или LogEntry.PRIVATE
+ *   [PRIVATE]   логин отправителя, логин адресата, ник адресата: unsigned short длина и строка в UTF-8
+ *   frame       кадр пакета в версии 2 протокола
+ * </pre>
+ * Индекс - позиции записей в .log по 4 байта, i-я позиция соответствует записи baseOffset + i.
+ * Активный сегмент заранее отображается на полный размер; при закрытии (seal) файлы обрезаются
+ * до фактического размера, поэтому у закрытого сегмента число записей - длина индекса / 4.
+ * После сбоя последний сегмент восстанавливается просмотром .log: записи проверяются по длине и CRC,
+ * все после первой поврежденной отбрасываются.
+ * Писать в сегмент может только поток записи журнала, читать - любые потоки: число записей публикуется
+ * через volatile после того, как запись и ее позиция в индексе уже в памяти
+ */
+final class LogSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INDEX_ENTRY_LENGTH = 4;
+
+    private final long baseOffset;
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+
+    private volatile int count;
+    private int position;                      // только для потока записи
+    private int forcedPosition;
+    private int forcedCount;
+    private long firstTimestamp;
+    private volatile long lastTimestamp;
+    private volatile boolean sealed;
+    private final CRC32 crc = new CRC32();     // только для потока записи
+
+    private LogSegment(long baseOffset, Path logPath, Path indexPath, FileChannel logChannel, FileChannel indexChannel,
+                       MappedByteBuffer log, MappedByteBuffer index, boolean sealed) {
+        this.baseOffset = baseOffset;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.logChannel = logChannel;
+        this.indexChannel = indexChannel;
+        this.log = log;
+        this.index = index;
+        this.sealed = sealed;
+    }
+
+    /**
+     * Открывает закрытый сегмент только для чтения
+     * @throws IOException, если файлы сегмента не читаются или индекс не соответствует записям
+     */
+    static LogSegment openSealed(Path dir, long baseOffset) throws IOException {
+        Path logPath = dir.resolve(fileName(baseOffset, LOG_SUFFIX));
+        Path indexPath = dir.resolve(fileName(baseOffset, INDEX_SUFFIX));
+        FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ);
+        FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ);
+        try {
+            LogSegment segment = new LogSegment(baseOffset, logPath, indexPath, logChannel, indexChannel,
+                    logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logChannel.size()),
+                    indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size()), true);
+            segment.count = (int) (indexChannel.size() / INDEX_ENTRY_LENGTH);
+            segment.position = (int) logChannel.size();
+            if(segment.count > 0) {
+                int last = segment.recordPosition(segment.count - 1);
+                if(last < 0 || last + RECORD_HEADER_LENGTH + 8 > segment.position) {
+                    throw new IOException("Индекс сегмента " + logPath + " не соответствует записям");
+                }
+                segment.firstTimestamp = segment.timestamp(0);
+                segment.lastTimestamp = segment.timestamp(segment.count - 1);
+            }
+            return segment;
+        } catch (IOException | RuntimeException ex) {
+            logChannel.close();
+            indexChannel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Открывает активный сегмент для записи, создавая его файлы или восстанавливая записи после сбоя
+     * @param capacity размер файла записей
+     * @param indexCapacity максимальное число записей
+     */
+    static LogSegment openActive(Path dir, long baseOffset, int capacity, int indexCapacity) throws IOException {
+        Path logPath = dir.resolve(fileName(baseOffset, LOG_SUFFIX));
+        Path indexPath = dir.resolve(fileName(baseOffset, INDEX_SUFFIX));
+        FileChannel logChannel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(indexPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            capacity = (int) Math.max(capacity, logChannel.size());
+            indexCapacity = (int) Math.max(indexCapacity, indexChannel.size() / INDEX_ENTRY_LENGTH);
+            LogSegment segment = new LogSegment(baseOffset, logPath, indexPath, logChannel, indexChannel,
+                    logChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity),
+                    indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) indexCapacity * INDEX_ENTRY_LENGTH),
+                    false);
+            segment.recover();
+            return segment;
+        } catch (IOException | RuntimeException ex) {
+            logChannel.close();
+            indexChannel.close();
+            throw ex;
+        }
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    /**
+     * Восстанавливает записи активного сегмента и заново строит его индекс
+     */
+    private void recover() {
+        int pos = 0;
+        int n = 0;
+        while(pos + RECORD_HEADER_LENGTH <= log.capacity() && (n + 1) * INDEX_ENTRY_LENGTH <= index.capacity()) {
+            int length = log.getInt(pos);
+            if(length <= 0 || length > log.capacity() - pos - RECORD_HEADER_LENGTH) {
+                break;
+            }
+            crc.reset();
+            crc.update(log.slice(pos + RECORD_HEADER_LENGTH, length));
+            if((int) crc.getValue() != log.getInt(pos + 4)) {
+                break;
+            }
+            index.putInt(n * INDEX_ENTRY_LENGTH, pos);
+            n++;
+            pos += RECORD_HEADER_LENGTH + length;
+        }
+        // хвост поврежденной записи затирается, чтобы при следующем восстановлении просмотр остановился здесь же
+        for(int i = pos; i < Math.min(pos + RECORD_HEADER_LENGTH, log.capacity()); i++) {
+            log.put(i, (byte) 0);
+        }
+        position = pos;
+        forcedPosition = pos;
+        forcedCount = n;
+        count = n;
+        if(n > 0) {
+            firstTimestamp = timestamp(0);
+            lastTimestamp = timestamp(n - 1);
+        }
+    }
+
+    /**
+     * Дописывает запись в сегмент
+     * @param entry запись
+     * @return false, если запись не помещается в сегмент
+     * @throws UTFDataFormatException, если логин или ник длиннее 65535 байт
+     */
+    boolean append(LogEntry entry) throws UTFDataFormatException {
+        Frame frame = entry.getPacket().frame(ProtocolVersion.V2);
+        byte[] senderLogin = null;
+        byte[] recipientLogin = null;
+        byte[] recipientNick = null;
+        int length = 8 + 1 + frame.length();
+        if(entry.getKind() == LogEntry.PRIVATE) {
+            senderLogin = utf8(entry.getSenderLogin());
+            recipientLogin = utf8(entry.getRecipientLogin());
+            recipientNick = utf8(entry.getRecipientNick());
+            length += 6 + senderLogin.length + recipientLogin.length + recipientNick.length;
+        }
+        if(sealed || count * INDEX_ENTRY_LENGTH + INDEX_ENTRY_LENGTH > index.capacity()
+                || length > log.capacity() - position - RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer out = log.duplicate();
+        out.position(position + RECORD_HEADER_LENGTH);
+        out.putLong(entry.getTimestamp());
+        out.put(entry.getKind());
+        if(entry.getKind() == LogEntry.PRIVATE) {
+            putString(out, senderLogin);
+            putString(out, recipientLogin);
+            putString(out, recipientNick);
+        }
+        out.put(frame.buffer());
+        crc.reset();
+        crc.update(log.slice(position + RECORD_HEADER_LENGTH, length));
+        log.putInt(position, length);
+        log.putInt(position + 4, (int) crc.getValue());
+        index.putInt(count * INDEX_ENTRY_LENGTH, position);
+        position += RECORD_HEADER_LENGTH + length;
+        if(count == 0) {
+            firstTimestamp = entry.getTimestamp();
+        }
+        lastTimestamp = entry.getTimestamp();
+        count++;
+        return true;
+    }
+
+    /**
+     * Сбрасывает на диск записи, добавленные после предыдущего вызова
+     * @return true, если было что сбрасывать
+     */
+    boolean force() {
+        if(sealed || forcedCount == count) {
+            return false;
+        }
+        log.force(forcedPosition, position - forcedPosition);
+        index.force(forcedCount * INDEX_ENTRY_LENGTH, (count - forcedCount) * INDEX_ENTRY_LENGTH);
+        forcedPosition = position;
+        forcedCount = count;
+        return true;
+    }
+
+    /**
+     * Закрывает сегмент для записи: сбрасывает записи на диск и обрезает файлы до фактического размера.
+     * Отображение в память остается, поэтому читатели продолжают работать с сегментом
+     * @throws IOException, если не удалось обрезать файлы
+     */
+    void seal() throws IOException {
+        force();
+        sealed = true;
+        logChannel.truncate(position);
+        indexChannel.truncate((long) count * INDEX_ENTRY_LENGTH);
+    }
+
+    void close() throws IOException {
+        if(!sealed) {
+            force();
+        }
+        logChannel.close();
+        indexChannel.close();
+    }
+
+    /**
+     * Закрывает и удаляет файлы сегмента. Читатели, уже получившие сегмент, дочитывают его из памяти
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return занятый записями размер сегмента в байтах
+     */
+    long getSize() {
+        return position;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    Path getLogPath() {
+        return logPath;
+    }
+
+    private int recordPosition(int i) {
+        return index.getInt(i * INDEX_ENTRY_LENGTH);
+    }
+
+    private long timestamp(int i) {
+        return log.getLong(recordPosition(i) + RECORD_HEADER_LENGTH);
+    }
+
+    /**
+     * Читает i-ю запись сегмента, если она предназначена пользователю с логином login:
+     * сообщения в общий чат предназначены всем, личные - отправителю и адресату.
+     * Оповещения (вход, выход, смена ника) рассылаются всем и хранятся в журнале, но не повторяются:
+     * их код проверяется по первому байту кадра, не декодируя запись.
+     * Пакет декодируется прямо из отображенного в память файла
+     * @param i номер записи в сегменте
+     * @param login логин пользователя
+     * @param maxFrameLength максимальная длина тела кадра
+     * @return пакет в том виде, в каком его получил пользователь, или null, если запись ему не предназначена
+     * @throws IOException, если запись повреждена
+     */
+    Packet read(int i, String login, int maxFrameLength) throws IOException {
+        ByteBuffer in = log.duplicate();
+        int start = recordPosition(i);
+        int end = start + RECORD_HEADER_LENGTH + in.getInt(start);
+        in.position(start + RECORD_HEADER_LENGTH + 8).limit(end);
+        byte kind = in.get();
+        if(kind == LogEntry.BROADCAST) {
+            Opcode opcode = Opcode.forCode(in.get(in.position()) & ~BinaryCodec.COMPRESSED);
+            return opcode == Opcode.MESSAGE ? BinaryCodec.decode(in, maxFrameLength) : null;
+        }
+        String senderLogin = getString(in);
+        String recipientLogin = getString(in);
+        String recipientNick = getString(in);
+        if(login.equals(recipientLogin)) {
+            return BinaryCodec.decode(in, maxFrameLength);
+        }
+        if(login.equals(senderLogin)) {
+            Packet delivered = BinaryCodec.decode(in, maxFrameLength);
+            return Packet.of(Opcode.PRIVATE_TO, recipientNick, delivered.get(1));
+        }
+        return null;
+    }
+
+    private static byte[] utf8(String s) throws UTFDataFormatException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xFFFF) {
+            throw new UTFDataFormatException("Строка длиннее 65535 байт");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
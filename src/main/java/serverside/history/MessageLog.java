@@ -0,0 +1,320 @@
+package serverside.history;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.protocol.Packet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Журнал сообщений сервера: сообщения в общий чат и личные сообщения дописываются в сегменты
+ * (см. LogSegment) и при входе повторяются клиенту.
+ * Рассылка не ждет диска: append только ставит запись в ограниченную очередь, а в сегменты ее пишет
+ * отдельный поток. Он забирает из очереди все накопившиеся записи и сбрасывает их на диск одним
+ * force() не чаще раза в fsyncIntervalMillis (групповая фиксация). При переполнении очереди записи
+ * выбрасываются и учитываются в счетчике, рассылка при этом не замедляется.
+ * Сегмент закрывается, когда заполнен или старше segmentMaxAgeMillis; закрытые сегменты удаляются,
+ * когда журнал превышает retentionBytes или сегмент старше retentionMillis.
+ * Список сегментов неизменяемый и заменяется целиком, поэтому читатели работают со снимком без блокировок
+ */
+public class MessageLog {
+    private static final int MAX_BATCH = 1024;
+    private static final long POLL_MILLIS = 100;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final int MAX_SCAN_RECORDS = 100_000;   // сколько записей просматривается при повторе
+    private static final int MIN_RECORD_LENGTH = 16;
+
+    private final MessageLogSettings settings;
+    private final int maxFrameLength;
+    private final BlockingQueue<LogEntry> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private volatile List<LogSegment> segments;   // от старых к новым, последний - активный
+    private LogSegment active;                    // только для потока записи
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+
+    private static final Logger LOGGER = LogManager.getLogger(MessageLog.class);
+
+    private MessageLog(MessageLogSettings settings, int maxFrameLength, List<LogSegment> segments) {
+        this.settings = settings;
+        this.maxFrameLength = maxFrameLength;
+        this.queue = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.segments = Collections.unmodifiableList(segments);
+        this.active = segments.get(segments.size() - 1);
+        this.writer = new Thread(this::runWriter, "message-log-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Открывает журнал: закрытые сегменты - только для чтения, последний - для записи
+     * (после сбоя его записи проверяются и поврежденный хвост отбрасывается), и запускает поток записи
+     * @param settings настройки журнала
+     * @param maxFrameLength максимальная длина тела кадра при чтении записей
+     * @return журнал
+     * @throws IOException, если каталог журнала недоступен или не удалось открыть активный сегмент
+     */
+    public static MessageLog open(MessageLogSettings settings, int maxFrameLength) throws IOException {
+        Path dir = settings.getDir();
+        Files.createDirectories(dir);
+        List<Long> offsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LogSegment.LOG_SUFFIX)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    offsets.add(Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    LOGGER.warn("Посторонний файл в каталоге журнала: " + file);
+                }
+            }
+        }
+        Collections.sort(offsets);
+        List<LogSegment> segments = new ArrayList<>();
+        for(int i = 0; i < offsets.size() - 1; i++) {
+            try {
+                segments.add(LogSegment.openSealed(dir, offsets.get(i)));
+            } catch (IOException ex) {
+                LOGGER.error("Сегмент журнала " + offsets.get(i) + " пропущен: " + ex.getMessage());
+            }
+        }
+        long lastOffset = offsets.isEmpty() ? 0 : offsets.get(offsets.size() - 1);
+        segments.add(LogSegment.openActive(dir, lastOffset, settings.getSegmentBytes(),
+                settings.getSegmentBytes() / MIN_RECORD_LENGTH));
+        MessageLog messageLog = new MessageLog(settings, maxFrameLength, segments);
+        LogSegment last = messageLog.active;
+        LOGGER.info("Журнал сообщений открыт: сегментов " + segments.size()
+                + ", записей " + (last.getBaseOffset() + last.getCount() - segments.get(0).getBaseOffset()));
+        messageLog.writer.start();
+        return messageLog;
+    }
+
+    /**
+     * Ставит запись в очередь потока записи, не блокируя вызывающий поток
+     * @param entry запись
+     */
+    public void append(LogEntry entry) {
+        if(!queue.offer(entry)) {
+            dropped.increment();
+            if(dropped.sum() % 1000 == 1) {
+                LOGGER.warn("Очередь журнала сообщений переполнена, выброшено записей: " + dropped.sum());
+            }
+        }
+    }
+
+    /**
+     * Возвращает последние сообщения, предназначенные пользователю: сообщения в общий чат и его личные сообщения
+     * (см. LogSegment.read).
+     * Записи читаются с конца журнала прямо из отображенных в память сегментов; просматривается
+     * не больше MAX_SCAN_RECORDS записей
+     * @param login логин пользователя
+     * @param limit сколько сообщений вернуть
+     * @return сообщения от старых к новым
+     */
+    public List<Packet> lastMessages(String login, int limit) {
+        List<Packet> result = new ArrayList<>(Math.min(limit, 1024));
+        List<LogSegment> snapshot = segments;
+        int scanned = 0;
+        for(int s = snapshot.size() - 1; s >= 0 && result.size() < limit && scanned < MAX_SCAN_RECORDS; s--) {
+            LogSegment segment = snapshot.get(s);
+            for(int i = segment.getCount() - 1; i >= 0 && result.size() < limit && scanned < MAX_SCAN_RECORDS; i--) {
+                scanned++;
+                try {
+                    Packet packet = segment.read(i, login, maxFrameLength);
+                    if(packet != null) {
+                        result.add(packet);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.warn("Поврежденная запись " + (segment.getBaseOffset() + i) + " журнала сообщений: "
+                            + ex.getMessage());
+                }
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Останавливает поток записи: записи, уже стоящие в очереди, дописываются и сбрасываются на диск
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public MessageLogSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return сколько записей дописано в сегменты
+     */
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    /**
+     * @return сколько записей выброшено из-за переполнения очереди или ошибок записи
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return сколько раз записи сбрасывались на диск
+     */
+    public long getFsyncCount() {
+        return fsyncs.sum();
+    }
+
+    /**
+     * @return сколько сегментов удалено по размеру или возрасту журнала
+     */
+    public long getDeletedSegmentCount() {
+        return deletedSegments.sum();
+    }
+
+    /**
+     * @return сколько записей ждут потока записи
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void runWriter() {
+        List<LogEntry> batch = new ArrayList<>(MAX_BATCH);
+        long lastForce = System.currentTimeMillis();
+        long lastRetentionCheck = lastForce;
+        while(running || !queue.isEmpty()) {
+            try {
+                LogEntry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for(LogEntry entry : batch) {
+                        write(entry);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if(now - lastForce >= settings.getFsyncIntervalMillis()) {
+                if(active.force()) {
+                    fsyncs.increment();
+                }
+                lastForce = now;
+            }
+            if(now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                applyRetention(now);
+                lastRetentionCheck = now;
+            }
+        }
+        try {
+            for(LogSegment segment : segments) {
+                segment.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка при закрытии журнала сообщений: " + ex.getMessage());
+        }
+        LOGGER.info("Журнал сообщений закрыт, записано " + appended.sum() + ", выброшено " + dropped.sum());
+    }
+
+    private void write(LogEntry entry) {
+        try {
+            if(active.getCount() > 0 && entry.getTimestamp() - active.getFirstTimestamp() >= settings.getSegmentMaxAgeMillis()) {
+                roll();
+            }
+            if(!active.append(entry)) {
+                if(active.getCount() == 0) {
+                    LOGGER.warn("Сообщение не помещается в сегмент журнала и не будет сохранено: " + entry.getPacket());
+                    dropped.increment();
+                    return;
+                }
+                roll();
+                if(!active.append(entry)) {
+                    LOGGER.warn("Сообщение не помещается в сегмент журнала и не будет сохранено: " + entry.getPacket());
+                    dropped.increment();
+                    return;
+                }
+            }
+            appended.increment();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Ошибка при записи в журнал сообщений: " + ex.getMessage());
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Закрывает активный сегмент и начинает новый
+     */
+    private void roll() throws IOException {
+        active.seal();
+        fsyncs.increment();
+        LogSegment next = LogSegment.openActive(settings.getDir(), active.getBaseOffset() + active.getCount(),
+                settings.getSegmentBytes(), settings.getSegmentBytes() / MIN_RECORD_LENGTH);
+        List<LogSegment> updated = new ArrayList<>(segments);
+        updated.add(next);
+        segments = Collections.unmodifiableList(updated);
+        active = next;
+        LOGGER.info("Начат сегмент журнала " + next.getLogPath());
+        applyRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Удаляет старые закрытые сегменты, пока журнал больше retentionBytes, и сегменты старше retentionMillis
+     */
+    private void applyRetention(long now) {
+        List<LogSegment> current = segments;
+        long total = 0;
+        for(LogSegment segment : current) {
+            total += segment.getSize();
+        }
+        int removed = 0;
+        for(LogSegment segment : current) {
+            if(!segment.isSealed()) {
+                break;
+            }
+            boolean tooBig = total > settings.getRetentionBytes();
+            boolean tooOld = now - segment.getLastTimestamp() > settings.getRetentionMillis();
+            if(!tooBig && !tooOld) {
+                break;
+            }
+            try {
+                segment.delete();
+            } catch (IOException ex) {
+                LOGGER.error("Не удалось удалить сегмент журнала " + segment.getLogPath() + ": " + ex.getMessage());
+                break;
+            }
+            total -= segment.getSize();
+            removed++;
+            deletedSegments.increment();
+            LOGGER.info("Удален сегмент журнала " + segment.getLogPath());
+        }
+        if(removed > 0) {
+            segments = Collections.unmodifiableList(new ArrayList<>(current.subList(removed, current.size())));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package serverside.history;
+
+import serverside.service.ServerConfig;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Настройки журнала сообщений сервера
+ */
+public class MessageLogSettings {
+    private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENT_BYTES = 1024 * 1024 * 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long segmentMaxAgeMillis;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long fsyncIntervalMillis;
+    private final int queueCapacity;
+    private final int replayCount;
+
+    public MessageLogSettings(Path dir, int segmentBytes, long segmentMaxAgeMillis, long retentionBytes,
+                              long retentionMillis, long fsyncIntervalMillis, int queueCapacity, int replayCount) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.segmentMaxAgeMillis = segmentMaxAgeMillis;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.queueCapacity = queueCapacity;
+        this.replayCount = replayCount;
+    }
+
+    public static MessageLogSettings from(ServerConfig config) {
+        return new MessageLogSettings(Paths.get(config.getString("chat.history.dir", "history")),
+                Math.min(MAX_SEGMENT_BYTES, Math.max(MIN_SEGMENT_BYTES,
+                        config.getInt("chat.history.segmentBytes", 64 * 1024 * 1024))),
+                TimeUnit.MINUTES.toMillis(Math.max(1, config.getLong("chat.history.segmentMaxAgeMinutes", 24 * 60))),
+                Math.max(MIN_SEGMENT_BYTES, config.getLong("chat.history.retentionBytes", 1024L * 1024 * 1024)),
+                TimeUnit.HOURS.toMillis(Math.max(1, config.getLong("chat.history.retentionHours", 7 * 24))),
+                Math.max(0, config.getLong("chat.history.fsyncIntervalMillis", 1000)),
+                Math.max(1, config.getInt("chat.history.queueCapacity", 65536)),
+                Math.max(0, config.getInt("chat.history.replayCount", 100)));
+    }
+
+    /**
+     * @return каталог сегментов журнала
+     */
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @return размер файла записей одного сегмента
+     */
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * @return через сколько после первой записи сегмент закрывается, даже если он не заполнен
+     */
+    public long getSegmentMaxAgeMillis() {
+        return segmentMaxAgeMillis;
+    }
+
+    /**
+     * @return сколько байт журнала хранится; старые закрытые сегменты сверх этого удаляются
+     */
+    public long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    /**
+     * @return сколько хранится закрытый сегмент после его последней записи
+     */
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    /**
+     * @return как часто записи сбрасываются на диск; 0 - после каждой пачки записей
+     */
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return сколько последних сообщений отправляется клиенту при входе
+     */
+    public int getReplayCount() {
+        return replayCount;
+    }
+}
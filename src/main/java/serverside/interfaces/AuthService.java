@@ -3,9 +3,20 @@ package serverside.interfaces;
 import serverside.model.User;
 
 import java.sql.*;
+import java.util.concurrent.CompletableFuture;
 
 public interface AuthService {
     void start();
     void stop();
     User getUserByLoginAndPassword(String login, String password) throws SQLException;
+
+    /**
+     * Асинхронный поиск пользователя по логину и паролю.
+     * Future завершается найденным пользователем, null - если пользователь не найден,
+     * SQLException - при ошибке базы данных или RejectedExecutionException - если сервис перегружен
+     * @param login логин
+     * @param password пароль
+     * @return future с результатом поиска
+     */
+    CompletableFuture<User> getUserByLoginAndPasswordAsync(String login, String password);
 }
@@ -0,0 +1,58 @@
+package serverside.interfaces;
+
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * Транспортное соединение с клиентом.
+ * Скрывает от ClientHandler способ доставки сообщений (блокирующий сокет или NIO) и версию протокола:
+ * согласование версии (сообщение "/proto", см. ProtocolVersion) выполняет само соединение
+ */
+public interface Connection {
+    /**
+     * Отправляет клиенту пакет в версии протокола, выбранной для этого соединения.
+     * Пакет неизменяемый и запоминает закодированные кадры, поэтому один и тот же пакет
+     * можно передать нескольким соединениям
+     * @param packet пакет
+     * @throws UTFDataFormatException, если пакет длиннее 65535 байт, а соединение работает в версии 1;
+     *                                 соединение при этом остается открытым
+     * @throws IOException, если соединение закрыто
+     */
+    void send(Packet packet) throws IOException;
+
+    /**
+     * @return версия протокола, согласованная для соединения (до согласования - версия 1)
+     */
+    ProtocolVersion getProtocolVersion();
+
+    /**
+     * @return сколько сообщений соединение выбросило, не доставив клиенту, при переполнении очереди
+     *         исходящих сообщений (см. SlowConsumerPolicy)
+     */
+    default long getDroppedCount() {
+        return 0;
+    }
+
+    /**
+     * Приостанавливает передачу входящих сообщений слушателю (и, если возможно, чтение из сокета),
+     * пока не будет вызван resumeReading. Используется, когда обработка сообщения продолжается асинхронно,
+     * чтобы следующие сообщения клиента не обогнали ее результат.
+     * По умолчанию ничего не делает: в блокирующем режиме сообщения читает сам поток обработчика
+     */
+    default void suspendReading() {
+    }
+
+    /**
+     * Возобновляет передачу входящих сообщений после suspendReading
+     */
+    default void resumeReading() {
+    }
+
+    /**
+     * Закрывает соединение
+     */
+    void close();
+}
@@ -0,0 +1,22 @@
+package serverside.interfaces;
+
+import serverside.protocol.Packet;
+
+/**
+ * Получатель событий от соединения с клиентом
+ */
+public interface ConnectionListener {
+    /**
+     * Вызывается неблокирующим соединением для каждого сообщения, полученного от клиента.
+     * Сообщения одного соединения передаются строго по очереди
+     * @param packet сообщение от клиента
+     */
+    void onMessage(Packet packet);
+
+    /**
+     * Вызывается, когда клиент разорвал соединение, произошла ошибка ввода-вывода или разбора сообщения
+     * или сервер отключил клиента (например, как не успевающего принимать сообщения)
+     * @param reason причина разрыва
+     */
+    void onDisconnect(DisconnectReason reason);
+}
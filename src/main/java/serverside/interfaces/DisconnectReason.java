@@ -0,0 +1,18 @@
+package serverside.interfaces;
+
+/**
+ * Причина разрыва соединения, о которой соединение сообщает слушателю (ConnectionListener.onDisconnect)
+ */
+public enum DisconnectReason {
+    NETWORK,          // клиент закрыл соединение или произошла ошибка ввода-вывода; сессию можно возобновить
+    SLOW_CONSUMER,    // сервер отключил клиента, не успевающего принимать сообщения
+    PROTOCOL_ERROR,   // от клиента пришли данные, которые не удалось разобрать
+    SERVER;           // соединение закрыл сервер: истекло время рукопожатия TLS или сервер останавливается
+
+    /**
+     * @return true, если сессия клиента может ждать возобновления на новом соединении
+     */
+    public boolean isResumable() {
+        return this == NETWORK;
+    }
+}
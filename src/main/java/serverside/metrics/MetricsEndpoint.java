@@ -0,0 +1,90 @@
+package serverside.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP-адрес /metrics, отдающий показатели сервера в текстовом формате Prometheus.
+ * Запросы обрабатывает один фоновый поток: scrape выполняется раз в несколько секунд
+ * и не должен отнимать потоки у клиентов чата
+ */
+public class MetricsEndpoint {
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+
+    private static final Logger LOGGER = LogManager.getLogger(MetricsEndpoint.class);
+
+    private MetricsEndpoint(HttpServer httpServer, ExecutorService executor) {
+        this.httpServer = httpServer;
+        this.executor = executor;
+    }
+
+    /**
+     * Открывает порт и начинает отвечать на запросы
+     * @param settings настройки (адрес и порт)
+     * @param registry реестр показателей
+     * @throws IOException, если порт занят
+     */
+    public static MetricsEndpoint start(MetricsSettings settings, MetricsRegistry registry) throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(settings.getHost(), settings.getPort()), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.createContext(PATH, exchange -> handle(exchange, registry));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        LOGGER.info("Показатели сервера доступны по адресу http://" + settings.getHost() + ":"
+                + httpServer.getAddress().getPort() + PATH);
+        return new MetricsEndpoint(httpServer, executor);
+    }
+
+    private static void handle(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.error("Ошибка при выдаче показателей: " + ex.getMessage());
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return порт, на котором открыт адрес
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+}
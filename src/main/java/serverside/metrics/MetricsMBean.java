@@ -0,0 +1,73 @@
+package serverside.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * MBean группы показателей. Набор атрибутов известен только после регистрации показателей,
+ * поэтому MBean динамический; все атрибуты только для чтения и вычисляются при запросе
+ */
+class MetricsMBean implements DynamicMBean {
+    private final Map<String, Supplier<Object>> attributes;
+    private final MBeanInfo info;
+
+    MetricsMBean(String group, Map<String, Supplier<Object>> attributes) {
+        this.attributes = attributes;
+        MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+        int i = 0;
+        for(Map.Entry<String, Supplier<Object>> entry : attributes.entrySet()) {
+            String type = entry.getValue().get() instanceof Double ? Double.class.getName() : Long.class.getName();
+            infos[i++] = new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false);
+        }
+        info = new MBeanInfo(MetricsMBean.class.getName(), "Показатели сервера: " + group,
+                infos, null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Supplier<Object> attribute = attributes.get(name);
+        if(attribute == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return attribute.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for(String name : names) {
+            Supplier<Object> attribute = attributes.get(name);
+            if(attribute != null) {
+                list.add(new Attribute(name, attribute.get()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Атрибут только для чтения: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
@@ -0,0 +1,328 @@
+package serverside.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.timer.HashedWheelTimer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Реестр показателей сервера. Показатели не хранятся в реестре: он читает их у владельцев
+ * (LongSupplier или LatencyHistogram) только при запросе, поэтому стоимость учета определяется
+ * самими счетчиками, а не реестром.
+ * Показатели разделены на группы (connections, messages, auth, db...). Имя показателя -
+ * chat_группа_имя, у счетчика может быть метка (например, причина отключения).
+ * Для счетчиков реестр раз в секунду вычисляет скорость в секунду.
+ * Показатели выдаются в текстовом формате Prometheus (scrape) и как атрибуты MBean
+ * serverside:type=Metrics,name=группа - по одному MBean на группу (registerMBeans)
+ */
+public class MetricsRegistry {
+    private static final long RATE_INTERVAL_MILLIS = 1000;
+    private static final String PREFIX = "chat_";
+    private static final String JMX_DOMAIN = "serverside";
+    private static final double[] QUANTILES = {50, 90, 99, 99.9};
+
+    private enum Kind { COUNTER, GAUGE, HISTOGRAM }
+
+    private static final class Metric {
+        final Kind kind;
+        final String group;
+        final String name;
+        final String label;          // null или метка в виде reason="auth_timeout"
+        final String help;
+        final LongSupplier value;
+        final LatencyHistogram histogram;
+        long lastValue;              // только для потока таймера
+        volatile double rate;
+
+        Metric(Kind kind, String group, String name, String label, String help, LongSupplier value,
+               LatencyHistogram histogram) {
+            this.kind = kind;
+            this.group = group;
+            this.name = name;
+            this.label = label;
+            this.help = help;
+            this.value = value;
+            this.histogram = histogram;
+        }
+
+        String family() {
+            return PREFIX + group + "_" + name;
+        }
+
+        /**
+         * @return имя атрибута MBean: имя показателя со значением метки перед окончанием _total
+         */
+        String attribute() {
+            if(label == null) {
+                return name;
+            }
+            String value = label.substring(label.indexOf('"') + 1, label.length() - 1);
+            if(name.endsWith("_total")) {
+                return name.substring(0, name.length() - "_total".length()) + "_" + value + "_total";
+            }
+            return name + "_" + value;
+        }
+    }
+
+    private final List<Metric> metrics = new ArrayList<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private volatile boolean running = true;
+    private long lastTickNanos;
+
+    private static final Logger LOGGER = LogManager.getLogger(MetricsRegistry.class);
+
+    /**
+     * Регистрирует счетчик - значение, которое только растет
+     * @param group группа
+     * @param name имя, по соглашению Prometheus оканчивается на _total
+     * @param help описание
+     * @param value источник значения
+     */
+    public synchronized void counter(String group, String name, String help, LongSupplier value) {
+        counter(group, name, null, help, value);
+    }
+
+    /**
+     * Регистрирует счетчик с меткой
+     * @param label метка в виде имя="значение"
+     */
+    public synchronized void counter(String group, String name, String label, String help, LongSupplier value) {
+        metrics.add(new Metric(Kind.COUNTER, group, name, label, help, value, null));
+    }
+
+    /**
+     * Регистрирует текущее значение (размер очереди, число соединений)
+     */
+    public synchronized void gauge(String group, String name, String help, LongSupplier value) {
+        metrics.add(new Metric(Kind.GAUGE, group, name, null, help, value, null));
+    }
+
+    /**
+     * Регистрирует гистограмму времени; имя по соглашению Prometheus оканчивается на _seconds
+     */
+    public synchronized void histogram(String group, String name, String help, LatencyHistogram histogram) {
+        metrics.add(new Metric(Kind.HISTOGRAM, group, name, null, help, null, histogram));
+    }
+
+    /**
+     * Запускает вычисление скорости счетчиков в общем таймере сервера
+     */
+    public void start(HashedWheelTimer timer) {
+        synchronized (this) {
+            lastTickNanos = System.nanoTime();
+            for(Metric metric : metrics) {
+                if(metric.kind == Kind.COUNTER) {
+                    metric.lastValue = metric.value.getAsLong();
+                }
+            }
+        }
+        scheduleTick(timer);
+    }
+
+    private void scheduleTick(HashedWheelTimer timer) {
+        timer.newTimeout(() -> {
+            if(!running) {
+                return;
+            }
+            updateRates();
+            scheduleTick(timer);
+        }, RATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void updateRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNanos) / 1e9;
+        lastTickNanos = now;
+        if(seconds <= 0) {
+            return;
+        }
+        for(Metric metric : metrics) {
+            if(metric.kind == Kind.COUNTER) {
+                long value = metric.value.getAsLong();
+                metric.rate = (value - metric.lastValue) / seconds;
+                metric.lastValue = value;
+            }
+        }
+    }
+
+    /**
+     * Регистрирует MBean для каждой группы показателей в MBeanServer платформы
+     */
+    public synchronized void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(String group : groups()) {
+            try {
+                ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + group);
+                if(server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(new MetricsMBean(group, attributes(group)), name);
+                registered.add(name);
+            } catch (JMException ex) {
+                LOGGER.error("Не удалось зарегистрировать MBean показателей " + group + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Останавливает вычисление скорости и снимает MBean
+     */
+    public synchronized void stop() {
+        running = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ignored) {
+
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * @return все показатели в текстовом формате Prometheus; у счетчиков дополнительно - скорость
+     * (показатель с окончанием _per_second вместо _total)
+     */
+    public synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        String family = null;
+        for(Metric metric : metrics) {
+            boolean header = !metric.family().equals(family);
+            family = metric.family();
+            switch (metric.kind) {
+                case COUNTER:
+                    if(header) {
+                        header(sb, family, metric.help, "counter");
+                    }
+                    sample(sb, family, metric.label, metric.value.getAsLong());
+                    break;
+                case GAUGE:
+                    header(sb, family, metric.help, "gauge");
+                    sample(sb, family, null, metric.value.getAsLong());
+                    break;
+                case HISTOGRAM:
+                    LatencyHistogram h = metric.histogram;
+                    header(sb, family, metric.help, "summary");
+                    for(double q : QUANTILES) {
+                        sample(sb, family, "quantile=\"" + format(q / 100) + "\"", seconds(h.getValueAtPercentile(q)));
+                    }
+                    sample(sb, family + "_sum", null, seconds(h.getSum()));
+                    sample(sb, family + "_count", null, h.getCount());
+                    header(sb, family + "_max", "Наибольшее значение " + family, "gauge");
+                    sample(sb, family + "_max", null, seconds(h.getMax()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        String rateFamily = null;
+        for(Metric metric : metrics) {
+            if(metric.kind != Kind.COUNTER) {
+                continue;
+            }
+            String name = rateName(metric.family());
+            if(!name.equals(rateFamily)) {
+                header(sb, name, "Скорость " + metric.family() + " в секунду", "gauge");
+                rateFamily = name;
+            }
+            sample(sb, name, metric.label, metric.rate);
+        }
+        return sb.toString();
+    }
+
+    private List<String> groups() {
+        List<String> groups = new ArrayList<>();
+        for(Metric metric : metrics) {
+            if(!groups.contains(metric.group)) {
+                groups.add(metric.group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Атрибуты MBean группы: значения счетчиков и их скорость, текущие значения,
+     * для гистограмм - число значений, процентили, максимум и среднее в миллисекундах
+     */
+    private Map<String, Supplier<Object>> attributes(String group) {
+        Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+        for(Metric metric : metrics) {
+            if(!metric.group.equals(group)) {
+                continue;
+            }
+            String name = metric.attribute();
+            switch (metric.kind) {
+                case COUNTER:
+                    attributes.put(name, () -> metric.value.getAsLong());
+                    attributes.put(rateName(name), () -> metric.rate);
+                    break;
+                case GAUGE:
+                    attributes.put(name, () -> metric.value.getAsLong());
+                    break;
+                case HISTOGRAM:
+                    LatencyHistogram h = metric.histogram;
+                    String base = name.endsWith("_seconds") ? name.substring(0, name.length() - "_seconds".length()) : name;
+                    attributes.put(base + "_count", () -> h.getCount());
+                    for(double q : QUANTILES) {
+                        attributes.put(base + "_p" + format(q).replace(".", "") + "_ms", () -> millis(h.getValueAtPercentile(q)));
+                    }
+                    attributes.put(base + "_max_ms", () -> millis(h.getMax()));
+                    attributes.put(base + "_mean_ms", () -> h.getMeanMillis());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return attributes;
+    }
+
+    private static String rateName(String name) {
+        return (name.endsWith("_total") ? name.substring(0, name.length() - "_total".length()) : name) + "_per_second";
+    }
+
+    private static void header(StringBuilder sb, String family, String help, String type) {
+        sb.append("# HELP ").append(family).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String family, String label, long value) {
+        sb.append(family);
+        if(label != null) {
+            sb.append('{').append(label).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String family, String label, double value) {
+        sb.append(family);
+        if(label != null) {
+            sb.append('{').append(label).append('}');
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value).replaceAll("\\.?0+(e|$)", "$1");
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,60 @@
+package serverside.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+/**
+ * Настройки выдачи показателей сервера
+ */
+public class MetricsSettings {
+    private final boolean jmxEnabled;
+    private final String host;
+    private final int port;
+
+    private static final Logger LOGGER = LogManager.getLogger(MetricsSettings.class);
+
+    public MetricsSettings(boolean jmxEnabled, String host, int port) {
+        this.jmxEnabled = jmxEnabled;
+        this.host = host;
+        this.port = port;
+    }
+
+    public static MetricsSettings from(ServerConfig config) {
+        int port = config.getInt("chat.metrics.port", 0);
+        if(port < 0 || port > 65535) {
+            LOGGER.error("Неверное значение chat.metrics.port: " + port + ", адрес /metrics не открывается");
+            port = 0;
+        }
+        return new MetricsSettings(config.getBoolean("chat.metrics.jmx", true),
+                config.getString("chat.metrics.host", "127.0.0.1"), port);
+    }
+
+    /**
+     * @return регистрировать ли MBean показателей
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * @return адрес, на котором открывается /metrics; по умолчанию только локальный
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return порт адреса /metrics; 0 - адрес не открывается
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return открывать ли адрес /metrics
+     */
+    public boolean isEndpointEnabled() {
+        return port > 0;
+    }
+}
@@ -0,0 +1,152 @@
+package serverside.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики сервера, у которых нет другого владельца: соединения, входящие сообщения, отключения
+ * по таймаутам и время рассылки сообщений в комнаты. Остальные показатели (очереди, база данных,
+ * аутентификация, журналы, кластер) считают сами компоненты, а MetricsRegistry только читает их.
+ * Запись - увеличение LongAdder, ее можно не отключать под полной нагрузкой
+ */
+public class ServerMetrics {
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder authenticated = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder authTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder suspended = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeFailures = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+
+    /**
+     * Новое соединение клиента
+     */
+    public void onAccepted() {
+        accepted.increment();
+        active.increment();
+    }
+
+    /**
+     * Соединение клиента закрыто
+     */
+    public void onClosed() {
+        active.decrement();
+    }
+
+    /**
+     * Клиент вошел в чат
+     */
+    public void onLoggedIn() {
+        authenticated.increment();
+    }
+
+    /**
+     * Клиент, вошедший в чат, вышел из него
+     */
+    public void onLoggedOut() {
+        authenticated.decrement();
+    }
+
+    /**
+     * Сообщение от клиента, вошедшего в чат
+     */
+    public void onMessageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Клиент отключен, так как не авторизовался вовремя
+     */
+    public void onAuthTimeout() {
+        authTimeouts.increment();
+    }
+
+    /**
+     * Клиент отключен за долгий простой
+     */
+    public void onIdleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    /**
+     * Соединение клиента разорвано, но сессия ждет возобновления
+     */
+    public void onSuspended() {
+        active.decrement();
+        suspended.increment();
+    }
+
+    /**
+     * Сессия возобновлена на новом соединении (само соединение уже учтено в onAccepted)
+     */
+    public void onResumed() {
+        suspended.decrement();
+        resumed.increment();
+    }
+
+    /**
+     * Клиент не смог возобновить сессию: токен неизвестен или пропущенных сообщений уже нет в журнале сессии
+     */
+    public void onResumeFailed() {
+        resumeFailures.increment();
+    }
+
+    /**
+     * Сессия, ждавшая возобновления, закрыта: время ожидания истекло или журнал сессии переполнился
+     */
+    public void onSuspendedClosed() {
+        suspended.decrement();
+        expired.increment();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getActiveCount() {
+        return active.sum();
+    }
+
+    public long getAuthenticatedCount() {
+        return authenticated.sum();
+    }
+
+    public long getMessagesInCount() {
+        return messagesIn.sum();
+    }
+
+    public long getAuthTimeoutCount() {
+        return authTimeouts.sum();
+    }
+
+    public long getIdleTimeoutCount() {
+        return idleTimeouts.sum();
+    }
+
+    public long getSuspendedCount() {
+        return suspended.sum();
+    }
+
+    public long getResumedCount() {
+        return resumed.sum();
+    }
+
+    public long getResumeFailureCount() {
+        return resumeFailures.sum();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return время от начала рассылки сообщения в комнату до постановки его в очереди всех получателей
+     * (в большой комнате - всех получателей одной полосы пула рассылки)
+     */
+    public LatencyHistogram getFanoutLatency() {
+        return fanoutLatency;
+    }
+}
@@ -5,7 +5,7 @@ import java.sql.SQLException;
 import java.util.Objects;
 
 public class User {
-    private String nick;
+    private volatile String nick;   // меняется по /chnick и читается потоками других клиентов
 
     public String getNick() {
         return nick;
@@ -0,0 +1,517 @@
+package serverside.nio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.interfaces.Connection;
+import serverside.interfaces.ConnectionListener;
+import serverside.interfaces.DisconnectReason;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.service.OutboundQueue;
+import serverside.service.OutboundQueueSettings;
+import serverside.tls.ServerTls;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Неблокирующее соединение с клиентом.
+ * Чтение и запись выполняются в потоке NioEventLoop, а разобранные сообщения передаются
+ * слушателю через общий пул обработчиков. Сообщения одного соединения обрабатываются строго по очереди,
+ * поэтому блокирующие операции слушателя (например, запросы в базу данных) не задерживают цикл событий.
+ * Исходящие кадры ставятся в ограниченную очередь, которую разбирает цикл событий;
+ * при ее переполнении применяется SlowConsumerPolicy. Цикл событий отправляет накопившиеся кадры
+ * одной записью нескольких буферов (GatheringByteChannel), см. OutboundQueueSettings.getFlushMaxBytes.
+ * На время асинхронной обработки сообщения (например, аутентификации) слушатель может приостановить
+ * чтение: канал снимается с OP_READ, и новые сообщения остаются в сокете, не обгоняя результат обработки.
+ * Так же чтение приостанавливается, когда разобранных, но не обработанных сообщений набирается
+ * INBOUND_HIGH_WATER, и возобновляется, когда их остается INBOUND_LOW_WATER: клиент, отправляющий
+ * быстрее, чем обрабатываются его сообщения, упирается в окно TCP, как при блокирующем чтении, а не в память сервера.
+ * Если первое сообщение клиента - "/proto", цикл событий сам отвечает на него и разбирает следующие кадры
+ * уже в выбранной версии протокола.
+ * Если на сервере включен TLS, данные канала проходят через TlsChannel: рукопожатие выполняется в цикле
+ * событий (его вычисления - в пуле обработчиков), кадры разбираются из расшифрованных данных, а исходящие
+ * кадры шифруются при записи. Соединение, не завершившее рукопожатие за TlsSettings.getHandshakeTimeoutMillis,
+ * закрывается
+ */
+public class NioConnection implements Connection {
+    private static final int INITIAL_READ_BUFFER_SIZE = 512;
+    private static final int INBOUND_HIGH_WATER = 64;
+    private static final int INBOUND_LOW_WATER = 16;
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final Executor handlerExecutor;
+    private final ProtocolSettings protocolSettings;
+    private volatile WireFormat format = WireFormat.V1;
+    private boolean handshakeDone;                 // только для цикла событий
+    private volatile ConnectionListener listener;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private final TlsChannel tlsChannel;            // null - без TLS
+    private final int tlsHandshakeTimeoutMillis;
+
+    private final OutboundQueue<ByteBuffer> writeQueue;
+    private final OutboundQueueSettings outboundQueueSettings;
+    // кадры, уже взятые из очереди для записи; частично записанный кадр остается здесь,
+    // поэтому политика DROP_OLDEST не может выбросить его из середины потока. Только для цикла событий
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // при flushMaxDelayMillis > 0: байт поставлено в очередь после последней записи; набрав flushMaxBytes,
+    // очередь записывается, не дожидаясь отложенной записи
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean earlyFlushScheduled = new AtomicBoolean();
+
+    private final Queue<Packet> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundCount = new AtomicInteger();
+    private final AtomicBoolean inboundScheduled = new AtomicBoolean();
+    private volatile boolean readingSuspended;
+    private volatile boolean inboundFull;          // изменяется только циклом событий
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean disconnectNotified = new AtomicBoolean();
+
+    private static final Logger LOGGER = LogManager.getLogger(NioConnection.class);
+
+    /**
+     * @param tls TLS сервера или null, если соединение без шифрования
+     * @throws SSLException, если не удалось начать рукопожатие TLS
+     */
+    public NioConnection(NioEventLoop eventLoop, SocketChannel channel, Executor handlerExecutor,
+                         OutboundQueueSettings outboundQueueSettings, ProtocolSettings protocolSettings,
+                         ServerTls tls) throws SSLException {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.handlerExecutor = handlerExecutor;
+        this.protocolSettings = protocolSettings;
+        this.writeQueue = new OutboundQueue<>(outboundQueueSettings);
+        this.outboundQueueSettings = outboundQueueSettings;
+        if(tls != null) {
+            InetSocketAddress peer = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.tlsChannel = new TlsChannel(tls.newEngine(peer), tls, this, channel, eventLoop, handlerExecutor);
+            this.tlsHandshakeTimeoutMillis = tls.getHandshakeTimeoutMillis();
+        } else {
+            this.tlsChannel = null;
+            this.tlsHandshakeTimeoutMillis = 0;
+        }
+    }
+
+    public void setListener(ConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+        if(closed.get()) {
+            closeChannel();
+            return;
+        }
+        if(tlsChannel != null) {
+            eventLoop.schedule(this::onTlsHandshakeTimeout, tlsHandshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return format.getVersion();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return writeQueue.getDroppedCount();
+    }
+
+    @Override
+    public void send(Packet packet) throws IOException {
+        if(closed.get()) {
+            throw new IOException("Соединение закрыто");
+        }
+        ByteBuffer frame = packet.frame(format).buffer();
+        int length = frame.remaining();
+        if(!writeQueue.offer(frame)) {
+            LOGGER.warn("Клиент не успевает принимать сообщения, выброшено сообщений: "
+                    + writeQueue.getDroppedCount() + ". Соединение будет разорвано");
+            writeQueue.onSlowConsumerDisconnect();
+            onClosed(DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        long delay = outboundQueueSettings.getFlushMaxDelayMillis();
+        if(delay > 0) {
+            if(pendingBytes.addAndGet(length) >= outboundQueueSettings.getFlushMaxBytes()
+                    && earlyFlushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::flush);
+            } else if(flushScheduled.compareAndSet(false, true)) {
+                eventLoop.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+            }
+        } else if(flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    @Override
+    public void close() {
+        if(closed.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flush();
+                closeChannel();
+            });
+        }
+    }
+
+    @Override
+    public void suspendReading() {
+        readingSuspended = true;
+        eventLoop.execute(() -> updateReadInterest(false));
+    }
+
+    @Override
+    public void resumeReading() {
+        readingSuspended = false;
+        eventLoop.execute(() -> updateReadInterest(isReadingAllowed()));
+        scheduleInbound();
+    }
+
+    /**
+     * @return true, если канал должен ждать OP_READ: слушатель не приостановил чтение,
+     * и очередь разобранных сообщений не переполнена
+     */
+    private boolean isReadingAllowed() {
+        return !readingSuspended && !inboundFull;
+    }
+
+    private void updateReadInterest(boolean enabled) {
+        if(key == null || !key.isValid()) {
+            return;
+        }
+        if(enabled) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Вызывается циклом событий, когда в канале есть данные для чтения
+     */
+    void onReadable() {
+        if(tlsChannel != null && tlsChannel.isTaskRunning()) {
+            // чтение возобновит onTlsTaskDone
+            updateReadInterest(false);
+            return;
+        }
+        int read;
+        try {
+            read = tlsChannel == null ? channel.read(readBuffer) : tlsChannel.read();
+        } catch (IOException ex) {
+            read = -1;
+        }
+        if(read < 0) {
+            onClosed(DisconnectReason.NETWORK);
+            return;
+        }
+        if(tlsChannel == null || processTls()) {
+            decodeInbound();
+        }
+    }
+
+    /**
+     * Разбирает кадры из буфера чтения и передает их слушателю
+     */
+    private void decodeInbound() {
+        readBuffer.flip();
+        int frameLength;
+        try {
+            while((frameLength = format.getVersion().frameLength(readBuffer, protocolSettings.getMaxFrameLength())) >= 0
+                    && readBuffer.remaining() >= frameLength) {
+                Packet packet = format.getVersion().decode(readBuffer, protocolSettings.getMaxFrameLength());
+                if(!handshakeDone) {
+                    handshakeDone = true;
+                    if(packet.getOpcode() == Opcode.PROTOCOL) {
+                        WireFormat negotiated = protocolSettings.negotiate(packet);
+                        send(negotiated.toReply());
+                        format = negotiated;
+                        continue;
+                    }
+                }
+                inbound.add(packet);
+                inboundCount.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка при разборе сообщения от клиента: " + ex.getMessage());
+            onClosed(DisconnectReason.PROTOCOL_ERROR);
+            return;
+        }
+        prepareReadBuffer(frameLength);
+        if(inboundCount.get() >= INBOUND_HIGH_WATER) {
+            inboundFull = true;
+            updateReadInterest(false);
+            // обработчик мог разобрать очередь, еще не увидев inboundFull
+            onInboundDrained();
+        }
+        scheduleInbound();
+    }
+
+    /**
+     * Вызывается циклом событий, когда в канал снова можно писать
+     */
+    void onWritable() {
+        if(tlsChannel != null && !tlsChannel.isHandshakeDone()) {
+            // канал принимает остаток ответа рукопожатия
+            try {
+                if(!tlsChannel.flushPending()) {
+                    return;
+                }
+            } catch (IOException ex) {
+                onClosed(DisconnectReason.NETWORK);
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if(processTls()) {
+                decodeInbound();
+            }
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Продвигает рукопожатие TLS и расшифровывает принятые записи в буфер чтения
+     * @return false - соединение закрыто
+     */
+    private boolean processTls() {
+        try {
+            if(!tlsChannel.process()) {
+                onClosed(DisconnectReason.NETWORK);
+                return false;
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка TLS в соединении с клиентом: " + ex.getMessage());
+            onClosed(DisconnectReason.PROTOCOL_ERROR);
+            return false;
+        }
+        if(tlsChannel.isTaskRunning()) {
+            updateReadInterest(false);
+        }
+        if(tlsChannel.hasPendingOutput()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        return true;
+    }
+
+    /**
+     * Принимает от TlsChannel расшифрованные данные клиента
+     * @param data данные, режим чтения
+     */
+    void appendInbound(ByteBuffer data) {
+        if(readBuffer.remaining() < data.remaining()) {
+            ByteBuffer buffer = ByteBuffer.allocate(readBuffer.position() + data.remaining());
+            readBuffer.flip();
+            buffer.put(readBuffer);
+            readBuffer = buffer;
+        }
+        readBuffer.put(data);
+    }
+
+    /**
+     * Вызывается в цикле событий, когда выполнены делегированные задачи рукопожатия TLS
+     */
+    void onTlsTaskDone() {
+        if(closed.get() || key == null || !key.isValid()) {
+            return;
+        }
+        if(!processTls()) {
+            return;
+        }
+        decodeInbound();
+        if(!tlsChannel.isTaskRunning()) {
+            updateReadInterest(isReadingAllowed());
+        }
+    }
+
+    /**
+     * Вызывается TlsChannel после завершения рукопожатия: кадры, накопившиеся за время рукопожатия,
+     * можно отправлять
+     */
+    void onTlsHandshakeDone() {
+        eventLoop.execute(this::flush);
+    }
+
+    private void onTlsHandshakeTimeout() {
+        if(!closed.get() && !tlsChannel.isHandshakeDone()) {
+            LOGGER.warn("Клиент не завершил рукопожатие TLS за " + tlsHandshakeTimeoutMillis + " мс");
+            tlsChannel.onHandshakeTimeout();
+            onClosed(DisconnectReason.SERVER);
+        }
+    }
+
+    /**
+     * Закрывает канал и сообщает слушателю о разрыве соединения
+     * @param reason причина разрыва
+     */
+    void onClosed(DisconnectReason reason) {
+        closed.set(true);
+        if(eventLoop.inEventLoop()) {
+            closeChannel();
+        } else {
+            eventLoop.execute(this::closeChannel);
+        }
+        if(disconnectNotified.compareAndSet(false, true)) {
+            handlerExecutor.execute(() -> {
+                ConnectionListener listener = this.listener;
+                if(listener != null) {
+                    listener.onDisconnect(reason);
+                }
+            });
+        }
+    }
+
+    /**
+     * Готовит буфер чтения к следующему чтению из канала.
+     * Буфер увеличивается, только если в него не помещается очередной кадр, и возвращается
+     * к исходному размеру, когда он пуст, чтобы простаивающие соединения занимали мало памяти
+     * @param frameLength длина очередного кадра или -1, если его заголовок еще не получен
+     */
+    private void prepareReadBuffer(int frameLength) {
+        if(!readBuffer.hasRemaining() && readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+            return;
+        }
+        if(readBuffer.capacity() < frameLength) {
+            ByteBuffer buffer = ByteBuffer.allocate(frameLength);
+            buffer.put(readBuffer);
+            readBuffer = buffer;
+            return;
+        }
+        readBuffer.compact();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        earlyFlushScheduled.set(false);
+        pendingBytes.set(0);
+        if(key == null || !key.isValid()) {
+            return;
+        }
+        ByteBuffer[] buffers = eventLoop.gatherBuffers();
+        int count = 0;
+        try {
+            if(tlsChannel != null) {
+                if(!tlsChannel.isHandshakeDone()) {
+                    return;     // кадры отправит onTlsHandshakeDone
+                }
+                if(!tlsChannel.flushPending()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            while(fillInFlight() > 0) {
+                count = 0;
+                for(ByteBuffer buffer : inFlight) {
+                    buffers[count++] = buffer;
+                }
+                if(tlsChannel == null) {
+                    channel.write(buffers, 0, count);
+                } else {
+                    tlsChannel.write(buffers, count);
+                }
+                int written = 0;
+                while(!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                    inFlight.poll();
+                    written++;
+                }
+                outboundQueueSettings.onWrite(written);
+                if(!inFlight.isEmpty() || tlsChannel != null && tlsChannel.hasPendingOutput()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка при отправке сообщения клиенту: " + ex.getMessage());
+            onClosed(DisconnectReason.NETWORK);
+        } finally {
+            Arrays.fill(buffers, 0, count, null);
+        }
+    }
+
+    /**
+     * Добирает кадры из очереди, пока их не станет MAX_GATHER_BUFFERS или flushMaxBytes байт
+     * @return число кадров, ожидающих записи
+     */
+    private int fillInFlight() {
+        long bytes = 0;
+        for(ByteBuffer buffer : inFlight) {
+            bytes += buffer.remaining();
+        }
+        ByteBuffer buffer;
+        while(inFlight.size() < NioEventLoop.MAX_GATHER_BUFFERS && bytes < outboundQueueSettings.getFlushMaxBytes()
+                && (buffer = writeQueue.poll()) != null) {
+            inFlight.add(buffer);
+            bytes += buffer.remaining();
+        }
+        return inFlight.size();
+    }
+
+    private void closeChannel() {
+        writeQueue.clear();
+        inFlight.clear();
+        if(key != null) {
+            key.cancel();
+        }
+        if(tlsChannel != null && channel.isOpen()) {
+            tlsChannel.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка при закрытии SocketChannel: " + ex.getMessage());
+        }
+    }
+
+    private void scheduleInbound() {
+        if(!readingSuspended && !inbound.isEmpty() && inboundScheduled.compareAndSet(false, true)) {
+            handlerExecutor.execute(this::drainInbound);
+        }
+    }
+
+    private void drainInbound() {
+        ConnectionListener listener = this.listener;
+        Packet packet;
+        while(!readingSuspended && (packet = inbound.poll()) != null) {
+            if(inboundCount.decrementAndGet() == INBOUND_LOW_WATER && inboundFull) {
+                eventLoop.execute(this::onInboundDrained);
+            }
+            if(listener != null && !closed.get()) {
+                listener.onMessage(packet);
+            }
+        }
+        inboundScheduled.set(false);
+        scheduleInbound();
+    }
+
+    /**
+     * Вызывается в цикле событий, когда очередь разобранных сообщений опустилась до INBOUND_LOW_WATER
+     */
+    private void onInboundDrained() {
+        if(inboundFull && inboundCount.get() <= INBOUND_LOW_WATER) {
+            inboundFull = false;
+            updateReadInterest(isReadingAllowed() && (tlsChannel == null || !tlsChannel.isTaskRunning()));
+        }
+    }
+}
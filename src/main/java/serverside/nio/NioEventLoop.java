@@ -0,0 +1,223 @@
+package serverside.nio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.interfaces.DisconnectReason;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Цикл обработки событий ввода-вывода для группы соединений.
+ * Каждый цикл владеет одним Selector и одним потоком. Все операции с SelectionKey и каналами
+ * выполняются только в этом потоке, другие потоки передают их через execute (или schedule - с задержкой)
+ */
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();   // только поток цикла
+    // общий для соединений цикла массив для записи нескольких буферов одним вызовом write
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    // общие для соединений цикла буферы TLS: расшифрованные данные и зашифрованные записи
+    private ByteBuffer tlsApplicationBuffer = ByteBuffer.allocate(0);
+    private ByteBuffer tlsPacketBuffer = ByteBuffer.allocate(0);
+    private volatile boolean running;
+
+    static final int MAX_GATHER_BUFFERS = 64;
+
+    private static final Logger LOGGER = LogManager.getLogger(NioEventLoop.class);
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Выполняет задачу в потоке цикла событий
+     * @param task задача
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Выполняет задачу в потоке цикла событий не раньше чем через delay
+     * @param task задача
+     * @param delay задержка
+     * @param unit единица измерения задержки
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(delay);
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, task)));
+    }
+
+    /**
+     * Массив для записи нескольких буферов одним вызовом write. Используется только в потоке цикла
+     * и только на время одной записи
+     */
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    /**
+     * Буфер для расшифровки одной записи TLS. Используется только в потоке цикла,
+     * данные из него нужно забрать до следующего вызова
+     * @param size необходимый размер
+     * @return пустой буфер не меньше size
+     */
+    ByteBuffer tlsApplicationBuffer(int size) {
+        if(tlsApplicationBuffer.capacity() < size) {
+            tlsApplicationBuffer = ByteBuffer.allocate(size);
+        }
+        tlsApplicationBuffer.clear();
+        return tlsApplicationBuffer;
+    }
+
+    /**
+     * Буфер для шифрования одной записи TLS. Используется только в потоке цикла,
+     * данные из него нужно записать или скопировать до следующего вызова
+     * @param size необходимый размер
+     * @return пустой буфер не меньше size
+     */
+    ByteBuffer tlsPacketBuffer(int size) {
+        if(tlsPacketBuffer.capacity() < size) {
+            tlsPacketBuffer = ByteBuffer.allocate(size);
+        }
+        tlsPacketBuffer.clear();
+        return tlsPacketBuffer;
+    }
+
+    /**
+     * Регистрирует соединение в цикле событий, после чего начинается чтение данных от клиента
+     * @param channel канал клиента
+     * @param connection соединение
+     */
+    public void register(SocketChannel channel, NioConnection connection) {
+        execute(() -> {
+            try {
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException ex) {
+                LOGGER.error("Ошибка при регистрации соединения: " + ex.getMessage());
+                connection.onClosed(DisconnectReason.SERVER);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            runTasks();
+            long timeoutMillis = runScheduledTasks();
+            try {
+                if(timeoutMillis < 0) {
+                    selector.select();
+                } else if(timeoutMillis == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeoutMillis);
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Ошибка в цикле обработки событий: " + ex.getMessage());
+                continue;
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while(iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                if(!key.isValid()) {
+                    continue;
+                }
+                if(key.isReadable()) {
+                    connection.onReadable();
+                }
+                if(key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            }
+        }
+        runTasks();
+        for(SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).onClosed(DisconnectReason.SERVER);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            LOGGER.error("Ошибка при закрытии Selector: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Выполняет задачи, время которых наступило
+     * @return через сколько миллисекунд наступит время следующей задачи, -1 - если задач нет
+     */
+    private long runScheduledTasks() {
+        ScheduledTask next;
+        while((next = scheduledTasks.peek()) != null) {
+            long remaining = next.deadline - System.nanoTime();
+            if(remaining > 0) {
+                // задачи, поставленные выполненными задачами, не должны ждать следующей
+                return tasks.isEmpty() ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)) : 0;
+            }
+            scheduledTasks.poll();
+            try {
+                next.task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Ошибка при выполнении задачи в цикле обработки событий: " + ex.getMessage());
+            }
+        }
+        return tasks.isEmpty() ? -1 : 0;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Ошибка при выполнении задачи в цикле обработки событий: " + ex.getMessage());
+            }
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
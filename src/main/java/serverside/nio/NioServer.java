@@ -0,0 +1,117 @@
+package serverside.nio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.AdmissionControl;
+import serverside.service.ClientHandler;
+import serverside.service.MyServer;
+import serverside.service.ServerConfig;
+import serverside.service.ThreadMode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неблокирующий транспорт сервера на основе Selector/SocketChannel.
+ * Вместо трех потоков на каждого клиента используется небольшое число циклов событий
+ * (по умолчанию по одному на ядро) и общий пул обработчиков сообщений.
+ * Если включен TLS, рукопожатие начинается только после AdmissionControl, в цикле событий соединения
+ */
+public class NioServer {
+    private final MyServer myServer;
+    private final int port;
+    private final NioEventLoop[] eventLoops;
+    private final ExecutorService handlerExecutor;
+    private int nextEventLoop;
+
+    private static final Logger LOGGER = LogManager.getLogger(NioServer.class);
+
+    /**
+     * @param myServer сервер
+     * @param config настройки сервера
+     * @param port порт сервера
+     * @param threadMode режим потоков обработчиков сообщений: в режиме VIRTUAL каждое соединение,
+     *                   которому есть что обработать, получает свой виртуальный поток вместо места в пуле
+     */
+    public NioServer(MyServer myServer, ServerConfig config, int port, ThreadMode threadMode) throws IOException {
+        this.myServer = myServer;
+        this.port = port;
+        int processors = Runtime.getRuntime().availableProcessors();
+        int eventLoopsCount = Math.max(1, config.getInt("chat.nio.eventLoops", processors));
+        int handlerThreads = Math.max(1, config.getInt("chat.nio.handlerThreads", Math.max(4, processors * 2)));
+        this.eventLoops = new NioEventLoop[eventLoopsCount];
+        for(int i = 0; i < eventLoopsCount; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+        }
+        if(threadMode == ThreadMode.VIRTUAL) {
+            this.handlerExecutor = threadMode.newExecutor("nio-handler-");
+        } else {
+            AtomicInteger handlerThreadNumber = new AtomicInteger();
+            this.handlerExecutor = Executors.newFixedThreadPool(handlerThreads,
+                    r -> new Thread(r, "nio-handler-" + handlerThreadNumber.getAndIncrement()));
+        }
+    }
+
+    /**
+     * Запускает циклы событий и принимает подключения в текущем потоке.
+     * Каждое новое соединение по кругу закрепляется за одним из циклов событий.
+     * Подключение, отклоненное AdmissionControl, закрывается до создания NioConnection и ClientHandler
+     * @throws IOException, если не удалось открыть серверный канал или принять подключение
+     */
+    public void run() throws IOException {
+        AdmissionControl admissionControl = myServer.getAdmissionControl();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), admissionControl.getSettings().getAcceptBacklog());
+            for(NioEventLoop eventLoop : eventLoops) {
+                eventLoop.start();
+            }
+            LOGGER.info("Сервер запущен в неблокирующем режиме, циклов событий: " + eventLoops.length);
+            while(true) {
+                SocketChannel channel = serverChannel.accept();
+                if(!admissionControl.admit(channel.socket().getInetAddress())) {
+                    reject(channel);
+                    continue;
+                }
+                LOGGER.info("Клиент подключился");
+                NioEventLoop eventLoop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                NioConnection connection;
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    connection = new NioConnection(eventLoop, channel, handlerExecutor,
+                            myServer.getOutboundQueueSettings(), myServer.getProtocolSettings(), myServer.getTls());
+                } catch (IOException ex) {
+                    LOGGER.error("Ошибка при настройке соединения: " + ex.getMessage());
+                    channel.close();
+                    continue;
+                }
+                connection.setListener(new ClientHandler(myServer, connection));
+                eventLoop.register(channel, connection);
+            }
+        } finally {
+            for(NioEventLoop eventLoop : eventLoops) {
+                eventLoop.stop();
+            }
+            handlerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Закрывает отклоненное соединение сбросом (RST): сокет не остается в TIME_WAIT на стороне сервера
+     */
+    private static void reject(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            channel.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package serverside.nio;
+
+import serverside.tls.ServerTls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * TLS поверх неблокирующего канала NioConnection (SSLEngine).
+ * Все методы вызываются только в потоке цикла событий, кроме делегированных задач SSLEngine -
+ * вычислений рукопожатия (подписи, обмен ключами), которые выполняются в пуле обработчиков,
+ * чтобы полные рукопожатия при волне переподключений не останавливали цикл событий для остальных соединений.
+ * Расшифровка и шифрование идут через общие для цикла буферы (см. NioEventLoop.tlsApplicationBuffer
+ * и tlsPacketBuffer), а у соединения остаются только небольшой буфер принятых записей и, если канал
+ * не принял все сразу, зашифрованные данные, ожидающие записи. Данные клиента начинают отправляться
+ * только после завершения рукопожатия
+ */
+final class TlsChannel {
+    private static final int INITIAL_NET_BUFFER_SIZE = 1024;
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SSLEngine engine;
+    private final ServerTls tls;
+    private final NioConnection connection;
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final Executor taskExecutor;
+    private final long handshakeStart = System.nanoTime();
+
+    private ByteBuffer netIn = ByteBuffer.allocate(INITIAL_NET_BUFFER_SIZE);   // принятые записи, режим записи
+    private ByteBuffer netOut;              // зашифрованные данные, не принятые каналом, режим чтения; null - нет
+    private boolean taskRunning;
+    private boolean handshakeDone;
+    private boolean handshakeFailed;
+
+    TlsChannel(SSLEngine engine, ServerTls tls, NioConnection connection, SocketChannel channel,
+               NioEventLoop eventLoop, Executor taskExecutor) throws SSLException {
+        this.engine = engine;
+        this.tls = tls;
+        this.connection = connection;
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.taskExecutor = taskExecutor;
+        engine.beginHandshake();
+    }
+
+    /**
+     * Читает из канала зашифрованные данные
+     * @return число прочитанных байт, -1 - канал закрыт клиентом
+     */
+    int read() throws IOException {
+        if(!netIn.hasRemaining()) {
+            netIn = grow(netIn, Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+        }
+        return channel.read(netIn);
+    }
+
+    /**
+     * Продвигает рукопожатие и расшифровывает принятые записи, передавая данные клиента
+     * в NioConnection.appendInbound. Останавливается, когда записи кончились, канал не принимает
+     * ответ рукопожатия или запущены делегированные задачи
+     * @return false - клиент закрыл TLS (close_notify), соединение нужно закрыть
+     * @throws IOException, если данные клиента повреждены или рукопожатие не удалось
+     */
+    boolean process() throws IOException {
+        netIn.flip();
+        int applicationBufferSize = engine.getSession().getApplicationBufferSize();
+        try {
+            while(!taskRunning) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if(status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    return true;
+                }
+                if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if(!wrap(EMPTY, 1)) {
+                        return true;
+                    }
+                    continue;
+                }
+                ByteBuffer app = eventLoop.tlsApplicationBuffer(applicationBufferSize);
+                SSLEngineResult result = engine.unwrap(netIn, app);
+                app.flip();
+                if(app.hasRemaining()) {
+                    connection.appendInbound(app);
+                }
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        return false;
+                    case BUFFER_UNDERFLOW:
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        applicationBufferSize = app.capacity() * 2;
+                        continue;
+                    default:
+                        onProgress(result.getHandshakeStatus());
+                }
+            }
+            return true;
+        } catch (SSLException ex) {
+            onFailure();
+            throw ex;
+        } finally {
+            netIn.compact();
+            if(netIn.position() == 0 && netIn.capacity() > INITIAL_NET_BUFFER_SIZE) {
+                netIn = ByteBuffer.allocate(INITIAL_NET_BUFFER_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Шифрует данные клиента и пишет их в канал, пока данные не кончатся или канал не перестанет их принимать.
+     * Полностью зашифрованные буферы остаются пустыми, даже если часть записи еще ждет в netOut
+     * @param buffers буферы с данными
+     * @param count число буферов
+     */
+    void write(ByteBuffer[] buffers, int count) throws IOException {
+        try {
+            while(netOut == null && buffers[count - 1].hasRemaining()) {
+                if(!wrap(buffers, count)) {
+                    return;
+                }
+            }
+        } catch (SSLException ex) {
+            onFailure();
+            throw ex;
+        }
+    }
+
+    /**
+     * Шифрует одну запись из буферов и пишет ее в канал
+     * @return false - канал не принял запись целиком (остаток в netOut) или запущены делегированные задачи
+     */
+    private boolean wrap(ByteBuffer[] buffers, int count) throws IOException {
+        ByteBuffer net = eventLoop.tlsPacketBuffer(engine.getSession().getPacketBufferSize());
+        SSLEngineResult result = engine.wrap(buffers, 0, count, net);
+        net.flip();
+        boolean written = writeNet(net);
+        if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("Соединение TLS закрыто");
+        }
+        if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("Запись TLS не помещается в буфер " + net.capacity() + " байт");
+        }
+        if(result.getStatus() == SSLEngineResult.Status.OK) {
+            onProgress(result.getHandshakeStatus());
+        }
+        return written && !taskRunning;
+    }
+
+    private boolean writeNet(ByteBuffer net) throws IOException {
+        if(netOut == null) {
+            channel.write(net);
+            if(!net.hasRemaining()) {
+                return true;
+            }
+            netOut = ByteBuffer.allocate(net.remaining());
+        } else {
+            netOut = grow(netOut.compact(), netOut.position() + net.remaining());
+        }
+        netOut.put(net);
+        netOut.flip();
+        return false;
+    }
+
+    /**
+     * Дописывает в канал зашифрованные данные, которые он не принял раньше
+     * @return true - в канале больше нечего дописывать
+     */
+    boolean flushPending() throws IOException {
+        if(netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if(netOut.hasRemaining()) {
+            return false;
+        }
+        netOut = null;
+        return true;
+    }
+
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    /**
+     * @return выполняются ли делегированные задачи; до их завершения данные из канала не читаются
+     */
+    boolean isTaskRunning() {
+        return taskRunning;
+    }
+
+    /**
+     * Отмечает незавершенное вовремя рукопожатие
+     */
+    void onHandshakeTimeout() {
+        onFailure();
+    }
+
+    /**
+     * Отправляет клиенту close_notify, если канал его примет сразу
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            if(flushPending()) {
+                ByteBuffer net = eventLoop.tlsPacketBuffer(engine.getSession().getPacketBufferSize());
+                engine.wrap(EMPTY, net);
+                net.flip();
+                channel.write(net);
+            }
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    private void onProgress(SSLEngineResult.HandshakeStatus status) {
+        if(!handshakeDone && (status == SSLEngineResult.HandshakeStatus.FINISHED
+                || status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+            handshakeDone = true;
+            tls.onHandshakeCompleted(engine.getSession(), handshakeStart);
+            connection.onTlsHandshakeDone();
+        }
+    }
+
+    private void onFailure() {
+        if(!handshakeDone && !handshakeFailed) {
+            handshakeFailed = true;
+            tls.onHandshakeFailed();
+        }
+    }
+
+    /**
+     * Выполняет делегированные задачи SSLEngine в пуле обработчиков и продолжает работу в цикле событий
+     */
+    private void runDelegatedTasks() throws SSLException {
+        taskRunning = true;
+        try {
+            taskExecutor.execute(() -> {
+                try {
+                    Runnable task;
+                    while((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    // ошибка задачи SSLEngine сообщит при следующем wrap или unwrap
+                    eventLoop.execute(() -> {
+                        taskRunning = false;
+                        connection.onTlsTaskDone();
+                    });
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            taskRunning = false;
+            throw new SSLException("Пул обработчиков не принимает задачи рукопожатия");
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        if(buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
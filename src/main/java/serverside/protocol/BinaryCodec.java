@@ -0,0 +1,291 @@
+package serverside.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кадры версии 2 протокола:
+ * <pre>
+ *   opcode      1 байт, см. Opcode.getCode()
+ *   length      varint - длина тела кадра
+ *   body        поля подряд: varint длина поля и поле в UTF-8
+ * </pre>
+ * varint - беззнаковое число по 7 бит в байте, младшие биты первыми, старший бит байта - признак продолжения.
+ * Число полей определяется длиной тела. Длина кадра ограничена только настройкой maxFrameLength,
+ * поэтому сообщения могут быть длиннее 64 КБ.
+ * Старший бит opcode (COMPRESSED) означает, что тело сжато deflate (см. Compression), а length - длина
+ * сжатого тела. Сжатые кадры отправляются только после согласования сжатия (см. WireFormat),
+ * принимаются всегда
+ */
+public final class BinaryCodec {
+    /**
+     * Признак сжатого тела в байте opcode
+     */
+    public static final int COMPRESSED = 0x80;
+
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Кодирует пакет в кадр. Кадр собирается в одном массиве без промежуточных копий полей
+     * @param packet пакет
+     * @return заголовок и тело кадра
+     */
+    public static byte[] encode(Packet packet) {
+        int bodyLength = 0;
+        for(int i = 0; i < packet.size(); i++) {
+            int fieldLength = utf8Length(packet.get(i));
+            bodyLength += varintLength(fieldLength) + fieldLength;
+        }
+        byte[] bytes = new byte[1 + varintLength(bodyLength) + bodyLength];
+        bytes[0] = (byte) packet.getOpcode().getCode();
+        int pos = writeVarint(bytes, 1, bodyLength);
+        for(int i = 0; i < packet.size(); i++) {
+            String field = packet.get(i);
+            pos = writeVarint(bytes, pos, utf8Length(field));
+            pos = writeUtf8(bytes, pos, field);
+        }
+        return bytes;
+    }
+
+    /**
+     * Сжимает тело закодированного кадра, если оно не короче threshold и сжатие уменьшает кадр
+     * @param frame кадр, см. encode
+     * @param threshold минимальная длина тела, которое имеет смысл сжимать
+     * @return сжатый кадр или исходный массив
+     */
+    public static byte[] compress(byte[] frame, int threshold) {
+        int bodyOffset = 1;
+        while((frame[bodyOffset++] & 0x80) != 0) {
+            // пропускаем varint длины тела
+        }
+        int bodyLength = frame.length - bodyOffset;
+        if(bodyLength < Math.max(threshold, 2)) {
+            return frame;
+        }
+        // сжатый кадр должен быть хотя бы на 1 байт короче исходного вместе с заголовком
+        byte[] compressed = new byte[bodyLength - 1];
+        int compressedLength = Compression.deflate(frame, bodyOffset, bodyLength, compressed);
+        if(compressedLength < 0 || 1 + varintLength(compressedLength) + compressedLength >= frame.length) {
+            return frame;
+        }
+        byte[] bytes = new byte[1 + varintLength(compressedLength) + compressedLength];
+        bytes[0] = (byte) (frame[0] | COMPRESSED);
+        int pos = writeVarint(bytes, 1, compressedLength);
+        System.arraycopy(compressed, 0, bytes, pos, compressedLength);
+        return bytes;
+    }
+
+    /**
+     * Определяет длину кадра, начинающегося с текущей позиции буфера, не сдвигая позицию
+     * @param buffer буфер с данными
+     * @param maxFrameLength максимальная длина тела кадра
+     * @return длина кадра вместе с заголовком или -1, если заголовок еще не получен целиком
+     * @throws ProtocolException, если кадр длиннее maxFrameLength или заголовок поврежден
+     */
+    public static int frameLength(ByteBuffer buffer, int maxFrameLength) throws ProtocolException {
+        int pos = buffer.position() + 1;
+        int value = 0;
+        for(int shift = 0, i = 0; i < MAX_VARINT_LENGTH; i++, shift += 7) {
+            if(pos >= buffer.limit()) {
+                return -1;
+            }
+            int b = buffer.get(pos++);
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                checkBodyLength(value, maxFrameLength);
+                return pos - buffer.position() + value;
+            }
+        }
+        throw new ProtocolException("Неверная длина кадра");
+    }
+
+    /**
+     * Декодирует кадр, начинающийся с текущей позиции буфера. Кадр должен быть получен целиком
+     * (см. frameLength), после вызова позиция буфера указывает на следующий кадр
+     * @param buffer буфер с данными
+     * @param maxFrameLength максимальная длина распакованного тела сжатого кадра
+     * @return пакет
+     * @throws ProtocolException, если тело кадра повреждено
+     */
+    public static Packet decode(ByteBuffer buffer, int maxFrameLength) throws ProtocolException {
+        int code = buffer.get() & 0xFF;
+        int bodyLength = readVarint(buffer);
+        if(buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + bodyLength);
+            return decodeBody(code, buffer.array(), offset, bodyLength, maxFrameLength);
+        }
+        byte[] body = new byte[bodyLength];
+        buffer.get(body);
+        return decodeBody(code, body, 0, bodyLength, maxFrameLength);
+    }
+
+    /**
+     * Читает кадр из потока
+     * @param in поток
+     * @param maxFrameLength максимальная длина тела кадра
+     * @return пакет
+     * @throws IOException, если соединение разорвано или кадр поврежден
+     */
+    public static Packet read(DataInputStream in, int maxFrameLength) throws IOException {
+        int code = in.readUnsignedByte();
+        int bodyLength = 0;
+        for(int shift = 0, i = 0; ; i++, shift += 7) {
+            if(i == MAX_VARINT_LENGTH) {
+                throw new ProtocolException("Неверная длина кадра");
+            }
+            int b = in.readUnsignedByte();
+            bodyLength |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                break;
+            }
+        }
+        checkBodyLength(bodyLength, maxFrameLength);
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        return decodeBody(code, body, 0, bodyLength, maxFrameLength);
+    }
+
+    private static Packet decodeBody(int code, byte[] bytes, int offset, int length, int maxFrameLength)
+            throws ProtocolException {
+        Opcode opcode = Opcode.forCode(code & ~COMPRESSED);
+        if((code & COMPRESSED) != 0) {
+            bytes = Compression.inflate(bytes, offset, length, maxFrameLength);
+            offset = 0;
+            length = bytes.length;
+        }
+        int end = offset + length;
+        int count = 0;
+        for(int pos = offset; pos < end; count++) {
+            long header = readVarint(bytes, pos, end);
+            int start = (int) (header >>> 32);
+            if((int) header > end - start) {
+                throw new ProtocolException("Поле выходит за границу кадра");
+            }
+            pos = start + (int) header;
+        }
+        String[] fields = new String[count];
+        for(int i = 0, pos = offset; i < count; i++) {
+            long header = readVarint(bytes, pos, end);
+            int start = (int) (header >>> 32);
+            int fieldLength = (int) header;
+            fields[i] = new String(bytes, start, fieldLength, StandardCharsets.UTF_8);
+            pos = start + fieldLength;
+        }
+        return Packet.decoded(opcode, fields);
+    }
+
+    private static void checkBodyLength(int bodyLength, int maxFrameLength) throws ProtocolException {
+        if(bodyLength < 0 || bodyLength > maxFrameLength) {
+            throw new ProtocolException("Длина кадра превышает " + maxFrameLength + " байт: " + (bodyLength & 0xFFFFFFFFL));
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for(int shift = 0, i = 0; i < MAX_VARINT_LENGTH; i++, shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Неверная длина кадра");
+    }
+
+    /**
+     * Читает varint из массива
+     * @return позиция сразу после varint в старших 32 битах и значение в младших
+     */
+    private static long readVarint(byte[] bytes, int pos, int end) throws ProtocolException {
+        int value = 0;
+        for(int shift = 0, i = 0; i < MAX_VARINT_LENGTH && pos < end; i++, shift += 7) {
+            int b = bytes[pos++];
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                if(value < 0) {
+                    break;
+                }
+                return ((long) pos << 32) | value;
+            }
+        }
+        throw new ProtocolException("Неверная длина поля");
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVarint(byte[] bytes, int pos, int value) {
+        while((value & ~0x7F) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Длина строки в UTF-8. Непарный суррогат кодируется как '?', так же как в String.getBytes
+     */
+    private static int utf8Length(String s) {
+        int length = s.length();
+        int utfLength = 0;
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                utfLength++;
+            } else if(c < 0x800) {
+                utfLength += 2;
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    utfLength += 4;
+                    i++;
+                } else {
+                    utfLength++;
+                }
+            } else {
+                utfLength += 3;
+            }
+        }
+        return utfLength;
+    }
+
+    private static int writeUtf8(byte[] bytes, int pos, String s) {
+        int length = s.length();
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if(c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    bytes[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    bytes[pos++] = (byte) '?';
+                }
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
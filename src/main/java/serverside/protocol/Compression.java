@@ -0,0 +1,114 @@
+package serverside.protocol;
+
+import java.net.ProtocolException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие тел кадров версии 2 (deflate без заголовка zlib).
+ * Каждый кадр сжимается независимо от предыдущих: так сжатый кадр рассылки можно закодировать один раз
+ * и отправить всем получателям, а не сжимать заново в контексте каждого соединения.
+ * Deflater и Inflater держат память вне кучи, поэтому они не создаются на каждый кадр
+ * и не закрепляются за соединениями, а берутся из общего пула и сбрасываются после использования
+ */
+final class Compression {
+    private static final int MAX_POOLED = 64;
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    /**
+     * Сжимает данные
+     * @param src массив с данными
+     * @param offset начало данных
+     * @param length длина данных
+     * @param dest массив для сжатых данных
+     * @return длина сжатых данных или -1, если сжатые данные не помещаются в dest (сжатие не выгодно)
+     */
+    static int deflate(byte[] src, int offset, int length, byte[] dest) {
+        Deflater deflater = DEFLATERS.poll();
+        if(deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            int size = 0;
+            while(!deflater.finished()) {
+                if(size == dest.length) {
+                    return -1;
+                }
+                size += deflater.deflate(dest, size, dest.length - size);
+            }
+            return size;
+        } finally {
+            deflater.reset();
+            release(DEFLATERS, deflater);
+        }
+    }
+
+    /**
+     * Распаковывает данные
+     * @param src массив со сжатыми данными
+     * @param offset начало сжатых данных
+     * @param length длина сжатых данных
+     * @param maxLength максимальная длина распакованных данных
+     * @return распакованные данные
+     * @throws ProtocolException, если данные повреждены или распакованные данные длиннее maxLength
+     */
+    static byte[] inflate(byte[] src, int offset, int length, int maxLength) throws ProtocolException {
+        Inflater inflater = INFLATERS.poll();
+        if(inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(src, offset, length);
+            byte[] result = new byte[Math.min(maxLength, Math.max(64, length * 4))];
+            int size = 0;
+            while(!inflater.finished()) {
+                if(size == result.length) {
+                    if(result.length >= maxLength) {
+                        throw new ProtocolException("Длина распакованного кадра превышает " + maxLength + " байт");
+                    }
+                    byte[] grown = new byte[(int) Math.min(maxLength, result.length * 2L)];
+                    System.arraycopy(result, 0, grown, 0, size);
+                    result = grown;
+                }
+                int inflated = inflater.inflate(result, size, result.length - size);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Сжатый кадр поврежден");
+                }
+                size += inflated;
+            }
+            if(size == result.length) {
+                return result;
+            }
+            byte[] exact = new byte[size];
+            System.arraycopy(result, 0, exact, 0, size);
+            return exact;
+        } catch (DataFormatException ex) {
+            throw new ProtocolException("Сжатый кадр поврежден: " + ex.getMessage());
+        } finally {
+            inflater.reset();
+            release(INFLATERS, inflater);
+        }
+    }
+
+    private static <T> void release(Queue<T> pool, T item) {
+        // размер пула проверяется приблизительно: лишний экземпляр не страшен, неограниченный рост - да
+        if(pool.size() < MAX_POOLED) {
+            pool.add(item);
+        } else if(item instanceof Deflater) {
+            ((Deflater) item).end();
+        } else {
+            ((Inflater) item).end();
+        }
+    }
+}
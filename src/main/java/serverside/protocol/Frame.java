@@ -0,0 +1,98 @@
+package serverside.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Готовый к отправке неизменяемый кадр.
+ * В версии 1 протокола это два байта длины и сообщение в модифицированной UTF-8,
+ * то есть ровно то, что записал бы DataOutputStream.writeUTF, в версии 2 - кадр BinaryCodec.
+ * Кадр кодируется один раз и передается всем получателям рассылки: каждый получатель
+ * пишет одни и те же байты, не кодируя строку заново и не копируя массив
+ */
+public final class Frame {
+    private final Object content;    // исходное сообщение или пакет, только для журнала
+    private final byte[] bytes;
+
+    private Frame(Object content, byte[] bytes) {
+        this.content = content;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Кодирует сообщение в кадр
+     * @param message сообщение
+     * @return кадр
+     * @throws UTFDataFormatException, если закодированное сообщение длиннее 65535 байт
+     */
+    public static Frame of(String message) throws UTFDataFormatException {
+        return new Frame(message, FrameCodec.encode(message));
+    }
+
+    /**
+     * Оборачивает уже закодированный кадр
+     * @param content исходный пакет (для журнала)
+     * @param bytes заголовок и тело кадра
+     * @return кадр
+     */
+    static Frame wrap(Object content, byte[] bytes) {
+        return new Frame(content, bytes);
+    }
+
+    /**
+     * @return исходное сообщение (для журнала)
+     */
+    public String getMessage() {
+        return content.toString();
+    }
+
+    /**
+     * @return длина кадра в байтах вместе с заголовком
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return массив кадра без копирования; изменять его нельзя
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Возвращает представление кадра только для чтения с собственной позицией,
+     * чтобы каждое соединение могло дописывать кадр частями независимо от других
+     * @return буфер только для чтения
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Записывает кадр в поток одним вызовом write
+     * @param out поток
+     * @throws IOException, если возникли неполадки во время записи
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Копирует кадр в массив (для объединения нескольких кадров в одну запись)
+     * @param dest массив
+     * @param offset позиция в массиве
+     * @return позиция сразу после кадра
+     */
+    public int copyTo(byte[] dest, int offset) {
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
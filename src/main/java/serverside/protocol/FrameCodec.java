@@ -0,0 +1,106 @@
+package serverside.protocol;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодирование и декодирование кадров в формате DataOutputStream.writeUTF / DataInputStream.readUTF:
+ * два байта длины (big-endian) и строка в модифицированной кодировке UTF-8
+ */
+public final class FrameCodec {
+    public static final int HEADER_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 65535;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Кодирует сообщение в массив байт кадра
+     * @param message сообщение
+     * @return заголовок и тело кадра
+     * @throws UTFDataFormatException, если закодированное сообщение длиннее 65535 байт
+     */
+    public static byte[] encode(String message) throws UTFDataFormatException {
+        int length = message.length();
+        int utfLength = 0;
+        for(int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) {
+                utfLength++;
+            } else if(c > 0x07FF) {
+                utfLength += 3;
+            } else {
+                utfLength += 2;
+            }
+        }
+        if(utfLength > MAX_PAYLOAD_LENGTH) {
+            throw new UTFDataFormatException("Длина сообщения превышает " + MAX_PAYLOAD_LENGTH + " байт: " + utfLength);
+        }
+        byte[] bytes = new byte[HEADER_LENGTH + utfLength];
+        bytes[0] = (byte) (utfLength >>> 8);
+        bytes[1] = (byte) utfLength;
+        int pos = HEADER_LENGTH;
+        for(int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if(c > 0x07FF) {
+                bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Декодирует тело кадра, начиная с текущей позиции буфера.
+     * После вызова позиция буфера сдвигается на length байт
+     * @param buffer буфер с данными
+     * @param length длина тела кадра
+     * @return сообщение
+     * @throws UTFDataFormatException, если данные не являются корректной модифицированной UTF-8 строкой
+     */
+    public static String decode(ByteBuffer buffer, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while(buffer.position() < end) {
+            int c = buffer.get() & 0xFF;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[count++] = (char) c;
+                    break;
+                case 12: case 13: {
+                    if(buffer.position() + 1 > end) {
+                        throw new UTFDataFormatException("Неполный символ в конце кадра");
+                    }
+                    int c2 = buffer.get();
+                    if((c2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("Неверный байт в кадре около позиции " + buffer.position());
+                    }
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                    break;
+                }
+                case 14: {
+                    if(buffer.position() + 2 > end) {
+                        throw new UTFDataFormatException("Неполный символ в конце кадра");
+                    }
+                    int c2 = buffer.get();
+                    int c3 = buffer.get();
+                    if((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("Неверный байт в кадре около позиции " + buffer.position());
+                    }
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    break;
+                }
+                default:
+                    throw new UTFDataFormatException("Неверный байт в кадре около позиции " + buffer.position());
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,126 @@
+package serverside.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Коды сообщений протокола.
+ * В версии 2 код передается первым байтом кадра, в версии 1 (текстовой) сообщению соответствует
+ * команда в начале строки. Сообщения без команды (TEXT, MESSAGE, PRIVATE_FROM, PRIVATE_TO)
+ * в текстовом протоколе передаются обычным текстом, см. TextCodec
+ */
+public enum Opcode {
+    // неизвестная команда или код; такие сообщения пропускаются
+    UNKNOWN(0x00, null, 0),
+
+    // от клиента
+    TEXT(0x01, null, 1),                          // сообщение в комнату (от сервера - текст без команды)
+    AUTH(0x02, "/auth", 2),                       // login password
+    PRIVATE(0x03, "/w", 2),                       // nick message
+    LIST(0x04, "/list", Opcode.VARIABLE),         // [epoch version] - без версии ответ /clients, с версией - /roster
+                                                  // или /rosterdelta и подписка на изменения списка
+    CHANGE_NICK(0x05, "/chnick", 1),              // nick
+    END(0x06, "/end", 0),
+    PROTOCOL(0x07, "/proto", Opcode.VARIABLE),    // максимальная версия протокола клиента [deflate]
+    JOIN(0x08, "/join", 1),                       // room - перейти в комнату (создается при первом входе)
+    LEAVE(0x09, "/leave", 0),                     // вернуться в общую комнату
+    ROOMS(0x0A, "/rooms", 0),
+    RESUME(0x0B, "/resume", 2),                   // token received - возобновить сессию после разрыва соединения
+
+    // от сервера
+    PROTOCOL_OK(0x40, "/protook", Opcode.VARIABLE), // выбранная версия протокола [deflate]
+    AUTH_OK(0x41, "/authok", 2),                  // nick login
+    MESSAGE(0x42, null, 2),                       // nick message - сообщение в комнату
+    PRIVATE_FROM(0x43, null, 2),                  // nick message - входящее личное сообщение
+    PRIVATE_TO(0x44, null, 2),                    // nick message - копия отправленного личного сообщения
+    CLIENTS(0x45, "/clients", Opcode.VARIABLE),   // ники онлайн клиентов
+    CHANGE_NICK_OK(0x46, "/chnickok", 1),         // nick
+    NOTIFY(0x47, "/notify", 1),
+    ERROR_PRIVATE(0x48, "/errorSPM", 1),
+    ERROR_CHANGE_NICK(0x49, "/errchnick", 1),
+    ERROR_DB(0x4A, "/errdbcon", 1),
+    TIMEOUT_AUTH(0x4B, "/timeoutauth", 0),
+    TIMEOUT_ACTIVITY(0x4C, "/timeoutactivity", 0),
+    HISTORY(0x4D, "/history", 1),                 // число следующих за ним сообщений из журнала сервера
+    JOIN_OK(0x4E, "/joinok", 1),                  // room - комната, в которой теперь клиент
+    ROOM_LIST(0x4F, "/roomlist", Opcode.VARIABLE), // пары room count - комнаты и число участников
+    ERROR_ROOM(0x50, "/errroom", 1),
+    ROSTER(0x51, "/roster", Opcode.VARIABLE),     // epoch version ники... - весь список пользователей
+    ROSTER_DELTA(0x52, "/rosterdelta", Opcode.VARIABLE), // epoch from to изменения... (+ nick, - nick, ~ old new)
+    RESUME_TOKEN(0x53, "/resumetoken", 1),        // token - сразу после /authok, сессию можно возобновить
+    RESUME_OK(0x54, "/resumeok", 3),              // nick login token - сессия возобновлена, token - новый
+    ERROR_RESUME(0x55, "/errresume", 1),
+
+    // между узлами кластера, только в версии 2 (см. serverside.cluster.Cluster)
+    PEER_HELLO(0x60, "/peerhello", 2),            // nodeId secret
+    PEER_JOIN(0x61, "/peerjoin", 3),              // nick login loginTime - пользователь вошел в чат на узле
+    PEER_LEAVE(0x62, "/peerleave", 1),            // nick - пользователь вышел из чата
+    PEER_BROADCAST(0x63, "/peerbroadcast", Opcode.VARIABLE), // room code поля... - сообщение в комнату
+    PEER_PRIVATE(0x64, "/peerprivate", 4),        // senderLogin senderNick recipientNick message
+    PEER_ERROR_PRIVATE(0x65, "/peererrprivate", 2); // senderNick recipientNick - получателя нет на узле
+
+    /**
+     * Число полей не фиксировано
+     */
+    public static final int VARIABLE = -1;
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final Map<String, Opcode> BY_COMMAND = new HashMap<>();
+
+    static {
+        for(Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            if(opcode.command != null) {
+                BY_COMMAND.put(opcode.command, opcode);
+            }
+        }
+    }
+
+    private final int code;
+    private final String command;
+    private final int fieldCount;
+
+    Opcode(int code, String command, int fieldCount) {
+        this.code = code;
+        this.command = command;
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * @return код сообщения в протоколе версии 2
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return команда текстового протокола или null, если сообщение передается обычным текстом
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return число полей сообщения или VARIABLE
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param code код сообщения
+     * @return сообщение с этим кодом или UNKNOWN
+     */
+    public static Opcode forCode(int code) {
+        Opcode opcode = BY_CODE[code & 0xFF];
+        return opcode == null ? UNKNOWN : opcode;
+    }
+
+    /**
+     * @param command команда текстового протокола вместе с "/"
+     * @return сообщение с этой командой или UNKNOWN
+     */
+    public static Opcode forCommand(String command) {
+        return BY_COMMAND.getOrDefault(command, UNKNOWN);
+    }
+}
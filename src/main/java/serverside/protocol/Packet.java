@@ -0,0 +1,144 @@
+package serverside.protocol;
+
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+
+/**
+ * Неизменяемое сообщение протокола: код и строковые поля.
+ * Пакет не зависит от версии протокола. Кадр для конкретной версии кодируется при первой отправке
+ * и запоминается, поэтому при рассылке пакет кодируется (и сжимается) не больше одного раза на каждый
+ * формат кадров, сколько бы клиентов его ни получали
+ */
+public final class Packet {
+    private static final String[] NO_FIELDS = new String[0];
+
+    private final Opcode opcode;
+    private final String[] fields;
+    private final boolean complete;
+
+    // гонка при заполнении безопасна: Frame неизменяемый, в худшем случае пакет закодируется дважды
+    private Frame textFrame;
+    private Frame binaryFrame;
+    private Frame compressedFrame;
+
+    private Packet(Opcode opcode, String[] fields) {
+        this(opcode, fields, true);
+    }
+
+    private Packet(Opcode opcode, String[] fields, boolean complete) {
+        this.opcode = opcode;
+        this.fields = fields;
+        this.complete = complete;
+    }
+
+    /**
+     * Создает пакет
+     * @param opcode код сообщения
+     * @param fields поля сообщения
+     * @return пакет
+     * @throws IllegalArgumentException, если число полей не соответствует коду сообщения
+     */
+    public static Packet of(Opcode opcode, String... fields) {
+        if(opcode.getFieldCount() != Opcode.VARIABLE && opcode.getFieldCount() != fields.length) {
+            throw new IllegalArgumentException("Сообщение " + opcode + " должно содержать полей: "
+                    + opcode.getFieldCount() + ", передано: " + fields.length);
+        }
+        return new Packet(opcode, fields.length == 0 ? NO_FIELDS : fields);
+    }
+
+    /**
+     * Создает пакет из полученных полей, проверяя их число
+     * @throws ProtocolException, если полей меньше, чем требует код сообщения
+     */
+    static Packet decoded(Opcode opcode, String[] fields) throws ProtocolException {
+        if(opcode.getFieldCount() != Opcode.VARIABLE && fields.length < opcode.getFieldCount()) {
+            throw new ProtocolException("Сообщение " + opcode + " должно содержать полей: "
+                    + opcode.getFieldCount() + ", получено: " + fields.length);
+        }
+        return new Packet(opcode, fields.length == 0 ? NO_FIELDS : fields);
+    }
+
+    /**
+     * Создает пакет команды, в которой не хватает аргументов (см. TextCodec.decode)
+     */
+    static Packet incomplete(Opcode opcode, String[] fields) {
+        return new Packet(opcode, fields.length == 0 ? NO_FIELDS : fields, false);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @param index номер поля
+     * @return значение поля
+     */
+    public String get(int index) {
+        return fields[index];
+    }
+
+    /**
+     * @return число полей
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * @return false - в команде не хватает аргументов: полей меньше, чем требует код сообщения,
+     * и обрабатывать ее нельзя, можно только ответить ошибкой
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Возвращает кадр пакета для указанной версии протокола, кодируя его при первом обращении
+     * @param version версия протокола
+     * @return кадр
+     * @throws UTFDataFormatException, если пакет не помещается в кадр версии 1 (больше 65535 байт)
+     */
+    public Frame frame(ProtocolVersion version) throws UTFDataFormatException {
+        if(version == ProtocolVersion.V1) {
+            Frame frame = textFrame;
+            if(frame == null) {
+                frame = textFrame = Frame.of(TextCodec.format(this));
+            }
+            return frame;
+        }
+        Frame frame = binaryFrame;
+        if(frame == null) {
+            frame = binaryFrame = Frame.wrap(this, BinaryCodec.encode(this));
+        }
+        return frame;
+    }
+
+    /**
+     * Возвращает кадр пакета для согласованного формата, кодируя и сжимая его при первом обращении.
+     * Сжатый кадр запоминается один раз, поэтому порог сжатия должен быть одинаковым у всех соединений,
+     * через которые отправляется пакет (он задается настройками сервера)
+     * @param format формат кадров соединения
+     * @return кадр
+     * @throws UTFDataFormatException, если пакет не помещается в кадр версии 1 (больше 65535 байт)
+     */
+    public Frame frame(WireFormat format) throws UTFDataFormatException {
+        if(!format.isCompressed()) {
+            return frame(format.getVersion());
+        }
+        Frame frame = compressedFrame;
+        if(frame == null) {
+            Frame plain = frame(ProtocolVersion.V2);
+            byte[] bytes = BinaryCodec.compress(plain.array(), format.getCompressionThreshold());
+            frame = compressedFrame = bytes == plain.array() ? plain : Frame.wrap(this, bytes);
+        }
+        return frame;
+    }
+
+    /**
+     * @return пакет в виде строки текстового протокола (для журнала)
+     */
+    @Override
+    public String toString() {
+        return TextCodec.format(this);
+    }
+}
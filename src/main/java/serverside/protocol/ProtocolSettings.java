@@ -0,0 +1,72 @@
+package serverside.protocol;
+
+/**
+ * Настройки протокола сервера: максимальная поддерживаемая версия, максимальная длина кадра версии 2
+ * и сжатие кадров
+ */
+public final class ProtocolSettings {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    private final ProtocolVersion maxVersion;
+    private final int maxFrameLength;
+    private final boolean compressionEnabled;
+    private final int compressionThreshold;
+
+    public ProtocolSettings(ProtocolVersion maxVersion, int maxFrameLength) {
+        this(maxVersion, maxFrameLength, true, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    public ProtocolSettings(ProtocolVersion maxVersion, int maxFrameLength,
+                            boolean compressionEnabled, int compressionThreshold) {
+        if(maxFrameLength < FrameCodec.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Максимальная длина кадра не может быть меньше "
+                    + FrameCodec.MAX_PAYLOAD_LENGTH + " байт: " + maxFrameLength);
+        }
+        if(compressionThreshold < 1) {
+            throw new IllegalArgumentException("Порог сжатия должен быть положительным: " + compressionThreshold);
+        }
+        this.maxVersion = maxVersion;
+        this.maxFrameLength = maxFrameLength;
+        this.compressionEnabled = compressionEnabled;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public ProtocolVersion getMaxVersion() {
+        return maxVersion;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Выбирает формат кадров по сообщению "/proto N [deflate]" от клиента:
+     * наибольшую версию, которую поддерживают и клиент, и сервер, и сжатие, если его просил клиент,
+     * оно разрешено на сервере и выбрана версия 2
+     * @param handshake пакет Opcode.PROTOCOL
+     * @return выбранный формат
+     */
+    public WireFormat negotiate(Packet handshake) {
+        int requested = handshake.size() == 0 ? -1 : WireFormat.parseNumber(handshake.get(0));
+        ProtocolVersion result = ProtocolVersion.V1;
+        for(ProtocolVersion version : ProtocolVersion.values()) {
+            if(version.getNumber() <= requested && version.getNumber() <= maxVersion.getNumber()) {
+                result = version;
+            }
+        }
+        if(result == ProtocolVersion.V1) {
+            return WireFormat.V1;
+        }
+        boolean compressed = compressionEnabled && WireFormat.hasOption(handshake, WireFormat.DEFLATE);
+        return new WireFormat(result, compressed, compressionThreshold);
+    }
+}
@@ -0,0 +1,109 @@
+package serverside.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Версии протокола.
+ * V1 - строки в формате DataOutputStream.writeUTF (сообщения до 64 КБ), команды разбирает TextCodec.
+ * V2 - двоичные кадры с кодом сообщения и типизированными полями, см. BinaryCodec.
+ * Соединение всегда начинается в версии 1. Клиент, поддерживающий версию 2, первым сообщением
+ * отправляет "/proto 2", сервер отвечает "/protook N" с выбранной версией, и после ответа обе стороны
+ * переходят на нее. Старые клиенты такого сообщения не отправляют и продолжают работать в версии 1.
+ * Вместе с версией клиент может попросить сжатие ("/proto 2 deflate"), см. WireFormat
+ */
+public enum ProtocolVersion {
+    V1(1) {
+        @Override
+        public int frameLength(ByteBuffer buffer, int maxFrameLength) {
+            if(buffer.remaining() < FrameCodec.HEADER_LENGTH) {
+                return -1;
+            }
+            return FrameCodec.HEADER_LENGTH + (buffer.getShort(buffer.position()) & 0xFFFF);
+        }
+
+        @Override
+        public Packet decode(ByteBuffer buffer, int maxFrameLength) throws IOException {
+            int length = buffer.getShort() & 0xFFFF;
+            return TextCodec.decode(FrameCodec.decode(buffer, length));
+        }
+
+        @Override
+        public Packet read(DataInputStream in, int maxFrameLength) throws IOException {
+            return TextCodec.decode(in.readUTF());
+        }
+    },
+    V2(2) {
+        @Override
+        public int frameLength(ByteBuffer buffer, int maxFrameLength) throws IOException {
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            return BinaryCodec.frameLength(buffer, maxFrameLength);
+        }
+
+        @Override
+        public Packet decode(ByteBuffer buffer, int maxFrameLength) throws IOException {
+            return BinaryCodec.decode(buffer, maxFrameLength);
+        }
+
+        @Override
+        public Packet read(DataInputStream in, int maxFrameLength) throws IOException {
+            return BinaryCodec.read(in, maxFrameLength);
+        }
+    };
+
+    private final int number;
+
+    ProtocolVersion(int number) {
+        this.number = number;
+    }
+
+    /**
+     * @return номер версии, передаваемый в "/proto" и "/protook"
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Определяет длину кадра, начинающегося с текущей позиции буфера, не сдвигая позицию
+     * @param buffer буфер с данными
+     * @param maxFrameLength максимальная длина тела кадра
+     * @return длина кадра вместе с заголовком или -1, если заголовок еще не получен целиком
+     * @throws IOException, если кадр слишком длинный или заголовок поврежден
+     */
+    public abstract int frameLength(ByteBuffer buffer, int maxFrameLength) throws IOException;
+
+    /**
+     * Декодирует полностью полученный кадр, начинающийся с текущей позиции буфера
+     * @param buffer буфер с данными
+     * @param maxFrameLength максимальная длина распакованного тела сжатого кадра
+     * @return пакет
+     * @throws IOException, если кадр поврежден
+     */
+    public abstract Packet decode(ByteBuffer buffer, int maxFrameLength) throws IOException;
+
+    /**
+     * Читает один кадр из потока
+     * @param in поток
+     * @param maxFrameLength максимальная длина тела кадра
+     * @return пакет
+     * @throws IOException, если соединение разорвано или кадр поврежден
+     */
+    public abstract Packet read(DataInputStream in, int maxFrameLength) throws IOException;
+
+    /**
+     * @param number номер версии
+     * @return версия с этим номером или null
+     */
+    public static ProtocolVersion of(int number) {
+        for(ProtocolVersion version : values()) {
+            if(version.number == number) {
+                return version;
+            }
+        }
+        return null;
+    }
+}
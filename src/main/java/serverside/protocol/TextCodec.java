@@ -0,0 +1,134 @@
+package serverside.protocol;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Преобразование пакетов в строки текстового протокола (версия 1) и обратно.
+ * Строка, начинающаяся с "/", - команда: первое слово ищется в таблице команд (Opcode.forCommand),
+ * затем строка делится на поля по пробельным символам, а последнее поле занимает остаток строки.
+ * Остальные строки - обычный текст (Opcode.TEXT).
+ * Разбор не использует регулярные выражения
+ */
+public final class TextCodec {
+
+    private TextCodec() {
+    }
+
+    /**
+     * Разбирает строку текстового протокола
+     * @param text строка
+     * @return пакет; для неизвестной команды - пакет UNKNOWN со всей строкой
+     * @throws ProtocolException, если в команде не хватает полей
+     */
+    public static Packet parse(String text) throws ProtocolException {
+        return parse(text, true);
+    }
+
+    /**
+     * Разбирает строку, полученную от другой стороны соединения. В отличие от parse, команда без нужных
+     * аргументов (например, "/w ник" без текста) - не ошибка протокола, из-за которой закрывается соединение,
+     * а неполный пакет (Packet.isComplete() == false), на который получатель отвечает ошибкой
+     * @param text строка
+     * @return пакет; для неизвестной команды - пакет UNKNOWN со всей строкой
+     */
+    public static Packet decode(String text) {
+        try {
+            return parse(text, false);
+        } catch (ProtocolException ex) {
+            throw new IllegalStateException(ex);   // в нестрогом режиме не выбрасывается
+        }
+    }
+
+    private static Packet parse(String text, boolean strict) throws ProtocolException {
+        String trimmed = text.trim();
+        if(!trimmed.startsWith("/")) {
+            return Packet.decoded(Opcode.TEXT, new String[] {text});
+        }
+        int length = trimmed.length();
+        int end = indexOfWhitespace(trimmed, 0);
+        Opcode opcode = Opcode.forCommand(trimmed.substring(0, end));
+        if(opcode == Opcode.UNKNOWN) {
+            return Packet.decoded(Opcode.UNKNOWN, new String[] {trimmed});
+        }
+        int fieldCount = opcode.getFieldCount();
+        if(fieldCount == Opcode.VARIABLE) {
+            List<String> fields = new ArrayList<>();
+            int pos = end;
+            while(pos < length) {
+                pos++;
+                int next = indexOfWhitespace(trimmed, pos);
+                if(next > pos) {
+                    fields.add(trimmed.substring(pos, next));
+                }
+                pos = next;
+            }
+            return Packet.decoded(opcode, fields.toArray(new String[0]));
+        }
+        String[] fields = new String[fieldCount];
+        int pos = end;
+        for(int i = 0; i < fieldCount; i++) {
+            if(pos >= length) {
+                if(!strict) {
+                    return Packet.incomplete(opcode, Arrays.copyOf(fields, i));
+                }
+                throw new ProtocolException("Не хватает аргументов команды " + opcode.getCommand());
+            }
+            pos++;
+            if(i == fieldCount - 1) {
+                fields[i] = trimmed.substring(pos);
+            } else {
+                int next = indexOfWhitespace(trimmed, pos);
+                fields[i] = trimmed.substring(pos, next);
+                pos = next;
+            }
+        }
+        return Packet.decoded(opcode, fields);
+    }
+
+    /**
+     * Форматирует пакет в строку текстового протокола.
+     * Строки совпадают с теми, что сервер отправлял до появления версии 2 протокола
+     * @param packet пакет
+     * @return строка
+     */
+    public static String format(Packet packet) {
+        switch (packet.getOpcode()) {
+            case TEXT:
+            case UNKNOWN:
+                return packet.size() > 0 ? packet.get(0) : "";
+            case MESSAGE:
+                return "[" + packet.get(0) + "]: " + packet.get(1);
+            case PRIVATE_FROM:
+                return "[Личное сообщение от " + packet.get(0) + "]: " + packet.get(1);
+            case PRIVATE_TO:
+                return "[Личное сообщение к " + packet.get(0) + "]: " + packet.get(1);
+            default:
+                break;
+        }
+        StringBuilder sb = new StringBuilder(packet.getOpcode().getCommand());
+        if(packet.getOpcode().getFieldCount() == Opcode.VARIABLE) {
+            sb.append(' ');
+            for(int i = 0; i < packet.size(); i++) {
+                sb.append(packet.get(i)).append(' ');
+            }
+        } else {
+            for(int i = 0; i < packet.size(); i++) {
+                sb.append(' ').append(packet.get(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int indexOfWhitespace(String text, int from) {
+        int length = text.length();
+        for(int i = from; i < length; i++) {
+            if(Character.isWhitespace(text.charAt(i))) {
+                return i;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,91 @@
+package serverside.protocol;
+
+/**
+ * Формат кадров, согласованный для соединения: версия протокола и сжатие.
+ * Сжатие возможно только в версии 2; тела короче compressionThreshold байт не сжимаются,
+ * потому что на коротких сообщениях deflate почти ничего не выигрывает, а процессор тратит
+ */
+public final class WireFormat {
+    /**
+     * Имя сжатия в "/proto" и "/protook"
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Формат, с которого начинается любое соединение
+     */
+    public static final WireFormat V1 = new WireFormat(ProtocolVersion.V1, false, 0);
+
+    private final ProtocolVersion version;
+    private final boolean compressed;
+    private final int compressionThreshold;
+
+    public WireFormat(ProtocolVersion version, boolean compressed, int compressionThreshold) {
+        if(compressed && version == ProtocolVersion.V1) {
+            throw new IllegalArgumentException("Сжатие не поддерживается в версии 1 протокола");
+        }
+        this.version = version;
+        this.compressed = compressed;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public ProtocolVersion getVersion() {
+        return version;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return ответ сервера на "/proto": "/protook N" или "/protook N deflate"
+     */
+    public Packet toReply() {
+        String number = String.valueOf(version.getNumber());
+        return compressed ? Packet.of(Opcode.PROTOCOL_OK, number, DEFLATE) : Packet.of(Opcode.PROTOCOL_OK, number);
+    }
+
+    /**
+     * Разбирает ответ сервера на "/proto"
+     * @param reply пакет Opcode.PROTOCOL_OK
+     * @param compressionThreshold порог сжатия для кадров, отправляемых этой стороной
+     * @return формат или null, если сервер выбрал неизвестную версию
+     */
+    public static WireFormat fromReply(Packet reply, int compressionThreshold) {
+        ProtocolVersion version = reply.size() == 0 ? null : ProtocolVersion.of(parseNumber(reply.get(0)));
+        if(version == null) {
+            return null;
+        }
+        boolean compressed = version != ProtocolVersion.V1 && hasOption(reply, DEFLATE);
+        return version == ProtocolVersion.V1 ? V1 : new WireFormat(version, compressed, compressionThreshold);
+    }
+
+    static int parseNumber(String field) {
+        try {
+            return Integer.parseInt(field.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true, если среди полей пакета после номера версии есть option
+     */
+    static boolean hasOption(Packet packet, String option) {
+        for(int i = 1; i < packet.size(); i++) {
+            if(option.equals(packet.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version.getNumber() + (compressed ? " " + DEFLATE : "");
+    }
+}
@@ -0,0 +1,159 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Контроль приема подключений (настройки chat.admission.*).
+ * Поток, принимающий подключения, до создания ClientHandler и его соединения проверяет:
+ * 1. Частоту подключений с адреса клиента - по "ведру токенов" на каждый адрес: ведро вмещает ipBurst
+ *    подключений и пополняется на ipRate подключений в секунду.
+ * 2. Число соединений, еще не вошедших в чат (от создания ClientHandler до /authok, /resumeok или закрытия),
+ *    - не больше maxUnauthenticated.
+ * Отклоненное соединение сразу закрывается сбросом (RST), без потоков, обработчика и ответа клиенту.
+ * admit вызывается только из потока приема подключений, поэтому ведра хранятся в обычной LinkedHashMap
+ * в порядке обращения. Ведер не больше MAX_ADDRESSES: ведро нового адреса вытесняет ведро адреса,
+ * с которого дольше всех не подключались. Раз в секунду удаляются давно не использованные ведра,
+ * заполнившиеся до краев (то есть не отличающиеся от нового); очистка идет от самого старого ведра
+ * и останавливается на первом незаполненном, поэтому подключения с множества адресов не превращают
+ * каждый прием в перебор всех ведер
+ */
+public class AdmissionControl {
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int MAX_ADDRESSES = 65536;
+
+    private final AdmissionSettings settings;
+    // в порядке обращения, первое - самое старое; только для потока приема
+    private final LinkedHashMap<InetAddress, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private long lastSweepNanos = System.nanoTime();
+    private final AtomicInteger unauthenticated = new AtomicInteger();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder unauthenticatedLimited = new LongAdder();
+
+    private static final Logger LOGGER = LogManager.getLogger(AdmissionControl.class);
+
+    public AdmissionControl(AdmissionSettings settings) {
+        this.settings = settings;
+    }
+
+    public AdmissionSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Решает, принимать ли подключение. Вызывается только из потока приема подключений
+     * @param address адрес клиента
+     * @return true - подключение принимается, false - его нужно закрыть
+     */
+    public boolean admit(InetAddress address) {
+        if(settings.getIpRate() > 0 && !tryAcquire(address, System.nanoTime())) {
+            rateLimited.increment();
+            LOGGER.debug("Подключение с адреса " + address + " отклонено: превышена частота подключений");
+            return false;
+        }
+        int max = settings.getMaxUnauthenticated();
+        if(max > 0 && unauthenticated.get() >= max) {
+            unauthenticatedLimited.increment();
+            LOGGER.debug("Подключение с адреса " + address + " отклонено: " + max + " соединений ожидают входа");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean tryAcquire(InetAddress address, long now) {
+        if(now - lastSweepNanos >= SWEEP_INTERVAL_NANOS) {
+            sweep(now);
+        }
+        Bucket bucket = buckets.get(address);
+        if(bucket == null) {
+            if(buckets.size() >= MAX_ADDRESSES) {
+                removeEldest();
+            }
+            bucket = new Bucket(settings.getIpBurst(), now);
+            buckets.put(address, bucket);
+        }
+        return bucket.tryAcquire(now, settings.getIpRate(), settings.getIpBurst());
+    }
+
+    /**
+     * Удаляет заполнившиеся ведра, начиная с самого старого, до первого незаполненного
+     */
+    private void sweep(long now) {
+        lastSweepNanos = now;
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        while(iterator.hasNext() && iterator.next().isFull(now, settings.getIpRate(), settings.getIpBurst())) {
+            iterator.remove();
+        }
+    }
+
+    private void removeEldest() {
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    /**
+     * Создано соединение, еще не вошедшее в чат (вызывается из конструктора ClientHandler)
+     */
+    public void onUnauthenticatedOpened() {
+        unauthenticated.incrementAndGet();
+    }
+
+    /**
+     * Соединение вошло в чат, возобновило сессию или закрылось до входа
+     */
+    public void onUnauthenticatedClosed() {
+        unauthenticated.decrementAndGet();
+    }
+
+    public long getUnauthenticatedCount() {
+        return unauthenticated.get();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    public long getUnauthenticatedLimitedCount() {
+        return unauthenticatedLimited.sum();
+    }
+
+    /**
+     * Ведро токенов одного адреса: число доступных подключений пополняется со временем до ipBurst
+     */
+    private static final class Bucket {
+        private double tokens;
+        private long updatedNanos;
+
+        Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.updatedNanos = now;
+        }
+
+        boolean tryAcquire(long now, int rate, int burst) {
+            refill(now, rate, burst);
+            if(tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        boolean isFull(long now, int rate, int burst) {
+            refill(now, rate, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, int rate, int burst) {
+            tokens = Math.min(burst, tokens + (now - updatedNanos) * rate / 1e9);
+            updatedNanos = now;
+        }
+    }
+}
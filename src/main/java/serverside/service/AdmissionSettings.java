@@ -0,0 +1,89 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Настройки приема подключений (chat.admission.*), см. AdmissionControl
+ */
+public class AdmissionSettings {
+    private static final int DEFAULT_ACCEPT_BACKLOG = 128;
+    private static final int DEFAULT_MAX_UNAUTHENTICATED = 1000;
+    private static final int DEFAULT_IP_RATE = 10;
+    private static final int DEFAULT_IP_BURST = 50;
+
+    private final int acceptBacklog;
+    private final int maxUnauthenticated;
+    private final int ipRate;
+    private final int ipBurst;
+
+    private static final Logger LOGGER = LogManager.getLogger(AdmissionSettings.class);
+
+    public AdmissionSettings(int acceptBacklog, int maxUnauthenticated, int ipRate, int ipBurst) {
+        this.acceptBacklog = acceptBacklog;
+        this.maxUnauthenticated = maxUnauthenticated;
+        this.ipRate = ipRate;
+        this.ipBurst = ipBurst;
+    }
+
+    public static AdmissionSettings from(ServerConfig config) {
+        int acceptBacklog = config.getInt("chat.admission.acceptBacklog", DEFAULT_ACCEPT_BACKLOG);
+        if(acceptBacklog < 1) {
+            LOGGER.error("Неверное значение chat.admission.acceptBacklog: " + acceptBacklog
+                    + ", используется " + DEFAULT_ACCEPT_BACKLOG);
+            acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+        }
+        int maxUnauthenticated = config.getInt("chat.admission.maxUnauthenticated", DEFAULT_MAX_UNAUTHENTICATED);
+        if(maxUnauthenticated < 0) {
+            LOGGER.error("Неверное значение chat.admission.maxUnauthenticated: " + maxUnauthenticated
+                    + ", используется " + DEFAULT_MAX_UNAUTHENTICATED);
+            maxUnauthenticated = DEFAULT_MAX_UNAUTHENTICATED;
+        }
+        int ipRate = config.getInt("chat.admission.ipRate", DEFAULT_IP_RATE);
+        if(ipRate < 0) {
+            LOGGER.error("Неверное значение chat.admission.ipRate: " + ipRate + ", используется " + DEFAULT_IP_RATE);
+            ipRate = DEFAULT_IP_RATE;
+        }
+        int ipBurst = config.getInt("chat.admission.ipBurst", Math.max(DEFAULT_IP_BURST, ipRate));
+        if(ipBurst < 1) {
+            LOGGER.error("Неверное значение chat.admission.ipBurst: " + ipBurst + ", используется " + DEFAULT_IP_BURST);
+            ipBurst = Math.max(DEFAULT_IP_BURST, ipRate);
+        }
+        return new AdmissionSettings(acceptBacklog, maxUnauthenticated, ipRate, ipBurst);
+    }
+
+    /**
+     * @return длина очереди подключений, установленных ядром, но еще не принятых сервером (backlog у listen)
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return сколько соединений может одновременно ждать входа в чат; 0 - без ограничения
+     */
+    public int getMaxUnauthenticated() {
+        return maxUnauthenticated;
+    }
+
+    /**
+     * @return сколько подключений в секунду в среднем принимается с одного адреса; 0 - без ограничения
+     */
+    public int getIpRate() {
+        return ipRate;
+    }
+
+    /**
+     * @return сколько подключений с одного адреса принимается подряд, прежде чем начнет действовать ipRate
+     */
+    public int getIpBurst() {
+        return ipBurst;
+    }
+
+    @Override
+    public String toString() {
+        return "очередь приема " + acceptBacklog + ", ожидающих входа: "
+                + (maxUnauthenticated == 0 ? "без ограничения" : "не более " + maxUnauthenticated)
+                + ", подключений с адреса: " + (ipRate == 0 ? "без ограничения" : ipRate + "/с, подряд " + ipBurst);
+    }
+}
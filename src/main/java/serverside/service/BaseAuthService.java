@@ -2,17 +2,53 @@ package serverside.service;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import serverside.db.PooledConnection;
 import serverside.interfaces.AuthService;
+import serverside.metrics.LatencyHistogram;
 import serverside.model.User;
 
 import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Сервис аутентификации по таблице users.
+ * Запросы в базу данных выполняются в отдельном ограниченном пуле потоков (chat.auth.threads,
+ * по умолчанию - по размеру пула соединений), поэтому даже при массовом входе клиентов
+ * одновременно в базу ходит не больше запросов, чем есть соединений в пуле.
+ * Ожидающие запросы стоят в очереди ограниченного размера (chat.auth.queueCapacity); если очередь
+ * заполнена, запрос сразу отклоняется с RejectedExecutionException, и клиент может повторить попытку.
+ * Одновременные запросы с одинаковыми логином и паролем объединяются в один запрос к базе данных
+ */
 public class BaseAuthService implements AuthService {
 
+    private static final String USER_BY_LOGIN_AND_PASSWORD_QUERY = "SELECT * FROM users WHERE login=? AND password=?";
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private final int threads;
+    private final int queueCapacity;
+    private ThreadPoolExecutor authExecutor;
+    private final ConcurrentHashMap<String, CompletableFuture<User>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LatencyHistogram authLatency = new LatencyHistogram();
+
     private static final Logger LOGGER = LogManager.getLogger(BaseAuthService.class);
 
-    public BaseAuthService() throws SQLException {
-        Connection connection = DBConnection.getConnection();
+    public BaseAuthService(ServerConfig config) throws SQLException {
+        this.threads = config.getInt("chat.auth.threads", DBConnection.getPool().getMaxSize());
+        this.queueCapacity = config.getInt("chat.auth.queueCapacity", DEFAULT_QUEUE_CAPACITY);
+        if(threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Неверные настройки сервиса аутентификации: threads=" + threads
+                    + ", queueCapacity=" + queueCapacity);
+        }
+        try (PooledConnection pooledConnection = DBConnection.getConnection()) {
+            createUsersTable(pooledConnection.getConnection());
+        }
+    }
+
+    private void createUsersTable(Connection connection) throws SQLException {
         connection.setAutoCommit(false);
         try (Statement statement = connection.createStatement()) {
             statement.executeUpdate("CREATE TABLE IF NOT EXISTS users (" +
@@ -39,22 +75,102 @@ public class BaseAuthService implements AuthService {
 
     @Override
     public void start() {
-        LOGGER.info("Сервис аутентификации запущен");
+        AtomicInteger counter = new AtomicInteger();
+        authExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "auth-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        LOGGER.info("Сервис аутентификации запущен: потоков " + threads + ", размер очереди " + queueCapacity);
     }
 
     @Override
     public void stop() {
+        if(authExecutor != null) {
+            authExecutor.shutdownNow();
+        }
         LOGGER.info("Сервис аутентификации остановлен");
     }
 
     @Override
     public User getUserByLoginAndPassword(String login, String password) throws SQLException {
-        String queryNick = "SELECT * FROM users WHERE login=? AND password=?";
-        try (PreparedStatement statement = DBConnection.getConnection().prepareStatement(queryNick)) {
+        try (PooledConnection connection = DBConnection.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement(USER_BY_LOGIN_AND_PASSWORD_QUERY);
             statement.setString(1, login);
             statement.setString(2, password);
-            ResultSet result = statement.executeQuery();
-            return User.userBuilder(result);
+            try (ResultSet result = connection.executeQuery(statement)) {
+                return User.userBuilder(result);
+            }
         }
     }
+
+    /**
+     * Ставит поиск пользователя в очередь пула аутентификации.
+     * Если такой же запрос (те же логин и пароль) уже выполняется, возвращается его future:
+     * повторный вход одного и того же пользователя во время шторма подключений не нагружает базу данных.
+     * Найденный объект User в этом случае общий, но в чат с ним все равно войдет только одно соединение
+     * (см. MyServer.reserveNick)
+     * @param login логин
+     * @param password пароль
+     * @return future с найденным пользователем или null, если пользователь не найден
+     */
+    @Override
+    public CompletableFuture<User> getUserByLoginAndPasswordAsync(String login, String password) {
+        String key = login + '\u0000' + password;
+        CompletableFuture<User> future = new CompletableFuture<>();
+        CompletableFuture<User> existing = inFlight.putIfAbsent(key, future);
+        if(existing != null) {
+            coalescedCount.increment();
+            return existing;
+        }
+        long start = System.nanoTime();
+        try {
+            authExecutor.execute(() -> {
+                try {
+                    User user = getUserByLoginAndPassword(login, password);
+                    inFlight.remove(key, future);
+                    authLatency.recordSince(start);
+                    future.complete(user);
+                } catch (Throwable ex) {
+                    inFlight.remove(key, future);
+                    authLatency.recordSince(start);
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejectedCount.increment();
+            inFlight.remove(key, future);
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Число запросов, ожидающих выполнения в очереди пула аутентификации
+     */
+    public int getQueuedCount() {
+        return authExecutor == null ? 0 : authExecutor.getQueue().size();
+    }
+
+    /**
+     * Число запросов, объединенных с уже выполняющимся запросом
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * Число запросов, отклоненных из-за переполнения очереди
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Время запроса к базе данных от постановки в очередь пула аутентификации до ответа
+     */
+    public LatencyHistogram getAuthLatency() {
+        return authLatency;
+    }
 }
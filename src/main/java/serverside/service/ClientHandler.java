@@ -2,195 +2,597 @@ package serverside.service;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import serverside.db.PooledConnection;
+import serverside.history.MessageLog;
+import serverside.interfaces.Connection;
+import serverside.interfaces.ConnectionListener;
+import serverside.interfaces.DisconnectReason;
 import serverside.model.User;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolVersion;
+import serverside.timer.Timeout;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
 import java.sql.*;
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
-public class ClientHandler {
+public class ClientHandler implements ConnectionListener {
     private final MyServer myServer;
-    private final Socket socket;
-    private final DataInputStream dis;
-    private final DataOutputStream dos;
-    private volatile boolean isConnected;
+    private final Connection ownConnection;            // соединение, с которым создан обработчик
+    // текущее соединение сессии: после возобновления - соединение обработчика, принявшего /resume
+    private volatile Connection connection;
+    private volatile StreamConnection streamConnection; // только для блокирующего режима
+    private final AtomicBoolean isConnected = new AtomicBoolean(true);   // сессия не закрыта
+    // соединение учтено в AdmissionControl как ожидающее входа
+    private final AtomicBoolean unauthenticated = new AtomicBoolean(true);
 
-    private User user;
+    // возобновление сессии (см. ResumeSettings): журнал создается при входе до занятия ника, до этого - null.
+    // resumable, droppedBase, flushed, flushing, suspended, suspendedAt и graceTimeout изменяются только
+    // под блокировкой на журнале
+    private volatile SessionBacklog backlog;
+    private volatile String resumeToken;
+    private boolean resumable;                         // токен выдан, и клиент не терял пронумерованных сообщений
+    private long droppedBase;                          // сколько сообщений соединение выбросило до выдачи токена
+    private long flushed;                              // позиция в журнале, до которой сообщения переданы соединению
+    private boolean flushing;                          // поток передает сообщения журнала соединению
+    private boolean suspended;                         // соединение разорвано, сессия ждет возобновления
+    private long suspendedAt;                          // позиция первого сообщения после разрыва
+    private Timeout graceTimeout;
+    private volatile ClientHandler resumed;            // сессия, возобновленная через это соединение
+
+    private volatile User user;
+    private volatile String login;
+    private volatile Room room;                        // комната клиента после авторизации
+
+    // ограничение частоты сообщений (см. RateLimitSettings), только для потока, обрабатывающего сообщения клиента
+    private final RateLimiter messageLimiter;
+    private final RateLimiter commandLimiter;
+    private int rateViolations;                        // выброшено сообщений с последнего перерыва клиента
+    private boolean rateLimited;                       // клиент уже уведомлен о превышении ограничения
 
     private static final int timeForAuthenticationInSecond = 120;
     private static final int timeForReadMessageFromClientInSeconds = 180;
     private volatile long timeLastReadedMessage;
+    private final Timeout authenticationTimeout;
 
-    // команды от клиента
-    private static final String AUTH = "/auth";              // аутентификация /auth login password
-    private static final String CHANGE_NICK = "/chnick";     // сменить ник
-    private static final String END = "/end";                // отключить соединение
-    private static final String SEND_PRIVATE_MESSAGE = "/w"; // отправить личное сообщение /w nick message
-    private static final String LIST = "/list";              // получить список онлайн пользователей
-    private static final String NOTIFY = "/notify ";      // уведомление
-
-    // результаты выполнения команд от клиента
-    private static final String AUTH_OK = "/authok ";                  // успешная авторизация
-    private static final String CHANGE_NICK_OK = "/chnickok ";         // успешная смена ника
-    private static final String TIMEOUT_AUTH = "/timeoutauth";         // время для авторизации истекло
-    private static final String TIMEOUT_ACTIVITY = "/timeoutactivity"; // длительный простой
-    private static final String ERROR_CHANGE_NICK = "/errchnick ";     // ошибка при смене ника
-    private static final String ERROR_DB_CONNECTION = "/errdbcon ";    // соединение с базой данных отсутствует
+    // обработчики сообщений авторизованного клиента; /end обрабатывается отдельно, так как завершает чтение
+    private static final Map<Opcode, BiConsumer<ClientHandler, Packet>> COMMANDS = new EnumMap<>(Opcode.class);
+
+    static {
+        COMMANDS.put(Opcode.TEXT, ClientHandler::onChatMessage);
+        COMMANDS.put(Opcode.PRIVATE, ClientHandler::onPrivateMessage);
+        COMMANDS.put(Opcode.LIST, ClientHandler::onListRequest);
+        COMMANDS.put(Opcode.CHANGE_NICK, ClientHandler::onChangeNick);
+        COMMANDS.put(Opcode.JOIN, ClientHandler::onJoinRoom);
+        COMMANDS.put(Opcode.LEAVE, ClientHandler::onLeaveRoom);
+        COMMANDS.put(Opcode.ROOMS, ClientHandler::onRoomsRequest);
+    }
 
     // запросы в базу данных
     private static final String CHANGE_NICK_QUERY = "UPDATE users SET nick=? WHERE nick=?"; // запрос на смену ника
 
     private static final Logger LOGGER = LogManager.getLogger(ClientHandler.class);
 
+    /**
+     * Создает обработчик клиента для блокирующего режима работы сервера.
+     * Чтение сообщений выполняется в отдельном потоке, таймеры - в общем таймере сервера
+     * @param myServer сервер
+     * @param socket сокет клиента
+     */
     public ClientHandler(MyServer myServer, Socket socket) {
         try {
             this.myServer = myServer;
-            this.socket = socket;
-            this.dis = new DataInputStream(socket.getInputStream());
-            this.dos = new DataOutputStream(socket.getOutputStream());
-            isConnected = true;
+            this.messageLimiter = myServer.getRateLimitSettings().newMessageLimiter();
+            this.commandLimiter = myServer.getRateLimitSettings().newCommandLimiter();
+            this.streamConnection = new StreamConnection(socket, myServer.getOutboundQueueSettings(),
+                    myServer.getProtocolSettings(), myServer.getClientExecutor(), myServer.getTimer());
+            myServer.getMetrics().onAccepted();
+            myServer.getAdmissionControl().onUnauthenticatedOpened();
+            streamConnection.setListener(this);
+            this.connection = streamConnection;
+            this.ownConnection = streamConnection;
             this.user = null;
-            ExecutorService executorService = Executors.newSingleThreadExecutor();
-            executorService.execute(clientHandlerThread());
-            executorService.shutdown();
+            this.authenticationTimeout = startAuthenticationTimer();
+            myServer.getClientExecutor().execute(clientHandlerThread(socket));
         } catch(IOException ex) {
-            closeConnection();
             LOGGER.error("Проблемы при создании ClientHandler: " + ex.getMessage());
             throw new RuntimeException("Проблемы при создании ClientHandler");
         }
     }
 
+    /**
+     * Создает обработчик клиента для неблокирующего режима работы сервера.
+     * Собственных потоков обработчик не создает: сообщения поступают через onMessage,
+     * а таймеры выполняются в общем таймере сервера
+     * @param myServer сервер
+     * @param connection неблокирующее соединение с клиентом
+     */
+    public ClientHandler(MyServer myServer, Connection connection) {
+        this.myServer = myServer;
+        this.messageLimiter = myServer.getRateLimitSettings().newMessageLimiter();
+        this.commandLimiter = myServer.getRateLimitSettings().newCommandLimiter();
+        this.connection = connection;
+        this.ownConnection = connection;
+        this.streamConnection = null;
+        this.user = null;
+        myServer.getMetrics().onAccepted();
+        myServer.getAdmissionControl().onUnauthenticatedOpened();
+        this.authenticationTimeout = startAuthenticationTimer();
+    }
+
     /**
      * Метод обработчика клиента для выполнения в отдельном потоке.
+     * Поток берется из общего executor сервера (myServer.getClientExecutor()), который в зависимости
+     * от настройки chat.threads создает обычные или виртуальные потоки.
      * Порядок выполнения метода:
-     * 1. Создается executor c 2 потоками в пуле. В одном потоке запускается таймер, в течение которого должен
-     *    авторизоваться клиент. Во втором потоке запускается цикл чтения данных авторизации от клиента.
-     *    Результатом выполнения двух потоков является значение типа boolean - клиент авторизовался или нет.
-     *    Чтобы это отследить этот результат вызывается invokeAny, т.к. какой то из потоков должен завершиться
-     *    первым. Как только один из потоков вернет значение типа Boolean (авторизовался или нет), executor
-     *    прерывает выполнение второго потока. Если клиент не авторизовался, соединение закрывается и происходит
-     *    возврат из метода.
-     * 2. Если клиент авторизовался запускается на выполнение тот же executor с двумя потоками в пуле. В одном
-     *    потоке запускается таймер на отслеживание активности от клиента, во втором потоке запускается цикл
-     *    чтения сообщений от клиента. Результат выполнения этих потоков не отслеживается, поэтому эти две
-     *    задачи запускаются на выполнение вызовом execute, вызывается shutdown (сообщаем, что других задач не будет) и
-     *    базовый поток завершает выполнение.
+     * 0. Если соединение шифруется (SSLSocket), выполняется рукопожатие TLS (см. ServerTls.handshake):
+     *    в этом потоке, а не в потоке приема подключений, и не дольше chat.tls.handshakeTimeoutMillis.
+     * 1. Запускается цикл чтения данных авторизации от клиента. Время на авторизацию отслеживает общий таймер
+     *    сервера (см. startAuthenticationTimer): по его истечении соединение закрывается, и чтение прерывается.
+     *    Если клиент не авторизовался, соединение закрывается и происходит возврат из метода.
+     * 2. Если клиент авторизовался, в общем таймере запускается отслеживание активности клиента,
+     *    а в этом же потоке - цикл чтения сообщений от клиента.
+     *    Если клиент возобновил прежнюю сессию (/resume), поток читает сообщения для нее.
+     * @param socket сокет клиента
      * @return объект, реулизующий Runnable для запуска в отдельном потоке
      */
-    private Runnable clientHandlerThread() {
+    private Runnable clientHandlerThread(Socket socket) {
         return () -> {
-            ExecutorService executor = Executors.newFixedThreadPool(2);
-            List<Callable<Boolean>> authTasks = new ArrayList<>();
-            authTasks.add(AuthenticationTimer());
-            authTasks.add(authentication());
-            Boolean isAuthorized = null;
+            boolean isAuthorized = false;
             try {
-                isAuthorized = executor.invokeAny(authTasks);
-            } catch (InterruptedException | ExecutionException ignored) {
+                if(socket instanceof SSLSocket) {
+                    myServer.getTls().handshake((SSLSocket) socket);
+                }
+                isAuthorized = authentication();
+            } catch (IOException ignored) {
 
             }
-            if(isAuthorized == null || !isAuthorized) {
-                executor.shutdown();
+            if(!isAuthorized) {
                 closeConnection();
                 return;
             }
-            myServer.broadcastMessage(NOTIFY + user.getNick() + " вошел в чат");
-            myServer.subscribe(this);
-            long timeInMillis = timeForReadMessageFromClientInSeconds * 1000;
-            timeLastReadedMessage = System.currentTimeMillis();
-            executor.execute(readMessagesTimer(timeInMillis));
-            executor.execute(readMessagesFromClient());
-            executor.shutdown();
+            ClientHandler session = resumed;
+            if(session != null) {
+                session.readMessagesFromClient(streamConnection);
+                return;
+            }
+            onAuthenticated();
+            readMessagesFromClient(streamConnection);
         };
     }
 
     /**
-     * Таймер аутентификации
-     * @return - объект, реализующий Callable<Boolean> для запуска в отдельном потоке
+     * Отправляет клиенту историю сообщений, оповещает общую комнату о входе клиента, подписывает его
+     * на рассылку сообщений общей комнаты и запускает отслеживание активности
      */
-    private Callable<Boolean> AuthenticationTimer() {
-        return () -> {
+    private void onAuthenticated() {
+        replayHistory();
+        room = myServer.getDefaultRoom();
+        myServer.broadcastMessage(room, Packet.of(Opcode.NOTIFY, user.getNick() + " вошел в чат"));
+        myServer.subscribe(this);
+        if(!isConnected.get()) {
+            myServer.unsubscribe(this);   // соединение закрылось во время входа
+            return;
+        }
+        timeLastReadedMessage = System.currentTimeMillis();
+        scheduleActivityCheck(timeForReadMessageFromClientInSeconds * 1000L);
+    }
+
+    /**
+     * Отправляет только что вошедшему клиенту последние сообщения из журнала сервера: сообщение "/history N"
+     * и затем N сообщений в том виде, в каком их получил пользователь.
+     * Повтор выполняется до подписки на рассылку, поэтому новые сообщения в общий чат приходят после истории.
+     * Клиенты версии 1 хранят историю у себя и сообщение "/history" не понимают, им история не отправляется
+     */
+    private void replayHistory() {
+        MessageLog messageLog = myServer.getMessageLog();
+        if(messageLog == null || connection.getProtocolVersion() == ProtocolVersion.V1) {
+            return;
+        }
+        List<Packet> history = messageLog.lastMessages(login, messageLog.getSettings().getReplayCount());
+        sendMessage(Packet.of(Opcode.HISTORY, String.valueOf(history.size())));
+        for(Packet packet : history) {
+            sendMessage(packet);
+        }
+    }
+
+    /**
+     * Запускает таймер аутентификации в общем таймере сервера
+     * @return handle таймера, отменяемый при успешной авторизации
+     */
+    private Timeout startAuthenticationTimer() {
+        return myServer.getTimer().newTimeout(() -> {
+            if(isConnected.get()) {
+                myServer.getMetrics().onAuthTimeout();
+                sendMessage(Packet.of(Opcode.TIMEOUT_AUTH));
+                closeConnection();
+            }
+        }, timeForAuthenticationInSecond, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Цикл чтения данных аутентификации в блокирующем режиме
+     * @return true - если клиент авторизовался, false - в противном случае
+     * @throws IOException, если соединение разорвано (в том числе по истечении времени на авторизацию)
+     */
+    private boolean authentication() throws IOException {
+        try {
+            while (true) {
+                if (authenticate(streamConnection.read())) {
+                    return true;
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.error("Ошибка при авторизации: " + ex.getMessage());
+            sendMessage(Packet.of(Opcode.ERROR_DB, "Соединение с базой данных отсутствует"));
+        }
+        return false;
+    }
+
+    /**
+     * Обрабатывает одно сообщение от неавторизованного клиента в блокирующем режиме.
+     * Поиск пользователя выполняется в пуле сервиса аутентификации, поток обработчика ждет его результата
+     * @param packet - сообщение от клиента
+     * @return true - если клиент успешно авторизовался или возобновил сессию, false - в противном случае
+     * @throws SQLException, если возникли проблемы с базой данных
+     */
+    private boolean authenticate(Packet packet) throws SQLException {
+        if (!packet.isComplete()) {
+            onIncompleteCommand(packet);
+            return false;
+        }
+        if (packet.getOpcode() == Opcode.RESUME) {
+            return resume(packet);
+        }
+        if (packet.getOpcode() == Opcode.AUTH) {
+            String login = packet.get(0);
+            User user;
             try {
-                Thread.sleep(timeForAuthenticationInSecond * 1000);
-            } catch (InterruptedException ignored) {
+                user = myServer.getAuthService().getUserByLoginAndPasswordAsync(login, packet.get(1)).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
                 return false;
+            } catch (ExecutionException ex) {
+                if(ex.getCause() instanceof SQLException) {
+                    throw (SQLException) ex.getCause();
+                }
+                return onAuthenticationFailure(ex.getCause());
             }
-            sendMessage(TIMEOUT_AUTH);
-            return false;
-        };
+            return completeAuthentication(user, login);
+        }
+        return false;
     }
 
     /**
-     * Цикл чтения данных аутентификации
-     * @return - объект, реализующий Callable<Boolean> для запуска в отдельном потоке
+     * Начинает аутентификацию в неблокирующем режиме.
+     * Чтение сообщений клиента приостанавливается до получения результата, чтобы сообщения,
+     * отправленные сразу после /auth, не обработались раньше входа в чат.
+     * Результат обрабатывается в executor обработчиков клиентов, а не в пуле сервиса аутентификации
+     * @param packet - сообщение /auth от клиента
      */
-    private Callable<Boolean> authentication() {
-        return () -> {
-            try {
-                while (true) {
-                    String str = dis.readUTF();
-                    if (str.startsWith(AUTH)) {
-                        String[] arr = str.split("\\s");
-                        String login = arr[1];
-                        User user = myServer
-                                .getAuthService()
-                                .getUserByLoginAndPassword(arr[1], arr[2]);
-                        if (user != null) {
-                            if (!myServer.isUserBusy(user)) {
-                                sendMessage(AUTH_OK + user.getNick() + " " + login);
-                                LOGGER.info("Пользователь с логином " + login + " и ником " + user.getNick() + " вошел в чат");
-                                this.user = user;
-                                return true;
-                            } else {
-                                sendMessage("Пользователь с данным логином и паролем уже в чате");
+    private void authenticateAsync(Packet packet) {
+        String login = packet.get(0);
+        String password = packet.get(1);
+        connection.suspendReading();
+        myServer.getAuthService()
+                .getUserByLoginAndPasswordAsync(login, password)
+                .whenCompleteAsync((user, ex) -> {
+                    try {
+                        if(ex == null) {
+                            if(completeAuthentication(user, login)) {
+                                onAuthenticated();
                             }
                         } else {
-                            sendMessage("Неправильный логин или пароль");
+                            Throwable cause = ex instanceof CompletionException && ex.getCause() != null
+                                    ? ex.getCause() : ex;
+                            if(cause instanceof SQLException) {
+                                LOGGER.error("Ошибка при авторизации: " + cause.getMessage());
+                                sendMessage(Packet.of(Opcode.ERROR_DB, "Соединение с базой данных отсутствует"));
+                                closeConnection();
+                            } else if(!onAuthenticationFailure(cause)) {
+                                closeConnection();
+                            }
                         }
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Ошибка при авторизации: " + e.getMessage());
+                        closeConnection();
+                    } finally {
+                        connection.resumeReading();
                     }
+                }, myServer.getClientExecutor());
+    }
+
+    /**
+     * Обрабатывает отказ сервиса аутентификации, не связанный с базой данных
+     * @param cause - причина отказа
+     * @return false - клиент может повторить попытку, соединение не закрывается
+     */
+    private boolean onAuthenticationFailure(Throwable cause) {
+        if(cause instanceof RejectedExecutionException) {
+            LOGGER.warn("Очередь аутентификации переполнена, попытка входа отклонена");
+            sendMessage(Packet.of(Opcode.TEXT, "Сервер перегружен, повторите попытку входа позже"));
+            return false;
+        }
+        throw new IllegalStateException("Ошибка сервиса аутентификации: " + cause, cause);
+    }
+
+    /**
+     * Завершает вход найденного пользователя: занимает ник, отменяет таймер аутентификации
+     * и отправляет клиенту подтверждение
+     * @param user - найденный пользователь или null
+     * @param login - логин клиента
+     * @return true - если клиент успешно авторизовался, false - в противном случае
+     */
+    private boolean completeAuthentication(User user, String login) {
+        if (user != null) {
+            this.login = login;    // до занятия ника: по нику клиента сразу могут найти и записать личное сообщение в журнал
+            createBacklog();
+            if (myServer.reserveNick(user.getNick(), this)) {
+                if (!authenticationTimeout.cancel()) {
+                    myServer.releaseNick(user.getNick(), this);
+                    return false;    // время на авторизацию уже истекло
                 }
-            } catch (SQLException ex) {
-                LOGGER.error("Ошибка при авторизации: " + ex.getMessage());
-                sendMessage(ERROR_DB_CONNECTION + "Соединение с базой данных отсутствует");
+                this.user = user;
+                leaveUnauthenticated();
+                sendMessage(Packet.of(Opcode.AUTH_OK, user.getNick(), login));
+                offerResume();
+                LOGGER.info("Пользователь с логином " + login + " и ником " + user.getNick() + " вошел в чат");
+                myServer.getAuditLog().login(user.getNick(), login);
+                return true;
+            } else {
+                sendMessage(Packet.of(Opcode.TEXT, "Пользователь с данным логином и паролем уже в чате"));
             }
+        } else {
+            sendMessage(Packet.of(Opcode.TEXT, "Неправильный логин или пароль"));
+        }
+        return false;
+    }
+
+    /**
+     * Создает журнал сессии клиента версии 2, если возобновление не отключено настройкой chat.resume.enabled.
+     * Журнал публикуется до занятия ника и подписки на рассылку: все сообщения, которые другие потоки
+     * отправят клиенту, проходят через журнал, и ни одно не обгонит токен неучтенным
+     */
+    private void createBacklog() {
+        ResumeSettings settings = myServer.getResumeSettings();
+        if(backlog != null || !settings.isEnabled() || connection.getProtocolVersion() == ProtocolVersion.V1) {
+            return;
+        }
+        backlog = new SessionBacklog(settings.getBacklogCapacity());
+    }
+
+    /**
+     * Выдает клиенту токен возобновления сессии: записывает его в журнал и начинает нумерацию
+     * сообщений после него
+     */
+    private void offerResume() {
+        SessionBacklog backlog = this.backlog;
+        if(backlog == null) {
+            return;
+        }
+        String token = myServer.registerResumableSession(this);
+        synchronized (backlog) {
+            resumeToken = token;
+            backlog.add(Packet.of(Opcode.RESUME_TOKEN, token));
+            backlog.startNumbering();
+            resumable = true;
+            droppedBase = connection.getDroppedCount();
+            if(flushing) {
+                return;
+            }
+            flushing = true;
+        }
+        flushBacklog(backlog);
+    }
+
+    /**
+     * "/resume token received" - возобновление сессии с этим токеном на новом соединении.
+     * Проверка в базе данных не выполняется. Если сессии нет или пропущенных сообщений уже нет
+     * в ее журнале, клиент получает /errresume и может войти обычным образом через /auth
+     * @param packet - сообщение от клиента
+     * @return true - если сессия возобновлена, и дальше сообщения этого соединения обрабатывает она
+     */
+    private boolean resume(Packet packet) {
+        long received;
+        try {
+            received = Long.parseLong(packet.get(1).trim());
+        } catch (NumberFormatException ex) {
+            received = -1;
+        }
+        ClientHandler session = myServer.findResumableSession(packet.get(0).trim());
+        if(session == null || !session.canResume(received)) {
+            myServer.getMetrics().onResumeFailed();
+            sendMessage(Packet.of(Opcode.ERROR_RESUME, "Сессия не найдена или пропущено слишком много сообщений"));
             return false;
-        };
+        }
+        if(!authenticationTimeout.cancel()) {
+            return false;    // время на авторизацию уже истекло
+        }
+        if(!session.takeOver(this, received)) {
+            // сессия закрылась между проверкой и возобновлением; таймер авторизации уже отменен
+            myServer.getMetrics().onResumeFailed();
+            sendMessage(Packet.of(Opcode.ERROR_RESUME, "Сессия закрыта"));
+            closeConnection();
+            return false;
+        }
+        resumed = session;
+        leaveUnauthenticated();
+        return true;
     }
-    
-    private Runnable readMessagesTimer(long timeInMillis) {
-        return () -> {
+
+    /**
+     * Снимает соединение с учета ожидающих входа в AdmissionControl (один раз: при входе, возобновлении
+     * сессии или закрытии)
+     */
+    private void leaveUnauthenticated() {
+        if(unauthenticated.compareAndSet(true, false)) {
+            myServer.getAdmissionControl().onUnauthenticatedClosed();
+        }
+    }
+
+    /**
+     * @param received сколько сообщений сессии получил клиент
+     * @return true, если сессию можно возобновить с этого места
+     */
+    private boolean canResume(long received) {
+        SessionBacklog backlog = this.backlog;
+        if(backlog == null) {
+            return false;
+        }
+        synchronized (backlog) {
+            return isConnected.get() && resumable && backlog.canReplay(received);
+        }
+    }
+
+    /**
+     * Переводит сессию на соединение обработчика, принявшего /resume: отправляет /resumeok с новым токеном
+     * и сообщения, пропущенные клиентом, и только затем снимает блокировку журнала, поэтому новые сообщения
+     * приходят после пропущенных. Если прежнее соединение еще не признано разорванным (клиент заметил разрыв
+     * раньше сервера), оно закрывается без оповещения о выходе
+     * @param handler обработчик нового соединения
+     * @param received сколько сообщений сессии получил клиент
+     * @return true, если сессия возобновлена
+     */
+    private boolean takeOver(ClientHandler handler, long received) {
+        SessionBacklog backlog = this.backlog;
+        Connection replaced;
+        boolean wasSuspended;
+        String oldToken = resumeToken;
+        synchronized (backlog) {
+            if(!isConnected.get() || !resumable || !backlog.canReplay(received)) {
+                return false;
+            }
+            Connection target = handler.connection;
+            String token = myServer.registerResumableSession(this);
+            long dropped = target.getDroppedCount();
             try {
-                while(true) {
-                    Thread.sleep(1);
-                    if(System.currentTimeMillis() - timeLastReadedMessage >= timeInMillis) {
-                        LOGGER.info("Пользователь с ником " + user.getNick() + " в течение "
-                                + timeForReadMessageFromClientInSeconds + " секунд не проявил активность");
-                        sendMessage(TIMEOUT_ACTIVITY);
-                        closeConnection();
-                        break;
-                    }
+                target.send(Packet.of(Opcode.RESUME_OK, user.getNick(), login, token));
+                for(Packet packet : backlog.from(backlog.position(received))) {
+                    target.send(packet);
                 }
-            } catch (InterruptedException ignored) {
+            } catch (IOException ex) {
+                myServer.releaseResumableSession(token, this);
+                return false;
+            }
+            resumeToken = token;
+            droppedBase = dropped;
+            flushed = backlog.getSequence();
+            wasSuspended = suspended;
+            replaced = suspended ? null : connection;
+            if(graceTimeout != null) {
+                graceTimeout.cancel();
+                graceTimeout = null;
+            }
+            suspended = false;
+            connection = target;
+            streamConnection = handler.streamConnection;
+            timeLastReadedMessage = System.currentTimeMillis();
+        }
+        myServer.releaseResumableSession(oldToken, this);
+        if(wasSuspended) {
+            myServer.getMetrics().onResumed();
+        } else {
+            myServer.getMetrics().onClosed();
+            replaced.close();
+        }
+        LOGGER.info("Пользователь с ником " + user.getNick() + " возобновил сессию, повторно отправлено сообщений: "
+                + (backlog.getSequence() - backlog.position(received)));
+        return true;
+    }
 
+    /**
+     * Соединение сессии разорвано не по команде клиента (ошибка чтения или записи, ошибка разбора сообщения
+     * или отключение сервером). Если соединение разорвала сеть, сессия с токеном возобновления не закрывается:
+     * до истечения chat.resume.graceSeconds сообщения для клиента копятся в журнале сессии.
+     * Сессия без токена или с отозванным токеном (см. flushBacklog), а также сессия, соединение которой
+     * разорвал сервер или которая прислала неразборчивые данные, закрывается сразу.
+     * Разрыв прежнего соединения, замененного при возобновлении, пропускается
+     * @param lost разорванное соединение
+     * @param reason причина разрыва
+     */
+    private void connectionLost(Connection lost, DisconnectReason reason) {
+        SessionBacklog backlog = this.backlog;
+        if(backlog == null) {
+            closeConnection();
+            return;
+        }
+        long graceMillis = myServer.getResumeSettings().getGraceMillis();
+        boolean suspend;
+        synchronized (backlog) {
+            if(lost != connection || suspended || !isConnected.get()) {
+                return;
             }
-        };
+            suspend = reason.isResumable() && resumable;
+            if(suspend) {
+                suspended = true;
+                suspendedAt = backlog.getSequence();
+                graceTimeout = myServer.getTimer().newTimeout(this::expire, graceMillis, TimeUnit.MILLISECONDS);
+            } else if(!isConnected.compareAndSet(true, false)) {
+                // под блокировкой журнала: takeOver уже не переведет закрываемую сессию на новое соединение
+                return;
+            }
+        }
+        if(!suspend) {
+            if(user != null) {
+                LOGGER.info("Соединение с пользователем с ником " + user.getNick() + " разорвано (" + reason
+                        + "), сессия закрывается без ожидания возобновления");
+            }
+            closeSession();
+            return;
+        }
+        lost.close();
+        myServer.getMetrics().onSuspended();
+        LOGGER.info("Соединение с пользователем с ником " + user.getNick() + " разорвано, сессия ждет возобновления "
+                + graceMillis / 1000 + " с");
     }
 
-    private Runnable readMessagesFromClient() {
-        return () -> {
-            try {
-                readMessages();
-            } catch (IOException ex) {
+    /**
+     * Закрывает сессию, ждущую возобновления: время ожидания истекло или журнал сессии переполнился
+     */
+    private void expire() {
+        SessionBacklog backlog = this.backlog;
+        synchronized (backlog) {
+            if(!suspended || !isConnected.compareAndSet(true, false)) {
+                return;
+            }
+        }
+        LOGGER.info("Сессия пользователя с ником " + user.getNick() + " не возобновлена");
+        closeSession();
+    }
+
+    /**
+     * Цикл чтения сообщений от клиента в блокирующем режиме.
+     * Сообщение /end закрывает сессию, ошибка чтения - только соединение (см. connectionLost)
+     * @param source соединение, из которого читаются сообщения
+     */
+    private void readMessagesFromClient(StreamConnection source) {
+        DisconnectReason lost = null;
+        try {
+            readMessages(source);
+        } catch (IOException ex) {
+            lost = source.getDisconnectReason(ex);
+            if(isConnected.get() && (backlog == null || !lost.isResumable())) {
                 LOGGER.error("Ошибка при чтении сообщения от клиента: " + ex.getMessage());
-            } finally {
+            }
+        } finally {
+            if(lost != null) {
+                connectionLost(source, lost);
+            } else {
                 closeConnection();
             }
-        };
+        }
     }
 
     /**
@@ -198,112 +600,509 @@ public class ClientHandler {
      * @throws IOException, если какие то неполадки во время чтения сообщения от клиента
      */
     public void readMessages() throws IOException {
+        readMessages(streamConnection);
+    }
+
+    private void readMessages(StreamConnection source) throws IOException {
         while(true) {
-            String messageFromClient = dis.readUTF();
-            timeLastReadedMessage = System.currentTimeMillis();
-            if(isServiceMessage(messageFromClient)) {
-                String trimedMessage = messageFromClient.trim();
-                if(isEndSessionCommand(trimedMessage)) {
-                    return;
-                }
-                handleServiceMessage(trimedMessage);
-                continue;
+            if(!handleMessage(source.read(), true)) {
+                return;
             }
-            LOGGER.info("Пользователь с ником " + user.getNick() + " прислал сообщение в общий чат: " + messageFromClient);
-            myServer.broadcastMessage("[" + user.getNick() + "]: " + messageFromClient);
         }
     }
 
     /**
-     * Метод, определяющий является ли сообщение от клиента служебным сообщением
-     * @param message - сообщение от клиента
-     * @return true - если сообщение от клиента является служебным сообщением, false - в противном случае
+     * Обрабатывает одно сообщение от авторизованного клиента.
+     * Обработчик выбирается по коду сообщения в таблице COMMANDS, неизвестные команды пропускаются,
+     * на команду без нужных аргументов клиент получает ошибку (см. onIncompleteCommand).
+     * Сообщение сверх ограничения частоты (см. RateLimitSettings) выбрасывается или откладывается:
+     * в блокирующем режиме поток обработчика ждет сам, в неблокирующем - чтение приостанавливается,
+     * и сообщение обрабатывается в общем таймере сервера
+     * @param packet - сообщение от клиента
+     * @param blocking - сообщение обрабатывается в собственном потоке клиента, который может ждать
+     * @return false - если клиент завершил сессию или отключен, true - в противном случае
      */
-    private boolean isServiceMessage(String message) {
-        return message.trim().startsWith("/");
+    private boolean handleMessage(Packet packet, boolean blocking) {
+        timeLastReadedMessage = System.currentTimeMillis();
+        myServer.getMetrics().onMessageIn();
+        if(packet.getOpcode() == Opcode.END) {
+            return false;
+        }
+        BiConsumer<ClientHandler, Packet> command = packet.isComplete()
+                ? COMMANDS.get(packet.getOpcode()) : ClientHandler::onIncompleteCommand;
+        if(command == null) {
+            return true;
+        }
+        RateLimitSettings settings = myServer.getRateLimitSettings();
+        long now = System.nanoTime();
+        if(messageLimiter.isFull(now) && commandLimiter.isFull(now)) {
+            rateViolations = 0;
+        }
+        boolean isMessage = packet.getOpcode() == Opcode.TEXT || packet.getOpcode() == Opcode.PRIVATE;
+        long wait = (isMessage ? messageLimiter : commandLimiter).acquire(now, settings.getMaxDelayNanos());
+        if(wait == 0) {
+            rateLimited = false;
+            command.accept(this, packet);
+            return true;
+        }
+        notifyRateLimited();
+        if(wait < 0) {
+            settings.onDropped();
+            int max = settings.getMaxViolations();
+            if(max > 0 && ++rateViolations >= max) {
+                LOGGER.info("Пользователь с ником " + user.getNick() + " отключен: " + rateViolations
+                        + " сообщений сверх ограничения частоты");
+                settings.onDisconnect();
+                disconnect("Слишком много сообщений, соединение закрыто");
+                return false;
+            }
+            return true;
+        }
+        settings.onDelayed();
+        if(blocking) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            command.accept(this, packet);
+        } else {
+            delayMessage(command, packet, wait);
+        }
+        return true;
+    }
+
+    /**
+     * Уведомляет клиента о превышении ограничения частоты один раз, пока он не отправит сообщение в пределах ограничения
+     */
+    private void notifyRateLimited() {
+        if(!rateLimited) {
+            rateLimited = true;
+            sendMessage(Packet.of(Opcode.TEXT, "Слишком много сообщений, " + (myServer.getRateLimitSettings()
+                    .getPolicy() == RateLimitPolicy.DROP ? "часть из них не доставлена" : "они будут доставлены с задержкой")));
+        }
+    }
+
+    /**
+     * Обрабатывает отложенное сообщение в неблокирующем режиме: чтение из соединения приостанавливается,
+     * чтобы следующие сообщения клиента не обогнали отложенное, и возобновляется после его обработки
+     * @param command - обработчик сообщения
+     * @param packet - сообщение от клиента
+     * @param delayNanos - через сколько наносекунд сообщение можно обработать
+     */
+    private void delayMessage(BiConsumer<ClientHandler, Packet> command, Packet packet, long delayNanos) {
+        Connection current = connection;
+        current.suspendReading();
+        myServer.getTimer().newTimeout(() -> {
+            try {
+                if(isConnected.get()) {
+                    command.accept(this, packet);
+                }
+            } catch (RuntimeException ex) {
+                LOGGER.error("Ошибка при обработке сообщения от клиента: " + ex.getMessage());
+                closeConnection();
+            } finally {
+                current.resumeReading();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Метод, определяющий является ли служебное сообщение от клиента командой завершения сессии
-     * @param message - служебное сообщение от клиента
-     * @return true - если сообщение от клиента является командой завершения сессии, false - в противном случае
+     * Обработка сообщения от клиента в неблокирующем режиме.
+     * До авторизации сообщения считаются данными аутентификации (проверка выполняется асинхронно,
+     * см. authenticateAsync), после - сообщениями в чат и командами
+     * @param message - сообщение от клиента
      */
-    private boolean isEndSessionCommand(String message) {
-        return message.startsWith(END);
+    @Override
+    public void onMessage(Packet packet) {
+        ClientHandler session = resumed;
+        if(session != null) {
+            session.onMessage(packet);
+            return;
+        }
+        if(!isConnected.get()) {
+            return;
+        }
+        try {
+            if(user == null) {
+                if(!packet.isComplete()) {
+                    onIncompleteCommand(packet);
+                } else if(packet.getOpcode() == Opcode.AUTH) {
+                    authenticateAsync(packet);
+                } else if(packet.getOpcode() == Opcode.RESUME) {
+                    resume(packet);
+                }
+            } else if(!handleMessage(packet, false)) {
+                closeConnection();
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.error("Ошибка при обработке сообщения от клиента: " + ex.getMessage());
+            closeConnection();
+        }
+    }
+
+    @Override
+    public void onDisconnect(DisconnectReason reason) {
+        ClientHandler session = resumed;
+        if(session != null) {
+            session.connectionLost(ownConnection, reason);
+        } else {
+            connectionLost(ownConnection, reason);
+        }
     }
 
     /**
-     * Метод обработки служебных сообщений (команд) от клиента
-     * @param message - служебное сообщение (команда) от клиента
+     * Планирует проверку активности клиента в общем таймере сервера.
+     * При получении сообщения таймер не переставляется - обновляется только timeLastReadedMessage.
+     * Когда проверка срабатывает, она либо разрывает соединение, либо переносит себя на момент,
+     * когда истечет время простоя с учетом последнего полученного сообщения
+     * @param delayInMillis - задержка до проверки
      */
-    private void handleServiceMessage(String message) {
-        if(message.startsWith(SEND_PRIVATE_MESSAGE)) {
-            String[] arr = message.split("\\s", 3);
-            if(!this.user.getNick().equals(arr[1])) {
-                LOGGER.info("Пользователь с ником " + user.getNick() +
-                        " прислал личное сообщение пользователю с ником " + arr[1] +
-                        ": " + arr[2]);
-                myServer.sendPrivateMessage(this, arr[1], arr[2]);
+    private void scheduleActivityCheck(long delayInMillis) {
+        myServer.getTimer().newTimeout(() -> {
+            if(!isConnected.get()) {
+                return;
+            }
+            long timeInMillis = timeForReadMessageFromClientInSeconds * 1000L;
+            long idle = System.currentTimeMillis() - timeLastReadedMessage;
+            if(idle >= timeInMillis) {
+                LOGGER.info("Пользователь с ником " + user.getNick() + " в течение "
+                        + timeForReadMessageFromClientInSeconds + " секунд не проявил активность");
+                myServer.getMetrics().onIdleTimeout();
+                sendMessage(Packet.of(Opcode.TIMEOUT_ACTIVITY));
+                closeConnection();
+            } else {
+                scheduleActivityCheck(timeInMillis - idle);
             }
+        }, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Отвечает на команду, в которой не хватает аргументов (опечатка пользователя), той же ошибкой,
+     * что и на неудачное выполнение команды; соединение остается открытым
+     * @param packet - неполная команда (Packet.isComplete() == false)
+     */
+    private void onIncompleteCommand(Packet packet) {
+        String text = "Не хватает аргументов команды " + packet.getOpcode().getCommand();
+        switch (packet.getOpcode()) {
+            case PRIVATE:
+                sendMessage(Packet.of(Opcode.ERROR_PRIVATE, text));
+                break;
+            case CHANGE_NICK:
+                sendMessage(Packet.of(Opcode.ERROR_CHANGE_NICK, text));
+                break;
+            case JOIN:
+                sendMessage(Packet.of(Opcode.ERROR_ROOM, text));
+                break;
+            case RESUME:
+                sendMessage(Packet.of(Opcode.ERROR_RESUME, text));
+                break;
+            default:
+                sendMessage(Packet.of(Opcode.TEXT, text));
+        }
+    }
+
+    private void onChatMessage(Packet packet) {
+        String message = packet.get(0);
+        Room current = room;
+        // текст сообщений пишется только в журнал аудита: поток обработчика не ждет записи на диск
+        myServer.getAuditLog().message(user.getNick(), current.getName(), message);
+        myServer.broadcastMessage(current, Packet.of(Opcode.MESSAGE, user.getNick(), message));
+    }
+
+    private void onPrivateMessage(Packet packet) {
+        String recipient = packet.get(0);
+        String message = packet.get(1);
+        if(!this.user.getNick().equals(recipient)) {
+            myServer.getAuditLog().privateMessage(user.getNick(), recipient, message);
+            myServer.sendPrivateMessage(this, recipient, message);
         }
-        if(message.startsWith(LIST)) {
-            LOGGER.info("Пользователь с ником " + user.getNick() + " запросил список онлайн-клиентов");
+    }
+
+    /**
+     * "/list" - список ников остальных пользователей (/clients).
+     * "/list epoch version" - изменения списка после версии, которая уже есть у клиента, и подписка
+     * на следующие изменения; неизвестная или неверная версия - весь список (см. Roster)
+     */
+    private void onListRequest(Packet packet) {
+        if(packet.size() < 2) {
+            LOGGER.debug("Пользователь с ником " + user.getNick() + " запросил список онлайн-клиентов");
             myServer.getOnlineUsersList(this);
+            return;
+        }
+        long epoch;
+        long version;
+        try {
+            epoch = Long.parseLong(packet.get(0).trim());
+            version = Long.parseLong(packet.get(1).trim());
+        } catch (NumberFormatException ex) {
+            epoch = 0;
+            version = 0;
+        }
+        LOGGER.debug("Пользователь с ником " + user.getNick() + " запросил изменения списка онлайн-клиентов после версии "
+                + version);
+        myServer.getOnlineUsersSince(this, epoch, version);
+    }
+
+    private void onJoinRoom(Packet packet) {
+        String name = packet.get(0).trim();
+        if(!RoomSettings.isValidName(name)) {
+            sendMessage(Packet.of(Opcode.ERROR_ROOM, "Имя комнаты - от 1 до " + RoomSettings.MAX_NAME_LENGTH
+                    + " букв, цифр, знаков _ и -"));
+            return;
+        }
+        changeRoom(name);
+    }
+
+    private void onLeaveRoom(Packet packet) {
+        changeRoom(myServer.getRoomSettings().getDefaultRoom());
+    }
+
+    private void onRoomsRequest(Packet packet) {
+        myServer.getRoomsList(this);
+    }
+
+    /**
+     * Переводит клиента в комнату: клиент входит в новую комнату раньше, чем выходит из прежней,
+     * поэтому не остается ни в одной комнате, даже если новую создать нельзя.
+     * Прежняя комната оповещается о выходе, новая - о входе
+     * @param name имя комнаты
+     */
+    private void changeRoom(String name) {
+        Room current = room;
+        if(current.getName().equals(name)) {
+            sendMessage(Packet.of(Opcode.JOIN_OK, name));
+            return;
+        }
+        Room target = myServer.joinRoom(this, name);
+        if(target == null) {
+            sendMessage(Packet.of(Opcode.ERROR_ROOM, "Слишком много комнат, комната " + name + " не создана"));
+            return;
+        }
+        room = target;
+        myServer.leaveRoom(this, current);
+        if(!isConnected.get()) {
+            myServer.leaveRoom(this, target);   // соединение закрылось во время перехода
+            return;
+        }
+        LOGGER.info("Пользователь с ником " + user.getNick() + " перешел из комнаты " + current.getName()
+                + " в комнату " + name);
+        myServer.getAuditLog().roomChanged(user.getNick(), name);
+        sendMessage(Packet.of(Opcode.JOIN_OK, name));
+        myServer.broadcastMessage(current, Packet.of(Opcode.NOTIFY, user.getNick() + " перешел в комнату " + name));
+        myServer.broadcastMessage(target, Packet.of(Opcode.NOTIFY, user.getNick() + " вошел в комнату " + name));
+    }
+
+    private void onChangeNick(Packet packet) {
+        String oldNick = user.getNick();
+        String newNick = packet.get(0);
+        LOGGER.info("Пользователь с ником " + user.getNick() + " прислал запрос на смену ника на " + newNick);
+        // новый ник занимается в индексе до обновления базы данных, поэтому во время смены
+        // личные сообщения доставляются этому клиенту и по старому, и по новому нику
+        if(!myServer.reserveNick(newNick, this)) {
+            sendMessage(Packet.of(Opcode.ERROR_CHANGE_NICK, "Пользователь с данным ником уже существует"));
+            return;
+        }
+        boolean isChanged = false;
+        try (PooledConnection dbConnection = DBConnection.getConnection()) {
+            PreparedStatement statement = dbConnection.prepareStatement(CHANGE_NICK_QUERY);
+            statement.setString(1, newNick);
+            statement.setString(2, user.getNick());
+            if (dbConnection.executeUpdate(statement) > 0) {
+                user.setNick(newNick);
+                isChanged = true;
+                myServer.releaseNick(oldNick, this);
+                myServer.nickChanged(this, oldNick);
+                LOGGER.info("Пользователь с ником " + oldNick + " поменял ник на " + newNick);
+                myServer.getAuditLog().nickChanged(oldNick, newNick);
+                sendMessage(Packet.of(Opcode.CHANGE_NICK_OK, newNick));
+                myServer.broadcastMessage(room, Packet.of(Opcode.NOTIFY, "[" + oldNick + " сменил ник на " + newNick + "]"));
+            }
+        } catch (SQLIntegrityConstraintViolationException ex) {
+            sendMessage(Packet.of(Opcode.ERROR_CHANGE_NICK, "Пользователь с данным ником уже существует"));
+        } catch (SQLException ex) {
+            LOGGER.error("Проблемы с базой данных при попытке смены ника c " + oldNick + " на " + newNick + ": " + ex.getMessage());
+            sendMessage(Packet.of(Opcode.ERROR_DB, "Проблемы с базой данных при попытке смены ника"));
+        } finally {
+            if(!isChanged) {
+                myServer.releaseNick(newNick, this);
+            }
         }
-        if(message.startsWith(CHANGE_NICK)) {
-            String oldNick = user.getNick();
-            String newNick = message.substring(CHANGE_NICK.length() + 1);
-            LOGGER.info("Пользователь с ником " + user.getNick() + " прислал запрос на смену ника на " + newNick);
-            try (PreparedStatement statement = DBConnection.getConnection().prepareStatement(CHANGE_NICK_QUERY)) {
-                statement.setString(1, newNick);
-                statement.setString(2, user.getNick());
-                if (statement.executeUpdate() > 0) {
-                    user.setNick(newNick);
-                    LOGGER.info("Пользователь с ником " + user.getNick() + " поменял ник на " + newNick);
-                    sendMessage(CHANGE_NICK_OK + newNick);
-                    myServer.broadcastMessage(NOTIFY + "[" + oldNick + " сменил ник на " + newNick + "]");
+    }
+
+    /**
+     * Отправляет сообщение клиенту в его версии протокола.
+     * Сообщение длиннее 65535 байт клиенту, работающему в версии 1, не доставляется, но соединение не разрывается.
+     * Если у сессии есть журнал, сообщение только записывается в него под блокировкой, а соединению
+     * сообщения журнала передает по порядку один поток (см. flushBacklog) уже без блокировки, поэтому порядок
+     * в журнале совпадает с порядком, в котором сообщения получает клиент, а ожидание места в очереди
+     * соединения не задерживает других отправителей. Пока сессия ждет возобновления, сообщения только
+     * записываются в журнал; если их набралось больше, чем он вмещает, сессия закрывается
+     * @param packet сообщение
+     */
+    public void sendMessage(Packet packet) {
+        SessionBacklog backlog = this.backlog;
+        if(backlog == null) {
+            send(connection, packet);
+            return;
+        }
+        boolean overflow;
+        synchronized (backlog) {
+            backlog.add(packet);
+            if(suspended) {
+                if(backlog.getSequence() - suspendedAt < backlog.getCapacity()) {
+                    return;
+                }
+                overflow = true;
+            } else {
+                if(flushing) {
+                    return;     // сообщение передаст поток, уже разбирающий журнал
+                }
+                flushing = true;
+                overflow = false;
+            }
+        }
+        if(overflow) {
+            expire();
+        } else {
+            flushBacklog(backlog);
+        }
+    }
+
+    /**
+     * Передает соединению сообщения журнала, еще не переданные ему, пока они не кончатся или сессия
+     * не перейдет в ожидание возобновления. Вызывается потоком, установившим flushing.
+     * Если соединение выбросило сообщение после выдачи токена, клиент считает полученные сообщения неверно,
+     * и токен отзывается: при разрыве сессия закроется. Если соединение отстало больше, чем вмещает журнал,
+     * сессия закрывается сразу
+     * @param backlog журнал сессии
+     */
+    private void flushBacklog(SessionBacklog backlog) {
+        String revoked = null;
+        while(true) {
+            List<Packet> batch;
+            Connection target;
+            synchronized (backlog) {
+                if(resumable && connection.getDroppedCount() != droppedBase) {
+                    resumable = false;
+                    revoked = resumeToken;
+                }
+                if(suspended || flushed == backlog.getSequence()) {
+                    flushing = false;
+                    break;
                 }
-            } catch (SQLIntegrityConstraintViolationException ex) {
-                sendMessage(ERROR_CHANGE_NICK + "Пользователь с данным ником уже существует");
-            } catch (SQLException ex) {
-                LOGGER.error("Проблемы с базой данных при попытке смены ника c " + oldNick + " на " + newNick + ": " + ex.getMessage());
-                sendMessage(ERROR_DB_CONNECTION + "Проблемы с базой данных при попытке смены ника");
+                if(!backlog.contains(flushed)) {
+                    flushing = false;
+                    batch = null;
+                    target = null;
+                } else {
+                    batch = backlog.from(flushed);
+                    flushed = backlog.getSequence();
+                    target = connection;
+                }
+            }
+            if(batch == null) {
+                LOGGER.warn("Пользователь с ником " + (user == null ? null : user.getNick())
+                        + " не успевает принимать сообщения, сессия закрывается");
+                closeConnection();
+                break;
             }
+            for(Packet packet : batch) {
+                send(target, packet);
+            }
+        }
+        if(revoked != null) {
+            myServer.releaseResumableSession(revoked, this);
+            LOGGER.info("Соединение с пользователем с ником " + user.getNick()
+                    + " выбросило сообщения, сессию нельзя будет возобновить");
         }
     }
 
-    public void sendMessage(String message) {
+    private void send(Connection target, Packet packet) {
         try {
-            dos.writeUTF(message);
+            target.send(packet);
+        } catch (UTFDataFormatException ex) {
+            LOGGER.warn("Сообщение не может быть доставлено пользователю с ником " + (user == null ? null : user.getNick())
+                    + " по протоколу версии 1: " + ex.getMessage());
         } catch (IOException ex) {
-            LOGGER.error("Ошибка при отправке пользователю с ником " + user.getNick() +
-                    " сообщения: " + message + ": " + ex.getMessage());
-            closeConnection();
+            if(isConnected.get() && backlog == null) {
+                LOGGER.error("Ошибка при отправке пользователю с ником " + (user == null ? null : user.getNick()) +
+                        " сообщения: " + packet + ": " + ex.getMessage());
+            }
+            // соединение уже закрыто; о разрыве и его причине сообщит само соединение (onDisconnect)
         }
     }
 
+    /**
+     * Отписывает клиента от рассылки, оповещает его комнату о выходе и закрывает соединение.
+     * Сообщения, уже стоящие в очереди клиента (например, /timeoutactivity), будут отправлены до закрытия сокета
+     */
     private void closeConnection() {
-        if(isConnected) {
-            isConnected = false;
-            if(user != null) {
-                LOGGER.info("Пользователь с ником " + user.getNick() + " покинул чат");
-                myServer.unsubscribe(this);
-                myServer.broadcastMessage(NOTIFY + user.getNick() + " покинул чат");
-            }
-            try {
-                dis.close();
-            } catch (IOException ex) {
-                LOGGER.error("Ошибка при закрытии DataInputStream: " + ex.getMessage());
+        if(isConnected.compareAndSet(true, false)) {
+            closeSession();
+        }
+    }
+
+    /**
+     * Закрывает сессию после того, как isConnected сброшен: отзывает токен возобновления,
+     * отписывает клиента от рассылки, оповещает его комнату о выходе и закрывает текущее соединение
+     */
+    private void closeSession() {
+        leaveUnauthenticated();
+        boolean wasSuspended = false;
+        SessionBacklog backlog = this.backlog;
+        if(backlog != null) {
+            synchronized (backlog) {
+                wasSuspended = suspended;
+                if(graceTimeout != null) {
+                    graceTimeout.cancel();
+                    graceTimeout = null;
+                }
             }
-            try {
-                dos.close();
-            } catch (IOException ex) {
-                LOGGER.error("Ошибка при закрытии DataOutputStream: " + ex.getMessage());
+            myServer.releaseResumableSession(resumeToken, this);
+        }
+        if(wasSuspended) {
+            myServer.getMetrics().onSuspendedClosed();
+        } else {
+            myServer.getMetrics().onClosed();
+        }
+        if(user != null) {
+            LOGGER.info("Пользователь с ником " + user.getNick() + " покинул чат");
+            myServer.getAuditLog().logout(user.getNick());
+            Room last = room;
+            myServer.unsubscribe(this);
+            if(last != null) {
+                myServer.broadcastMessage(last, Packet.of(Opcode.NOTIFY, user.getNick() + " покинул чат"));
             }
         }
+        connection.close();
+    }
+
+    /**
+     * Отключает клиента, отправив ему сообщение с причиной
+     * @param reason причина отключения
+     */
+    public void disconnect(String reason) {
+        sendMessage(Packet.of(Opcode.TEXT, reason));
+        closeConnection();
     }
 
     public User getUser() {
         return user;
     }
+
+    /**
+     * @return комната клиента или null до входа в чат
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    /**
+     * @return логин авторизованного клиента или null до авторизации
+     */
+    public String getLogin() {
+        return login;
+    }
 }
@@ -2,40 +2,69 @@ package serverside.service;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import serverside.db.ConnectionPool;
+import serverside.db.PooledConnection;
 
 import java.sql.*;
 
+/**
+ * Точка доступа к пулу соединений с базой данных.
+ * Пул создается при запуске сервера по настройкам chat.db.*. Вместо MySQL можно указать
+ * встроенную базу, например chat.db.url=jdbc:h2:mem:chat;MODE=MySQL;DB_CLOSE_DELAY=-1
+ */
 public class DBConnection {
     private static final String DB = "jdbc:mysql://localhost:3306/chat";
     private static final String USER = "root";
     private static final String PASSWORD = "root";
-    private static Connection dbConnection;
+    private static volatile ConnectionPool pool;
 
     private static final Logger LOGGER = LogManager.getLogger(DBConnection.class);
-    
-    public static Connection getConnection() throws SQLException {
+
+    /**
+     * Создает пул соединений
+     * @param config настройки сервера
+     * @throws SQLException, если не удалось открыть начальные соединения
+     */
+    public static void init(ServerConfig config) throws SQLException {
         /*try {
             Class.forName("com.mysql.cj.jdbc.Driver");   // в версии mysql connector 8.0.23 писать это необязательно
         } catch (ClassNotFoundException e) {             // т.к. этот класс загружается автоматически
             e.printStackTrace();
         }*/
-        if(dbConnection == null) {
-            dbConnection = DriverManager.getConnection(DB, USER, PASSWORD);
-            LOGGER.info("Соединение с базой данных установлено");
+        pool = new ConnectionPool(
+                config.getString("chat.db.url", DB),
+                config.getString("chat.db.user", USER),
+                config.getString("chat.db.password", PASSWORD),
+                config.getInt("chat.db.pool.minSize", 2),
+                config.getInt("chat.db.pool.maxSize", 10),
+                config.getLong("chat.db.pool.acquireTimeoutMillis", 5000),
+                config.getLong("chat.db.pool.validateAfterIdleMillis", 30000),
+                config.getInt("chat.db.pool.statementCacheSize", 32));
+    }
+
+    /**
+     * Выдает соединение из пула. Соединение возвращается в пул вызовом close
+     * @return соединение
+     * @throws SQLException, если пул не создан или свободного соединения нет
+     */
+    public static PooledConnection getConnection() throws SQLException {
+        ConnectionPool pool = DBConnection.pool;
+        if(pool == null) {
+            throw new SQLTransientConnectionException("Пул соединений с базой данных не создан");
         }
-        return dbConnection;
+        return pool.acquire();
     }
-    
+
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
     public static void closeConnection() {
-        try {
-            if(dbConnection != null) {
-                dbConnection.close();
-            }
-            LOGGER.info("Соединение с базой данных закрыто.");
-        } catch(SQLException ex) {
-            LOGGER.error("Ошибка при закрытии соединения с базой данных: " + ex.getMessage());
-        } finally {
-            dbConnection = null;
+        ConnectionPool pool = DBConnection.pool;
+        if(pool != null) {
+            pool.close();
+            LOGGER.info("Соединения с базой данных закрыты.");
         }
+        DBConnection.pool = null;
     }
 }
@@ -0,0 +1,186 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.metrics.LatencyHistogram;
+import serverside.protocol.Packet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул рассылки сообщений в больших комнатах.
+ * Участники большой комнаты разделены на полосы (см. Room): полоса клиента определяется самим клиентом
+ * и не меняется, и каждую полосу рассылает свой поток со своей очередью. Поэтому сообщения одного
+ * отправителя приходят каждому получателю в том порядке, в каком отправлены, а рассылка одного сообщения
+ * идет параллельно во всех полосах.
+ * Очереди потоков ограничены: если пул не успевает, отправитель ждет места в очереди, и нагрузка
+ * не копится в памяти сервера. Потоки самого пула не ждут никогда: рассылка, начатая из потока пула
+ * (например, оповещение о выходе клиента, отключенного при отправке ему сообщения), при полной очереди
+ * выбрасывается, иначе поток мог бы ждать места в собственной очереди. По той же причине потоки пула
+ * не ждут места в очереди медленного получателя (см. OutboundQueue)
+ */
+public class FanoutPool {
+    private final Worker[] workers;
+    private final LatencyHistogram latency;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+
+    private static final Logger LOGGER = LogManager.getLogger(FanoutPool.class);
+
+    private final class Worker extends Thread {
+        final BlockingQueue<Task> queue;
+
+        Worker(int index, int queueCapacity) {
+            super("room-fanout-" + index);
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            runWorker(queue);
+        }
+
+        FanoutPool pool() {
+            return FanoutPool.this;
+        }
+    }
+
+    private static final class Task {
+        final Packet packet;
+        final ClientHandler[] recipients;
+        final long startNanos;
+
+        Task(Packet packet, ClientHandler[] recipients, long startNanos) {
+            this.packet = packet;
+            this.recipients = recipients;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * @param threads число потоков (полос)
+     * @param queueCapacity размер очереди каждого потока
+     * @param latency гистограмма времени рассылки: от начала рассылки до постановки сообщения в очереди
+     *                всех получателей полосы
+     */
+    public FanoutPool(int threads, int queueCapacity, LatencyHistogram latency) {
+        this.latency = latency;
+        this.workers = new Worker[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, queueCapacity);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return true, если текущий поток - поток какого-либо пула рассылки
+     */
+    static boolean isWorkerThread() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * @return число полос
+     */
+    public int getStripeCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return гистограмма времени рассылки сообщений в комнаты
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return полоса клиента
+     */
+    int stripeOf(ClientHandler client) {
+        return Math.floorMod(System.identityHashCode(client), workers.length);
+    }
+
+    /**
+     * Ставит рассылку пакета по полосам в очереди потоков пула.
+     * Поток этого пула не ждет места в очереди: при полной очереди рассылка в полосу выбрасывается
+     * @param packet пакет
+     * @param stripes участники по полосам; длина массива равна getStripeCount()
+     * @param startNanos начало рассылки (System.nanoTime())
+     */
+    void fanout(Packet packet, ClientHandler[][] stripes, long startNanos) {
+        Thread current = Thread.currentThread();
+        boolean inPool = current instanceof Worker && ((Worker) current).pool() == this;
+        for(int i = 0; i < stripes.length; i++) {
+            ClientHandler[] recipients = stripes[i];
+            if(recipients.length == 0) {
+                continue;
+            }
+            Task task = new Task(packet, recipients, startNanos);
+            if(inPool) {
+                if(!workers[i].queue.offer(task)) {
+                    dropped.increment();
+                    LOGGER.warn("Очередь пула рассылки переполнена, сообщение не доставлено "
+                            + recipients.length + " участникам: " + packet);
+                }
+                continue;
+            }
+            try {
+                workers[i].queue.put(task);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Рассылка сообщения прервана: " + packet);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return сколько задач рассылки ждут потоков пула
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for(Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return сколько рассылок в полосу выброшено из-за переполнения очереди
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Останавливает потоки пула; задачи, оставшиеся в очередях, не выполняются
+     */
+    public void stop() {
+        running = false;
+        for(Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void runWorker(BlockingQueue<Task> queue) {
+        while(running) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for(ClientHandler recipient : task.recipients) {
+                try {
+                    recipient.sendMessage(task.packet);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Ошибка при рассылке сообщения " + task.packet + ": " + ex.getMessage());
+                }
+            }
+            latency.recordSince(task.startNanos);
+        }
+    }
+}
@@ -2,15 +2,42 @@ package serverside.service;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import serverside.audit.AuditLog;
+import serverside.audit.AuditSettings;
+import serverside.cluster.Cluster;
+import serverside.cluster.ClusterSettings;
+import serverside.db.ConnectionPool;
+import serverside.history.LogEntry;
+import serverside.history.MessageLog;
+import serverside.history.MessageLogSettings;
 import serverside.interfaces.AuthService;
+import serverside.metrics.MetricsEndpoint;
+import serverside.metrics.MetricsRegistry;
+import serverside.metrics.MetricsSettings;
+import serverside.metrics.ServerMetrics;
 import serverside.model.User;
+import serverside.nio.NioServer;
+import serverside.protocol.FrameCodec;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.timer.HashedWheelTimer;
+import serverside.tls.ServerTls;
+import serverside.tls.TlsSettings;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import java.sql.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * класс Сервер
@@ -18,11 +45,37 @@ import java.sql.*;
 public class MyServer {
 
     private final int PORT = 8081;
-    private List<ClientHandler> clients;
+    // пользователи в чате с версией и журналом изменений: ответ на /list и рассылка изменений списка
+    private Roster roster;
+    // индекс ник -> клиент: личные сообщения и проверка повторного входа без перебора списка клиентов
+    private final Map<String, ClientHandler> clientsByNick = new ConcurrentHashMap<>();
+    // токен возобновления -> сессия; сессия остается здесь и после разрыва соединения, пока не будет закрыта
+    private final Map<String, ClientHandler> resumableSessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokenRandom = new SecureRandom();
+    private ResumeSettings resumeSettings;
+    private AdmissionControl admissionControl;
+    private RateLimitSettings rateLimitSettings;
+    private ServerTls tls;                                        // null - соединения без шифрования
     private AuthService authService;
+    private HashedWheelTimer timer;
+    private ExecutorService clientExecutor;
+    private OutboundQueueSettings outboundQueueSettings;
+    private ProtocolSettings protocolSettings;
+    private MessageLog messageLog;
+    private AuditLog auditLog;
+    private RoomSettings roomSettings;
+    private FanoutPool fanoutPool;
+    // комнаты по имени; общая комната создается при запуске и не удаляется, остальные удаляются, когда пустеют
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private Room defaultRoom;
+    private Cluster cluster;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private MetricsEndpoint metricsEndpoint;
 
-    private static final String ERR_SPM = "/errorSPM ";   // ошибка при отправке личного сообщения
-    private static final String CLIENTS = "/clients ";    // список онлайн клиентов
+    private static final String TRANSPORT_BLOCKING = "blocking";  // поток на каждого клиента
+    private static final String TRANSPORT_NIO = "nio";            // циклы событий на Selector
+    private static final int MAX_LISTED_ROOMS = 100;
 
     private static final Logger LOGGER = LogManager.getLogger(MyServer.class);
 
@@ -30,100 +83,733 @@ public class MyServer {
         return authService;
     }
 
+    /**
+     * Общий таймер сервера, отслеживающий время на авторизацию и время простоя всех клиентов
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Настройки очередей исходящих сообщений клиентов и общие счетчики глубины очередей и выброшенных сообщений
+     */
+    public OutboundQueueSettings getOutboundQueueSettings() {
+        return outboundQueueSettings;
+    }
+
+    /**
+     * Настройки протокола: максимальная версия, на которую сервер соглашается, и максимальная длина кадра
+     */
+    public ProtocolSettings getProtocolSettings() {
+        return protocolSettings;
+    }
+
+    /**
+     * Журнал сообщений в общий чат и личных сообщений или null, если журнал отключен (chat.history.enabled=false)
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Журнал аудита: входы, выходы и сообщения пользователей (настройки chat.audit.*)
+     */
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * Настройки комнат: имя общей комнаты, ограничение числа комнат и параметры пула рассылки
+     */
+    public RoomSettings getRoomSettings() {
+        return roomSettings;
+    }
+
+    /**
+     * Настройки возобновления сессий после разрыва соединения (chat.resume.*)
+     */
+    public ResumeSettings getResumeSettings() {
+        return resumeSettings;
+    }
+
+    /**
+     * Контроль приема подключений: частота подключений с адреса и число соединений, ожидающих входа (chat.admission.*)
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * TLS сервера (chat.tls.*) или null, если соединения клиентов не шифруются
+     */
+    public ServerTls getTls() {
+        return tls;
+    }
+
+    /**
+     * Ограничение частоты сообщений и команд клиентов (chat.ratelimit.*)
+     */
+    public RateLimitSettings getRateLimitSettings() {
+        return rateLimitSettings;
+    }
+
+    /**
+     * Общая комната, в которую клиент попадает при входе
+     */
+    public Room getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * Список пользователей в чате на этом узле и на других узлах кластера
+     */
+    public Roster getRoster() {
+        return roster;
+    }
+
+    /**
+     * Узел кластера или null, если сервер работает один (chat.cluster.port не задан)
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Счетчики соединений, входящих сообщений, отключений по таймаутам и время рассылки в комнаты
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Executor для потоков обработчиков клиентов (обычных или виртуальных, см. ThreadMode)
+     */
+    public ExecutorService getClientExecutor() {
+        return clientExecutor;
+    }
+
     /**
      * Конструктор, запускающий сервер
      * Последовательность запуска сервера:
-     * 1. Создание ServerSocket с портом PORT.
-     * 2. Старт сервиса аутентификации
-     * 3. Ожидание подключения от клиента
-     * 4. После подключения клиента, создается ClientHandler.
+     * 1. Создание пула соединений с базой данных (настройки chat.db.*) и старт сервиса аутентификации,
+     *    создание общей комнаты и пула рассылки (настройки chat.rooms.*),
+     *    открытие журнала сообщений (настройки chat.history.*) и журнала аудита (настройки chat.audit.*),
+     *    настройки возобновления сессий (chat.resume.*), приема подключений (chat.admission.*)
+     *    и ограничения частоты сообщений клиентов (chat.ratelimit.*)
+     * 2. Выбор режима потоков обработчиков клиентов по настройке chat.threads (platform или virtual),
+     *    создание списка пользователей в чате (настройки chat.presence.*, см. Roster)
+     * 3. Подключение к другим узлам кластера, если задан chat.cluster.port (см. Cluster)
+     * 3.1. Создание контекста TLS для соединений клиентов, если chat.tls.enabled (настройки chat.tls.*, см. ServerTls)
+     * 3.2. Регистрация показателей сервера в JMX и открытие адреса /metrics (настройки chat.metrics.*)
+     * 4. Выбор транспорта по настройке chat.transport:
+     *    blocking (по умолчанию) - ServerSocket и отдельные потоки для каждого клиента,
+     *    nio - неблокирующие каналы и небольшое число циклов событий (см. NioServer)
+     * 5. Ожидание подключения от клиента
+     * 6. Проверка подключения в AdmissionControl: отклоненное соединение сразу закрывается
+     * 7. После подключения клиента, создается ClientHandler; рукопожатие TLS выполняется уже в его потоке.
+     * @param config настройки сервера
      */
-    public MyServer() {
-        try (ServerSocket server = new ServerSocket(PORT)) {
-            LOGGER.info("Сервер запущен");
-            authService = new BaseAuthService();
+    public MyServer(ServerConfig config) {
+        this(config, true);
+    }
+
+    /**
+     * Конструктор сервера.
+     * Без приема подключений (listen=false) выполняются только шаги 1 и 2, и конструктор сразу возвращается:
+     * такой сервер не открывает порты для клиентов и узлов кластера (узел кластера запускается отдельно
+     * методом startCluster), не выдает показатели, а клиенты подключаются созданием
+     * ClientHandler(MyServer, Connection) (например, в бенчмарках).
+     * Останавливается он методом stop
+     * @param config настройки сервера
+     * @param listen true - запустить сервер и принимать подключения до его остановки
+     */
+    public MyServer(ServerConfig config, boolean listen) {
+        int port = config.getInt("chat.port", PORT);
+        String transport = config.getString("chat.transport", TRANSPORT_BLOCKING);
+        ThreadMode threadMode = ThreadMode.from(config);
+        boolean embedded = false;
+        try {
+            DBConnection.init(config);
+            authService = new BaseAuthService(config);
             authService.start();
-            clients = new ArrayList<>();
-            while(true) {
-                LOGGER.info("Сервер ожидает подключения");
-                Socket socket = server.accept();
-                LOGGER.info("Клиент подключился");
-                new ClientHandler(this, socket);
+            outboundQueueSettings = OutboundQueueSettings.from(config);
+            resumeSettings = ResumeSettings.from(config);
+            admissionControl = new AdmissionControl(AdmissionSettings.from(config));
+            rateLimitSettings = RateLimitSettings.from(config);
+            roomSettings = RoomSettings.from(config);
+            fanoutPool = new FanoutPool(roomSettings.getFanoutThreads(), roomSettings.getFanoutQueueCapacity(),
+                    metrics.getFanoutLatency());
+            defaultRoom = new Room(roomSettings.getDefaultRoom(), true, roomSettings.getParallelThreshold(), fanoutPool);
+            rooms.put(defaultRoom.getName(), defaultRoom);
+            protocolSettings = protocolSettings(config);
+            if(config.getBoolean("chat.history.enabled", true)) {
+                messageLog = MessageLog.open(MessageLogSettings.from(config), protocolSettings.getMaxFrameLength());
+            }
+            auditLog = AuditLog.open(AuditSettings.from(config));
+            LOGGER.info("Политика для медленных клиентов: " + outboundQueueSettings.getPolicy()
+                    + ", размер очереди: " + outboundQueueSettings.getCapacity());
+            LOGGER.info("Прием подключений: " + admissionControl.getSettings());
+            LOGGER.info("Ограничение частоты для клиента: " + rateLimitSettings);
+            clientExecutor = threadMode.newExecutor("client-handler-");
+            timer = new HashedWheelTimer(config.getLong("chat.timer.tickMillis", 100), TimeUnit.MILLISECONDS,
+                    config.getInt("chat.timer.wheelSize", 512), clientExecutor);
+            LOGGER.info("Режим потоков обработчиков клиентов: " + threadMode);
+            roster = Roster.from(config, timer);
+            if(!listen) {
+                embedded = true;
+                return;
+            }
+            startCluster(config);
+            TlsSettings tlsSettings = TlsSettings.from(config);
+            if(tlsSettings.isEnabled()) {
+                tls = new ServerTls(tlsSettings);
+                LOGGER.info("TLS: " + tlsSettings);
+            }
+            startMetrics(MetricsSettings.from(config));
+            if(TRANSPORT_NIO.equals(transport)) {
+                new NioServer(this, config, port, threadMode).run();
+            } else {
+                runBlocking(port);
             }
         } catch (IOException ex) {
             LOGGER.error("Сервер грохнулся: " + ex.getMessage());
         } catch(SQLException ex) {
             LOGGER.error("Проблемы с базой данных: " + ex.getMessage());
         } finally {
-            if(authService != null) {
-                authService.stop();
+            if(!embedded) {
+                stop();
             }
-            DBConnection.closeConnection();
-            LOGGER.info("Работа сервера остановлена");
         }
     }
 
     /**
-     * Отправляет сообщение в общий чат
-     * @param message сообщение
+     * Запускает узел кластера, если задан chat.cluster.port. Вызывается конструктором сервера, принимающего
+     * подключения; сервер без приема подключений (listen=false) может подключиться к кластеру этим методом
+     * до появления клиентов, например, чтобы бенчмарк запустил несколько узлов в одном процессе
+     * @param config настройки сервера
+     * @throws IOException, если порт для соединений от других узлов занят
+     */
+    public void startCluster(ServerConfig config) throws IOException {
+        ClusterSettings clusterSettings = ClusterSettings.from(config);
+        if(clusterSettings == null || cluster != null) {
+            return;
+        }
+        cluster = new Cluster(this, clusterSettings, protocolSettings, clientExecutor);
+        cluster.start();
+    }
+
+    /**
+     * Останавливает компоненты сервера и закрывает пул соединений с базой данных
+     */
+    public void stop() {
+        if(metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metricsRegistry.stop();
+        if(authService != null) {
+            authService.stop();
+        }
+        if(timer != null) {
+            timer.stop();
+        }
+        if(cluster != null) {
+            cluster.stop();
+        }
+        if(fanoutPool != null) {
+            fanoutPool.stop();
+        }
+        if(messageLog != null) {
+            messageLog.close();
+        }
+        if(auditLog != null) {
+            auditLog.close();
+        }
+        if(clientExecutor != null) {
+            clientExecutor.shutdownNow();
+        }
+        DBConnection.closeConnection();
+        LOGGER.info("Работа сервера остановлена");
+    }
+
+    /**
+     * Регистрирует показатели сервера и его компонентов, запускает вычисление скоростей,
+     * регистрирует MBean и открывает адрес /metrics
+     * @throws IOException, если порт адреса /metrics занят
+     */
+    private void startMetrics(MetricsSettings settings) throws IOException {
+        MetricsRegistry r = metricsRegistry;
+        r.counter("connections", "accepted_total", "Принятые соединения клиентов", metrics::getAcceptedCount);
+        r.gauge("connections", "active", "Открытые соединения клиентов", metrics::getActiveCount);
+        r.gauge("connections", "authenticated", "Клиенты, вошедшие в чат", metrics::getAuthenticatedCount);
+        r.gauge("connections", "unauthenticated", "Соединения, ожидающие входа в чат",
+                admissionControl::getUnauthenticatedCount);
+        r.counter("connections", "rejected_total", "reason=\"ip_rate\"",
+                "Подключения, закрытые при приеме, по причинам", admissionControl::getRateLimitedCount);
+        r.counter("connections", "rejected_total", "reason=\"unauthenticated_limit\"",
+                "Подключения, закрытые при приеме, по причинам", admissionControl::getUnauthenticatedLimitedCount);
+        if(tls != null) {
+            r.counter("tls", "handshakes_total", "type=\"full\"", "Завершенные рукопожатия TLS",
+                    tls::getFullHandshakeCount);
+            r.counter("tls", "handshakes_total", "type=\"resumed\"", "Завершенные рукопожатия TLS",
+                    tls::getResumedHandshakeCount);
+            r.counter("tls", "handshake_failures_total", "Рукопожатия TLS, не завершившиеся вовремя или с ошибкой",
+                    tls::getFailedHandshakeCount);
+            r.histogram("tls", "handshake_seconds", "Время рукопожатия TLS на сервере", tls.getHandshakeLatency());
+        }
+        r.counter("connections", "disconnects_total", "reason=\"auth_timeout\"",
+                "Отключения клиентов сервером по причинам", metrics::getAuthTimeoutCount);
+        r.counter("connections", "disconnects_total", "reason=\"idle_timeout\"",
+                "Отключения клиентов сервером по причинам", metrics::getIdleTimeoutCount);
+        r.counter("connections", "disconnects_total", "reason=\"slow_consumer\"",
+                "Отключения клиентов сервером по причинам", outboundQueueSettings::getSlowConsumerDisconnectsCount);
+        r.counter("connections", "disconnects_total", "reason=\"rate_limit\"",
+                "Отключения клиентов сервером по причинам", rateLimitSettings::getDisconnectsCount);
+        if(cluster != null) {
+            r.counter("connections", "disconnects_total", "reason=\"duplicate_login\"",
+                    "Отключения клиентов сервером по причинам", cluster::getDuplicateLoginCount);
+        }
+
+        r.gauge("connections", "sessions_suspended", "Сессии, ждущие переподключения клиента",
+                metrics::getSuspendedCount);
+        r.counter("connections", "resumes_total", "Сессии, возобновленные после разрыва соединения",
+                metrics::getResumedCount);
+        r.counter("connections", "resume_failures_total", "Отклоненные попытки возобновления",
+                metrics::getResumeFailureCount);
+        r.counter("connections", "sessions_expired_total", "Сессии, закрытые без возобновления",
+                metrics::getExpiredCount);
+
+        r.counter("messages", "in_total", "Сообщения и команды от клиентов, вошедших в чат", metrics::getMessagesInCount);
+        r.counter("messages", "out_total", "Сообщения, поставленные в очереди клиентов",
+                outboundQueueSettings::getEnqueuedCount);
+        r.counter("messages", "dropped_total", "Сообщения, выброшенные из очередей медленных клиентов",
+                outboundQueueSettings::getDroppedCount);
+        r.counter("messages", "rate_limited_total", "action=\"drop\"",
+                "Сообщения и команды клиентов сверх ограничения частоты", rateLimitSettings::getDroppedCount);
+        r.counter("messages", "rate_limited_total", "action=\"delay\"",
+                "Сообщения и команды клиентов сверх ограничения частоты", rateLimitSettings::getDelayedCount);
+        r.counter("messages", "writes_total", "Записи в сокеты клиентов", outboundQueueSettings::getWriteCount);
+        r.gauge("messages", "outbound_queue_depth", "Сообщения в очередях всех клиентов",
+                outboundQueueSettings::getDepth);
+        r.gauge("messages", "fanout_queue_depth", "Задачи рассылки в очередях пула рассылки",
+                fanoutPool::getQueueDepth);
+        r.counter("messages", "fanout_dropped_total", "Рассылки в полосу, выброшенные потоком пула рассылки при полной очереди",
+                fanoutPool::getDroppedCount);
+        r.histogram("messages", "fanout_seconds", "Время рассылки сообщения участникам комнаты",
+                metrics.getFanoutLatency());
+
+        if(authService instanceof BaseAuthService) {
+            BaseAuthService auth = (BaseAuthService) authService;
+            r.gauge("auth", "queued", "Запросы в очереди пула аутентификации", auth::getQueuedCount);
+            r.counter("auth", "coalesced_total", "Запросы, объединенные с уже выполняющимся",
+                    auth::getCoalescedCount);
+            r.counter("auth", "rejected_total", "Запросы, отклоненные из-за переполнения очереди",
+                    auth::getRejectedCount);
+            r.histogram("auth", "latency_seconds", "Время аутентификации от постановки в очередь до ответа базы",
+                    auth.getAuthLatency());
+        }
+
+        ConnectionPool pool = DBConnection.getPool();
+        r.gauge("db", "pool_active", "Выданные соединения пула", pool::getActiveCount);
+        r.gauge("db", "pool_idle", "Свободные соединения пула", pool::getIdleCount);
+        r.gauge("db", "pool_waiting", "Потоки, ожидающие соединения", pool::getWaitingThreadsCount);
+        r.counter("db", "acquire_total", "Выдачи соединений", pool::getAcquireCount);
+        r.counter("db", "acquire_timeouts_total", "Истекшие ожидания соединения", pool::getAcquireTimeoutsCount);
+        r.counter("db", "queries_total", "Запросы к базе данных", pool::getQueryCount);
+        r.histogram("db", "query_seconds", "Время выполнения запроса к базе данных", pool.getQueryLatency());
+
+        if(messageLog != null) {
+            r.counter("history", "appended_total", "Записи в журнал сообщений", messageLog::getAppendedCount);
+            r.counter("history", "dropped_total", "Записи, выброшенные при переполнении очереди журнала",
+                    messageLog::getDroppedCount);
+            r.gauge("history", "queue_depth", "Записи в очереди журнала сообщений", messageLog::getQueueDepth);
+        }
+        r.counter("audit", "written_total", "События, записанные в журнал аудита", auditLog::getWrittenCount);
+        r.counter("audit", "dropped_total", "События, выброшенные при переполнении буфера", auditLog::getDroppedCount);
+        r.gauge("audit", "queue_depth", "События в буфере журнала аудита", auditLog::getQueueDepth);
+
+        r.gauge("roster", "users", "Пользователи в чате на всех узлах", roster::size);
+        r.gauge("roster", "version", "Версия списка пользователей", roster::getVersion);
+        r.gauge("roster", "subscribers", "Клиенты, подписанные на изменения списка", roster::getSubscriberCount);
+
+        if(cluster != null) {
+            r.gauge("cluster", "links", "Соединения с другими узлами", cluster::getLinkCount);
+            r.gauge("cluster", "remote_users", "Пользователи других узлов", cluster::getRemoteUserCount);
+            r.counter("cluster", "relayed_broadcasts_total", "Сообщения в комнаты, пересланные другим узлам",
+                    cluster::getRelayedBroadcastCount);
+            r.counter("cluster", "received_broadcasts_total", "Сообщения в комнаты, полученные от других узлов",
+                    cluster::getReceivedBroadcastCount);
+            r.counter("cluster", "routed_private_total", "Личные сообщения, пересланные другим узлам",
+                    cluster::getRoutedPrivateMessageCount);
+        }
+
+        r.start(timer);
+        if(settings.isJmxEnabled()) {
+            r.registerMBeans();
+        }
+        if(settings.isEndpointEnabled()) {
+            metricsEndpoint = MetricsEndpoint.start(settings, r);
+        }
+    }
+
+    private static ProtocolSettings protocolSettings(ServerConfig config) {
+        int number = config.getInt("chat.protocol.maxVersion", ProtocolVersion.V2.getNumber());
+        ProtocolVersion maxVersion = ProtocolVersion.of(number);
+        if(maxVersion == null) {
+            LOGGER.error("Неизвестная версия протокола " + number + ", используется " + ProtocolVersion.V2.getNumber());
+            maxVersion = ProtocolVersion.V2;
+        }
+        int compressionThreshold = config.getInt("chat.compression.threshold",
+                ProtocolSettings.DEFAULT_COMPRESSION_THRESHOLD);
+        if(compressionThreshold < 1) {
+            LOGGER.error("Порог сжатия должен быть положительным: " + compressionThreshold
+                    + ", используется " + ProtocolSettings.DEFAULT_COMPRESSION_THRESHOLD);
+            compressionThreshold = ProtocolSettings.DEFAULT_COMPRESSION_THRESHOLD;
+        }
+        return new ProtocolSettings(maxVersion, Math.max(FrameCodec.MAX_PAYLOAD_LENGTH,
+                config.getInt("chat.protocol.maxFrameLength", ProtocolSettings.DEFAULT_MAX_FRAME_LENGTH)),
+                config.getBoolean("chat.compression.enabled", true), compressionThreshold);
+    }
+
+    /**
+     * Принимает подключения через блокирующий ServerSocket.
+     * Подключение, отклоненное AdmissionControl, закрывается до создания ClientHandler и включения TLS
+     * @param port порт сервера
+     * @throws IOException, если не удалось открыть ServerSocket или принять подключение
+     */
+    private void runBlocking(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, admissionControl.getSettings().getAcceptBacklog())) {
+            LOGGER.info("Сервер запущен");
+            while(true) {
+                LOGGER.info("Сервер ожидает подключения");
+                Socket socket = server.accept();
+                if(!admissionControl.admit(socket.getInetAddress())) {
+                    reject(socket);
+                    continue;
+                }
+                if(tls != null) {
+                    try {
+                        socket = tls.wrap(socket);
+                    } catch (IOException ex) {
+                        LOGGER.error("Не удалось включить TLS для подключения: " + ex.getMessage());
+                        reject(socket);
+                        continue;
+                    }
+                }
+                LOGGER.info("Клиент подключился");
+                new ClientHandler(this, socket);
+            }
+        }
+    }
+
+    /**
+     * Закрывает отклоненное соединение сбросом (RST): сокет не остается в TIME_WAIT на стороне сервера
      */
-    public synchronized void broadcastMessage(String message) {
-        for(ClientHandler c : clients) {
-            c.sendMessage(message);
+    private static void reject(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException ignored) {
+
         }
     }
 
+    /**
+     * Отправляет сообщение в общую комнату
+     * @param packet сообщение
+     */
+    public void broadcastMessage(Packet packet) {
+        broadcastMessage(defaultRoom, packet);
+    }
+
+    /**
+     * Отправляет сообщение всем участникам комнаты.
+     * Пакет создается один раз и ставится в очереди всех клиентов; кадр каждой версии протокола
+     * кодируется при первой отправке и затем переиспользуется, поэтому медленный клиент не задерживает рассылку.
+     * Рассылки в разных комнатах не блокируют друг друга (см. Room), большие комнаты рассылаются пулом рассылки.
+     * Сообщения общей комнаты ставятся в очередь журнала сообщений, запись на диск выполняет поток журнала.
+     * В кластере сообщение пересылается остальным узлам
+     * @param room комната
+     * @param packet сообщение
+     */
+    public void broadcastMessage(Room room, Packet packet) {
+        if(messageLog != null && room == defaultRoom) {
+            messageLog.append(LogEntry.broadcast(packet));
+        }
+        room.broadcast(packet);
+        if(cluster != null) {
+            cluster.relayBroadcast(room.getName(), packet);
+        }
+    }
+
+    /**
+     * Рассылает сообщение в комнату, пересланное другим узлом кластера.
+     * Если на этом узле в комнате никого нет, сообщение никому не отправляется
+     * @param roomName имя комнаты
+     * @param packet сообщение
+     */
+    public void deliverRemoteBroadcast(String roomName, Packet packet) {
+        Room room = rooms.get(roomName);
+        if(room == null) {
+            return;
+        }
+        if(messageLog != null && room == defaultRoom) {
+            messageLog.append(LogEntry.broadcast(packet));
+        }
+        room.broadcast(packet);
+    }
+
     /**
      * Отправляет личное сообщение
      * @param sender отправитель
      * @param recipient получатель
      * @param message сообщение
      */
-    public synchronized void sendPrivateMessage(ClientHandler sender, String recipient, String message) {
+    public void sendPrivateMessage(ClientHandler sender, String recipient, String message) {
         String senderNick = sender.getUser().getNick();
-        for(ClientHandler c : clients) {
-            if(c.getUser().getNick().equals(recipient)) {
-                c.sendMessage("[Личное сообщение от " + senderNick + "]: " + message);
-                sender.sendMessage("[Личное сообщение к " + recipient + "]: " + message);
-                return;
+        ClientHandler c = clientsByNick.get(recipient);
+        if(c != null) {
+            Packet delivered = Packet.of(Opcode.PRIVATE_FROM, senderNick, message);
+            if(messageLog != null) {
+                messageLog.append(LogEntry.privateMessage(sender.getLogin(), c.getLogin(), recipient, delivered));
+            }
+            c.sendMessage(delivered);
+            sender.sendMessage(Packet.of(Opcode.PRIVATE_TO, recipient, message));
+            return;
+        }
+        String recipientLogin = cluster == null ? null
+                : cluster.routePrivateMessage(sender.getLogin(), senderNick, recipient, message);
+        if(recipientLogin != null) {
+            if(messageLog != null) {
+                messageLog.append(LogEntry.privateMessage(sender.getLogin(), recipientLogin, recipient,
+                        Packet.of(Opcode.PRIVATE_FROM, senderNick, message)));
             }
+            sender.sendMessage(Packet.of(Opcode.PRIVATE_TO, recipient, message));
+            return;
         }
-        sender.sendMessage(ERR_SPM + "Пользователя " + recipient + " нет в чате");
+        sender.sendMessage(Packet.of(Opcode.ERROR_PRIVATE, "Пользователя " + recipient + " нет в чате"));
     }
 
-    public synchronized void getOnlineUsersList(ClientHandler clientHandler) {
-        StringBuilder sb = new StringBuilder(CLIENTS);
-        for(ClientHandler c : clients) {
-            if(!c.equals(clientHandler)) {
-                sb.append(c.getUser().getNick()).append(" ");
+    /**
+     * Доставляет личное сообщение, пересланное другим узлом кластера
+     * @return false, если получателя на этом узле уже нет
+     */
+    public boolean deliverRemotePrivateMessage(String senderLogin, String senderNick, String recipient, String message) {
+        ClientHandler c = clientsByNick.get(recipient);
+        if(c == null || c.getLogin() == null) {
+            return false;
+        }
+        Packet delivered = Packet.of(Opcode.PRIVATE_FROM, senderNick, message);
+        if(messageLog != null) {
+            messageLog.append(LogEntry.privateMessage(senderLogin, c.getLogin(), recipient, delivered));
+        }
+        c.sendMessage(delivered);
+        return true;
+    }
+
+    /**
+     * Сообщает отправителю, что личное сообщение не доставлено: получатель вышел с другого узла
+     * @param senderNick ник отправителя
+     * @param recipient ник получателя
+     */
+    public void deliverRemotePrivateError(String senderNick, String recipient) {
+        ClientHandler sender = clientsByNick.get(senderNick);
+        if(sender != null) {
+            sender.sendMessage(Packet.of(Opcode.ERROR_PRIVATE, "Пользователя " + recipient + " нет в чате"));
+        }
+    }
+
+    /**
+     * Отключает клиента, если тот же пользователь раньше вошел в чат на другом узле кластера
+     * @param nick ник
+     */
+    public void disconnectDuplicate(String nick) {
+        ClientHandler c = clientsByNick.get(nick);
+        if(c != null) {
+            c.disconnect("Пользователь с данным логином и паролем уже в чате");
+        }
+    }
+
+    /**
+     * Отвечает на "/list" без версии списком ников всех пользователей, кроме самого клиента (/clients)
+     * @param clientHandler клиент
+     */
+    public void getOnlineUsersList(ClientHandler clientHandler) {
+        clientHandler.sendMessage(roster.clientsExcept(clientHandler.getUser().getNick()));
+    }
+
+    /**
+     * Отвечает на "/list epoch version" изменениями списка пользователей после этой версии или всем списком
+     * и подписывает клиента на рассылку следующих изменений
+     * @param clientHandler клиент
+     * @param epoch epoch списка у клиента
+     * @param version версия списка у клиента
+     */
+    public void getOnlineUsersSince(ClientHandler clientHandler, long epoch, long version) {
+        roster.subscribe(clientHandler);
+        clientHandler.sendMessage(roster.since(epoch, version));
+    }
+
+    /**
+     * Отправляет клиенту список комнат с числом участников, от больших к меньшим (не больше MAX_LISTED_ROOMS)
+     * @param client клиент
+     */
+    public void getRoomsList(ClientHandler client) {
+        List<Room> snapshot = new ArrayList<>(rooms.values());
+        snapshot.sort((a, b) -> Integer.compare(b.size(), a.size()));
+        int count = Math.min(snapshot.size(), MAX_LISTED_ROOMS);
+        String[] fields = new String[count * 2];
+        for(int i = 0; i < count; i++) {
+            Room room = snapshot.get(i);
+            fields[2 * i] = room.getName();
+            fields[2 * i + 1] = String.valueOf(room.size());
+        }
+        client.sendMessage(Packet.of(Opcode.ROOM_LIST, fields));
+    }
+
+    /**
+     * Добавляет клиента в комнату, создавая ее при необходимости.
+     * Из прежней комнаты клиент не удаляется, см. leaveRoom
+     * @param client клиент
+     * @param name имя комнаты
+     * @return комната или null, если комнаты нет, а создать новую нельзя (уже chat.rooms.max комнат)
+     */
+    public Room joinRoom(ClientHandler client, String name) {
+        while(true) {
+            Room room = rooms.get(name);
+            if(room == null) {
+                if(rooms.size() >= roomSettings.getMaxRooms()) {
+                    return null;
+                }
+                room = rooms.computeIfAbsent(name,
+                        n -> new Room(n, false, roomSettings.getParallelThreshold(), fanoutPool));
             }
+            if(room.add(client)) {
+                return room;
+            }
+            // комната опустела и закрылась между поиском и входом: она уже удаляется, создается новая
+            rooms.remove(name, room);
         }
-        clientHandler.sendMessage(sb.toString());
     }
 
     /**
-     * Подписывает клиента на рассылку сообщений
+     * Удаляет клиента из комнаты; опустевшая комната (кроме общей) удаляется
+     * @param client клиент
+     * @param room комната
+     */
+    public void leaveRoom(ClientHandler client, Room room) {
+        if(room.remove(client)) {
+            rooms.remove(room.getName(), room);
+        }
+    }
+
+    /**
+     * Подписывает клиента на рассылку сообщений общей комнаты
      * @param client подписываемый клиент
      */
-    public synchronized void subscribe(ClientHandler client) {
-        clients.add(client);
+    public void subscribe(ClientHandler client) {
+        if(roster.join(client, client.getUser().getNick())) {
+            metrics.onLoggedIn();
+        }
+        defaultRoom.add(client);
+        if(cluster != null && !cluster.announceJoin(client.getUser().getNick(), client.getLogin())) {
+            client.disconnect("Пользователь с данным логином и паролем уже в чате");
+        }
     }
 
     /**
-     * Отписывает клиента на рассылку сообщений
+     * Отписывает клиента от рассылки сообщений его комнаты и освобождает его ник
      * @param client отписываемый клиент
      */
-    public synchronized void unsubscribe(ClientHandler client) {
-        clients.remove(client);
+    public void unsubscribe(ClientHandler client) {
+        if(roster.leave(client)) {
+            metrics.onLoggedOut();
+        }
+        roster.unsubscribe(client);
+        Room room = client.getRoom();
+        if(room != null) {
+            leaveRoom(client, room);
+        }
+        if(cluster != null) {
+            cluster.announceLeave(client.getUser().getNick());
+        }
+        releaseNick(client.getUser().getNick(), client);
+    }
+
+    /**
+     * Обновляет ник клиента в списке пользователей и сообщает другим узлам кластера о смене ника
+     * @param client клиент
+     * @param oldNick прежний ник
+     */
+    public void nickChanged(ClientHandler client, String oldNick) {
+        roster.rename(client, client.getUser().getNick());
+        if(cluster != null) {
+            cluster.announceLeave(oldNick);
+            cluster.announceJoin(client.getUser().getNick(), client.getLogin());
+        }
+    }
+
+    /**
+     * Атомарно занимает ник за клиентом. Используется при авторизации (вместо проверки isUserBusy,
+     * между которой и подпиской мог войти второй клиент с тем же логином) и при смене ника.
+     * В кластере ник, занятый на другом узле, тоже считается занятым
+     * @param nick ник
+     * @param client клиент
+     * @return true - если ник свободен и занят этим клиентом, false - если ник уже занят другим клиентом
+     */
+    public boolean reserveNick(String nick, ClientHandler client) {
+        ClientHandler previous = clientsByNick.putIfAbsent(nick, client);
+        if(previous != null) {
+            return previous == client;
+        }
+        if(cluster != null && cluster.isRemoteNick(nick)) {
+            clientsByNick.remove(nick, client);
+            return false;
+        }
+        return true;
     }
 
+    /**
+     * Освобождает ник, если он занят этим клиентом
+     * @param nick ник
+     * @param client клиент
+     */
+    public void releaseNick(String nick, ClientHandler client) {
+        clientsByNick.remove(nick, client);
+    }
 
-    public boolean isUserBusy(User user) {
-        for(ClientHandler client : clients) {
-            if(client.getUser().equals(user)) {
-                return true;
-            }
+    /**
+     * Выдает сессии новый токен возобновления
+     * @param client сессия
+     * @return токен: 128 случайных бит в Base64 без заполнения
+     */
+    public String registerResumableSession(ClientHandler client) {
+        byte[] bytes = new byte[16];
+        tokenRandom.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        resumableSessions.put(token, client);
+        return token;
+    }
+
+    /**
+     * @param token токен возобновления
+     * @return сессия с этим токеном или null
+     */
+    public ClientHandler findResumableSession(String token) {
+        return resumableSessions.get(token);
+    }
+
+    /**
+     * Отзывает токен возобновления, если он выдан этой сессии
+     * @param token токен
+     * @param client сессия
+     */
+    public void releaseResumableSession(String token, ClientHandler client) {
+        if(token != null) {
+            resumableSessions.remove(token, client);
         }
-        return false;
+    }
+
+    public boolean isUserBusy(User user) {
+        return clientsByNick.containsKey(user.getNick()) || (cluster != null && cluster.isRemoteNick(user.getNick()));
     }
 }
@@ -0,0 +1,121 @@
+package serverside.service;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограниченная очередь исходящих сообщений одного клиента.
+ * Отправители только ставят сообщения в очередь, а разбирает ее писатель соединения,
+ * поэтому медленный клиент задерживает только свою очередь.
+ * При переполнении применяется SlowConsumerPolicy из настроек
+ * @param <T> тип элемента очереди (строка или готовый кадр)
+ */
+public class OutboundQueue<T> {
+    private final OutboundQueueSettings settings;
+    private final BlockingQueue<T> queue;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public OutboundQueue(OutboundQueueSettings settings) {
+        this.settings = settings;
+        this.queue = new LinkedBlockingQueue<>(settings.getCapacity());
+    }
+
+    /**
+     * Ставит сообщение в очередь.
+     * При SlowConsumerPolicy.BLOCK поток пула рассылки места в очереди не ждет: он рассылает сообщения
+     * целой полосе комнаты, и один медленный клиент задержал бы всех остальных
+     * @param item сообщение
+     * @return false - если клиент не успевает принимать сообщения и должен быть отключен, true - в противном случае
+     */
+    public boolean offer(T item) {
+        switch (settings.getPolicy()) {
+            case DROP_OLDEST:
+                while(!queue.offer(item)) {
+                    if(queue.poll() != null) {
+                        settings.onDequeued();
+                        onDropped();
+                    }
+                }
+                settings.onEnqueued();
+                return true;
+            case BLOCK:
+                long timeout = FanoutPool.isWorkerThread() ? 0 : settings.getBlockTimeoutMillis();
+                try {
+                    if(queue.offer(item, timeout, TimeUnit.MILLISECONDS)) {
+                        settings.onEnqueued();
+                        return true;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                onDropped();
+                return false;
+            default:
+                if(queue.offer(item)) {
+                    settings.onEnqueued();
+                    return true;
+                }
+                return onDropped() < settings.getMaxDropped();
+        }
+    }
+
+    public T peek() {
+        return queue.peek();
+    }
+
+    public T poll() {
+        T item = queue.poll();
+        if(item != null) {
+            settings.onDequeued();
+        }
+        return item;
+    }
+
+    /**
+     * Ждет сообщение не дольше timeout
+     * @return сообщение или null, если за это время очередь осталась пустой
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T item = queue.poll(timeout, unit);
+        if(item != null) {
+            settings.onDequeued();
+        }
+        return item;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Очищает очередь при закрытии соединения
+     */
+    public void clear() {
+        T item;
+        do {
+            item = poll();
+        } while(item != null);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Отмечает отключение клиента, не успевающего принимать сообщения
+     */
+    public void onSlowConsumerDisconnect() {
+        settings.onSlowConsumerDisconnect();
+    }
+
+    private long onDropped() {
+        settings.onDropped();
+        return droppedCount.incrementAndGet();
+    }
+}
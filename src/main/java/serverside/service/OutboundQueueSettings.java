@@ -0,0 +1,154 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Настройки очередей исходящих сообщений и общие для всех очередей счетчики.
+ * Писатель соединения отправляет накопившиеся в очереди кадры одной записью в сокет: не больше flushMaxBytes
+ * за раз, а если задан flushMaxDelayMillis - еще и ждет до этого времени, пока пачка наберется.
+ * По умолчанию ожидания нет: пачка отправляется, как только очередь разобрана, поэтому при низкой
+ * нагрузке задержка не растет, а при высокой в одну запись попадает все, что успело накопиться.
+ * Закрываемое соединение дописывает очередь не дольше closeTimeoutMillis: клиент, который перестал читать,
+ * не держит сокет и поток писателя бесконечно
+ */
+public class OutboundQueueSettings {
+    private final SlowConsumerPolicy policy;
+    private final int capacity;
+    private final int maxDropped;
+    private final long blockTimeoutMillis;
+    private final int flushMaxBytes;
+    private final long flushMaxDelayMillis;
+    private final long closeTimeoutMillis;
+
+    private final LongAdder depth = new LongAdder();                    // сообщений во всех очередях
+    private final LongAdder enqueued = new LongAdder();                 // поставлено в очереди
+    private final LongAdder dropped = new LongAdder();                  // выброшено из-за переполнения
+    private final LongAdder slowConsumerDisconnects = new LongAdder();  // отключено медленных клиентов
+    private final LongAdder writes = new LongAdder();                   // записей в сокеты
+    private final LongAdder writtenFrames = new LongAdder();            // отправлено кадров
+
+    private static final Logger LOGGER = LogManager.getLogger(OutboundQueueSettings.class);
+
+    public OutboundQueueSettings(SlowConsumerPolicy policy, int capacity, int maxDropped, long blockTimeoutMillis,
+                                 int flushMaxBytes, long flushMaxDelayMillis, long closeTimeoutMillis) {
+        this.policy = policy;
+        this.capacity = capacity;
+        this.maxDropped = maxDropped;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.flushMaxBytes = flushMaxBytes;
+        this.flushMaxDelayMillis = flushMaxDelayMillis;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+    }
+
+    public static OutboundQueueSettings from(ServerConfig config) {
+        String policyName = config.getString("chat.outbound.policy", SlowConsumerPolicy.DISCONNECT.name());
+        SlowConsumerPolicy policy;
+        try {
+            policy = SlowConsumerPolicy.valueOf(policyName.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Неизвестная политика для медленных клиентов " + policyName
+                    + ", используется " + SlowConsumerPolicy.DISCONNECT);
+            policy = SlowConsumerPolicy.DISCONNECT;
+        }
+        return new OutboundQueueSettings(policy,
+                Math.max(1, config.getInt("chat.outbound.capacity", 1024)),
+                Math.max(1, config.getInt("chat.outbound.maxDropped", 100)),
+                Math.max(0, config.getLong("chat.outbound.blockTimeoutMillis", 1000)),
+                Math.max(1, config.getInt("chat.outbound.flushMaxBytes", 64 * 1024)),
+                Math.max(0, config.getLong("chat.outbound.flushMaxDelayMillis", 0)),
+                Math.max(1, config.getLong("chat.outbound.closeTimeoutMillis", 5000)));
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxDropped() {
+        return maxDropped;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    /**
+     * @return сколько байт писатель соединения отправляет одной записью в сокет (кадр длиннее отправляется целиком)
+     */
+    public int getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
+    /**
+     * @return сколько ждать новых кадров, прежде чем отправить неполную пачку; 0 - не ждать
+     */
+    public long getFlushMaxDelayMillis() {
+        return flushMaxDelayMillis;
+    }
+
+    /**
+     * @return сколько закрываемое соединение может дописывать очередь, прежде чем сокет будет закрыт принудительно
+     */
+    public long getCloseTimeoutMillis() {
+        return closeTimeoutMillis;
+    }
+
+    public long getDepth() {
+        return depth.sum();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSlowConsumerDisconnectsCount() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    /**
+     * @return число записей в сокеты; вместе с getWrittenFramesCount показывает, сколько кадров приходится на запись
+     */
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    public long getWrittenFramesCount() {
+        return writtenFrames.sum();
+    }
+
+    /**
+     * Отмечает одну запись в сокет
+     * @param frames число кадров в записи
+     */
+    public void onWrite(int frames) {
+        writes.increment();
+        writtenFrames.add(frames);
+    }
+
+    void onEnqueued() {
+        enqueued.increment();
+        depth.increment();
+    }
+
+    void onDequeued() {
+        depth.decrement();
+    }
+
+    void onDropped() {
+        dropped.increment();
+    }
+
+    void onSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+}
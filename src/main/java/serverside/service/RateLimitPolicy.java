@@ -0,0 +1,9 @@
+package serverside.service;
+
+/**
+ * Что делать с сообщением клиента, превысившим ограничение частоты (настройка chat.ratelimit.policy)
+ */
+public enum RateLimitPolicy {
+    DROP,    // выбросить сообщение
+    DELAY    // обработать позже, когда ограничение позволит, но не позже chat.ratelimit.maxDelayMillis; иначе выбросить
+}
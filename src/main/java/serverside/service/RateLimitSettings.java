@@ -0,0 +1,132 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Настройки ограничения частоты сообщений клиента (chat.ratelimit.*) и общие для всех клиентов счетчики.
+ * У каждого клиента два ограничителя (RateLimiter): для сообщений в комнату и личных сообщений
+ * (messageRate в секунду, подряд до messageBurst) и для команд /list, /chnick, /join, /leave, /rooms
+ * (commandRate и commandBurst). Сообщение сверх ограничения выбрасывается или откладывается (RateLimitPolicy),
+ * клиент получает об этом уведомление. После maxViolations выброшенных сообщений клиент отключается;
+ * счет сбрасывается, когда клиент помолчит достаточно, чтобы ограничители снова были полными
+ */
+public class RateLimitSettings {
+    private static final int DEFAULT_MESSAGE_RATE = 5;
+    private static final int DEFAULT_MESSAGE_BURST = 20;
+    private static final int DEFAULT_COMMAND_RATE = 2;
+    private static final int DEFAULT_COMMAND_BURST = 10;
+
+    private final int messageRate;
+    private final int messageBurst;
+    private final int commandRate;
+    private final int commandBurst;
+    private final RateLimitPolicy policy;
+    private final long maxDelayMillis;
+    private final int maxViolations;
+
+    private final LongAdder dropped = new LongAdder();              // выброшено сообщений
+    private final LongAdder delayed = new LongAdder();              // отложено сообщений
+    private final LongAdder disconnects = new LongAdder();          // отключено клиентов
+
+    private static final Logger LOGGER = LogManager.getLogger(RateLimitSettings.class);
+
+    public RateLimitSettings(int messageRate, int messageBurst, int commandRate, int commandBurst,
+                             RateLimitPolicy policy, long maxDelayMillis, int maxViolations) {
+        this.messageRate = messageRate;
+        this.messageBurst = messageBurst;
+        this.commandRate = commandRate;
+        this.commandBurst = commandBurst;
+        this.policy = policy;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxViolations = maxViolations;
+    }
+
+    public static RateLimitSettings from(ServerConfig config) {
+        String policyName = config.getString("chat.ratelimit.policy", RateLimitPolicy.DROP.name());
+        RateLimitPolicy policy;
+        try {
+            policy = RateLimitPolicy.valueOf(policyName.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Неизвестная политика ограничения частоты сообщений " + policyName
+                    + ", используется " + RateLimitPolicy.DROP);
+            policy = RateLimitPolicy.DROP;
+        }
+        int messageRate = Math.max(0, config.getInt("chat.ratelimit.messageRate", DEFAULT_MESSAGE_RATE));
+        int commandRate = Math.max(0, config.getInt("chat.ratelimit.commandRate", DEFAULT_COMMAND_RATE));
+        return new RateLimitSettings(messageRate,
+                Math.max(1, config.getInt("chat.ratelimit.messageBurst", Math.max(DEFAULT_MESSAGE_BURST, messageRate))),
+                commandRate,
+                Math.max(1, config.getInt("chat.ratelimit.commandBurst", Math.max(DEFAULT_COMMAND_BURST, commandRate))),
+                policy,
+                Math.max(0, config.getLong("chat.ratelimit.maxDelayMillis", 1000)),
+                Math.max(0, config.getInt("chat.ratelimit.maxViolations", 50)));
+    }
+
+    /**
+     * @return новый ограничитель сообщений в комнату и личных сообщений для одного клиента
+     */
+    public RateLimiter newMessageLimiter() {
+        return new RateLimiter(messageRate, messageBurst);
+    }
+
+    /**
+     * @return новый ограничитель команд для одного клиента
+     */
+    public RateLimiter newCommandLimiter() {
+        return new RateLimiter(commandRate, commandBurst);
+    }
+
+    public RateLimitPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return сколько можно ждать обработки отложенного сообщения (в наносекундах); при политике DROP - 0
+     */
+    public long getMaxDelayNanos() {
+        return policy == RateLimitPolicy.DELAY ? TimeUnit.MILLISECONDS.toNanos(maxDelayMillis) : 0;
+    }
+
+    /**
+     * @return после скольких выброшенных сообщений клиент отключается; 0 - не отключать
+     */
+    public int getMaxViolations() {
+        return maxViolations;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getDelayedCount() {
+        return delayed.sum();
+    }
+
+    public long getDisconnectsCount() {
+        return disconnects.sum();
+    }
+
+    void onDropped() {
+        dropped.increment();
+    }
+
+    void onDelayed() {
+        delayed.increment();
+    }
+
+    void onDisconnect() {
+        disconnects.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "сообщений: " + (messageRate == 0 ? "без ограничения" : messageRate + "/с, подряд " + messageBurst)
+                + ", команд: " + (commandRate == 0 ? "без ограничения" : commandRate + "/с, подряд " + commandBurst)
+                + ", политика " + policy + (policy == RateLimitPolicy.DELAY ? " до " + maxDelayMillis + " мс" : "")
+                + (maxViolations == 0 ? "" : ", отключение после " + maxViolations + " выброшенных");
+    }
+}
@@ -0,0 +1,49 @@
+package serverside.service;
+
+/**
+ * Ограничитель частоты сообщений одного клиента - "ведро токенов", которое вмещает burst сообщений
+ * и пополняется на rate сообщений в секунду. Вместо числа токенов хранится одно время: когда ведро
+ * снова будет полным (allowedAt); сообщение проходит, если до этого момента осталось не больше
+ * burst - 1 интервалов между сообщениями. Поэтому проверка не создает объектов и не берет блокировок.
+ * Используется только потоком, который обрабатывает сообщения клиента (сообщения одного клиента
+ * обрабатываются по очереди), см. RateLimitSettings
+ */
+public class RateLimiter {
+    private final long intervalNanos;   // время на одно сообщение; 0 - без ограничения
+    private final long toleranceNanos;  // сколько интервалов можно занять вперед: burst - 1
+    private long allowedAt;
+
+    RateLimiter(int rate, int burst) {
+        this.intervalNanos = rate == 0 ? 0 : 1_000_000_000L / rate;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.allowedAt = System.nanoTime();
+    }
+
+    /**
+     * Занимает место для одного сообщения
+     * @param now текущее время System.nanoTime()
+     * @param maxWaitNanos сколько сообщение может ждать своей очереди; 0 - не ждать
+     * @return 0 - сообщение можно обработать сразу; больше 0 - через столько наносекунд (место уже занято);
+     *         -1 - сообщение превышает ограничение, место не занято
+     */
+    public long acquire(long now, long maxWaitNanos) {
+        if(intervalNanos == 0) {
+            return 0;
+        }
+        long start = allowedAt - now > 0 ? allowedAt : now;
+        long wait = start - toleranceNanos - now;
+        if(wait > maxWaitNanos) {
+            return -1;
+        }
+        allowedAt = start + intervalNanos;
+        return Math.max(0, wait);
+    }
+
+    /**
+     * @param now текущее время System.nanoTime()
+     * @return true, если ведро снова полное: клиент давно ничего не отправлял
+     */
+    public boolean isFull(long now) {
+        return now - allowedAt >= 0;
+    }
+}
@@ -0,0 +1,65 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Настройки возобновления сессий (chat.resume.*).
+ * После входа клиент версии 2 получает токен (/resumetoken). Если соединение разрывается, сессия не закрывается
+ * сразу: клиент остается в комнате и в списке пользователей, а сообщения для него копятся в ограниченном
+ * журнале сессии (SessionBacklog). Клиент, переподключившийся в течение graceSeconds с токеном (/resume),
+ * получает только пропущенные сообщения, без повторной проверки в базе данных и без оповещений о выходе и входе
+ */
+public class ResumeSettings {
+    private static final int DEFAULT_GRACE_SECONDS = 30;
+    private static final int DEFAULT_BACKLOG = 256;
+
+    private final boolean enabled;
+    private final long graceMillis;
+    private final int backlogCapacity;
+
+    private static final Logger LOGGER = LogManager.getLogger(ResumeSettings.class);
+
+    public ResumeSettings(boolean enabled, long graceMillis, int backlogCapacity) {
+        this.enabled = enabled;
+        this.graceMillis = graceMillis;
+        this.backlogCapacity = backlogCapacity;
+    }
+
+    public static ResumeSettings from(ServerConfig config) {
+        int graceSeconds = config.getInt("chat.resume.graceSeconds", DEFAULT_GRACE_SECONDS);
+        if(graceSeconds < 1) {
+            LOGGER.error("Неверное значение chat.resume.graceSeconds: " + graceSeconds
+                    + ", используется " + DEFAULT_GRACE_SECONDS);
+            graceSeconds = DEFAULT_GRACE_SECONDS;
+        }
+        int backlog = config.getInt("chat.resume.backlog", DEFAULT_BACKLOG);
+        if(backlog < 1) {
+            LOGGER.error("Неверное значение chat.resume.backlog: " + backlog + ", используется " + DEFAULT_BACKLOG);
+            backlog = DEFAULT_BACKLOG;
+        }
+        return new ResumeSettings(config.getBoolean("chat.resume.enabled", true), graceSeconds * 1000L, backlog);
+    }
+
+    /**
+     * @return выдаются ли токены возобновления
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return сколько сессия ждет переподключения клиента после разрыва соединения
+     */
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    /**
+     * @return сколько последних сообщений сессии хранится для повторной отправки; если за время
+     * разрыва сообщений набралось больше, сессия закрывается, не дожидаясь конца graceSeconds
+     */
+    public int getBacklogCapacity() {
+        return backlogCapacity;
+    }
+}
@@ -0,0 +1,155 @@
+package serverside.service;
+
+import serverside.protocol.Packet;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Комната чата: участники и рассылка сообщений между ними.
+ * Вход и выход изменяют множество участников под блокировкой самой комнаты за O(1) и только отмечают,
+ * что состав изменился. Рассылка читает неизменяемый снимок состава (Members) без блокировок; снимок
+ * строится заново первой рассылкой после изменений, поэтому поток входов в большую комнату стоит одно
+ * построение снимка на рассылку, а не копирование всех участников на каждый вход. Рассылки
+ * в разных комнатах и в одной комнате друг другу не мешают, а вход и выход блокируют только свою комнату.
+ * В небольшой комнате сообщение рассылает поток отправителя. Когда участников становится не меньше
+ * parallelThreshold, снимок дополнительно делится на полосы пула рассылки (FanoutPool), и дальше
+ * комната всегда рассылает через пул, даже если участников стало меньше: при обратном переходе
+ * сообщение, разосланное потоком отправителя, могло бы обогнать предыдущее, еще ждущее в пуле
+ */
+public class Room {
+    private final String name;
+    private final boolean permanent;
+    private final int parallelThreshold;
+    private final FanoutPool fanoutPool;
+
+    // поля ниже, кроме volatile, - под блокировкой this
+    private final Set<ClientHandler> memberSet = new LinkedHashSet<>();
+    private boolean parallel;        // рассылка идет через пул
+    private boolean closed;          // комната удалена из списка комнат, войти в нее нельзя
+    private volatile int size;
+    private volatile Members members = Members.EMPTY;
+    private volatile boolean changed;       // состав изменился после построения members
+
+    /**
+     * Снимок состава комнаты
+     */
+    private static final class Members {
+        static final Members EMPTY = new Members(new ClientHandler[0], null);
+
+        final ClientHandler[] all;
+        final ClientHandler[][] stripes;     // null, пока рассылка идет потоком отправителя
+
+        Members(ClientHandler[] all, ClientHandler[][] stripes) {
+            this.all = all;
+            this.stripes = stripes;
+        }
+    }
+
+    Room(String name, boolean permanent, int parallelThreshold, FanoutPool fanoutPool) {
+        this.name = name;
+        this.permanent = permanent;
+        this.parallelThreshold = parallelThreshold;
+        this.fanoutPool = fanoutPool;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true для общей комнаты, которая существует всегда
+     */
+    public boolean isPermanent() {
+        return permanent;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Добавляет участника
+     * @param client клиент
+     * @return false, если комната уже удалена (опустела) и нужно создать новую
+     */
+    synchronized boolean add(ClientHandler client) {
+        if(closed) {
+            return false;
+        }
+        if(memberSet.add(client)) {
+            size = memberSet.size();
+            if(size >= parallelThreshold) {
+                parallel = true;
+            }
+            changed = true;
+        }
+        return true;
+    }
+
+    /**
+     * Удаляет участника. Опустевшая комната (кроме общей) закрывается
+     * @param client клиент
+     * @return true, если комната закрылась и ее нужно убрать из списка комнат
+     */
+    synchronized boolean remove(ClientHandler client) {
+        if(!memberSet.remove(client)) {
+            return false;
+        }
+        size = memberSet.size();
+        changed = true;
+        if(memberSet.isEmpty() && !permanent) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    /**
+     * Рассылает пакет всем участникам комнаты: в потоке вызывающего или, в большой комнате, через пул рассылки.
+     * Время рассылки записывается в гистограмму пула рассылки
+     * @param packet пакет
+     */
+    void broadcast(Packet packet) {
+        long start = System.nanoTime();
+        Members current = changed ? rebuild() : members;
+        if(current.stripes != null) {
+            fanoutPool.fanout(packet, current.stripes, start);
+            return;
+        }
+        for(ClientHandler c : current.all) {
+            c.sendMessage(packet);
+        }
+        fanoutPool.getLatency().recordSince(start);
+    }
+
+    /**
+     * Строит снимок состава после входов и выходов, если его еще не построила другая рассылка
+     * @return актуальный снимок
+     */
+    private synchronized Members rebuild() {
+        if(changed) {
+            ClientHandler[] all = memberSet.toArray(new ClientHandler[0]);
+            members = new Members(all, parallel ? stripe(all) : null);
+            changed = false;
+        }
+        return members;
+    }
+
+    private ClientHandler[][] stripe(ClientHandler[] all) {
+        int stripeCount = fanoutPool.getStripeCount();
+        int[] sizes = new int[stripeCount];
+        for(ClientHandler c : all) {
+            sizes[fanoutPool.stripeOf(c)]++;
+        }
+        ClientHandler[][] stripes = new ClientHandler[stripeCount][];
+        for(int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ClientHandler[sizes[i]];
+            sizes[i] = 0;
+        }
+        for(ClientHandler c : all) {
+            int stripe = fanoutPool.stripeOf(c);
+            stripes[stripe][sizes[stripe]++] = c;
+        }
+        return stripes;
+    }
+}
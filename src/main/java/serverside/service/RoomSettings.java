@@ -0,0 +1,96 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Настройки комнат чата и пула рассылки сообщений в больших комнатах
+ */
+public class RoomSettings {
+    public static final String DEFAULT_ROOM = "main";
+    public static final int MAX_NAME_LENGTH = 32;
+
+    private final String defaultRoom;
+    private final int maxRooms;
+    private final int parallelThreshold;
+    private final int fanoutThreads;
+    private final int fanoutQueueCapacity;
+
+    private static final Logger LOGGER = LogManager.getLogger(RoomSettings.class);
+
+    public RoomSettings(String defaultRoom, int maxRooms, int parallelThreshold, int fanoutThreads, int fanoutQueueCapacity) {
+        this.defaultRoom = defaultRoom;
+        this.maxRooms = maxRooms;
+        this.parallelThreshold = parallelThreshold;
+        this.fanoutThreads = fanoutThreads;
+        this.fanoutQueueCapacity = fanoutQueueCapacity;
+    }
+
+    public static RoomSettings from(ServerConfig config) {
+        String defaultRoom = config.getString("chat.rooms.default", DEFAULT_ROOM);
+        if(!isValidName(defaultRoom)) {
+            LOGGER.error("Недопустимое имя общей комнаты " + defaultRoom + ", используется " + DEFAULT_ROOM);
+            defaultRoom = DEFAULT_ROOM;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new RoomSettings(defaultRoom,
+                Math.max(1, config.getInt("chat.rooms.max", 10_000)),
+                Math.max(1, config.getInt("chat.rooms.parallelThreshold", 256)),
+                Math.max(1, config.getInt("chat.rooms.fanoutThreads", processors)),
+                Math.max(1, config.getInt("chat.rooms.fanoutQueueCapacity", 1024)));
+    }
+
+    /**
+     * Имя комнаты - от 1 до MAX_NAME_LENGTH букв, цифр, "_" и "-": без пробелов, чтобы имя
+     * передавалось одним полем и в текстовом протоколе
+     * @param name имя комнаты
+     * @return true, если имя допустимо
+     */
+    public static boolean isValidName(String name) {
+        if(name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return комната, в которую клиент попадает при входе и по команде /leave; сообщения в ней пишутся в журнал
+     */
+    public String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * @return сколько комнат может существовать одновременно
+     */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * @return с какого числа участников рассылка в комнате выполняется пулом рассылки, а не потоком отправителя
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @return число потоков пула рассылки (полос, на которые делятся участники больших комнат)
+     */
+    public int getFanoutThreads() {
+        return fanoutThreads;
+    }
+
+    /**
+     * @return сколько задач рассылки может ждать в очереди каждого потока пула
+     */
+    public int getFanoutQueueCapacity() {
+        return fanoutQueueCapacity;
+    }
+}
@@ -0,0 +1,322 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.timer.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Список пользователей в чате (на этом узле и, в кластере, на других узлах) с номером версии.
+ * Каждое изменение списка - вход, выход или смена ника - увеличивает версию на 1 и запоминается
+ * в кольцевом журнале последних historySize изменений.
+ * Клиент, у которого уже есть список версии N, запрашивает "/list epoch N" и получает только изменения
+ * после N ("/rosterdelta"); если их уже нет в журнале или их больше, чем пользователей в списке,
+ * отправляется весь список ("/roster"). Весь список строится один раз на версию и кодируется один раз
+ * для всех запросивших его клиентов. Ответ "/clients" на "/list" без версии собирается из того же
+ * списка версии уже после выхода из монитора, поэтому запросы не задерживают вход и выход пользователей.
+ * Клиент, запросивший список с версией, подписывается на изменения: они собираются за pushDelayMillis
+ * и рассылаются подписчикам одним сообщением на всех.
+ * Ник может принадлежать нескольким входам (вход на этом узле и вход на другом узле во время разрешения
+ * повторного входа): в списке он один, выход сообщается, когда выходит последний из них.
+ * epoch - время запуска сервера: версия другого запуска к этому списку не относится
+ */
+public class Roster {
+    private static final String OP_JOIN = "+";
+    private static final String OP_LEAVE = "-";
+    private static final String OP_RENAME = "~";
+
+    private final long epoch = System.currentTimeMillis();
+    private final HashedWheelTimer timer;
+    private final long pushDelayMillis;
+
+    // все поля ниже - под монитором списка
+    private final Map<Object, String> sessions = new HashMap<>();   // вход -> ник
+    private final Map<String, Integer> nicks = new HashMap<>();     // ник -> число входов
+    private long version;
+    private final String[] changeOps;                                // журнал изменений: изменение версии v
+    private final String[] changeNicks;                              // лежит в ячейке v % historySize
+    private final String[] changeNewNicks;
+    private Packet snapshot;                                         // весь список версии snapshotVersion
+    private String[] snapshotNicks;                                  // не изменяется после построения
+    private Packet clients;                                          // "/clients" со всеми никами snapshotNicks
+    private long snapshotVersion = -1;
+    private long pushedVersion;
+    private boolean pushScheduled;
+
+    private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+
+    private static final Logger LOGGER = LogManager.getLogger(Roster.class);
+
+    /**
+     * @param historySize число последних изменений, которые можно отправить вместо всего списка
+     * @param pushDelayMillis время, за которое изменения собираются в одну рассылку подписчикам
+     * @param timer таймер для рассылки изменений
+     */
+    public Roster(int historySize, long pushDelayMillis, HashedWheelTimer timer) {
+        this.changeOps = new String[historySize];
+        this.changeNicks = new String[historySize];
+        this.changeNewNicks = new String[historySize];
+        this.pushDelayMillis = pushDelayMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * Создает список по настройкам chat.presence.historySize (1024) и chat.presence.pushDelayMillis (200)
+     * @param config настройки сервера
+     * @param timer таймер сервера
+     * @return список пользователей
+     */
+    public static Roster from(ServerConfig config, HashedWheelTimer timer) {
+        int historySize = config.getInt("chat.presence.historySize", 1024);
+        if(historySize < 1) {
+            LOGGER.error("Неверное значение chat.presence.historySize: " + historySize + ", используется 1024");
+            historySize = 1024;
+        }
+        long pushDelayMillis = config.getLong("chat.presence.pushDelayMillis", 200);
+        if(pushDelayMillis < 0) {
+            LOGGER.error("Неверное значение chat.presence.pushDelayMillis: " + pushDelayMillis + ", используется 200");
+            pushDelayMillis = 200;
+        }
+        return new Roster(historySize, pushDelayMillis, timer);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return nicks.size();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Добавляет вход в список
+     * @param session вход: клиент этого узла или ник пользователя другого узла
+     * @param nick ник
+     * @return false, если вход уже в списке
+     */
+    public boolean join(Object session, String nick) {
+        synchronized (this) {
+            if(sessions.putIfAbsent(session, nick) != null) {
+                return false;
+            }
+            if(nicks.merge(nick, 1, Integer::sum) == 1) {
+                record(OP_JOIN, nick, null);
+            }
+        }
+        schedulePush();
+        return true;
+    }
+
+    /**
+     * Удаляет вход из списка
+     * @param session вход
+     * @return false, если входа нет в списке
+     */
+    public boolean leave(Object session) {
+        synchronized (this) {
+            String nick = sessions.remove(session);
+            if(nick == null) {
+                return false;
+            }
+            if(release(nick)) {
+                record(OP_LEAVE, nick, null);
+            }
+        }
+        schedulePush();
+        return true;
+    }
+
+    /**
+     * Меняет ник входа. Если новый ник уже был в списке или старый остается за другим входом,
+     * изменение записывается как выход и вход, иначе - одним изменением "~"
+     * @param session вход
+     * @param newNick новый ник
+     */
+    public void rename(Object session, String newNick) {
+        synchronized (this) {
+            String oldNick = sessions.get(session);
+            if(oldNick == null || oldNick.equals(newNick)) {
+                return;
+            }
+            sessions.put(session, newNick);
+            boolean oldGone = release(oldNick);
+            boolean newAppeared = nicks.merge(newNick, 1, Integer::sum) == 1;
+            if(oldGone && newAppeared) {
+                record(OP_RENAME, oldNick, newNick);
+            } else if(oldGone) {
+                record(OP_LEAVE, oldNick, null);
+            } else if(newAppeared) {
+                record(OP_JOIN, newNick, null);
+            }
+        }
+        schedulePush();
+    }
+
+    /**
+     * Подписывает клиента на рассылку изменений списка
+     */
+    public void subscribe(ClientHandler client) {
+        subscribers.add(client);
+    }
+
+    public void unsubscribe(ClientHandler client) {
+        subscribers.remove(client);
+    }
+
+    /**
+     * Отвечает на "/list epoch version": изменения после version или весь список
+     * @param epoch epoch списка, к которому относится версия клиента
+     * @param knownVersion версия списка у клиента
+     * @return "/rosterdelta" или "/roster"
+     */
+    public synchronized Packet since(long epoch, long knownVersion) {
+        Packet delta = epoch == this.epoch ? delta(knownVersion) : null;
+        return delta != null ? delta : snapshot();
+    }
+
+    /**
+     * Отвечает на "/list" без версии: "/clients" с никами всех пользователей, кроме ника запросившего клиента.
+     * Под монитором берется только закэшированный весь список, ник исключается из его копии после выхода из монитора;
+     * если ника в списке нет, отправляется закэшированное сообщение со всем списком
+     * @param nick ник запросившего клиента
+     * @return "/clients"
+     */
+    public Packet clientsExcept(String nick) {
+        String[] all;
+        Packet allClients;
+        synchronized (this) {
+            snapshot();
+            all = snapshotNicks;
+            allClients = clients;
+        }
+        int self = -1;
+        for(int i = 0; i < all.length; i++) {
+            if(all[i].equals(nick)) {
+                self = i;
+                break;
+            }
+        }
+        if(self < 0) {
+            return allClients;
+        }
+        String[] others = new String[all.length - 1];
+        System.arraycopy(all, 0, others, 0, self);
+        System.arraycopy(all, self + 1, others, self, others.length - self);
+        return Packet.of(Opcode.CLIENTS, others);
+    }
+
+    /**
+     * Записывает изменение в журнал; вызывается под монитором списка
+     */
+    private void record(String op, String nick, String newNick) {
+        version++;
+        int slot = (int) (version % changeOps.length);
+        changeOps[slot] = op;
+        changeNicks[slot] = nick;
+        changeNewNicks[slot] = newNick;
+    }
+
+    /**
+     * Уменьшает число входов ника
+     * @return true, если это был последний вход
+     */
+    private boolean release(String nick) {
+        Integer count = nicks.get(nick);
+        if(count == null || count <= 1) {
+            nicks.remove(nick);
+            return true;
+        }
+        nicks.put(nick, count - 1);
+        return false;
+    }
+
+    /**
+     * "/rosterdelta epoch from to изменения...": по одному изменению на каждую версию от from+1 до to.
+     * Изменение - "+ nick", "- nick" или "~ oldNick newNick"
+     * @return сообщение или null, если изменений уже нет в журнале или весь список короче
+     */
+    private Packet delta(long from) {
+        long count = version - from;
+        if(from < 0 || count < 0 || count > changeOps.length || (count > 0 && count > nicks.size())) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>(3 + (int) count * 2);
+        fields.add(String.valueOf(epoch));
+        fields.add(String.valueOf(from));
+        fields.add(String.valueOf(version));
+        for(long v = from + 1; v <= version; v++) {
+            int slot = (int) (v % changeOps.length);
+            fields.add(changeOps[slot]);
+            fields.add(changeNicks[slot]);
+            if(changeNewNicks[slot] != null) {
+                fields.add(changeNewNicks[slot]);
+            }
+        }
+        return Packet.of(Opcode.ROSTER_DELTA, fields.toArray(new String[0]));
+    }
+
+    /**
+     * "/roster epoch version ники..." - весь список; строится заново, только если список изменился
+     */
+    private Packet snapshot() {
+        if(snapshotVersion != version) {
+            snapshotNicks = nicks.keySet().toArray(new String[0]);
+            String[] fields = new String[snapshotNicks.length + 2];
+            fields[0] = String.valueOf(epoch);
+            fields[1] = String.valueOf(version);
+            System.arraycopy(snapshotNicks, 0, fields, 2, snapshotNicks.length);
+            snapshot = Packet.of(Opcode.ROSTER, fields);
+            clients = Packet.of(Opcode.CLIENTS, snapshotNicks);
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+
+    private void schedulePush() {
+        synchronized (this) {
+            if(pushScheduled || timer == null) {
+                return;
+            }
+            pushScheduled = true;
+        }
+        timer.newTimeout(this::push, pushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Рассылает подписчикам изменения, накопившиеся после предыдущей рассылки
+     */
+    private void push() {
+        Packet packet;
+        synchronized (this) {
+            pushScheduled = false;
+            if(pushedVersion == version) {
+                return;
+            }
+            packet = delta(pushedVersion);
+            if(packet == null) {
+                packet = snapshot();
+            }
+            pushedVersion = version;
+        }
+        for(ClientHandler client : subscribers) {
+            client.sendMessage(packet);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Настройки сервера.
+ * Значения берутся (в порядке возрастания приоритета):
+ * 1. из файла server.properties в рабочем каталоге (путь можно задать свойством chat.config);
+ * 2. из системных свойств JVM (-Dchat.port=8081);
+ * 3. из аргументов командной строки вида chat.port=8081.
+ */
+public class ServerConfig {
+    private static final String CONFIG_FILE_PROPERTY = "chat.config";
+    private static final String DEFAULT_CONFIG_FILE = "server.properties";
+
+    private static final Logger LOGGER = LogManager.getLogger(ServerConfig.class);
+
+    private final Properties properties;
+
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Загружает настройки сервера
+     * @param args - аргументы командной строки вида ключ=значение
+     * @return настройки сервера
+     */
+    public static ServerConfig load(String[] args) {
+        Properties properties = new Properties();
+        Path configFile = Paths.get(System.getProperty(CONFIG_FILE_PROPERTY, DEFAULT_CONFIG_FILE));
+        if(Files.isRegularFile(configFile)) {
+            try (InputStream in = new FileInputStream(configFile.toFile())) {
+                properties.load(in);
+                LOGGER.info("Настройки сервера загружены из файла " + configFile);
+            } catch (IOException ex) {
+                LOGGER.error("Ошибка при чтении файла настроек " + configFile + ": " + ex.getMessage());
+            }
+        }
+        for(String name : System.getProperties().stringPropertyNames()) {
+            if(name.startsWith("chat.")) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        for(String arg : args) {
+            int index = arg.indexOf('=');
+            if(index > 0) {
+                properties.setProperty(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            LOGGER.error("Неверное значение настройки " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            LOGGER.error("Неверное значение настройки " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,84 @@
+package serverside.service;
+
+import serverside.protocol.Packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Журнал сессии: последние сообщения, отправленные клиенту, в порядке отправки.
+ * Сообщения попадают в журнал с момента входа, но клиенту нумеруются только сообщения после токена
+ * возобновления: клиент, считающий полученные сообщения, при возобновлении сообщает их число,
+ * и повторно отправляются только сообщения после него. Позиция - номер сообщения с начала журнала,
+ * через нее журнал служит и очередью: сообщения передаются соединению по порядку позиций (см. ClientHandler.sendMessage).
+ * Пакеты неизменяемые и общие для всех получателей, поэтому журнал хранит только ссылки на них.
+ * Не потокобезопасен: запись и чтение выполняются под блокировкой на самом журнале
+ */
+class SessionBacklog {
+    private final Packet[] ring;
+    private long sequence;                 // число сообщений, записанных в журнал
+    private long tokenAt = -1;             // позиция сообщения после токена; -1 - токен не выдан
+
+    SessionBacklog(int capacity) {
+        this.ring = new Packet[capacity];
+    }
+
+    void add(Packet packet) {
+        ring[(int) (sequence % ring.length)] = packet;
+        sequence++;
+    }
+
+    /**
+     * Начинает нумерацию для клиента: вызывается сразу после записи в журнал сообщения с токеном
+     */
+    void startNumbering() {
+        tokenAt = sequence;
+    }
+
+    /**
+     * @return число сообщений, записанных в журнал (позиция следующего сообщения)
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @param received сколько сообщений получил клиент
+     * @return позиция первого сообщения, которого клиент не получил
+     */
+    long position(long received) {
+        return tokenAt + received;
+    }
+
+    /**
+     * @param position позиция
+     * @return true, если все сообщения начиная с position еще в журнале
+     */
+    boolean contains(long position) {
+        return position >= 0 && position <= sequence && sequence - position <= ring.length;
+    }
+
+    /**
+     * @param received сколько сообщений получил клиент
+     * @return true, если токен выдан и все сообщения после received еще в журнале
+     */
+    boolean canReplay(long received) {
+        return tokenAt >= 0 && received >= 0 && contains(position(received));
+    }
+
+    /**
+     * @param position позиция (contains(position) == true)
+     * @return сообщения начиная с position в порядке отправки
+     */
+    List<Packet> from(long position) {
+        List<Packet> packets = new ArrayList<>((int) (sequence - position));
+        for(long i = position; i < sequence; i++) {
+            packets.add(ring[(int) (i % ring.length)]);
+        }
+        return packets;
+    }
+}
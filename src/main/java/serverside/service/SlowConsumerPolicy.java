@@ -0,0 +1,10 @@
+package serverside.service;
+
+/**
+ * Поведение при переполнении очереди исходящих сообщений клиента (настройка chat.outbound.policy)
+ */
+public enum SlowConsumerPolicy {
+    DROP_OLDEST,   // выбросить самое старое сообщение из очереди и поставить новое
+    DISCONNECT,    // выбросить новое сообщение, после chat.outbound.maxDropped выброшенных сообщений отключить клиента
+    BLOCK          // ждать места в очереди не дольше chat.outbound.blockTimeoutMillis, затем отключить клиента
+}
@@ -0,0 +1,317 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.interfaces.Connection;
+import serverside.interfaces.ConnectionListener;
+import serverside.interfaces.DisconnectReason;
+import serverside.protocol.Frame;
+import serverside.protocol.Opcode;
+import serverside.protocol.Packet;
+import serverside.protocol.ProtocolSettings;
+import serverside.protocol.ProtocolVersion;
+import serverside.protocol.WireFormat;
+import serverside.timer.HashedWheelTimer;
+import serverside.timer.Timeout;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Блокирующее соединение поверх Socket.
+ * Отправка только ставит сообщение в ограниченную очередь. Запись в сокет выполняет писатель,
+ * который запускается в executor, когда в очереди появляются сообщения, и завершается, разобрав ее.
+ * Накопившиеся кадры писатель склеивает и отправляет одним вызовом write (см. OutboundQueueSettings.getFlushMaxBytes),
+ * поэтому при потоке рассылок на каждое сообщение не приходится отдельный системный вызов и TCP-сегмент.
+ * Соединение владеет сокетом: при закрытии оно сначала дописывает очередь, затем закрывает сокет.
+ * Если клиент не принимает данные дольше OutboundQueueSettings.getCloseTimeoutMillis, сокет закрывается
+ * по таймеру, как при отключении медленного клиента, и заблокированная запись писателя завершается ошибкой.
+ * Чтение выполняет поток обработчика клиента через read(); если первое сообщение клиента - "/proto",
+ * соединение само отвечает на него и переходит на выбранную версию протокола
+ */
+public class StreamConnection implements Connection {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ProtocolSettings protocolSettings;
+    private volatile WireFormat format = WireFormat.V1;
+    private boolean handshakeDone;                 // только для потока, читающего из сокета
+    private final OutboundQueue<Frame> outboundQueue;
+    private final OutboundQueueSettings settings;
+    private final Executor writerExecutor;
+    private final HashedWheelTimer timer;
+    private volatile ConnectionListener listener;
+
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private volatile boolean closing;
+    private volatile DisconnectReason abortReason;       // причина, по которой соединение разорвал сервер
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Timeout closeTimeout;
+
+    private static final Logger LOGGER = LogManager.getLogger(StreamConnection.class);
+
+    public StreamConnection(Socket socket, OutboundQueueSettings settings, ProtocolSettings protocolSettings,
+                            Executor writerExecutor, HashedWheelTimer timer) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+        this.protocolSettings = protocolSettings;
+        this.outboundQueue = new OutboundQueue<>(settings);
+        this.settings = settings;
+        this.writerExecutor = writerExecutor;
+        this.timer = timer;
+    }
+
+    /**
+     * Создает соединение, которое с первого байта работает в заданном формате, без согласования версии.
+     * Используется для связи между узлами кластера: обе стороны заранее знают формат
+     */
+    public StreamConnection(Socket socket, OutboundQueueSettings settings, ProtocolSettings protocolSettings,
+                            Executor writerExecutor, HashedWheelTimer timer, WireFormat format) throws IOException {
+        this(socket, settings, protocolSettings, writerExecutor, timer);
+        this.format = format;
+        this.handshakeDone = true;
+    }
+
+    /**
+     * @param listener получатель события разрыва соединения при ошибке записи или отключении медленного клиента
+     */
+    public void setListener(ConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Читает следующее сообщение клиента, блокируя вызывающий поток
+     * @return сообщение
+     * @throws IOException, если соединение разорвано или сообщение повреждено
+     */
+    public Packet read() throws IOException {
+        Packet packet = format.getVersion().read(in, protocolSettings.getMaxFrameLength());
+        if(!handshakeDone) {
+            handshakeDone = true;
+            if(packet.getOpcode() == Opcode.PROTOCOL) {
+                WireFormat negotiated = protocolSettings.negotiate(packet);
+                send(negotiated.toReply());
+                format = negotiated;
+                return read();
+            }
+        }
+        return packet;
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return format.getVersion();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outboundQueue.getDroppedCount();
+    }
+
+    @Override
+    public void send(Packet packet) throws IOException {
+        if(closing) {
+            throw new IOException("Соединение закрыто");
+        }
+        Frame frame = packet.frame(format);
+        if(!outboundQueue.offer(frame)) {
+            LOGGER.warn("Клиент не успевает принимать сообщения, выброшено сообщений: "
+                    + outboundQueue.getDroppedCount() + ". Соединение будет разорвано");
+            outboundQueue.onSlowConsumerDisconnect();
+            abort(DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        scheduleWriter();
+    }
+
+    /**
+     * Закрывает соединение после отправки сообщений, уже стоящих в очереди, но не позже
+     * OutboundQueueSettings.getCloseTimeoutMillis. Чтение из сокета прекращается сразу
+     */
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            socket.shutdownInput();
+        } catch (IOException ignored) {
+
+        }
+        if(closeTimeout == null && !closed.get()) {
+            closeTimeout = timer.newTimeout(this::onCloseTimeout, settings.getCloseTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        scheduleWriter();
+    }
+
+    /**
+     * Срабатывает, если закрываемое соединение не дописало очередь за отведенное время:
+     * клиент не читает данные, и писатель заблокирован в записи в сокет
+     */
+    private void onCloseTimeout() {
+        if(closed.get()) {
+            return;
+        }
+        LOGGER.warn("Клиент не принял оставшиеся сообщения за " + settings.getCloseTimeoutMillis()
+                + " мс после закрытия соединения. Соединение будет разорвано");
+        outboundQueue.onSlowConsumerDisconnect();
+        abort(DisconnectReason.SLOW_CONSUMER);
+    }
+
+    private void scheduleWriter() {
+        if(writerScheduled.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                writerScheduled.set(false);
+                closeSocket();
+            }
+        }
+    }
+
+    private void drain() {
+        List<Frame> batch = new ArrayList<>();
+        try {
+            while(nextBatch(batch) > 0) {
+                writeBatch(batch);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            writerScheduled.set(false);
+            abort(DisconnectReason.SERVER);
+            return;
+        } catch (IOException ex) {
+            if(!closing) {
+                LOGGER.error("Ошибка при отправке сообщения клиенту: " + ex.getMessage());
+            }
+            writerScheduled.set(false);
+            abort(DisconnectReason.NETWORK);
+            return;
+        }
+        writerScheduled.set(false);
+        if(closing) {
+            closeSocket();
+        } else if(!outboundQueue.isEmpty()) {
+            scheduleWriter();
+        }
+    }
+
+    /**
+     * Набирает из очереди пачку кадров общей длиной до flushMaxBytes.
+     * Если задан flushMaxDelayMillis, неполная пачка ждет новых кадров не дольше этого времени
+     * @param batch список для кадров (очищается)
+     * @return длина пачки в байтах, 0 - если очередь пуста
+     */
+    private int nextBatch(List<Frame> batch) throws InterruptedException {
+        batch.clear();
+        int maxBytes = settings.getFlushMaxBytes();
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(settings.getFlushMaxDelayMillis());
+        long deadline = 0;
+        int bytes = 0;
+        while(bytes < maxBytes) {
+            Frame frame = outboundQueue.poll();
+            if(frame == null && bytes > 0 && maxDelayNanos > 0 && !closing) {
+                if(deadline == 0) {
+                    deadline = System.nanoTime() + maxDelayNanos;
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining > 0) {
+                    frame = outboundQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+            if(frame == null) {
+                break;
+            }
+            batch.add(frame);
+            bytes += frame.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Отправляет пачку кадров одним вызовом write
+     */
+    private void writeBatch(List<Frame> batch) throws IOException {
+        if(batch.size() == 1) {
+            batch.get(0).writeTo(out);
+        } else {
+            int length = 0;
+            for(Frame frame : batch) {
+                length += frame.length();
+            }
+            byte[] bytes = new byte[length];
+            int pos = 0;
+            for(Frame frame : batch) {
+                pos = frame.copyTo(bytes, pos);
+            }
+            out.write(bytes);
+        }
+        settings.onWrite(batch.size());
+    }
+
+    /**
+     * Причина разрыва для ошибки, с которой завершилось чтение из сокета: если соединение разорвал
+     * сам сервер, - его причина (поток чтения узнает о разрыве по закрытому сокету),
+     * иначе PROTOCOL_ERROR для сообщения, которое не удалось разобрать, или NETWORK
+     * @param readError ошибка чтения
+     * @return причина разрыва
+     */
+    public DisconnectReason getDisconnectReason(IOException readError) {
+        DisconnectReason reason = abortReason;
+        if(reason != null) {
+            return reason;
+        }
+        if(readError instanceof ProtocolException || readError instanceof UTFDataFormatException) {
+            return DisconnectReason.PROTOCOL_ERROR;
+        }
+        return DisconnectReason.NETWORK;
+    }
+
+    /**
+     * Немедленно разрывает соединение, отбрасывая неотправленные сообщения, и сообщает об этом слушателю.
+     * Слушатель вызывается в executor, а не в потоке отправителя: закрывая сессию, он рассылает оповещение
+     * о выходе, и поток пула рассылки, отправлявший сообщение, не должен выполнять рассылку сам
+     * @param reason причина разрыва
+     */
+    private void abort(DisconnectReason reason) {
+        if(abortReason == null) {
+            abortReason = reason;
+        }
+        closing = true;
+        closeSocket();
+        ConnectionListener listener = this.listener;
+        if(listener != null) {
+            // писатель, чью запись прервало закрытие сокета, сообщает первую причину, а не ошибку записи
+            DisconnectReason first = abortReason;
+            try {
+                writerExecutor.execute(() -> listener.onDisconnect(first));
+            } catch (RejectedExecutionException ignored) {
+                // сервер останавливается и закрывает сессии сам
+            }
+        }
+    }
+
+    private void closeSocket() {
+        if(closed.compareAndSet(false, true)) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.error("Ошибка при закрытии сокета: " + ex.getMessage());
+            }
+            Timeout timeout = closeTimeout;
+            if(timeout != null) {
+                timeout.cancel();
+            }
+        }
+        outboundQueue.clear();
+    }
+}
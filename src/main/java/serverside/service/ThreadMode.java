@@ -0,0 +1,79 @@
+package serverside.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Режим потоков для обработчиков клиентов (настройка chat.threads).
+ * PLATFORM - обычные потоки ОС, VIRTUAL - виртуальные потоки (Java 21+).
+ * Виртуальные потоки создаются через reflection, чтобы сервер собирался и запускался на Java 17:
+ * сборка под Java 17 запускает их на JVM 21+. Если JVM их не поддерживает, from возвращает PLATFORM
+ * и предупреждает об этом при запуске
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Logger LOGGER = LogManager.getLogger(ThreadMode.class);
+
+    public static ThreadMode from(ServerConfig config) {
+        String mode = config.getString("chat.threads", PLATFORM.name());
+        ThreadMode threadMode;
+        try {
+            threadMode = valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Неизвестный режим потоков " + mode + ", используется " + PLATFORM);
+            return PLATFORM;
+        }
+        if(threadMode == VIRTUAL && virtualThreadFactory("check-") == null) {
+            LOGGER.error("chat.threads=virtual не действует: виртуальные потоки не поддерживаются JVM "
+                    + Runtime.version() + " (нужна Java 21+), используются обычные потоки");
+            return PLATFORM;
+        }
+        return threadMode;
+    }
+
+    /**
+     * @param namePrefix префикс имени потоков
+     * @return фабрика виртуальных потоков или null, если JVM их не поддерживает
+     */
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Создает executor, запускающий каждую задачу в новом (или свободном) потоке.
+     * Количество потоков не ограничено, как и при создании потоков на каждого клиента
+     * @param namePrefix префикс имени потоков
+     * @return executor
+     */
+    public ExecutorService newExecutor(String namePrefix) {
+        if(this == VIRTUAL) {
+            ThreadFactory factory = virtualThreadFactory(namePrefix);
+            try {
+                if(factory != null) {
+                    Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                    return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+                }
+            } catch (ReflectiveOperationException ignored) {
+
+            }
+            LOGGER.error("Виртуальные потоки не поддерживаются данной JVM (нужна Java 21+), используются обычные потоки");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> new Thread(r, namePrefix + threadNumber.getAndIncrement()));
+    }
+}
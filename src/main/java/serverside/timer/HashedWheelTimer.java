@@ -0,0 +1,218 @@
+package serverside.timer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Таймер на основе хешированного колеса (hashed timing wheel).
+ * Колесо состоит из wheelSize ячеек, стрелка передвигается на одну ячейку каждые tickDuration.
+ * Задача попадает в ячейку по времени срабатывания и хранит число оставшихся полных оборотов колеса,
+ * поэтому добавление и отмена задачи стоят O(1) независимо от количества задач.
+ * Все ячейки обслуживает один поток, который просыпается только раз в tickDuration.
+ * Сработавшие задачи выполняются в переданном executor, чтобы медленная задача не задерживала колесо
+ */
+public class HashedWheelTimer {
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor taskExecutor;
+    private final Queue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running;
+    private long tick;
+
+    private static final Logger LOGGER = LogManager.getLogger(HashedWheelTimer.class);
+
+    /**
+     * @param tickDuration длительность одного шага стрелки
+     * @param unit единица измерения tickDuration
+     * @param wheelSize количество ячеек колеса (округляется вверх до степени двойки)
+     * @param taskExecutor executor для выполнения сработавших задач
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, Executor taskExecutor) {
+        if(tickDuration <= 0) {
+            throw new IllegalArgumentException("Длительность шага таймера должна быть положительной: " + tickDuration);
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for(int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.taskExecutor = taskExecutor;
+        this.startTime = System.nanoTime();
+        this.running = true;
+        this.worker = new Thread(this::run, "hashed-wheel-timer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Планирует выполнение задачи
+     * @param task задача
+     * @param delay задержка
+     * @param unit единица измерения задержки
+     * @return handle для отмены задачи
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while(running) {
+            if(!waitForNextTick()) {
+                continue;
+            }
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts();
+            tick++;
+        }
+    }
+
+    /**
+     * Ждет наступления следующего шага стрелки
+     * @return false - если ожидание прервано остановкой таймера
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while(true) {
+            long currentTime = System.nanoTime() - startTime;
+            long sleepTimeMillis = (deadline - currentTime + 999_999) / 1_000_000;
+            if(sleepTimeMillis <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(sleepTimeMillis);
+            } catch (InterruptedException ex) {
+                if(!running) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        WheelTimeout timeout;
+        while((timeout = pendingTimeouts.poll()) != null) {
+            if(timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);   // просроченные задачи попадают в текущую ячейку
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void execute(WheelTimeout timeout) {
+        try {
+            taskExecutor.execute(timeout.task);
+        } catch (RejectedExecutionException ex) {
+            LOGGER.error("Не удалось выполнить задачу таймера: " + ex.getMessage());
+        }
+    }
+
+    private final class WheelTimeout implements Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        private long remainingRounds;
+        private WheelTimeout next;
+        private WheelTimeout prev;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            return state.compareAndSet(ST_INIT, ST_CANCELLED);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if(state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                execute(this);
+            }
+        }
+    }
+
+    /**
+     * Ячейка колеса - двусвязный список задач. Используется только потоком таймера
+     */
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts() {
+            WheelTimeout timeout = head;
+            while(timeout != null) {
+                WheelTimeout next = timeout.next;
+                if(timeout.isCancelled()) {
+                    remove(timeout);
+                } else if(timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(WheelTimeout timeout) {
+            if(timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if(timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package serverside.timer;
+
+/**
+ * Отложенная задача, запланированная в HashedWheelTimer
+ */
+public interface Timeout {
+    /**
+     * Отменяет задачу
+     * @return true - если задача отменена до срабатывания, false - если она уже сработала или была отменена ранее
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    boolean isExpired();
+}
@@ -0,0 +1,51 @@
+package serverside.tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * TLS на стороне клиента (окно клиента и генератор нагрузки).
+ * Один объект нужно использовать для всех подключений к серверу: сессии хранятся в его SSLContext,
+ * поэтому переподключение после разрыва возобновляет сессию вместо полного рукопожатия
+ */
+public class ClientTls {
+    private final SSLContext context;
+    private final TlsSettings settings;
+
+    public ClientTls(TlsSettings settings) throws IOException {
+        this.settings = settings;
+        this.context = settings.createClientContext();
+    }
+
+    /**
+     * @param settings настройки chat.tls.*
+     * @return TLS клиента или null, если TLS выключен
+     * @throws IOException, если хранилище сертификатов не читается
+     */
+    public static ClientTls from(TlsSettings settings) throws IOException {
+        return settings.isEnabled() ? new ClientTls(settings) : null;
+    }
+
+    /**
+     * Включает TLS на подключенном сокете и выполняет рукопожатие
+     * @param socket подключенный сокет; закрывается вместе с возвращенным
+     * @param host адрес сервера, на который должен быть выдан его сертификат
+     * @param port порт сервера
+     * @return сокет TLS после рукопожатия
+     * @throws IOException, если рукопожатие не удалось (в том числе сертификат сервера не прошел проверку)
+     */
+    public SSLSocket connect(Socket socket, String host, int port) throws IOException {
+        SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+        SSLParameters parameters = ssl.getSSLParameters();
+        parameters.setProtocols(settings.getProtocols());
+        if(settings.isVerifyHostname()) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        ssl.setSSLParameters(parameters);
+        ssl.startHandshake();
+        return ssl;
+    }
+}
@@ -0,0 +1,124 @@
+package serverside.tls;
+
+import serverside.metrics.LatencyHistogram;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TLS на стороне сервера: общий для всех соединений контекст (и кэш сессий) и счетчики рукопожатий.
+ * Шифрование включается только для подключений, уже принятых AdmissionControl, поэтому отклоненное
+ * подключение не стоит ни рукопожатия, ни SSLEngine. Само рукопожатие выполняется не в потоке приема
+ * подключений: в блокирующем режиме - в потоке обработчика клиента (handshake), в неблокирующем -
+ * в цикле событий, а вычисления рукопожатия (делегированные задачи SSLEngine) - в пуле обработчиков.
+ * Полное рукопожатие отличается от возобновления сессии по времени создания сессии: у возобновленной
+ * сессии оно раньше начала рукопожатия
+ */
+public class ServerTls {
+    private final SSLContext context;
+    private final TlsSettings settings;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+    public ServerTls(TlsSettings settings) throws IOException {
+        this.settings = settings;
+        this.context = settings.createServerContext();
+    }
+
+    /**
+     * Включает TLS на принятом сокете. Рукопожатие не начинается
+     * @param socket сокет клиента; закрывается вместе с возвращенным
+     * @return сокет TLS в режиме сервера
+     * @throws IOException, если сокет уже закрыт
+     */
+    public SSLSocket wrap(Socket socket) throws IOException {
+        SSLSocket ssl = (SSLSocket) context.getSocketFactory()
+                .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        ssl.setUseClientMode(false);
+        ssl.setEnabledProtocols(settings.getProtocols());
+        return ssl;
+    }
+
+    /**
+     * Выполняет рукопожатие в вызывающем потоке не дольше getHandshakeTimeoutMillis
+     * @param socket сокет, созданный wrap
+     * @throws IOException, если рукопожатие не удалось или не завершилось вовремя
+     */
+    public void handshake(SSLSocket socket) throws IOException {
+        long start = System.nanoTime();
+        int timeout = socket.getSoTimeout();
+        try {
+            socket.setSoTimeout(settings.getHandshakeTimeoutMillis());
+            socket.startHandshake();
+            socket.setSoTimeout(timeout);
+        } catch (IOException ex) {
+            failedHandshakes.increment();
+            throw ex;
+        }
+        onHandshakeCompleted(socket.getSession(), start);
+    }
+
+    /**
+     * @param peer адрес клиента
+     * @return SSLEngine в режиме сервера для неблокирующего соединения
+     */
+    public SSLEngine newEngine(InetSocketAddress peer) {
+        SSLEngine engine = context.createSSLEngine(peer.getAddress().getHostAddress(), peer.getPort());
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(settings.getProtocols());
+        return engine;
+    }
+
+    /**
+     * @return сколько ждать завершения рукопожатия, прежде чем закрыть соединение
+     */
+    public int getHandshakeTimeoutMillis() {
+        return settings.getHandshakeTimeoutMillis();
+    }
+
+    /**
+     * Учитывает завершенное рукопожатие
+     * @param session сессия соединения
+     * @param startNanos начало рукопожатия (System.nanoTime())
+     */
+    public void onHandshakeCompleted(SSLSession session, long startNanos) {
+        handshakeLatency.recordSince(startNanos);
+        // начало рукопожатия по часам сессии, с запасом в 1 мс на округление
+        long startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) - 1;
+        if(session.getCreationTime() < startMillis) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+
+    public void onHandshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    public long getFullHandshakeCount() {
+        return fullHandshakes.sum();
+    }
+
+    public long getResumedHandshakeCount() {
+        return resumedHandshakes.sum();
+    }
+
+    public long getFailedHandshakeCount() {
+        return failedHandshakes.sum();
+    }
+
+    public LatencyHistogram getHandshakeLatency() {
+        return handshakeLatency;
+    }
+}
@@ -0,0 +1,191 @@
+package serverside.tls;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import serverside.service.ServerConfig;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * Настройки TLS (chat.tls.*), общие для сервера, клиента и генератора нагрузки.
+ * Сервер берет ключ и сертификат из keyStore, клиент проверяет сертификат сервера по trustStore
+ * (если он не задан - по keyStore, что удобно для самоподписанного сертификата на localhost,
+ * а если не задан и keyStore - по системному хранилищу JVM).
+ * Повторное подключение обходится без полного рукопожатия: сервер хранит сессии (sessionCacheSize
+ * на sessionTimeoutSeconds) и выдает клиентам билеты сессий (sessionTickets), а клиент переиспользует
+ * один SSLContext для всех подключений и предъявляет сохраненную сессию
+ */
+public class TlsSettings {
+    private static final String DEFAULT_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    private static final String DEFAULT_STORE_TYPE = "PKCS12";
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 20000;
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    // читается JSSE один раз, при первом использовании TLS в процессе
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final boolean enabled;
+    private final String keyStore;
+    private final String keyStorePassword;
+    private final String keyStoreType;
+    private final String trustStore;
+    private final String trustStorePassword;
+    private final String trustStoreType;
+    private final String[] protocols;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+    private final boolean sessionTickets;
+    private final int handshakeTimeoutMillis;
+    private final boolean verifyHostname;
+
+    private static final Logger LOGGER = LogManager.getLogger(TlsSettings.class);
+
+    public TlsSettings(boolean enabled, String keyStore, String keyStorePassword, String keyStoreType,
+                       String trustStore, String trustStorePassword, String trustStoreType, String[] protocols,
+                       int sessionCacheSize, int sessionTimeoutSeconds, boolean sessionTickets,
+                       int handshakeTimeoutMillis, boolean verifyHostname) {
+        this.enabled = enabled;
+        this.keyStore = keyStore;
+        this.keyStorePassword = keyStorePassword;
+        this.keyStoreType = keyStoreType;
+        this.trustStore = trustStore;
+        this.trustStorePassword = trustStorePassword;
+        this.trustStoreType = trustStoreType;
+        this.protocols = protocols;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        this.sessionTickets = sessionTickets;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.verifyHostname = verifyHostname;
+    }
+
+    public static TlsSettings from(ServerConfig config) {
+        String keyStore = config.getString("chat.tls.keyStore", null);
+        String keyStorePassword = config.getString("chat.tls.keyStorePassword", "");
+        String keyStoreType = config.getString("chat.tls.keyStoreType", DEFAULT_STORE_TYPE);
+        String[] protocols = Arrays.stream(config.getString("chat.tls.protocols", DEFAULT_PROTOCOLS).split(","))
+                .map(String::trim)
+                .filter(protocol -> !protocol.isEmpty())
+                .toArray(String[]::new);
+        if(protocols.length == 0) {
+            LOGGER.error("Не заданы версии TLS в chat.tls.protocols, используются " + DEFAULT_PROTOCOLS);
+            protocols = DEFAULT_PROTOCOLS.split(",");
+        }
+        int handshakeTimeoutMillis = config.getInt("chat.tls.handshakeTimeoutMillis", DEFAULT_HANDSHAKE_TIMEOUT_MILLIS);
+        if(handshakeTimeoutMillis < 1) {
+            LOGGER.error("Неверное значение chat.tls.handshakeTimeoutMillis: " + handshakeTimeoutMillis
+                    + ", используется " + DEFAULT_HANDSHAKE_TIMEOUT_MILLIS);
+            handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+        }
+        return new TlsSettings(config.getBoolean("chat.tls.enabled", false),
+                keyStore, keyStorePassword, keyStoreType,
+                config.getString("chat.tls.trustStore", keyStore),
+                config.getString("chat.tls.trustStorePassword", keyStorePassword),
+                config.getString("chat.tls.trustStoreType", keyStoreType),
+                protocols,
+                Math.max(0, config.getInt("chat.tls.sessionCacheSize", DEFAULT_SESSION_CACHE_SIZE)),
+                Math.max(0, config.getInt("chat.tls.sessionTimeoutSeconds", DEFAULT_SESSION_TIMEOUT_SECONDS)),
+                config.getBoolean("chat.tls.sessionTickets", true),
+                handshakeTimeoutMillis,
+                config.getBoolean("chat.tls.verifyHostname", true));
+    }
+
+    /**
+     * Создает контекст TLS сервера: ключ и сертификат из keyStore, кэш сессий sessionCacheSize
+     * на sessionTimeoutSeconds (0 - без ограничения)
+     * @return контекст, общий для всех соединений сервера
+     * @throws IOException, если keyStore не задан, не читается или не подходит
+     */
+    public SSLContext createServerContext() throws IOException {
+        if(keyStore == null) {
+            throw new IOException("Для TLS не задан chat.tls.keyStore");
+        }
+        System.setProperty(SESSION_TICKETS_PROPERTY, String.valueOf(sessionTickets));
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(loadStore(keyStore, keyStoreType, keyStorePassword), keyStorePassword.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Ошибка в хранилище ключей " + keyStore + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Создает контекст TLS клиента. Сессии с сервером хранятся в контексте, поэтому для повторных
+     * подключений нужно использовать один и тот же контекст
+     * @return контекст
+     * @throws IOException, если trustStore не читается или не подходит
+     */
+    public SSLContext createClientContext() throws IOException {
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(trustStore == null ? null : loadStore(trustStore, trustStoreType, trustStorePassword));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Ошибка в хранилище сертификатов " + trustStore + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private static KeyStore loadStore(String path, String type, String password)
+            throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(type);
+        try (InputStream in = new FileInputStream(path)) {
+            store.load(in, password.toCharArray());
+        }
+        return store;
+    }
+
+    /**
+     * @return включен ли TLS; без него соединения работают без шифрования
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return допустимые версии TLS
+     */
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * @return сколько сервер ждет завершения рукопожатия, прежде чем закрыть соединение
+     */
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    /**
+     * @return проверяет ли клиент, что сертификат выдан на адрес, к которому он подключается
+     */
+    public boolean isVerifyHostname() {
+        return verifyHostname;
+    }
+
+    @Override
+    public String toString() {
+        if(!enabled) {
+            return "выключен";
+        }
+        return String.join(", ", protocols) + ", кэш сессий " + sessionCacheSize + " на " + sessionTimeoutSeconds
+                + " с, билеты сессий " + (sessionTickets ? "включены" : "выключены")
+                + ", рукопожатие до " + handshakeTimeoutMillis + " мс";
+    }
+}